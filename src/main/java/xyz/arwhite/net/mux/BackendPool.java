@@ -0,0 +1,408 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps TCP connections to the backends a {@link SplitProxy} forwards Streams to, so a Stream
+ * arriving needn't wait for a TCP handshake with its destination.
+ *
+ * Each destination in use has connections dialled ahead of being needed, up to the number of
+ * warm connections. If reuse is enabled a connection is also returned to its pool once the Stream
+ * it served has ended, as long as the backend neither closed it nor was cut off mid reply. Reuse
+ * is only safe for protocols where a connection is idle between requests and holds no state for
+ * the client that used it, such as HTTP/1.1 keep-alive.
+ *
+ * Idle connections are closed once idle for the idle timeout or open for the max lifetime, and
+ * are checked to be still open and quiet before being handed out. A destination nothing has
+ * used for the idle timeout is forgotten, its connections closed and no longer dialled ahead.
+ *
+ * @author Alan R. White
+ *
+ */
+public class BackendPool {
+
+	static private final Logger logger = Logger.getLogger(BackendPool.class.getName());
+
+	/**
+	 * Longest time between sweeps of the idle connections
+	 */
+	private static final long SWEEP_INTERVAL = 1000;
+
+	/**
+	 * Time a health check waits to see if an idle connection has been closed, or has unexpected data
+	 */
+	private static final int HEALTH_CHECK_WAIT = 1;
+
+	private int warmConnections;
+	private int maxIdle;
+	private long idleTimeout;
+	private long maxLifetime;
+	private int connectTimeout;
+	private boolean reuse;
+	private ResolverCache resolverCache;
+
+	private ConcurrentHashMap<InetSocketAddress, Destination> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * When each connection handed out was dialled, so its lifetime carries across reuse
+	 */
+	private ConcurrentHashMap<Socket, Long> inUse = new ConcurrentHashMap<>();
+
+	private Thread sweeper;
+	private volatile boolean closed = false;
+
+	/**
+	 * An idle connection
+	 */
+	private record Backend(Socket socket, long created, long idleSince) {}
+	
+	/**
+	 * The connections to a destination, and how recently it's been used
+	 */
+	private static class Destination {
+		final LinkedBlockingDeque<Backend> idle = new LinkedBlockingDeque<>();
+		final AtomicInteger active = new AtomicInteger();
+		volatile long lastUsed;
+	}
+
+	private BackendPool(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.warmConnections = builder.warmConnections;
+		this.maxIdle = builder.maxIdle;
+		this.idleTimeout = builder.idleTimeout;
+		this.maxLifetime = builder.maxLifetime;
+		this.connectTimeout = builder.connectTimeout;
+		this.reuse = builder.reuse;
+		this.resolverCache = builder.resolverCache;
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Returns a connection to the destination, an idle one if a healthy one is waiting otherwise
+	 * dialled now. The connection must be given back with {@link #release} rather than closed.
+	 *
+	 * @param destination
+	 * @return
+	 * @throws IOException if a connection has to be dialled and can't be
+	 */
+	public Socket acquire(InetSocketAddress destination) throws IOException {
+		logger.entering(this.getClass().getName(), "acquire", destination);
+
+		if ( closed )
+			throw(new IOException("BackendPool is closed"));
+
+		var key = key(destination);
+		
+		// marked used as it's found, so a sweep can't forget it meanwhile
+		var pool = pools.compute(key, (k, d) -> {
+			var used = d != null ? d : new Destination();
+			used.lastUsed = System.currentTimeMillis();
+			return used;
+		});
+
+		Backend backend;
+		while( (backend = pool.idle.pollFirst()) != null ) {
+			if ( usable(backend, System.currentTimeMillis()) ) {
+				inUse.put(backend.socket(), backend.created());
+				pool.active.incrementAndGet();
+				logger.exiting(this.getClass().getName(), "acquire", backend.socket());
+				return backend.socket();
+			}
+
+			closeQuietly(backend.socket());
+		}
+
+		var socket = dial(key);
+		inUse.put(socket, System.currentTimeMillis());
+		pool.active.incrementAndGet();
+
+		logger.exiting(this.getClass().getName(), "acquire", socket);
+		return socket;
+	}
+
+	/**
+	 * Gives back a connection from {@link #acquire}, which is kept for reuse if reuse is enabled
+	 * and there's room, otherwise closed
+	 *
+	 * @param destination the connection was acquired for
+	 * @param socket
+	 * @param reusable false if the connection may hold anything from its last use, e.g. a reply
+	 * cut off part way, or the backend has closed it
+	 */
+	public void release(InetSocketAddress destination, Socket socket, boolean reusable) {
+		logger.entering(this.getClass().getName(), "release", new Object[] { destination, socket, reusable });
+
+		var created = inUse.remove(socket);
+		var pool = pools.get(key(destination));
+		var now = System.currentTimeMillis();
+		
+		if ( pool != null && created != null ) {
+			// used until now, before it's no longer counted active
+			pool.lastUsed = now;
+			pool.active.decrementAndGet();
+		}
+
+		if ( !reuse || !reusable || closed || created == null || pool == null
+				|| now - created >= maxLifetime || pool.idle.size() >= maxIdle ) {
+			closeQuietly(socket);
+			return;
+		}
+
+		pool.idle.offerFirst(new Backend(socket, created, now));
+
+		logger.exiting(this.getClass().getName(), "release");
+	}
+
+	/**
+	 * @param destination
+	 * @return number of idle connections to the destination
+	 */
+	public int getIdleCount(InetSocketAddress destination) {
+		var pool = pools.get(key(destination));
+		return pool == null ? 0 : pool.idle.size();
+	}
+	
+	/**
+	 * @return number of destinations with connections kept or in use
+	 */
+	public int getDestinationCount() {
+		return pools.size();
+	}
+
+	/**
+	 * @return true if connections are kept for reuse once released
+	 */
+	public boolean isReuse() {
+		return reuse;
+	}
+
+	/**
+	 * Closes the idle connections, connections in use are closed when released
+	 */
+	public void close() {
+		logger.entering(this.getClass().getName(), "close");
+
+		closed = true;
+		sweeper.interrupt();
+
+		pools.values().forEach(BackendPool::closeIdle);
+
+		logger.exiting(this.getClass().getName(), "close");
+	}
+
+	/**
+	 * Closes idle connections past their time or no longer healthy, forgets destinations no
+	 * longer used, and dials ahead for the rest short of warm connections
+	 */
+	private void sweep() {
+		try {
+			while( !closed ) {
+				Thread.sleep(Math.min(idleTimeout, SWEEP_INTERVAL));
+
+				var now = System.currentTimeMillis();
+				pools.forEach((destination, pool) -> {
+					// each is taken out while checked so an acquire can't be handed it at the same time,
+					// the oldest are at the back so re-offering there keeps the order
+					for( int checks = pool.idle.size(); checks > 0; checks-- ) {
+						var backend = pool.idle.pollFirst();
+						if ( backend == null )
+							break;
+
+						if ( usable(backend, now) )
+							pool.idle.offerLast(backend);
+						else
+							closeQuietly(backend.socket());
+					}
+					
+					var forgotten = pools.computeIfPresent(destination, 
+							(k, d) -> d.active.get() == 0 && now - d.lastUsed >= idleTimeout ? null : d) == null;
+					
+					if ( forgotten ) {
+						logger.fine("no longer pooling connections to "+destination);
+						closeIdle(pool);
+						return;
+					}
+
+					while( !closed && pool.idle.size() < Math.min(warmConnections, maxIdle) ) {
+						try {
+							var socket = dial(destination);
+							pool.idle.offerLast(new Backend(socket, System.currentTimeMillis(), System.currentTimeMillis()));
+
+						} catch (IOException e) {
+							// try again next sweep
+							logger.log(Level.FINE, "unable to pre-connect to "+destination, e);
+							break;
+						}
+					}
+				});
+			}
+
+		} catch (InterruptedException e) {
+			// closing
+		}
+	}
+
+	/**
+	 * @return true if the connection is within its time limits, still open and has nothing
+	 * unread waiting on it
+	 */
+	private boolean usable(Backend backend, long now) {
+		if ( now - backend.idleSince() >= idleTimeout || now - backend.created() >= maxLifetime )
+			return false;
+
+		var socket = backend.socket();
+		if ( socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown() )
+			return false;
+
+		try {
+			socket.setSoTimeout(HEALTH_CHECK_WAIT);
+			try {
+				// closed by the backend, or sending something unasked for
+				socket.getInputStream().read();
+				return false;
+
+			} catch (SocketTimeoutException e) {
+				socket.setSoTimeout(0);
+				return true;
+			}
+
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private Socket dial(InetSocketAddress destination) throws IOException {
+		var socket = new Socket();
+
+		try {
+			socket.connect(resolverCache != null 
+					? resolverCache.resolve(destination)
+					: new InetSocketAddress(destination.getHostString(), destination.getPort()), connectTimeout);
+			socket.setTcpNoDelay(true);
+
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw(e);
+		}
+
+		return socket;
+	}
+
+	/**
+	 * Resolved and unresolved addresses of the same destination share a pool
+	 */
+	private static InetSocketAddress key(InetSocketAddress destination) {
+		return InetSocketAddress.createUnresolved(destination.getHostString(), destination.getPort());
+	}
+
+	private static void closeIdle(Destination pool) {
+		Backend backend;
+		while( (backend = pool.idle.pollFirst()) != null )
+			closeQuietly(backend.socket());
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "close failed", e);
+		}
+	}
+
+	public static class Builder {
+
+		int warmConnections = 0;
+		int maxIdle = 8;
+		long idleTimeout = 30000;
+		long maxLifetime = 300000;
+		int connectTimeout = 10000;
+		boolean reuse = false;
+		ResolverCache resolverCache;
+
+		/**
+		 * @param warmConnections idle connections kept dialled ahead for each destination once
+		 * it has been used
+		 * @return
+		 */
+		public Builder withWarmConnections(int warmConnections) {
+			this.warmConnections = warmConnections;
+			return this;
+		}
+
+		/**
+		 * @param maxIdle most idle connections kept for each destination
+		 * @return
+		 */
+		public Builder withMaxIdle(int maxIdle) {
+			this.maxIdle = maxIdle;
+			return this;
+		}
+
+		/**
+		 * @param idleTimeout millis a connection is kept idle before being closed
+		 * @return
+		 */
+		public Builder withIdleTimeout(long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+
+		/**
+		 * @param maxLifetime millis after being dialled a connection is no longer handed out
+		 * @return
+		 */
+		public Builder withMaxLifetime(long maxLifetime) {
+			this.maxLifetime = maxLifetime;
+			return this;
+		}
+
+		/**
+		 * @param connectTimeout millis allowed to dial a destination
+		 * @return
+		 */
+		public Builder withConnectTimeout(int connectTimeout) {
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		/**
+		 * @param reuse keep connections for the next Stream once released, only for protocols
+		 * such as HTTP/1.1 keep-alive where a connection holds nothing between requests
+		 * @return
+		 */
+		public Builder withReuse(boolean reuse) {
+			this.reuse = reuse;
+			return this;
+		}
+
+		/**
+		 * @param resolverCache looks up the destinations dialled, instead of the JDK each time
+		 * @return
+		 */
+		public Builder withResolverCache(ResolverCache resolverCache) {
+			this.resolverCache = resolverCache;
+			return this;
+		}
+
+		public BackendPool build() {
+
+			if ( warmConnections < 0 || maxIdle < 0 || idleTimeout <= 0 || maxLifetime <= 0 )
+				throw(new IllegalArgumentException("pool limits must not be negative, timeouts must be positive"));
+
+			var pool = new BackendPool(this);
+			pool.sweeper = Thread.ofVirtual().name("BackendPoolSweeper").start(pool::sweep);
+
+			return pool;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package xyz.arwhite.net.mux;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Clock;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.helidon.common.buffers.BufferData;
+
+/**
+ * A MessageBroker over a plain SocketChannel, for use between trusted hosts where WebSocket
+ * framing and the HTTP stack are unnecessary. Provides the same queueing and transmit
+ * scheduling as {@link WsPriorityMessageHandler} so it can be used by a StreamController
+ * in exactly the same way.
+ *
+ * Each message is sent as an Int32 length followed by the message. Messages ready to send
+ * are gathered into a single write, up to a limit.
+ *
+ * @author Alan R. White
+ *
+ */
+public class ChannelMessageHandler implements MessageBroker {
+
+	static private final Logger logger = Logger.getLogger(ChannelMessageHandler.class.getName());
+
+	/**
+	 * Bytes in flight allowed below the channel when only a pacing rate is configured
+	 */
+	private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 16384;
+
+	/**
+	 * Most messages, and most bytes, gathered into a single write
+	 */
+	private static final int MAX_GATHERED_MESSAGES = 32;
+	private static final int MAX_GATHERED_BYTES = 65536;
+
+	/**
+	 * Largest message accepted from the peer, anything larger is a framing error
+	 */
+	private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+	private Clock clock;
+	private volatile SocketChannel channel;
+
+	private CompletableFuture<Void> txStopped;
+	private ReceiveQueue rxQueue;
+
+	private Thread txQueueSender;
+	private Thread rxChannelReader;
+	private TransmitScheduler scheduler;
+	private volatile boolean draining = false;
+	private volatile boolean closed = false;
+
+	public ChannelMessageHandler() {
+		this(Clock.systemDefaultZone());
+	}
+
+	protected ChannelMessageHandler(Clock clock) {
+		this.clock = clock;
+		var queues = new QueueSettings();
+		rxQueue = queues.newReceiveQueue(clock);
+		scheduler = queues.newScheduler(clock);
+	}
+
+	private ChannelMessageHandler(Builder builder) {
+		this.clock = Clock.systemDefaultZone();
+		rxQueue = builder.queues.newReceiveQueue(clock);
+		scheduler = builder.queues.newScheduler(clock);
+
+		if ( builder.pacingRate > 0 || builder.maxBytesInFlight > 0 )
+			scheduler.setPacer(new TransmitPacer(builder.pacingRate,
+					builder.maxBytesInFlight > 0 ? builder.maxBytesInFlight : DEFAULT_MAX_BYTES_IN_FLIGHT));
+	}
+
+	public static class Builder {
+
+		QueueSettings queues = new QueueSettings();
+		long pacingRate = 0;
+		int maxBytesInFlight = 0;
+
+		public Builder withReceiveQueueDepth(int receiveQueueDepth) {
+			queues.receiveQueueDepth = receiveQueueDepth;
+			return this;
+		}
+
+		public Builder withTransmitQueueDepth(int transmitQueueDepth) {
+			queues.transmitQueueDepth = transmitQueueDepth;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withPacingRate}
+		 */
+		public Builder withPacingRate(long bytesPerSecond) {
+			this.pacingRate = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withMaxBytesInFlight}
+		 */
+		public Builder withMaxBytesInFlight(int maxBytesInFlight) {
+			this.maxBytesInFlight = maxBytesInFlight;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withDeadlineShare}
+		 */
+		public Builder withDeadlineShare(double deadlineShare) {
+			queues.deadlineShare = deadlineShare;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withBandwidthGroup}
+		 */
+		public Builder withBandwidthGroup(int group, int weight, long rateCap) {
+			queues.bandwidthGroups.add(new TransmitScheduler.GroupSettings(group, weight, rateCap));
+			return this;
+		}
+
+		public ChannelMessageHandler build() {
+			return new ChannelMessageHandler(this);
+		}
+	}
+
+	/**
+	 * Starts exchanging messages over a connected channel. The channel is used in blocking mode.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void open(SocketChannel channel) throws IOException {
+		logger.entering(this.getClass().getName(), "open", channel);
+
+		channel.configureBlocking(true);
+		this.channel = channel;
+
+		txStopped = new CompletableFuture<>();
+		txQueueSender = Thread.ofVirtual().name("ChannelSender").start(this::sendFromQueue);
+		rxChannelReader = Thread.ofVirtual().name("ChannelReader").start(this::receiveFromChannel);
+
+		logger.exiting(this.getClass().getName(), "open");
+	}
+
+	/*
+	 * Sending messages to the channel
+	 */
+
+	private void sendFromQueue() {
+		var frames = new ByteBuffer[MAX_GATHERED_MESSAGES * 2];
+
+		try {
+			while(true) {
+				var qe = scheduler.take();
+
+				if ( qe.priority() == 0 ) {
+					drain(frames);
+					continue;
+				}
+
+				// gather whatever else may be sent straight away
+				int count = frame(frames, 0, qe.message());
+				int bytes = (int) (frames[0].remaining() + frames[1].remaining());
+
+				PriorityQueueEntry next = null;
+				while( count < frames.length && bytes < MAX_GATHERED_BYTES
+						&& (next = scheduler.tryTake()) != null ) {
+
+					// send what's gathered before draining
+					if ( next.priority() == 0 )
+						break;
+
+					count = frame(frames, count, next.message());
+					bytes += frames[count - 2].remaining() + frames[count - 1].remaining();
+					next = null;
+				}
+
+				logger.fine("Transmit "+(count / 2)+" messages, "+bytes+" bytes on channel");
+				write(frames, count);
+				scheduler.sent(bytes);
+
+				if ( next != null )
+					drain(frames);
+			}
+
+		} catch(InterruptedException e) {
+		} catch(IOException e) {
+			logger.log(Level.FINE, "channel write failed", e);
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Sends everything left on all lanes, then tells anyone stopping that we're done
+	 */
+	private void drain(ByteBuffer[] frames) throws IOException {
+		PriorityQueueEntry de;
+		while( (de = scheduler.poll()) != null )
+			write(frames, frame(frames, 0, de.message()));
+
+		txStopped.complete(null);
+	}
+
+	/**
+	 * Adds the length prefix and message to the array of buffers to be written
+	 * @return the number of buffers now in the array
+	 */
+	private int frame(ByteBuffer[] frames, int count, BufferData message) {
+		var bytes = new byte[message.available()];
+		message.read(bytes);
+
+		frames[count] = ByteBuffer.allocate(4).putInt(bytes.length).flip();
+		frames[count + 1] = ByteBuffer.wrap(bytes);
+
+		return count + 2;
+	}
+
+	private void write(ByteBuffer[] frames, int count) throws IOException {
+		long remaining = 0;
+		for( int i = 0; i < count; i++ )
+			remaining += frames[i].remaining();
+
+		while( remaining > 0 )
+			remaining -= channel.write(frames, 0, count);
+	}
+
+	/*
+	 * Receiving messages from the channel
+	 */
+
+	private void receiveFromChannel() {
+		var length = ByteBuffer.allocate(4);
+
+		try {
+			while(true) {
+				length.clear();
+				readFully(length);
+
+				var size = length.flip().getInt();
+				if ( size < 1 || size > MAX_MESSAGE_SIZE )
+					throw(new IOException("invalid message length "+size));
+
+				var message = ByteBuffer.allocate(size);
+				readFully(message);
+
+				received(BufferData.create(message.array()));
+			}
+
+		} catch(IOException e) {
+			if ( !draining )
+				logger.log(Level.FINE, "channel read ended", e);
+		}
+
+		closeChannel();
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while( buffer.hasRemaining() )
+			if ( channel.read(buffer) < 0 )
+				throw(new EOFException("channel closed by peer"));
+	}
+
+	private void received(BufferData buffer) {
+		logger.entering(this.getClass().getName(), "received", buffer);
+
+		rxQueue.received(buffer);
+
+		logger.exiting(this.getClass().getName(), "received");
+	}
+
+	/**
+	 * The channel has gone, stop sending and tell the consumer the link is shut down
+	 */
+	private synchronized void closeChannel() {
+		if ( closed || channel == null )
+			return;
+
+		closed = true;
+
+		txQueueSender.interrupt();
+		txStopped.complete(null);
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "channel close failed", e);
+		}
+
+		var shutdown = StreamBuffers.createLinkEvent(StreamBuffers.LINK_SHUTDOWN);
+
+		rxQueue.linkEvent(shutdown);
+	}
+
+	@Override
+	public Queue<PriorityQueueEntry> getRxQueue() {
+		return rxQueue.getQueue();
+	}
+
+	@Override
+	public Queue<PriorityQueueEntry> getTxQueue() {
+		return scheduler.getDataQueue();
+	}
+
+	/**
+	 * Received messages are passed to the receiver as they arrive, in arrival order, on the
+	 * channel reader thread.
+	 */
+	@Override
+	public boolean setInlineReceiver(Consumer<BufferData> receiver) {
+		rxQueue.setInlineReceiver(receiver);
+		
+		return true;
+	}
+
+	/**
+	 * Queues a message to be transmitted. Priority is specified in the first byte of the BufferData.
+	 * Priority 0 is reserved for system use, this method will reject messages with priority 0.
+	 */
+	@Override
+	public boolean sendMessage(BufferData buffer) {
+		return sendMessage(buffer, TransmitScheduler.DEFAULT_GROUP, 0);
+	}
+
+	@Override
+	public boolean sendMessage(BufferData buffer, long deadline) {
+		return sendMessage(buffer, TransmitScheduler.DEFAULT_GROUP, deadline);
+	}
+
+	@Override
+	public boolean sendMessage(BufferData buffer, int group, long deadline) {
+		if ( draining || closed )
+			return false;
+
+		if ( buffer.get(0) == 0 )
+			return false;
+
+		return scheduler.offer(buffer, group, deadline);
+	}
+
+	/**
+	 * Closes a channel that has stopped responding
+	 */
+	@Override
+	public void abort() {
+		closeChannel();
+	}
+
+	@Override
+	public void pongReceived(int id) {
+		scheduler.pongReceived(id);
+	}
+
+	/**
+	 * @return the scheduler ordering frames for transmission
+	 */
+	public TransmitScheduler getTransmitScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sends whatever messages are queued, ensuring new ones can't be added, then closes the channel
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+
+		draining = true;
+
+		if ( txStopped != null && !closed ) {
+			scheduler.offerShutdown();
+
+			try {
+				txStopped.get();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		closeChannel();
+
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+}
@@ -0,0 +1,117 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Common to links whose messages are exchanged over a SocketChannel by a
+ * {@link ChannelMessageHandler}. A listening link accepts the first connection and refuses any
+ * later ones, subclasses supply the channel and how it is described.
+ *
+ * @author Alan R. White
+ *
+ */
+public abstract class ChannelMessageLink {
+
+	static private final Logger logger = Logger.getLogger(ChannelMessageLink.class.getName());
+
+	protected final ChannelMessageHandler messageBroker;
+	protected final ServerSocketChannel server;
+	protected final boolean isServer;
+	private Thread acceptor;
+
+	/**
+	 * @param messageBroker exchanging messages on the connection
+	 * @param server the listening channel, or null if the link connected to its peer
+	 */
+	protected ChannelMessageLink(ChannelMessageHandler messageBroker, ServerSocketChannel server) {
+		this.messageBroker = messageBroker;
+		this.server = server;
+		this.isServer = server != null;
+	}
+
+	/**
+	 * Starts accepting the peer's connection on the listening channel
+	 * @param name of the accepting thread
+	 */
+	protected void startAccepting(String name) {
+		acceptor = Thread.ofVirtual().name(name).start(this::accept);
+	}
+
+	/**
+	 * Stops the link, sending anything queued first
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+
+		messageBroker.stop();
+
+		if ( isServer ) {
+			acceptor.interrupt();
+
+			try {
+				server.close();
+				serverClosed();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "server channel close failed", e);
+			}
+		}
+
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+
+	/**
+	 * Called once a listening link has closed its channel
+	 * @throws IOException
+	 */
+	protected void serverClosed() throws IOException {
+	}
+
+	/**
+	 * Prepares an accepted connection before messages are exchanged on it
+	 * @param channel
+	 * @throws IOException
+	 */
+	protected void configure(SocketChannel channel) throws IOException {
+	}
+
+	/**
+	 * @return how the link is named in log messages
+	 */
+	protected abstract String describe();
+
+	private void accept() {
+		logger.entering(this.getClass().getName(), "accept");
+
+		var accepted = false;
+
+		try {
+			while( !Thread.currentThread().isInterrupted() ) {
+				var channel = server.accept();
+
+				if ( accepted ) {
+					logger.warning(describe()+" already connected, refusing another");
+					channel.close();
+					continue;
+				}
+
+				configure(channel);
+				messageBroker.open(channel);
+				accepted = true;
+
+				logger.fine(describe()+" accepted "+channel.getRemoteAddress());
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, describe()+" no longer accepting", e);
+		}
+
+		logger.exiting(this.getClass().getName(), "accept");
+	}
+
+	public ChannelMessageHandler getMessageBroker() {
+		return messageBroker;
+	}
+}
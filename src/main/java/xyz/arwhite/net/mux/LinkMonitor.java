@@ -0,0 +1,173 @@
+package xyz.arwhite.net.mux;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Measures the round trip time of a link by sending PING frames, which the peer answers with
+ * a PONG on the control lane, and detects a link that has stopped answering well before TCP
+ * would time it out.
+ *
+ * Smoothed RTT and variance follow RFC 6298, min RTT is the lowest sample seen in a sliding
+ * window, so it tracks route changes.
+ *
+ * @author Alan R. White
+ *
+ */
+public class LinkMonitor {
+
+	static private final Logger logger = Logger.getLogger(LinkMonitor.class.getName());
+
+	/**
+	 * Period over which min RTT is taken
+	 */
+	private static final long MIN_RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final MessageBroker link;
+	private final long intervalNanos;
+	private final int missedPings;
+	private final LongSupplier nanoClock;
+
+	private final ConcurrentHashMap<Integer, Long> outstanding = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger(0);
+	private volatile long lastHeard;
+
+	private long samples = 0;
+	private long latestRtt = 0;
+	private long smoothedRtt = 0;
+	private long rttVariance = 0;
+	private long minRtt = 0;
+	private long minRttStamp = 0;
+
+	/**
+	 * @param link the link to monitor
+	 * @param interval millis between pings
+	 * @param missedPings number of intervals without a PONG before the link is considered dead
+	 */
+	public LinkMonitor(MessageBroker link, long interval, int missedPings) {
+		this(link, interval, missedPings, System::nanoTime);
+	}
+
+	protected LinkMonitor(MessageBroker link, long interval, int missedPings, LongSupplier nanoClock) {
+		logger.entering(this.getClass().getName(), "Constructor",
+				new Object[] { link, Long.valueOf(interval), Integer.valueOf(missedPings) });
+
+		if ( interval < 1 || missedPings < 1 )
+			throw(new IllegalArgumentException("interval and missed pings must be positive"));
+
+		this.link = link;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.missedPings = missedPings;
+		this.nanoClock = nanoClock;
+		this.lastHeard = nanoClock.getAsLong();
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Sends a PING to the peer
+	 */
+	public void ping() {
+		var now = nanoClock.getAsLong();
+
+		// PONGs that never came back
+		outstanding.values().removeIf(sent -> now - sent > intervalNanos * missedPings);
+
+		var id = nextId.incrementAndGet();
+		outstanding.put(id, now);
+
+		link.sendMessage(StreamBuffers.createPing(id));
+	}
+
+	/**
+	 * Records the PONG answering one of our PINGs
+	 * @param id from the PONG
+	 */
+	public void pongReceived(int id) {
+		var now = nanoClock.getAsLong();
+		var sent = outstanding.remove(id);
+
+		lastHeard = now;
+
+		if ( sent == null ) {
+			logger.fine("PONG "+id+" arrived too late to measure");
+			return;
+		}
+
+		sample(now - sent, now);
+	}
+
+	/**
+	 * Restarts dead link detection, used when a link resumes with a new connection
+	 */
+	public void reset() {
+		outstanding.clear();
+		lastHeard = nanoClock.getAsLong();
+	}
+
+	/**
+	 * @return true if the peer hasn't answered for the allowed number of intervals
+	 */
+	public boolean isDead() {
+		return !outstanding.isEmpty() && nanoClock.getAsLong() - lastHeard > intervalNanos * missedPings;
+	}
+
+	private synchronized void sample(long rtt, long now) {
+		latestRtt = rtt;
+
+		if ( samples++ == 0 ) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+
+		if ( samples == 1 || rtt <= minRtt || now - minRttStamp > MIN_RTT_WINDOW_NANOS ) {
+			minRtt = rtt;
+			minRttStamp = now;
+		}
+	}
+
+	public MessageBroker getLink() {
+		return link;
+	}
+
+	/**
+	 * @return number of RTT samples taken
+	 */
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the most recent RTT sample in nanos, 0 if none yet
+	 */
+	public synchronized long getLatestRtt() {
+		return latestRtt;
+	}
+
+	/**
+	 * @return smoothed RTT in nanos, 0 if no samples yet
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return RTT variance in nanos, 0 if no samples yet
+	 */
+	public synchronized long getRttVariance() {
+		return rttVariance;
+	}
+
+	/**
+	 * @return lowest RTT in the recent window in nanos, 0 if no samples yet
+	 */
+	public synchronized long getMinRtt() {
+		return minRtt;
+	}
+}
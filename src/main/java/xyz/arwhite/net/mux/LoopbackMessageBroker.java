@@ -0,0 +1,132 @@
+package xyz.arwhite.net.mux;
+
+import java.time.Clock;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import io.helidon.common.buffers.BufferData;
+
+/**
+ * One end of an in-process link. Messages sent on one end are handed, as the same BufferData,
+ * to the receiver of the other end, with no copying, framing or threads in between. Useful to
+ * measure StreamController and Stream in isolation, and for components in the same process
+ * to use Streams at memory speed.
+ *
+ * As there's no copy, a message must not be touched by the sender once it has been sent.
+ *
+ * <pre>
+ * var end = new LoopbackMessageBroker();
+ * var client = new StreamController.Builder().withMessageBroker(end).build();
+ * var server = new StreamController.Builder().withMessageBroker(end.getPeer()).build();
+ * </pre>
+ *
+ * @author Alan R. White
+ *
+ */
+public class LoopbackMessageBroker implements MessageBroker {
+
+	static private final Logger logger = Logger.getLogger(LoopbackMessageBroker.class.getName());
+
+	private final LoopbackMessageBroker peer;
+
+	private final ReceiveQueue rxQueue;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates both ends of the link, this one and its peer
+	 */
+	public LoopbackMessageBroker() {
+		this(Clock.systemDefaultZone());
+	}
+
+	protected LoopbackMessageBroker(Clock clock) {
+		this.rxQueue = new ReceiveQueue(clock, QueueSettings.DEFAULT_QUEUE_DEPTH);
+		this.peer = new LoopbackMessageBroker(clock, this);
+	}
+
+	private LoopbackMessageBroker(Clock clock, LoopbackMessageBroker peer) {
+		this.rxQueue = new ReceiveQueue(clock, QueueSettings.DEFAULT_QUEUE_DEPTH);
+		this.peer = peer;
+	}
+
+	/**
+	 * @return the other end of the link
+	 */
+	public LoopbackMessageBroker getPeer() {
+		return peer;
+	}
+
+	@Override
+	public Queue<PriorityQueueEntry> getRxQueue() {
+		return rxQueue.getQueue();
+	}
+
+	/**
+	 * Messages are delivered as they are sent, so the queue they're submitted to is the
+	 * receive queue of the peer
+	 */
+	@Override
+	public Queue<PriorityQueueEntry> getTxQueue() {
+		return peer.rxQueue.getQueue();
+	}
+
+	/**
+	 * Hands a message to the peer. Priority is specified in the first byte of the BufferData.
+	 * Priority 0 is reserved for system use, this method will reject messages with priority 0.
+	 */
+	@Override
+	public boolean sendMessage(BufferData buffer) {
+		if ( closed || buffer.get(0) == 0 )
+			return false;
+
+		peer.received(buffer);
+		return true;
+	}
+
+	private void received(BufferData buffer) {
+		logger.entering(this.getClass().getName(), "received", buffer);
+
+		rxQueue.received(buffer);
+
+		logger.exiting(this.getClass().getName(), "received");
+	}
+
+	/**
+	 * Received messages are passed to the receiver on the sender's thread
+	 */
+	@Override
+	public boolean setInlineReceiver(Consumer<BufferData> receiver) {
+		rxQueue.setInlineReceiver(receiver);
+		
+		return true;
+	}
+
+	/**
+	 * Closes both ends of the link, each end's consumer is told the link has shut down
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+
+		shutdown();
+		peer.shutdown();
+
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+
+	@Override
+	public void abort() {
+		stop();
+	}
+
+	private synchronized void shutdown() {
+		if ( closed )
+			return;
+
+		closed = true;
+
+		var shutdown = StreamBuffers.createLinkEvent(StreamBuffers.LINK_SHUTDOWN);
+
+		rxQueue.linkEvent(shutdown);
+	}
+}
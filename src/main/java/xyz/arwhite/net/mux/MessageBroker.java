@@ -1,6 +1,7 @@
 package xyz.arwhite.net.mux;
 
 import java.util.Queue;
+import java.util.function.Consumer;
 
 import io.helidon.common.buffers.BufferData;
 
@@ -24,4 +25,78 @@ public interface MessageBroker {
 	 * @return
 	 */
 	public boolean sendMessage(BufferData buffer);
+	
+	/**
+	 * Method for submitting messages that should be sent by a deadline. Brokers that can't
+	 * schedule by deadline send as normal.
+	 * 
+	 * @param buffer
+	 * @param deadline epoch millis by which the message should be sent, 0 for no deadline
+	 * @return
+	 */
+	public default boolean sendMessage(BufferData buffer, long deadline) {
+		return sendMessage(buffer);
+	}
+	
+	/**
+	 * Method for submitting messages charged to a bandwidth group. Brokers without bandwidth
+	 * groups ignore the group.
+	 * 
+	 * @param buffer
+	 * @param group bandwidth group of the sending Stream
+	 * @param deadline epoch millis by which the message should be sent, 0 for no deadline
+	 * @return
+	 */
+	public default boolean sendMessage(BufferData buffer, int group, long deadline) {
+		return sendMessage(buffer, deadline);
+	}
+	
+	/**
+	 * A resumable broker survives the loss of its underlying connection. It passes a 
+	 * LINK_SUSPENDED event to its consumer when the connection drops, and a LINK_RESUMED event
+	 * if a new connection is established within the timeout, otherwise it shuts down.
+	 * 
+	 * @return millis a suspended link waits to resume, 0 if the broker can't resume
+	 */
+	public default long getResumeTimeout() {
+		return 0;
+	}
+	
+	/**
+	 * Discards DATA queued for transmission but not yet sent. Called while the link is
+	 * suspended, so DATA that will be replayed isn't also sent from the queue.
+	 */
+	public default void discardQueuedData() {
+	}
+	
+	/**
+	 * Abandons the underlying connection, which has stopped responding. The broker reacts as
+	 * if the connection had dropped, suspending or shutting down the link.
+	 */
+	public default void abort() {
+	}
+	
+	/**
+	 * Informs the broker the peer answered one of the PINGs it sent with a PONG, so every byte
+	 * written before the PING has been delivered. Brokers that pace writes estimate the link
+	 * rate from these.
+	 * 
+	 * @param id of the PING answered
+	 */
+	public default void pongReceived(int id) {
+	}
+	
+	/**
+	 * Registers a receiver that is handed each incoming message directly on the transport's
+	 * I/O thread, instead of the message being placed on the receive queue. The receiver 
+	 * must not block. Messages already on the receive queue are passed to the receiver first, 
+	 * so none are stranded by the switch. Brokers that can't deliver inline leave the receive 
+	 * queue in use.
+	 * 
+	 * @param receiver called with every incoming message, or null to revert to the receive queue
+	 * @return true if the broker will deliver messages inline
+	 */
+	public default boolean setInlineReceiver(Consumer<BufferData> receiver) {
+		return false;
+	}
 }
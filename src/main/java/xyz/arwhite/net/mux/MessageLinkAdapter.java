@@ -10,4 +10,20 @@ import io.helidon.nima.websocket.WsListener;
 public abstract class MessageLinkAdapter implements WsListener, MessageBroker {
 
 	public abstract void stop();
+	
+	/**
+	 * @return true if the connection has dropped and the adapter is waiting for a new one
+	 */
+	public boolean isSuspended() {
+		return false;
+	}
+	
+	/**
+	 * Sets the action run when the connection drops and the adapter is waiting for a new one,
+	 * used by a client link to reconnect. Adapters that can't resume never run it.
+	 * 
+	 * @param reconnectHandler
+	 */
+	public void setReconnectHandler(Runnable reconnectHandler) {
+	}
 }
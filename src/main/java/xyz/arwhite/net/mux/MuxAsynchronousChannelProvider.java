@@ -0,0 +1,104 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.spi.AsynchronousChannelProvider;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Opens asynchronous channels over the Streams of a {@link StreamController}, for services
+ * written to completion handlers rather than blocking I/O.
+ *
+ * <pre>
+ * var provider = new MuxAsynchronousChannelProvider(controller);
+ * var server = provider.openAsynchronousServerSocketChannel(null);
+ * server.bind(new InetSocketAddress(streamPort));
+ * server.accept(null, handler);
+ * </pre>
+ *
+ * No thread waits on a pending operation, it is completed by the Stream as data arrives or its
+ * window opens. Completion handlers are run on the executor given, by default each on its own
+ * virtual thread, so a handler never holds up the Stream delivering to it. Channel groups aren't
+ * supported, channels must be opened with a null group.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxAsynchronousChannelProvider extends AsynchronousChannelProvider {
+
+	private final StreamController controller;
+	private final Executor handlerExecutor;
+
+	/**
+	 * Times out reads and writes given a timeout, shared by the provider's channels
+	 */
+	private final ScheduledExecutorService timeouts;
+
+	public MuxAsynchronousChannelProvider(StreamController controller) {
+		this(controller, task -> Thread.ofVirtual().name("MuxCompletionHandler").start(task));
+	}
+
+	/**
+	 * @param controller
+	 * @param handlerExecutor runs completion handlers
+	 */
+	public MuxAsynchronousChannelProvider(StreamController controller, Executor handlerExecutor) {
+		this.controller = controller;
+		this.handlerExecutor = handlerExecutor;
+
+		var timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			var thread = new Thread(runnable, "MuxChannelTimeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		this.timeouts = timer;
+	}
+
+	@Override
+	public AsynchronousChannelGroup openAsynchronousChannelGroup(int nThreads, ThreadFactory threadFactory)
+			throws IOException {
+		throw(new UnsupportedOperationException("channel groups are not supported over Streams"));
+	}
+
+	@Override
+	public AsynchronousChannelGroup openAsynchronousChannelGroup(ExecutorService executor, int initialSize)
+			throws IOException {
+		throw(new UnsupportedOperationException("channel groups are not supported over Streams"));
+	}
+
+	@Override
+	public MuxAsynchronousServerSocketChannel openAsynchronousServerSocketChannel(AsynchronousChannelGroup group)
+			throws IOException {
+		checkGroup(group);
+		return new MuxAsynchronousServerSocketChannel(this);
+	}
+
+	@Override
+	public MuxAsynchronousSocketChannel openAsynchronousSocketChannel(AsynchronousChannelGroup group)
+			throws IOException {
+		checkGroup(group);
+		return new MuxAsynchronousSocketChannel(this);
+	}
+
+	public StreamController getStreamController() {
+		return controller;
+	}
+
+	Executor getHandlerExecutor() {
+		return handlerExecutor;
+	}
+
+	ScheduledExecutorService getTimeouts() {
+		return timeouts;
+	}
+
+	private static void checkGroup(AsynchronousChannelGroup group) {
+		if ( group != null )
+			throw(new UnsupportedOperationException("channel groups are not supported over Streams"));
+	}
+}
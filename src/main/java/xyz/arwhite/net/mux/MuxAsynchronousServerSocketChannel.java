@@ -0,0 +1,248 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AcceptPendingException;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NotYetBoundException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * An AsynchronousServerSocketChannel accepting Streams on a stream port. Open one with
+ * {@link MuxAsynchronousChannelProvider#openAsynchronousServerSocketChannel}.
+ *
+ * A pending accept is completed when its {@link StreamServer} queues a Stream, on the thread
+ * dispatching the connect request, with nothing waiting in between. As with {@link MuxSocketImpl}
+ * the backlog passed to bind limits the Streams waiting, and SO_REUSEPORT set before binding lets
+ * several channels share the stream port.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxAsynchronousServerSocketChannel extends AsynchronousServerSocketChannel {
+
+	static private final Logger logger = Logger.getLogger(MuxAsynchronousServerSocketChannel.class.getName());
+
+	private final MuxAsynchronousChannelProvider provider;
+	private volatile StreamServer server;
+	private boolean reusePort = false;
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final AtomicReference<Pending> pendingAccept = new AtomicReference<>();
+
+	/**
+	 * An accept waiting for a Stream
+	 */
+	private static class Pending {
+		final Consumer<AsynchronousSocketChannel> completed;
+		final Consumer<Throwable> failed;
+		boolean done = false;
+
+		Pending(Consumer<AsynchronousSocketChannel> completed, Consumer<Throwable> failed) {
+			this.completed = completed;
+			this.failed = failed;
+		}
+	}
+
+	protected MuxAsynchronousServerSocketChannel(MuxAsynchronousChannelProvider provider) {
+		super(provider);
+		this.provider = provider;
+	}
+
+	/**
+	 * Starts accepting Streams on the stream port of the address, the host is ignored
+	 */
+	@Override
+	public MuxAsynchronousServerSocketChannel bind(SocketAddress local, int backlog) throws IOException {
+		logger.entering(this.getClass().getName(), "bind", new Object[] { local, backlog });
+
+		ensureOpen();
+
+		synchronized(this) {
+			if ( server != null )
+				throw(new AlreadyBoundException());
+
+			if ( local == null )
+				throw(new UnsupportedOperationException("a stream port must be given, none are allocated"));
+
+			if ( !(local instanceof InetSocketAddress) )
+				throw(new UnsupportedAddressTypeException());
+
+			var bound = new StreamServer(provider.getStreamController(), ((InetSocketAddress) local).getPort(), reusePort);
+
+			if ( backlog > 0 )
+				bound.setBacklog(backlog);
+
+			bound.setReadinessListener(this::tryAccept);
+			server = bound;
+		}
+
+		logger.exiting(this.getClass().getName(), "bind");
+		return this;
+	}
+
+	@Override
+	public synchronized <T> MuxAsynchronousServerSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		ensureOpen();
+
+		if ( name != StandardSocketOptions.SO_REUSEPORT )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		if ( server != null )
+			throw(new IOException("SO_REUSEPORT must be set before binding"));
+
+		reusePort = (Boolean) value;
+		return this;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T getOption(SocketOption<T> name) throws IOException {
+		ensureOpen();
+
+		if ( name != StandardSocketOptions.SO_REUSEPORT )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		return (T) Boolean.valueOf(reusePort);
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return Set.of(StandardSocketOptions.SO_REUSEPORT);
+	}
+
+	@Override
+	public <A> void accept(A attachment, CompletionHandler<AsynchronousSocketChannel, ? super A> handler) {
+		startAccept(new Pending(
+				channel -> handler.completed(channel, attachment),
+				e -> handler.failed(e, attachment)));
+	}
+
+	@Override
+	public Future<AsynchronousSocketChannel> accept() {
+		var future = new CompletableFuture<AsynchronousSocketChannel>();
+		startAccept(new Pending(future::complete, future::completeExceptionally));
+		return future;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		ensureOpen();
+
+		var current = server;
+		return current == null ? null : new InetSocketAddress(InetAddress.getLoopbackAddress(), current.getPort());
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	/**
+	 * Stops accepting Streams on the stream port, failing any pending accept
+	 */
+	@Override
+	public void close() throws IOException {
+		logger.entering(this.getClass().getName(), "close");
+
+		if ( !closed.compareAndSet(false, true) )
+			return;
+
+		var current = server;
+		if ( current != null )
+			current.close();
+
+		var op = pendingAccept.get();
+		if ( op != null )
+			fail(op, new AsynchronousCloseException());
+
+		logger.exiting(this.getClass().getName(), "close");
+	}
+
+	private void startAccept(Pending op) {
+		if ( isOpen() && server == null )
+			throw(new NotYetBoundException());
+
+		if ( !pendingAccept.compareAndSet(null, op) )
+			throw(new AcceptPendingException());
+
+		tryAccept();
+	}
+
+	/**
+	 * Completes the pending accept if a Stream is waiting
+	 */
+	private void tryAccept() {
+		var op = pendingAccept.get();
+		if ( op == null )
+			return;
+
+		if ( !isOpen() ) {
+			fail(op, new ClosedChannelException());
+			return;
+		}
+
+		Stream stream;
+		try {
+			synchronized(op) {
+				if ( op.done )
+					return;
+
+				stream = server.poll();
+				if ( stream == null )
+					return;
+
+				op.done = true;
+			}
+
+		} catch (InterruptedException | ExecutionException e) {
+			fail(op, new IOException(e));
+			return;
+		}
+
+		var channel = new MuxAsynchronousSocketChannel(provider, stream);
+
+		pendingAccept.compareAndSet(op, null);
+		provider.getHandlerExecutor().execute(() -> op.completed.accept(channel));
+	}
+
+	private void fail(Pending op, Throwable cause) {
+		synchronized(op) {
+			if ( op.done )
+				return;
+
+			op.done = true;
+		}
+
+		pendingAccept.compareAndSet(op, null);
+		provider.getHandlerExecutor().execute(() -> op.failed.accept(cause));
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if ( !isOpen() )
+			throw(new ClosedChannelException());
+	}
+
+	@Override
+	public String toString() {
+		var current = server;
+		return "MuxAsynchronousServerSocketChannel[" + (current != null ? "stream port " + current.getPort() : "unbound") + "]";
+	}
+}
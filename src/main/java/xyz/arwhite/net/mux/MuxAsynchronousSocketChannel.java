@@ -0,0 +1,507 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.WritePendingException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An AsynchronousSocketChannel over a {@link Stream}. Open one with
+ * {@link MuxAsynchronousChannelProvider#openAsynchronousSocketChannel}, or accept one from a
+ * {@link MuxAsynchronousServerSocketChannel}.
+ *
+ * A pending read is completed when data arrives from the peer, a pending write when there is
+ * space in the Stream's transit buffer, which opens up as the peer's window lets written data go.
+ * Both are driven by the Stream telling the channel its readiness changed, so nothing waits on a
+ * pending operation. A write completes with the bytes that fit, which may be fewer than asked.
+ *
+ * Streams can't be half closed, so shutdownOutput is not supported.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxAsynchronousSocketChannel extends AsynchronousSocketChannel {
+
+	static private final Logger logger = Logger.getLogger(MuxAsynchronousSocketChannel.class.getName());
+
+	private final MuxAsynchronousChannelProvider provider;
+	private volatile Stream stream;
+	private volatile InetSocketAddress remoteAddress;
+
+	private final AtomicBoolean connecting = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private volatile boolean inputShutdown = false;
+
+	private final AtomicReference<Pending> pendingRead = new AtomicReference<>();
+	private final AtomicReference<Pending> pendingWrite = new AtomicReference<>();
+
+	/**
+	 * A read or write waiting for the Stream to be ready
+	 */
+	private static class Pending {
+		final ByteBuffer[] buffers;
+		final int offset;
+		final int length;
+		final Consumer<Long> completed;
+		final Consumer<Throwable> failed;
+
+		/**
+		 * Set once under the lock of the operation, by whichever of the Stream, a timeout or a
+		 * close gets to it first
+		 */
+		boolean done = false;
+		volatile ScheduledFuture<?> timer;
+
+		Pending(ByteBuffer[] buffers, int offset, int length, Consumer<Long> completed, Consumer<Throwable> failed) {
+			this.buffers = buffers;
+			this.offset = offset;
+			this.length = length;
+			this.completed = completed;
+			this.failed = failed;
+		}
+
+		long remaining() {
+			long remaining = 0;
+			for( int i = offset; i < offset + length; i++ )
+				remaining += buffers[i].remaining();
+
+			return remaining;
+		}
+	}
+
+	protected MuxAsynchronousSocketChannel(MuxAsynchronousChannelProvider provider) {
+		super(provider);
+		this.provider = provider;
+	}
+
+	/**
+	 * An accepted channel
+	 * @param provider
+	 * @param stream connected by the peer
+	 */
+	protected MuxAsynchronousSocketChannel(MuxAsynchronousChannelProvider provider, Stream stream) {
+		this(provider);
+		this.remoteAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), stream.getStreamPort());
+		connected(stream);
+	}
+
+	/**
+	 * Streams aren't bound locally, their ID is allocated as they connect
+	 */
+	@Override
+	public MuxAsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+		ensureOpen();
+
+		if ( local != null )
+			throw(new UnsupportedOperationException("Streams can't be bound to a local address"));
+
+		return this;
+	}
+
+	@Override
+	public <T> MuxAsynchronousSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		throw(new UnsupportedOperationException("'"+name+"' not supported"));
+	}
+
+	@Override
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		throw(new UnsupportedOperationException("'"+name+"' not supported"));
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return Set.of();
+	}
+
+	/**
+	 * Reads complete with end of stream from now on, anything still arriving is discarded
+	 */
+	@Override
+	public MuxAsynchronousSocketChannel shutdownInput() throws IOException {
+		ensureOpen();
+
+		if ( stream == null )
+			throw(new NotYetConnectedException());
+
+		inputShutdown = true;
+		tryRead();
+		return this;
+	}
+
+	@Override
+	public MuxAsynchronousSocketChannel shutdownOutput() throws IOException {
+		throw(new UnsupportedOperationException("Streams can't be half closed"));
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		ensureOpen();
+		return stream != null ? remoteAddress : null;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		ensureOpen();
+		return stream != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) : null;
+	}
+
+	/**
+	 * Connects a Stream to the stream port of the address, the host is ignored as the peer is
+	 * at the other end of the link
+	 */
+	@Override
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+		startConnect(remote,
+				v -> handler.completed(null, attachment),
+				e -> handler.failed(e, attachment));
+	}
+
+	@Override
+	public Future<Void> connect(SocketAddress remote) {
+		var future = new CompletableFuture<Void>();
+		startConnect(remote, v -> future.complete(null), future::completeExceptionally);
+		return future;
+	}
+
+	@Override
+	public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		startRead(new Pending(new ByteBuffer[] { dst }, 0, 1,
+				n -> handler.completed(n.intValue(), attachment),
+				e -> handler.failed(e, attachment)), timeout, unit);
+	}
+
+	@Override
+	public Future<Integer> read(ByteBuffer dst) {
+		var future = new CompletableFuture<Integer>();
+		startRead(new Pending(new ByteBuffer[] { dst }, 0, 1,
+				n -> future.complete(n.intValue()), future::completeExceptionally), 0, TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	@Override
+	public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		startRead(new Pending(dsts, offset, length,
+				n -> handler.completed(n, attachment),
+				e -> handler.failed(e, attachment)), timeout, unit);
+	}
+
+	@Override
+	public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		startWrite(new Pending(new ByteBuffer[] { src }, 0, 1,
+				n -> handler.completed(n.intValue(), attachment),
+				e -> handler.failed(e, attachment)), timeout, unit);
+	}
+
+	@Override
+	public Future<Integer> write(ByteBuffer src) {
+		var future = new CompletableFuture<Integer>();
+		startWrite(new Pending(new ByteBuffer[] { src }, 0, 1,
+				n -> future.complete(n.intValue()), future::completeExceptionally), 0, TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	@Override
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		startWrite(new Pending(srcs, offset, length,
+				n -> handler.completed(n, attachment),
+				e -> handler.failed(e, attachment)), timeout, unit);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	/**
+	 * Fails any pending read or write, and sends the disconnect request without waiting for the 
+	 * peer to confirm it, the Stream tidies up once it does
+	 */
+	@Override
+	public void close() throws IOException {
+		logger.entering(this.getClass().getName(), "close");
+
+		if ( !closed.compareAndSet(false, true) )
+			return;
+
+		fail(pendingRead, new AsynchronousCloseException());
+		fail(pendingWrite, new AsynchronousCloseException());
+
+		var current = stream;
+		if ( current != null )
+			disconnect(current);
+
+		logger.exiting(this.getClass().getName(), "close");
+	}
+
+	public Stream getStream() {
+		return stream;
+	}
+
+	private void startConnect(SocketAddress remote, Consumer<Void> completed, Consumer<Throwable> failed) {
+		logger.entering(this.getClass().getName(), "startConnect", remote);
+
+		if ( stream != null )
+			throw(new AlreadyConnectedException());
+
+		if ( !(remote instanceof InetSocketAddress) )
+			throw(new UnsupportedAddressTypeException());
+
+		if ( !connecting.compareAndSet(false, true) )
+			throw(new ConnectionPendingException());
+
+		if ( closed.get() ) {
+			dispatch(() -> failed.accept(new ClosedChannelException()));
+			return;
+		}
+
+		remoteAddress = (InetSocketAddress) remote;
+
+		try {
+			var connectingStream = new Stream();
+			connectingStream.setStreamController(provider.getStreamController());
+
+			connectingStream
+				.connectAsync(new InetSocketAddress(InetAddress.getLoopbackAddress(), remoteAddress.getPort()), 0, null)
+				.whenComplete((v, e) -> {
+					if ( e != null ) {
+						// as with TCP, a failed connect closes the channel
+						closed.set(true);
+						dispatch(() -> failed.accept(e instanceof CompletionException ? e.getCause() : e));
+						return;
+					}
+
+					// closed while the peer was answering
+					if ( closed.get() ) {
+						disconnect(connectingStream);
+						dispatch(() -> failed.accept(new AsynchronousCloseException()));
+						return;
+					}
+
+					connected(connectingStream);
+					dispatch(() -> completed.accept(null));
+				});
+
+		} catch (IOException e) {
+			closed.set(true);
+			dispatch(() -> failed.accept(e));
+		}
+
+		logger.exiting(this.getClass().getName(), "startConnect");
+	}
+
+	private void connected(Stream connectedStream) {
+		this.stream = connectedStream;
+		connectedStream.setReadinessListener(() -> {
+			tryRead();
+			tryWrite();
+		});
+	}
+
+	private static void disconnect(Stream current) {
+		current.closeAsync().whenComplete((v, e) -> {
+			if ( e != null )
+				logger.log(Level.FINE, "disconnect failed", e);
+		});
+	}
+
+	private void startRead(Pending op, long timeout, TimeUnit unit) {
+		for( int i = op.offset; i < op.offset + op.length; i++ )
+			if ( op.buffers[i].isReadOnly() )
+				throw(new IllegalArgumentException("read only buffer"));
+
+		if ( stream == null && isOpen() )
+			throw(new NotYetConnectedException());
+
+		if ( !pendingRead.compareAndSet(null, op) )
+			throw(new ReadPendingException());
+
+		if ( timeout > 0 )
+			op.timer = provider.getTimeouts().schedule(
+					() -> fail(pendingRead, op, new InterruptedByTimeoutException()), timeout, unit);
+
+		tryRead();
+	}
+
+	private void startWrite(Pending op, long timeout, TimeUnit unit) {
+		if ( stream == null && isOpen() )
+			throw(new NotYetConnectedException());
+
+		if ( !pendingWrite.compareAndSet(null, op) )
+			throw(new WritePendingException());
+
+		if ( timeout > 0 )
+			op.timer = provider.getTimeouts().schedule(
+					() -> fail(pendingWrite, op, new InterruptedByTimeoutException()), timeout, unit);
+
+		tryWrite();
+	}
+
+	/**
+	 * Completes the pending read if anything has arrived, or the peer has closed
+	 */
+	private void tryRead() {
+		var op = pendingRead.get();
+		if ( op == null )
+			return;
+
+		if ( !isOpen() ) {
+			fail(pendingRead, op, new ClosedChannelException());
+			return;
+		}
+
+		var input = (StreamInputStream) stream.getInputStream();
+		long total = 0;
+
+		try {
+			synchronized(op) {
+				if ( op.done )
+					return;
+
+				if ( op.remaining() > 0 ) {
+					if ( inputShutdown || (input.available() == 0 && input.isPeerClosed()) )
+						total = -1;
+
+					else if ( input.available() == 0 )
+						return;
+
+					else {
+						for( int i = op.offset; i < op.offset + op.length && input.available() > 0; i++ )
+							total += Math.max(input.read(op.buffers[i]), 0);
+					}
+				}
+
+				op.done = true;
+			}
+
+		} catch (IOException e) {
+			fail(pendingRead, op, e);
+			return;
+		}
+
+		complete(pendingRead, op, total);
+	}
+
+	/**
+	 * Completes the pending write with as much as fits in the transit buffer, if anything does
+	 */
+	private void tryWrite() {
+		var op = pendingWrite.get();
+		if ( op == null )
+			return;
+
+		if ( !isOpen() ) {
+			fail(pendingWrite, op, new ClosedChannelException());
+			return;
+		}
+
+		var output = (StreamOutputStream) stream.getOutputStream();
+		long total = 0;
+
+		try {
+			synchronized(op) {
+				if ( op.done )
+					return;
+
+				if ( output.isClosed() )
+					throw(new ClosedChannelException());
+
+				if ( op.remaining() > 0 && output.getWritable() == 0 )
+					return;
+
+				for( int i = op.offset; i < op.offset + op.length; i++ ) {
+					var src = op.buffers[i];
+					var size = Math.min(src.remaining(), output.getWritable());
+					if ( size == 0 )
+						break;
+
+					output.write(src, size);
+					total += size;
+				}
+
+				op.done = true;
+			}
+
+		} catch (IOException e) {
+			fail(pendingWrite, op, e);
+			return;
+		}
+
+		complete(pendingWrite, op, total);
+	}
+
+	/**
+	 * Clears a done operation so the next can be started, before running its handler
+	 */
+	private void complete(AtomicReference<Pending> pending, Pending op, long result) {
+		var timer = op.timer;
+		if ( timer != null )
+			timer.cancel(false);
+
+		pending.compareAndSet(op, null);
+		dispatch(() -> op.completed.accept(result));
+	}
+
+	private void fail(AtomicReference<Pending> pending, Throwable cause) {
+		var op = pending.get();
+		if ( op != null )
+			fail(pending, op, cause);
+	}
+
+	private void fail(AtomicReference<Pending> pending, Pending op, Throwable cause) {
+		synchronized(op) {
+			if ( op.done )
+				return;
+
+			op.done = true;
+		}
+
+		var timer = op.timer;
+		if ( timer != null )
+			timer.cancel(false);
+
+		pending.compareAndSet(op, null);
+		dispatch(() -> op.failed.accept(cause));
+	}
+
+	private void dispatch(Runnable handler) {
+		provider.getHandlerExecutor().execute(handler);
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if ( !isOpen() )
+			throw(new ClosedChannelException());
+	}
+
+	@Override
+	public String toString() {
+		return "MuxAsynchronousSocketChannel[" + (stream != null ? "connected " + remoteAddress : "unconnected") + "]";
+	}
+}
@@ -0,0 +1,23 @@
+package xyz.arwhite.net.mux;
+
+/**
+ * A channel over Streams that a {@link MuxSelector} can select
+ * 
+ * @author Alan R. White
+ *
+ */
+interface MuxChannel {
+
+	/**
+	 * @return the operations the channel is ready for now
+	 */
+	int readyOps();
+	
+	/**
+	 * The key is told whenever the channel's readiness may have changed
+	 * @param key
+	 */
+	void addKey(MuxSelectionKey key);
+	
+	void removeKey(MuxSelectionKey key);
+}
@@ -0,0 +1,87 @@
+package xyz.arwhite.net.mux;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registration of a Stream channel with a {@link MuxSelector}
+ * 
+ * @author Alan R. White
+ *
+ */
+class MuxSelectionKey extends AbstractSelectionKey {
+
+	private final SelectableChannel channel;
+	private final MuxSelector selector;
+	
+	private volatile int interestOps = 0;
+	private volatile int readyOps = 0;
+	
+	/**
+	 * Set while the key is waiting to be looked at by the selector
+	 */
+	final AtomicBoolean queued = new AtomicBoolean(false);
+
+	MuxSelectionKey(SelectableChannel channel, MuxSelector selector) {
+		this.channel = channel;
+		this.selector = selector;
+	}
+
+	@Override
+	public SelectableChannel channel() {
+		return channel;
+	}
+
+	@Override
+	public Selector selector() {
+		return selector;
+	}
+
+	@Override
+	public int interestOps() {
+		ensureValid();
+		return interestOps;
+	}
+
+	@Override
+	public MuxSelectionKey interestOps(int ops) {
+		ensureValid();
+		
+		if ( (ops & ~channel.validOps()) != 0 )
+			throw(new IllegalArgumentException("operations not valid for the channel"));
+		
+		interestOps = ops;
+		selector.changed(this);
+		return this;
+	}
+
+	@Override
+	public int readyOps() {
+		ensureValid();
+		return readyOps;
+	}
+	
+	void setReadyOps(int readyOps) {
+		this.readyOps = readyOps;
+	}
+	
+	/**
+	 * The channel's readiness may have changed
+	 */
+	void changed() {
+		if ( isValid() )
+			selector.changed(this);
+	}
+	
+	int channelReadyOps() {
+		return ((MuxChannel) channel).readyOps();
+	}
+	
+	private void ensureValid() {
+		if ( !isValid() )
+			throw(new CancelledKeyException());
+	}
+}
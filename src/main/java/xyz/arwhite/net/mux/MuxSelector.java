@@ -0,0 +1,341 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.AbstractSelector;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Selects Stream channels that are ready for I/O. Nothing is polled, a Stream tells the keys of
+ * its channel when data arrives, when the peer's window lets written data go and when it closes,
+ * and those keys are queued for the selector. A select only looks at the keys queued since the
+ * last, plus those still ready last time, so a single thread can serve many Streams.
+ *
+ * Readiness is level triggered as with other selectors, a key is reported again on each select
+ * while its channel is still ready.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxSelector extends AbstractSelector {
+
+	static private final Logger logger = Logger.getLogger(MuxSelector.class.getName());
+
+	private Set<SelectionKey> keys = ConcurrentHashMap.newKeySet();
+	private Set<SelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+
+	private Set<SelectionKey> selectedKeys = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Selected keys can be removed by the caller but not added
+	 */
+	private Set<SelectionKey> publicSelectedKeys = new AbstractSet<>() {
+		@Override
+		public Iterator<SelectionKey> iterator() {
+			return selectedKeys.iterator();
+		}
+
+		@Override
+		public int size() {
+			return selectedKeys.size();
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return selectedKeys.contains(key);
+		}
+
+		@Override
+		public boolean remove(Object key) {
+			return selectedKeys.remove(key);
+		}
+	};
+
+	/**
+	 * Keys whose channels may have changed readiness since they were last looked at
+	 */
+	private ConcurrentLinkedQueue<MuxSelectionKey> changedKeys = new ConcurrentLinkedQueue<>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/**
+	 * Counts changes signalled by channels, as opposed to keys queued again by the selector
+	 * itself, so a select only waits when nothing new has happened. Guarded by lock.
+	 */
+	private long changes = 0;
+	private boolean wakeupPending = false;
+
+	protected MuxSelector(MuxSelectorProvider provider) {
+		super(provider);
+	}
+
+	@Override
+	protected void implCloseSelector() throws IOException {
+		logger.entering(this.getClass().getName(), "implCloseSelector");
+
+		wakeup();
+
+		for( var key : keys ) {
+			var muxKey = (MuxSelectionKey) key;
+			((MuxChannel) muxKey.channel()).removeKey(muxKey);
+			deregister(muxKey);
+		}
+
+		keys.clear();
+		selectedKeys.clear();
+		changedKeys.clear();
+
+		logger.exiting(this.getClass().getName(), "implCloseSelector");
+	}
+
+	@Override
+	protected SelectionKey register(AbstractSelectableChannel channel, int ops, Object attachment) {
+		logger.entering(this.getClass().getName(), "register", new Object[] { channel, ops });
+
+		if ( !(channel instanceof MuxChannel) )
+			throw(new IllegalSelectorException());
+
+		var key = new MuxSelectionKey(channel, this);
+		key.attach(attachment);
+
+		keys.add(key);
+		((MuxChannel) channel).addKey(key);
+		key.interestOps(ops);
+
+		logger.exiting(this.getClass().getName(), "register", key);
+		return key;
+	}
+
+	@Override
+	public Set<SelectionKey> keys() {
+		ensureOpen();
+		return publicKeys;
+	}
+
+	@Override
+	public Set<SelectionKey> selectedKeys() {
+		ensureOpen();
+		return publicSelectedKeys;
+	}
+
+	@Override
+	public int selectNow() throws IOException {
+		return doSelect(null, -1);
+	}
+
+	@Override
+	public int select(long timeout) throws IOException {
+		if ( timeout < 0 )
+			throw(new IllegalArgumentException("negative timeout"));
+
+		return doSelect(null, timeout);
+	}
+
+	@Override
+	public int select() throws IOException {
+		return doSelect(null, 0);
+	}
+
+	@Override
+	public int select(Consumer<SelectionKey> action, long timeout) throws IOException {
+		if ( timeout < 0 )
+			throw(new IllegalArgumentException("negative timeout"));
+
+		return doSelect(action, timeout);
+	}
+
+	@Override
+	public int select(Consumer<SelectionKey> action) throws IOException {
+		return doSelect(action, 0);
+	}
+
+	@Override
+	public int selectNow(Consumer<SelectionKey> action) throws IOException {
+		return doSelect(action, -1);
+	}
+
+	@Override
+	public MuxSelector wakeup() {
+		lock.lock();
+		try {
+			wakeupPending = true;
+			changed.signalAll();
+
+		} finally {
+			lock.unlock();
+		}
+
+		return this;
+	}
+
+	/**
+	 * Queues a key to be looked at by the next select, waking it if waiting
+	 * @param key
+	 */
+	void changed(MuxSelectionKey key) {
+		if ( key.queued.compareAndSet(false, true) )
+			changedKeys.add(key);
+
+		lock.lock();
+		try {
+			changes++;
+			changed.signalAll();
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param action applied to each ready key instead of adding it to the selected keys, or null
+	 * @param timeout millis to wait for a key to become ready, 0 to wait indefinitely, -1 not to wait
+	 * @return number of keys updated
+	 * @throws IOException
+	 */
+	private int doSelect(Consumer<SelectionKey> action, long timeout) throws IOException {
+		ensureOpen();
+
+		var deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+		int updated = 0;
+
+		begin();
+		try {
+			while( true ) {
+				long seen;
+				lock.lock();
+				try {
+					seen = changes;
+
+					if ( timeout < 0 )
+						wakeupPending = false;
+
+				} finally {
+					lock.unlock();
+				}
+
+				processCancelledKeys();
+				updated = collect(action);
+
+				if ( updated > 0 || timeout < 0 || !isOpen() )
+					break;
+
+				lock.lock();
+				try {
+					if ( wakeupPending ) {
+						wakeupPending = false;
+						break;
+					}
+
+					// nothing new since looking, wait for a channel or a wakeup
+					if ( changes == seen ) {
+						if ( timeout == 0 )
+							changed.await();
+						else {
+							var remaining = deadline - System.nanoTime();
+							if ( remaining <= 0 )
+								break;
+
+							changed.awaitNanos(remaining);
+						}
+					}
+
+				} catch (InterruptedException e) {
+					// as other selectors, return with the interrupt status set
+					Thread.currentThread().interrupt();
+					break;
+
+				} finally {
+					lock.unlock();
+				}
+			}
+
+		} finally {
+			end();
+		}
+
+		processCancelledKeys();
+		return updated;
+	}
+
+	/**
+	 * Looks at the keys queued since the last select, keys still ready are queued again so
+	 * they are looked at next time too
+	 */
+	private int collect(Consumer<SelectionKey> action) {
+		var batch = new ArrayList<MuxSelectionKey>();
+
+		MuxSelectionKey key;
+		while( (key = changedKeys.poll()) != null ) {
+			key.queued.set(false);
+			batch.add(key);
+		}
+
+		int updated = 0;
+		for( var candidate : batch ) {
+			if ( !candidate.isValid() )
+				continue;
+
+			var ready = candidate.channelReadyOps() & candidate.interestOps();
+			if ( ready == 0 )
+				continue;
+
+			if ( candidate.queued.compareAndSet(false, true) )
+				changedKeys.add(candidate);
+
+			if ( action != null ) {
+				candidate.setReadyOps(ready);
+				action.accept(candidate);
+				updated++;
+
+			} else if ( selectedKeys.contains(candidate) ) {
+				if ( (candidate.readyOps() | ready) != candidate.readyOps() ) {
+					candidate.setReadyOps(candidate.readyOps() | ready);
+					updated++;
+				}
+
+			} else {
+				candidate.setReadyOps(ready);
+				selectedKeys.add(candidate);
+				updated++;
+			}
+		}
+
+		return updated;
+	}
+
+	private void processCancelledKeys() {
+		var cancelled = cancelledKeys();
+
+		synchronized(cancelled) {
+			for( var key : cancelled ) {
+				keys.remove(key);
+				selectedKeys.remove(key);
+				((MuxChannel) key.channel()).removeKey((MuxSelectionKey) key);
+				deregister((AbstractSelectionKey) key);
+			}
+
+			cancelled.clear();
+		}
+	}
+
+	private void ensureOpen() {
+		if ( !isOpen() )
+			throw(new ClosedSelectorException());
+	}
+}
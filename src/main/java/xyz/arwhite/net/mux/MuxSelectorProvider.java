@@ -0,0 +1,69 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Opens selectors and channels over the Streams of a {@link StreamController}, for servers
+ * written to the NIO selector model rather than a thread per connection.
+ *
+ * <pre>
+ * var provider = new MuxSelectorProvider(controller);
+ * var selector = provider.openSelector();
+ * var server = provider.openServerSocketChannel();
+ * server.bind(new InetSocketAddress(streamPort));
+ * server.configureBlocking(false);
+ * server.register(selector, SelectionKey.OP_ACCEPT);
+ * </pre>
+ *
+ * Channels of this provider can only be registered with its selectors, and there are no datagram
+ * channels or pipes.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxSelectorProvider extends SelectorProvider {
+
+	private final StreamController controller;
+
+	public MuxSelectorProvider(StreamController controller) {
+		this.controller = controller;
+	}
+
+	@Override
+	public MuxSelector openSelector() throws IOException {
+		return new MuxSelector(this);
+	}
+
+	@Override
+	public MuxServerSocketChannel openServerSocketChannel() throws IOException {
+		return new MuxServerSocketChannel(this);
+	}
+
+	@Override
+	public MuxSocketChannel openSocketChannel() throws IOException {
+		return new MuxSocketChannel(this);
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel() throws IOException {
+		throw(new UnsupportedOperationException("Streams have no datagrams"));
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException {
+		throw(new UnsupportedOperationException("Streams have no datagrams"));
+	}
+
+	@Override
+	public Pipe openPipe() throws IOException {
+		throw(new UnsupportedOperationException("pipes are not over Streams"));
+	}
+
+	public StreamController getStreamController() {
+		return controller;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.logging.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
 
@@ -24,6 +25,23 @@ public class MuxServerSocket extends ServerSocket {
 		}
 	}
 
+	/**
+	 * Binds with the {@link StreamServer#DEFAULT_BACKLOG}, rather than the 50 ServerSocket uses
+	 */
+	@Override
+	public void bind(SocketAddress endpoint) throws IOException {
+		bind(endpoint, StreamServer.DEFAULT_BACKLOG);
+	}
+
+	/**
+	 * ServerSocket turns a backlog below 1 into 50, for Streams it means the 
+	 * {@link StreamServer#DEFAULT_BACKLOG}
+	 */
+	@Override
+	public void bind(SocketAddress endpoint, int backlog) throws IOException {
+		super.bind(endpoint, backlog < 1 ? StreamServer.DEFAULT_BACKLOG : backlog);
+	}
+
 	@Override
 	public Socket accept() throws IOException {
 		logger.log(Level.FINER, "accept");
@@ -0,0 +1,212 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetBoundException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * A ServerSocketChannel accepting Streams on a stream port, so a selector loop can accept as
+ * well as serve Streams. Open one with {@link MuxSelectorProvider#openServerSocketChannel()}.
+ *
+ * The channel is acceptable whenever a Stream is waiting in its {@link StreamServer}. As with
+ * {@link MuxSocketImpl} the backlog passed to bind limits the Streams waiting, and SO_REUSEPORT
+ * set before binding lets several channels share the stream port.
+ *
+ * There's no ServerSocket adaptor, use {@link MuxServerSocketFactory} where one is needed.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxServerSocketChannel extends ServerSocketChannel implements MuxChannel {
+
+	static private final Logger logger = Logger.getLogger(MuxServerSocketChannel.class.getName());
+
+	private final StreamController controller;
+	private volatile StreamServer server;
+	private boolean reusePort = false;
+
+	private final Set<MuxSelectionKey> muxKeys = new CopyOnWriteArraySet<>();
+
+	protected MuxServerSocketChannel(MuxSelectorProvider provider) {
+		super(provider);
+		this.controller = provider.getStreamController();
+	}
+
+	/**
+	 * Starts accepting Streams on the stream port of the address, the host is ignored
+	 */
+	@Override
+	public MuxServerSocketChannel bind(SocketAddress local, int backlog) throws IOException {
+		logger.entering(this.getClass().getName(), "bind", new Object[] { local, backlog });
+
+		ensureOpen();
+
+		synchronized(blockingLock()) {
+			if ( server != null )
+				throw(new AlreadyBoundException());
+
+			if ( local == null )
+				throw(new UnsupportedOperationException("a stream port must be given, none are allocated"));
+
+			if ( !(local instanceof InetSocketAddress) )
+				throw(new UnsupportedAddressTypeException());
+
+			var bound = new StreamServer(controller, ((InetSocketAddress) local).getPort(), reusePort);
+
+			if ( backlog > 0 )
+				bound.setBacklog(backlog);
+
+			bound.setReadinessListener(this::signal);
+			server = bound;
+		}
+
+		logger.exiting(this.getClass().getName(), "bind");
+		return this;
+	}
+
+	@Override
+	public <T> MuxServerSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		ensureOpen();
+
+		if ( name != StandardSocketOptions.SO_REUSEPORT )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		if ( server != null )
+			throw(new IOException("SO_REUSEPORT must be set before binding"));
+
+		reusePort = (Boolean) value;
+		return this;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		ensureOpen();
+
+		if ( name != StandardSocketOptions.SO_REUSEPORT )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		return (T) Boolean.valueOf(reusePort);
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return Set.of(StandardSocketOptions.SO_REUSEPORT);
+	}
+
+	@Override
+	public ServerSocket socket() {
+		throw(new UnsupportedOperationException("no ServerSocket adaptor, use a MuxServerSocketFactory"));
+	}
+
+	/**
+	 * @return a channel for the next Stream waiting, in non-blocking mode null if there's none
+	 */
+	@Override
+	public MuxSocketChannel accept() throws IOException {
+		logger.entering(this.getClass().getName(), "accept");
+
+		ensureOpen();
+
+		var current = server;
+		if ( current == null )
+			throw(new NotYetBoundException());
+
+		Stream stream;
+		boolean completed = false;
+		try {
+			begin();
+			stream = isBlocking() ? current.accept() : current.poll();
+			completed = true;
+
+		} catch (InterruptedException | ExecutionException e) {
+			throw(new IOException(e));
+
+		} finally {
+			end(completed);
+		}
+
+		if ( stream == null )
+			return null;
+
+		var channel = new MuxSocketChannel((MuxSelectorProvider) provider(), stream);
+
+		logger.exiting(this.getClass().getName(), "accept", channel);
+		return channel;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		ensureOpen();
+
+		var current = server;
+		return current == null ? null : new InetSocketAddress(InetAddress.getLoopbackAddress(), current.getPort());
+	}
+
+	@Override
+	protected void implCloseSelectableChannel() throws IOException {
+		logger.entering(this.getClass().getName(), "implCloseSelectableChannel");
+
+		var current = server;
+		if ( current != null )
+			current.close();
+
+		signal();
+
+		logger.exiting(this.getClass().getName(), "implCloseSelectableChannel");
+	}
+
+	@Override
+	protected void implConfigureBlocking(boolean block) throws IOException {
+		// each accept checks the mode as it starts
+	}
+
+	@Override
+	public int readyOps() {
+		var current = server;
+		return current != null && current.getPendingCount() > 0 ? SelectionKey.OP_ACCEPT : 0;
+	}
+
+	@Override
+	public void addKey(MuxSelectionKey key) {
+		muxKeys.add(key);
+	}
+
+	@Override
+	public void removeKey(MuxSelectionKey key) {
+		muxKeys.remove(key);
+	}
+
+	/**
+	 * Tells the keys of the channel a Stream may be waiting
+	 */
+	private void signal() {
+		for( var key : muxKeys )
+			key.changed();
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if ( !isOpen() )
+			throw(new ClosedChannelException());
+	}
+
+	@Override
+	public String toString() {
+		var current = server;
+		return "MuxServerSocketChannel[" + (current != null ? "stream port " + current.getPort() : "unbound") + "]";
+	}
+}
@@ -27,41 +27,48 @@ public class MuxServerSocketFactory extends ServerSocketFactory {
 	static private final Logger logger = Logger.getLogger(MuxServerSocketFactory.class.getName());
 			
 	private StreamController streamController;
+	private boolean reusePort;
 	
 	private MuxServerSocketFactory(Builder builder) {
 		this.streamController = builder.streamController;
+		this.reusePort = builder.reusePort;
 	}
 
+	/**
+	 * Listens with the {@link StreamServer#DEFAULT_BACKLOG}
+	 */
 	@Override
 	public ServerSocket createServerSocket(int port) throws IOException {
 		logger.log(Level.FINE,"createServerSocket(p)");
-		var s = new MuxServerSocket(new MuxSocketImpl());
-		s.bind(new StreamSocketAddress(streamController, port));
-		return s;
+		return createServerSocket(port, StreamServer.DEFAULT_BACKLOG);
 	}
 
+	/**
+	 * @param port stream port to listen on, 0 for any free one
+	 * @param backlog most connections waiting to be accepted, below 1 for the 
+	 * {@link StreamServer#DEFAULT_BACKLOG}
+	 */
 	@Override
 	public ServerSocket createServerSocket(int port, int backlog) throws IOException {
 		logger.log(Level.FINE,"createServerSocket(p,b)");
 		
 		var i = new MuxSocketImpl();
 		i.setStreamController(streamController);
+		i.setReusePort(reusePort);
 		var s = new MuxServerSocket(i);
 		
 		s.bind(new InetSocketAddress("127.0.0.1",port), backlog);
 		return s;
 	}
 
+	/**
+	 * As {@link #createServerSocket(int, int)}, a stream port has no interface so ifAddress 
+	 * is ignored
+	 */
 	@Override
 	public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
 		logger.log(Level.FINE,"createServerSocket(p,b,ia)");
-		
-		var s = new MuxServerSocket(new MuxSocketImpl());
-		s.bind(new StreamSocketAddress(streamController,port), backlog);
-
-		// TODO: what to do about the ifAddress, not meaningful here
-		
-		return s;
+		return createServerSocket(port, backlog);
 	}
 	
 //	public static ServerSocketFactory getDefault() {
@@ -72,12 +79,23 @@ public class MuxServerSocketFactory extends ServerSocketFactory {
 	
 	public static class Builder {
 		StreamController streamController;
+		boolean reusePort = false;
 		
 		public Builder withMux(StreamController streamController) {
 			this.streamController = streamController;
 			return this;
 		}
 		
+		/**
+		 * @param reusePort server sockets created share their stream port with any others also 
+		 * reusing it, e.g. one per accepting thread, connect requests being spread across them
+		 * @return
+		 */
+		public Builder withReusePort(boolean reusePort) {
+			this.reusePort = reusePort;
+			return this;
+		}
+		
 		public MuxServerSocketFactory build() {
 			return new MuxServerSocketFactory(this);
 		}
@@ -6,8 +6,19 @@ import java.net.SocketImpl;
 
 public class MuxSocket extends Socket {
 
+	private MuxSocketImpl impl;
+	
 	public MuxSocket(SocketImpl impl) throws SocketException {
 		super(impl);
+		
+		if ( impl instanceof MuxSocketImpl )
+			this.impl = (MuxSocketImpl) impl;
 	}
 
+	/**
+	 * @return the Stream carrying this socket, null before it connects
+	 */
+	public Stream getStream() {
+		return impl == null ? null : impl.getStream();
+	}
 }
@@ -0,0 +1,920 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.LimitExceededException;
+
+/**
+ * A SocketChannel over a {@link Stream}, so a selector loop can serve many Streams on a single
+ * thread. Open one with {@link MuxSelectorProvider#openSocketChannel()}, or accept one from a
+ * {@link MuxServerSocketChannel}.
+ *
+ * The channel is readable when data has arrived from the peer or the peer has closed the Stream,
+ * and writable when there is space in the Stream's transit buffer, which opens up as the peer's
+ * window lets written data go. A non-blocking connect sends the connect request and returns, the
+ * channel becoming connectable once the peer has answered, and a non-blocking close sends the
+ * disconnect request without waiting for the peer to confirm it, so neither holds up a selector
+ * loop.
+ *
+ * Socket options map to the Stream as they do for a {@link MuxSocket}, options with no equivalent
+ * are accepted and reported but have no effect. Streams can't be half closed, so shutdownOutput
+ * only stops further writes, the peer isn't told until the channel is closed.
+ *
+ * @author Alan R. White
+ *
+ */
+public class MuxSocketChannel extends SocketChannel implements MuxChannel {
+
+	static private final Logger logger = Logger.getLogger(MuxSocketChannel.class.getName());
+
+	private final StreamController controller;
+	private volatile Stream stream;
+	private volatile InetSocketAddress remoteAddress;
+
+	/**
+	 * A connect under way in non-blocking mode, completed by the thread connecting
+	 */
+	private volatile CompletableFuture<Stream> pendingConnect;
+
+	private volatile boolean inputShutdown = false;
+	private volatile boolean outputShutdown = false;
+
+	/**
+	 * Options as set, applied to the Stream once there is one. Buffer sizes of 0 leave the
+	 * Stream's own.
+	 */
+	private volatile boolean tcpNoDelay = true;
+	private volatile int receiveBufferSize = 0;
+	private volatile int sendBufferSize = 0;
+	private volatile boolean keepAlive = false;
+	private volatile boolean reuseAddress = false;
+	private volatile int linger = -1;
+
+	private static final Set<SocketOption<?>> OPTIONS = Set.of(
+			StandardSocketOptions.TCP_NODELAY,
+			StandardSocketOptions.SO_RCVBUF,
+			StandardSocketOptions.SO_SNDBUF,
+			StandardSocketOptions.SO_KEEPALIVE,
+			StandardSocketOptions.SO_REUSEADDR,
+			StandardSocketOptions.SO_LINGER);
+
+	private Socket adaptor;
+
+	private final Set<MuxSelectionKey> muxKeys = new CopyOnWriteArraySet<>();
+
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+
+	protected MuxSocketChannel(MuxSelectorProvider provider) {
+		super(provider);
+		this.controller = provider.getStreamController();
+	}
+
+	/**
+	 * An accepted channel
+	 * @param provider
+	 * @param stream connected by the peer
+	 */
+	protected MuxSocketChannel(MuxSelectorProvider provider, Stream stream) {
+		this(provider);
+		this.remoteAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), stream.getStreamPort());
+		connected(stream);
+	}
+
+	/**
+	 * Streams aren't bound locally, their ID is allocated as they connect
+	 */
+	@Override
+	public MuxSocketChannel bind(SocketAddress local) throws IOException {
+		ensureOpen();
+
+		if ( local != null )
+			throw(new UnsupportedOperationException("Streams can't be bound to a local address"));
+
+		return this;
+	}
+
+	/**
+	 * SO_RCVBUF sizes the receive window, which can't shrink once the peer may be using it,
+	 * SO_SNDBUF the transit buffer written into, and TCP_NODELAY false coalesces small writes.
+	 * SO_KEEPALIVE, SO_REUSEADDR and SO_LINGER have no equivalent, they're kept for getOption only.
+	 */
+	@Override
+	public <T> MuxSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		logger.fine("setOption "+name+" "+value);
+
+		ensureOpen();
+
+		if ( !OPTIONS.contains(name) )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		if ( value == null )
+			throw(new IllegalArgumentException("'"+name+"' can't be null"));
+
+		if ( name == StandardSocketOptions.TCP_NODELAY )
+			tcpNoDelay = (Boolean) value;
+		else if ( name == StandardSocketOptions.SO_RCVBUF )
+			receiveBufferSize = (Integer) value;
+		else if ( name == StandardSocketOptions.SO_SNDBUF )
+			sendBufferSize = (Integer) value;
+		else if ( name == StandardSocketOptions.SO_KEEPALIVE )
+			keepAlive = (Boolean) value;
+		else if ( name == StandardSocketOptions.SO_REUSEADDR )
+			reuseAddress = (Boolean) value;
+		else if ( name == StandardSocketOptions.SO_LINGER )
+			linger = (Integer) value;
+
+		applyOptions();
+		return this;
+	}
+
+	/**
+	 * Reports the options in effect on the Stream, or as set if not yet connected
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		ensureOpen();
+
+		if ( !OPTIONS.contains(name) )
+			throw(new UnsupportedOperationException("'"+name+"' not supported"));
+
+		var current = stream;
+		Object value;
+
+		if ( name == StandardSocketOptions.TCP_NODELAY )
+			value = current != null ? current.isNoDelay() : tcpNoDelay;
+		else if ( name == StandardSocketOptions.SO_RCVBUF )
+			value = current != null ? current.getReceiveWindow() : receiveBufferSize;
+		else if ( name == StandardSocketOptions.SO_SNDBUF )
+			value = current != null ? current.getSendBuffer() : sendBufferSize;
+		else if ( name == StandardSocketOptions.SO_KEEPALIVE )
+			value = keepAlive;
+		else if ( name == StandardSocketOptions.SO_REUSEADDR )
+			value = reuseAddress;
+		else
+			value = linger;
+
+		return (T) value;
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return OPTIONS;
+	}
+
+	/**
+	 * Reads return end of stream from now on, anything still arriving is discarded
+	 */
+	@Override
+	public MuxSocketChannel shutdownInput() throws IOException {
+		ensureOpen();
+
+		if ( stream == null )
+			throw(new NotYetConnectedException());
+
+		inputShutdown = true;
+		signal();
+		return this;
+	}
+
+	/**
+	 * Sends anything written and refuses further writes. Streams can't be half closed, so the
+	 * peer doesn't see end of stream until the channel is closed.
+	 */
+	@Override
+	public MuxSocketChannel shutdownOutput() throws IOException {
+		ensureOpen();
+
+		if ( stream == null )
+			throw(new NotYetConnectedException());
+
+		synchronized(writeLock) {
+			if ( !outputShutdown )
+				stream.getOutputStream().flush();
+
+			outputShutdown = true;
+		}
+
+		return this;
+	}
+
+	/**
+	 * A Socket view of the channel, for code that configures or inspects a channel through it.
+	 * Its streams can only be used while the channel is blocking.
+	 */
+	@Override
+	public Socket socket() {
+		synchronized(blockingLock()) {
+			if ( adaptor == null ) {
+				try {
+					adaptor = new SocketAdaptor();
+				} catch (SocketException e) {
+					throw(new IllegalStateException(e));
+				}
+			}
+
+			return adaptor;
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return stream != null;
+	}
+
+	@Override
+	public boolean isConnectionPending() {
+		return stream == null && pendingConnect != null;
+	}
+
+	/**
+	 * Connects a Stream to the stream port of the address, the host is ignored as the peer is
+	 * at the other end of the link
+	 */
+	@Override
+	public boolean connect(SocketAddress remote) throws IOException {
+		logger.entering(this.getClass().getName(), "connect", remote);
+
+		ensureOpen();
+
+		synchronized(blockingLock()) {
+			if ( stream != null )
+				throw(new AlreadyConnectedException());
+
+			if ( pendingConnect != null )
+				throw(new ConnectionPendingException());
+
+			if ( !(remote instanceof InetSocketAddress) )
+				throw(new UnsupportedAddressTypeException());
+
+			var address = (InetSocketAddress) remote;
+			remoteAddress = address;
+			var future = new CompletableFuture<Stream>();
+			pendingConnect = future;
+
+			if ( !isBlocking() ) {
+				var connecting = newStream();
+
+				try {
+					connecting
+						.connectAsync(loopback(address), 0, null)
+						.whenComplete((v, e) -> {
+							if ( e != null )
+								future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+							else
+								future.complete(connecting);
+
+							signal();
+						});
+
+				} catch (IOException e) {
+					// reported by finishConnect, as a refusal from the peer would be
+					future.completeExceptionally(e);
+					signal();
+				}
+
+				logger.exiting(this.getClass().getName(), "connect", false);
+				return false;
+			}
+
+			boolean completed = false;
+			try {
+				begin();
+				future.complete(connectStream(address));
+				completed = true;
+
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+				throw(e);
+
+			} finally {
+				end(completed);
+			}
+
+			finishConnect();
+		}
+
+		logger.exiting(this.getClass().getName(), "connect", true);
+		return true;
+	}
+
+	@Override
+	public boolean finishConnect() throws IOException {
+		logger.entering(this.getClass().getName(), "finishConnect");
+
+		ensureOpen();
+
+		if ( stream != null )
+			return true;
+
+		var future = pendingConnect;
+		if ( future == null )
+			throw(new NoConnectionPendingException());
+
+		if ( !future.isDone() && !isBlocking() )
+			return false;
+
+		Stream connectedStream;
+		try {
+			connectedStream = future.get();
+
+		} catch (InterruptedException e) {
+			throw(new IOException(e));
+
+		} catch (ExecutionException e) {
+			// as with TCP, a failed connect closes the channel
+			close();
+
+			if ( e.getCause() instanceof IOException ioe )
+				throw(ioe);
+
+			throw(new IOException(e.getCause()));
+		}
+
+		connected(connectedStream);
+
+		logger.exiting(this.getClass().getName(), "finishConnect", true);
+		return true;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		ensureOpen();
+		return stream != null ? remoteAddress : null;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		ensureOpen();
+		return stream != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) : null;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return (int) read(new ByteBuffer[] { dst }, 0, 1);
+	}
+
+	/**
+	 * In non-blocking mode reads only what has already arrived, otherwise blocks until
+	 * something has
+	 */
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		ensureOpen();
+
+		if ( stream == null )
+			throw(new NotYetConnectedException());
+
+		var input = (StreamInputStream) stream.getInputStream();
+
+		synchronized(readLock) {
+			if ( inputShutdown )
+				return -1;
+
+			long total = 0;
+			boolean completed = false;
+			try {
+				begin();
+
+				for( int i = offset; i < offset + length; i++ ) {
+					var dst = dsts[i];
+
+					while( dst.hasRemaining() ) {
+						// only the first read may wait, after that take what's already here
+						if ( (total > 0 || !isBlocking()) && input.available() == 0 ) {
+							completed = true;
+							return total == 0 && input.isPeerClosed() ? -1 : total;
+						}
+
+						var read = input.read(dst);
+						if ( read < 0 ) {
+							completed = true;
+							return total == 0 ? -1 : total;
+						}
+
+						total += read;
+					}
+				}
+
+				completed = true;
+
+			} finally {
+				end(completed);
+			}
+
+			return total;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * In non-blocking mode writes only what fits in the transit buffer now, otherwise blocks
+	 * until everything is written
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		ensureOpen();
+
+		if ( stream == null )
+			throw(new NotYetConnectedException());
+
+		var output = (StreamOutputStream) stream.getOutputStream();
+
+		synchronized(writeLock) {
+			if ( outputShutdown )
+				throw(new ClosedChannelException());
+
+			long total = 0;
+			boolean completed = false;
+			try {
+				begin();
+
+				for( int i = offset; i < offset + length; i++ ) {
+					var src = srcs[i];
+
+					while( src.hasRemaining() ) {
+						var size = src.remaining();
+
+						if ( !isBlocking() ) {
+							size = Math.min(size, output.getWritable());
+							if ( size == 0 ) {
+								completed = true;
+								return total;
+							}
+						}
+
+						output.write(src, size);
+						total += size;
+					}
+				}
+
+				completed = true;
+
+			} finally {
+				end(completed);
+			}
+
+			return total;
+		}
+	}
+
+	@Override
+	protected void implCloseSelectableChannel() throws IOException {
+		logger.entering(this.getClass().getName(), "implCloseSelectableChannel");
+
+		var current = stream;
+		var connecting = pendingConnect;
+		if ( current != null ) {
+			if ( isBlocking() )
+				current.close();
+
+			else
+				// a selector loop mustn't wait on the peer, the Stream tidies up once it confirms
+				disconnect(current);
+
+		} else if ( connecting != null )
+			// a connect still in flight, or not yet finished, would otherwise leave its Stream open
+			connecting.thenAccept(MuxSocketChannel::disconnect);
+
+		signal();
+
+		logger.exiting(this.getClass().getName(), "implCloseSelectableChannel");
+	}
+
+	private static void disconnect(Stream current) {
+		current.closeAsync().whenComplete((v, e) -> {
+			if ( e != null )
+				logger.log(Level.FINE, "disconnect failed", e);
+		});
+	}
+
+	@Override
+	protected void implConfigureBlocking(boolean block) throws IOException {
+		// each operation checks the mode as it starts
+	}
+
+	@Override
+	public int readyOps() {
+		int ops = 0;
+		var current = stream;
+
+		if ( current == null ) {
+			var future = pendingConnect;
+			if ( future != null && future.isDone() )
+				ops |= SelectionKey.OP_CONNECT;
+
+			return ops;
+		}
+
+		var input = (StreamInputStream) current.getInputStream();
+		var output = (StreamOutputStream) current.getOutputStream();
+
+		try {
+			if ( inputShutdown || input.isClosed() || input.isPeerClosed() || input.available() > 0 )
+				ops |= SelectionKey.OP_READ;
+
+		} catch (IOException e) {
+			// closed meanwhile, a read will say so
+			ops |= SelectionKey.OP_READ;
+		}
+
+		if ( outputShutdown || output.isClosed() || output.getWritable() > 0 )
+			ops |= SelectionKey.OP_WRITE;
+
+		return ops;
+	}
+
+	@Override
+	public void addKey(MuxSelectionKey key) {
+		muxKeys.add(key);
+	}
+
+	@Override
+	public void removeKey(MuxSelectionKey key) {
+		muxKeys.remove(key);
+	}
+
+	public Stream getStream() {
+		return stream;
+	}
+
+	private Stream connectStream(InetSocketAddress address) throws IOException {
+		var connecting = newStream();
+
+		try {
+			connecting.connect(loopback(address));
+		} catch (LimitExceededException e) {
+			throw(new IOException(e));
+		}
+
+		return connecting;
+	}
+
+	private Stream newStream() throws IOException {
+		var connecting = new Stream();
+		connecting.setStreamController(controller);
+		return connecting;
+	}
+
+	private static InetSocketAddress loopback(InetSocketAddress address) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), address.getPort());
+	}
+
+	private void connected(Stream connectedStream) {
+		connectedStream.setReadinessListener(this::signal);
+		this.stream = connectedStream;
+		applyOptions();
+		signal();
+	}
+
+	private void applyOptions() {
+		var current = stream;
+		if ( current == null )
+			return;
+
+		current.setNoDelay(tcpNoDelay);
+
+		if ( receiveBufferSize > 0 )
+			current.setReceiveWindow(receiveBufferSize);
+
+		if ( sendBufferSize > 0 )
+			current.setSendBuffer(sendBufferSize);
+	}
+
+	/**
+	 * Tells the keys of the channel its readiness may have changed
+	 */
+	private void signal() {
+		for( var key : muxKeys )
+			key.changed();
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if ( !isOpen() )
+			throw(new ClosedChannelException());
+	}
+
+	/**
+	 * The Socket view of the channel, everything is done by the channel. SO_TIMEOUT times reads
+	 * of the Stream, and a connect waits for the Stream timeout rather than the one given.
+	 */
+	private class SocketAdaptor extends Socket {
+
+		private volatile int soTimeout = 0;
+
+		SocketAdaptor() throws SocketException {
+			super((SocketImpl) null);
+		}
+
+		@Override
+		public SocketChannel getChannel() {
+			return MuxSocketChannel.this;
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			if ( !isBlocking() )
+				throw(new IllegalBlockingModeException());
+
+			MuxSocketChannel.this.connect(endpoint);
+		}
+
+		@Override
+		public void bind(SocketAddress bindpoint) throws IOException {
+			MuxSocketChannel.this.bind(bindpoint);
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return stream != null ? remoteAddress.getAddress() : null;
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return stream != null ? remoteAddress.getPort() : 0;
+		}
+
+		@Override
+		public int getLocalPort() {
+			return stream != null ? 0 : -1;
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			return stream != null ? remoteAddress : null;
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			return stream != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) : null;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			var current = connectedStream();
+			current.setReadTimeout(soTimeout);
+			return current.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return connectedStream().getOutputStream();
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			set(StandardSocketOptions.TCP_NODELAY, on);
+		}
+
+		@Override
+		public boolean getTcpNoDelay() throws SocketException {
+			return get(StandardSocketOptions.TCP_NODELAY);
+		}
+
+		@Override
+		public void setSoLinger(boolean on, int linger) throws SocketException {
+			set(StandardSocketOptions.SO_LINGER, on ? Math.max(linger, 0) : -1);
+		}
+
+		@Override
+		public int getSoLinger() throws SocketException {
+			return get(StandardSocketOptions.SO_LINGER);
+		}
+
+		@Override
+		public void sendUrgentData(int data) throws IOException {
+			throw(new SocketException("Urgent data not supported"));
+		}
+
+		@Override
+		public void setOOBInline(boolean on) throws SocketException {
+			if ( on )
+				throw(new SocketException("Urgent data not supported"));
+		}
+
+		@Override
+		public boolean getOOBInline() throws SocketException {
+			return false;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) throws SocketException {
+			if ( timeout < 0 )
+				throw(new IllegalArgumentException("timeout can't be negative"));
+
+			soTimeout = timeout;
+
+			var current = stream;
+			if ( current != null )
+				current.setReadTimeout(timeout);
+		}
+
+		@Override
+		public int getSoTimeout() throws SocketException {
+			return soTimeout;
+		}
+
+		@Override
+		public void setSendBufferSize(int size) throws SocketException {
+			if ( size <= 0 )
+				throw(new IllegalArgumentException("Invalid send size"));
+
+			set(StandardSocketOptions.SO_SNDBUF, size);
+		}
+
+		@Override
+		public int getSendBufferSize() throws SocketException {
+			return get(StandardSocketOptions.SO_SNDBUF);
+		}
+
+		@Override
+		public void setReceiveBufferSize(int size) throws SocketException {
+			if ( size <= 0 )
+				throw(new IllegalArgumentException("Invalid receive size"));
+
+			set(StandardSocketOptions.SO_RCVBUF, size);
+		}
+
+		@Override
+		public int getReceiveBufferSize() throws SocketException {
+			return get(StandardSocketOptions.SO_RCVBUF);
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) throws SocketException {
+			set(StandardSocketOptions.SO_KEEPALIVE, on);
+		}
+
+		@Override
+		public boolean getKeepAlive() throws SocketException {
+			return get(StandardSocketOptions.SO_KEEPALIVE);
+		}
+
+		@Override
+		public void setTrafficClass(int tc) throws SocketException {
+			// no equivalent for Streams
+		}
+
+		@Override
+		public int getTrafficClass() throws SocketException {
+			return 0;
+		}
+
+		@Override
+		public void setReuseAddress(boolean on) throws SocketException {
+			set(StandardSocketOptions.SO_REUSEADDR, on);
+		}
+
+		@Override
+		public boolean getReuseAddress() throws SocketException {
+			return get(StandardSocketOptions.SO_REUSEADDR);
+		}
+
+		@Override
+		public <T> Socket setOption(SocketOption<T> name, T value) throws IOException {
+			MuxSocketChannel.this.setOption(name, value);
+			return this;
+		}
+
+		@Override
+		public <T> T getOption(SocketOption<T> name) throws IOException {
+			return MuxSocketChannel.this.getOption(name);
+		}
+
+		@Override
+		public Set<SocketOption<?>> supportedOptions() {
+			return OPTIONS;
+		}
+
+		@Override
+		public void close() throws IOException {
+			MuxSocketChannel.this.close();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			MuxSocketChannel.this.shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			MuxSocketChannel.this.shutdownOutput();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return MuxSocketChannel.this.isConnected();
+		}
+
+		@Override
+		public boolean isBound() {
+			return MuxSocketChannel.this.isConnected();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return !isOpen();
+		}
+
+		@Override
+		public boolean isInputShutdown() {
+			return !isOpen() || inputShutdown;
+		}
+
+		@Override
+		public boolean isOutputShutdown() {
+			return !isOpen() || outputShutdown;
+		}
+
+		@Override
+		public String toString() {
+			return "MuxSocketChannel.SocketAdaptor[" + (stream != null ? "connected " + remoteAddress : "unconnected") + "]";
+		}
+
+		private Stream connectedStream() throws IOException {
+			if ( !isOpen() )
+				throw(new SocketException("Socket is closed"));
+
+			var current = stream;
+			if ( current == null )
+				throw(new SocketException("Socket is not connected"));
+
+			if ( !isBlocking() )
+				throw(new IllegalBlockingModeException());
+
+			return current;
+		}
+
+		private <T> void set(SocketOption<T> name, T value) throws SocketException {
+			try {
+				MuxSocketChannel.this.setOption(name, value);
+			} catch (IOException e) {
+				throw(socketException(e));
+			}
+		}
+
+		private <T> T get(SocketOption<T> name) throws SocketException {
+			try {
+				return MuxSocketChannel.this.getOption(name);
+			} catch (IOException e) {
+				throw(socketException(e));
+			}
+		}
+
+		private SocketException socketException(IOException e) {
+			if ( e instanceof SocketException se )
+				return se;
+
+			var wrapped = new SocketException(e instanceof ClosedChannelException ? "Socket is closed" : e.getMessage());
+			wrapped.initCause(e);
+			return wrapped;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MuxSocketChannel[" + (stream != null ? "connected " + remoteAddress : "unconnected") + "]";
+	}
+}
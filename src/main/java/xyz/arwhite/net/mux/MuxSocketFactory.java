@@ -82,6 +82,61 @@ public class MuxSocketFactory extends SocketFactory {
 		return s;
 	}
 	
+	/**
+	 * Connects a Stream to a stream port on the peer, asking the peer to relay it onwards to a
+	 * destination. Returns once the peer has reached the destination, so both are set up in a
+	 * single round trip.
+	 * 
+	 * @param streamPort on the peer
+	 * @param host the peer connects to
+	 * @param port the peer connects to
+	 * @return
+	 * @throws IOException if the peer refused or could not reach the destination
+	 */
+	public Socket createSocket(int streamPort, String host, int port) throws IOException {
+		return createSocket(streamPort, host, port, null);
+	}
+	
+	/**
+	 * As {@link #createSocket(int, String, int)}, also sending the first bytes for the
+	 * destination with the connect request
+	 * 
+	 * @param earlyData up to {@link Stream#MAX_EARLY_DATA} bytes, or null
+	 */
+	public Socket createSocket(int streamPort, String host, int port, byte[] earlyData) throws IOException {
+		logger.log(Level.FINE,"createSocket(sp,h,p,ed)");
+		
+		var i = new MuxSocketImpl();
+		i.setStreamController(streamController);
+		i.setDestination(host + ":" + port);
+		i.setEarlyData(earlyData);
+		var s = new MuxSocket(i);
+		
+		s.connect(new InetSocketAddress("127.0.0.1",streamPort));
+		return s;
+	}
+	
+	/**
+	 * Connects a Stream to a stream port on the peer, sending the first bytes with the connect
+	 * request. They are readable by the peer as soon as it accepts the Stream.
+	 * 
+	 * @param streamPort on the peer
+	 * @param earlyData up to {@link Stream#MAX_EARLY_DATA} bytes, or null
+	 * @return
+	 * @throws IOException
+	 */
+	public Socket createSocket(int streamPort, byte[] earlyData) throws IOException {
+		logger.log(Level.FINE,"createSocket(sp,ed)");
+		
+		var i = new MuxSocketImpl();
+		i.setStreamController(streamController);
+		i.setEarlyData(earlyData);
+		var s = new MuxSocket(i);
+		
+		s.connect(new InetSocketAddress("127.0.0.1",streamPort));
+		return s;
+	}
+	
 	public static class Builder {
 		StreamController streamController;
 		
@@ -8,6 +8,8 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
+import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,17 +29,73 @@ public class MuxSocketImpl extends SocketImpl {
 	private StreamController streamController;
 	private Stream stream;
 	private StreamServer server;
+	private String destination;
+	private byte[] earlyData;
+	private boolean reusePort;
 	
+	/**
+	 * Options as set, applied to the Stream once there is one. Buffer sizes of 0 leave the
+	 * Stream's own.
+	 */
+	private int soTimeout = 0;
+	private int receiveBufferSize = 0;
+	private int sendBufferSize = 0;
+	private boolean tcpNoDelay = true;
+	
+	/**
+	 * Maps the socket options to their equivalent on the Stream. SO_RCVBUF sizes the receive
+	 * window, which as with TCP can't shrink once the peer may be using it, SO_SNDBUF the
+	 * transit buffer written into, and TCP_NODELAY false coalesces small writes. SO_TIMEOUT 
+	 * times reads, or accepts on a listening socket. Other options have no equivalent and are
+	 * ignored.
+	 */
 	@Override
 	public void setOption(int optID, Object value) throws SocketException {
-		logger.log(Level.FINE,"setOption "+optID);
+		logger.log(Level.FINE,"setOption "+optID+" "+value);
 
+		switch( optID ) {
+		case SocketOptions.SO_TIMEOUT -> soTimeout = (Integer) value;
+		case SocketOptions.SO_RCVBUF -> receiveBufferSize = (Integer) value;
+		case SocketOptions.SO_SNDBUF -> sendBufferSize = (Integer) value;
+		case SocketOptions.TCP_NODELAY -> tcpNoDelay = (Boolean) value;
+		default -> {
+			logger.log(Level.FINE,"option "+optID+" has no equivalent for Streams, ignored");
+			return;
+		}
+		}
+		
+		applyOptions();
 	}
 
+	/**
+	 * Reports the options in effect on the Stream
+	 */
 	@Override
 	public Object getOption(int optID) throws SocketException {
 		logger.log(Level.FINE,"getOption "+optID);
-		return null;
+		
+		return switch( optID ) {
+		case SocketOptions.SO_TIMEOUT -> Integer.valueOf(soTimeout);
+		case SocketOptions.SO_RCVBUF -> stream != null ? Integer.valueOf(stream.getReceiveWindow()) : null;
+		case SocketOptions.SO_SNDBUF -> stream != null ? Integer.valueOf(stream.getSendBuffer()) : null;
+		case SocketOptions.TCP_NODELAY -> stream != null ? Boolean.valueOf(stream.isNoDelay()) : Boolean.valueOf(tcpNoDelay);
+		case SocketOptions.SO_KEEPALIVE, SocketOptions.SO_OOBINLINE, SocketOptions.SO_REUSEADDR -> Boolean.FALSE;
+		default -> null;
+		};
+	}
+
+	private void applyOptions() {
+		if ( stream == null )
+			return;
+		
+		stream.setReadTimeout(soTimeout);
+		stream.setNoDelay(tcpNoDelay);
+		
+		if ( receiveBufferSize > 0 )
+			stream.setReceiveWindow(receiveBufferSize);
+		
+		if ( sendBufferSize > 0 )
+			stream.setSendBuffer(sendBufferSize);
 	}
 
 	@Override
@@ -48,13 +106,15 @@ public class MuxSocketImpl extends SocketImpl {
 
 		this.stream = new Stream();
 		this.stream.setStreamController(streamController);
+		this.stream.setDestination(destination);
+		applyOptions();
 	}
 
 	@Override
 	protected void connect(String host, int port) throws IOException {
 		logger.log(Level.FINE,"connect "+host+":"+port);
 		try {
-			stream.connect(new InetSocketAddress("127.0.0.1",port));
+			stream.connect(new InetSocketAddress("127.0.0.1",port), 0, earlyData);
 		} catch (LimitExceededException e) {
 			throw(new IOException(e));
 		} 
@@ -65,7 +125,7 @@ public class MuxSocketImpl extends SocketImpl {
 	protected void connect(InetAddress address, int port) throws IOException {
 		logger.log(Level.FINE,"connect inet "+address.toString()+" "+port);
 		try {
-			stream.connect(new InetSocketAddress("127.0.0.1",port));
+			stream.connect(new InetSocketAddress("127.0.0.1",port), 0, earlyData);
 		} catch (LimitExceededException e) {
 			throw(new IOException(e));
 		} 
@@ -77,7 +137,7 @@ public class MuxSocketImpl extends SocketImpl {
 		logger.log(Level.FINE,"connect sock "+address.toString()+" t:"+timeout);
 		try {
 //			stream.connect(new InetSocketAddress("127.0.0.1",port), timeout);
-			stream.connect(address, timeout);
+			stream.connect(address, timeout, earlyData);
 		} catch (LimitExceededException e) {
 			throw(new IOException(e));
 		} 
@@ -99,21 +159,23 @@ public class MuxSocketImpl extends SocketImpl {
 		if ( server != null ) 
 			throw(new IOException("MuxSocket already bound"));
 
-		server = new StreamServer(streamController,port);
+		server = new StreamServer(streamController,port,reusePort);
 		this.localport = server.getPort();
 	}
 
 	/**
-	 * Set's how many pending connect requests there can be on a port.
-	 * We have a global max on a mux of 64 across all ports, not very much.
-	 * An individual StreamServer can hold 16, even less!
-	 * 
-	 * We are a no-op on this for now.
+	 * Sets how many connections there can be waiting to be accepted on the port. Connect
+	 * requests waiting to reach any StreamServer are separately limited by the StreamController.
 	 */
 	@Override
 	protected void listen(int backlog) throws IOException {
 		logger.log(Level.FINE,"listen "+backlog);
-		// TODO: implement support for variable length list of outstanding connects on a port
+		
+		if ( server == null )
+			throw(new IOException("MuxSocket not bound"));
+		
+		if ( backlog > 0 )
+			server.setBacklog(backlog);
 	}
 
 	@Override
@@ -126,8 +188,18 @@ public class MuxSocketImpl extends SocketImpl {
 		var msi = (MuxSocketImpl) s;
 
 		try {
+			var accepted = soTimeout > 0 ? server.accept(soTimeout) : server.accept();
+			if ( accepted == null )
+				throw(new SocketTimeoutException("Accept timed out"));
+			
 			msi.setStreamController(streamController);
-			msi.setStream(server.accept());
+			msi.setStream(accepted);
+			
+			// as with TCP, an accepted socket has the buffer sizes of the listening socket
+			msi.receiveBufferSize = receiveBufferSize;
+			msi.sendBufferSize = sendBufferSize;
+			msi.applyOptions();
+			
 		} catch (InterruptedException | ExecutionException e) {
 			throw(new IOException(e));
 		}
@@ -172,6 +244,27 @@ public class MuxSocketImpl extends SocketImpl {
 		this.streamController = streamController;
 	}
 
+	/**
+	 * @param destination host:port the peer relays the Stream to, set before connecting
+	 */
+	protected void setDestination(String destination) {
+		this.destination = destination;
+	}
+
+	/**
+	 * @param reusePort share the stream port with other server sockets reusing it, set before binding
+	 */
+	protected void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * @param earlyData sent with the connect request, set before connecting
+	 */
+	protected void setEarlyData(byte[] earlyData) {
+		this.earlyData = earlyData;
+	}
+
 	protected Stream getStream() {
 		return stream;
 	}
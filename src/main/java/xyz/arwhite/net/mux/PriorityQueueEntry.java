@@ -7,6 +7,9 @@ import io.helidon.common.buffers.BufferData;
  * 
  * The user defines the priority of a stream, and any message with a higher priority will be pulled from the queue first.
  * Priority 0 is the highest priority and should not be used by user streams, 1 is the next highest, 255 is the lowest.
+ * Control frames are marked as such and pulled after priority 0 but ahead of every Stream priority, as 
+ * Streams may use priority 1 too, see {@link StreamBuffers#CONTROL_PRIORITY}.
+ * The priority byte is treated as unsigned, so priorities above 127 still sort after the control lane.
  * If multiple messages arrive with the same priority, they are pulled in FIFO order within that priority.
  * If multiple messages arrive with the same priority, within the same timestamp, they are sequenced and pulled in FIFO order.
  * The timestamp granularity is determined by the platform, it may be so granular that sequencing is never used.
@@ -14,15 +17,22 @@ import io.helidon.common.buffers.BufferData;
  * @author Alan R. White
  *
  */
-public record PriorityQueueEntry(byte priority, long timestamp, int sequence, BufferData message) 
+public record PriorityQueueEntry(byte priority, long timestamp, long sequence, BufferData message, boolean control) 
 	implements Comparable<PriorityQueueEntry> {
 
+	public PriorityQueueEntry(byte priority, long timestamp, long sequence, BufferData message) {
+		this(priority, timestamp, sequence, message, false);
+	}
+
 	public int compareTo(PriorityQueueEntry o) {
+		var thisPriority = this.rank();
+		var otherPriority = o.rank();
+		
 		// lowest priority
-		if ( o.priority < this.priority )
+		if ( otherPriority < thisPriority )
 			return +1;
 
-		if ( o.priority > this.priority )
+		if ( otherPriority > thisPriority )
 			return -1;
 
 		// priority must be equal - check earliest timestamp
@@ -42,4 +52,12 @@ public record PriorityQueueEntry(byte priority, long timestamp, int sequence, Bu
 		// should never get here
 		return 0;
 	}
+
+	// priority 0 first, then control frames, then the rest by their priority
+	private int rank() {
+		if ( priority == 0 )
+			return 0;
+
+		return control ? 1 : 1 + Byte.toUnsignedInt(priority);
+	}
 }
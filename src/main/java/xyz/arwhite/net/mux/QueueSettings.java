@@ -0,0 +1,40 @@
+package xyz.arwhite.net.mux;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How a MessageBroker that queues frames itself sizes and schedules its queues, gathered by
+ * its Builder
+ *
+ * @author Alan R. White
+ *
+ */
+class QueueSettings {
+
+	static final int DEFAULT_QUEUE_DEPTH = 64;
+
+	/**
+	 * Default fraction of bytes sent reserved for frames with a deadline
+	 */
+	static final double DEFAULT_DEADLINE_SHARE = 0.25;
+
+	int receiveQueueDepth = DEFAULT_QUEUE_DEPTH;
+	int transmitQueueDepth = DEFAULT_QUEUE_DEPTH;
+	double deadlineShare = DEFAULT_DEADLINE_SHARE;
+	final List<TransmitScheduler.GroupSettings> bandwidthGroups = new ArrayList<>();
+
+	ReceiveQueue newReceiveQueue(Clock clock) {
+		return new ReceiveQueue(clock, receiveQueueDepth);
+	}
+
+	TransmitScheduler newScheduler(Clock clock) {
+		var scheduler = new TransmitScheduler(clock, transmitQueueDepth, deadlineShare);
+
+		for( var group : bandwidthGroups )
+			scheduler.setBandwidthGroup(group);
+
+		return scheduler;
+	}
+}
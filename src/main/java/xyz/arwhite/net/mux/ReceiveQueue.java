@@ -0,0 +1,119 @@
+package xyz.arwhite.net.mux;
+
+import java.time.Clock;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.function.Consumer;
+
+import io.helidon.common.buffers.BufferData;
+
+/**
+ * The receive side of a MessageBroker. Messages received from the link are queued in priority
+ * and arrival order for the consumer to take, or once an inline receiver is set are passed
+ * straight to it on the receiving thread.
+ *
+ * @author Alan R. White
+ *
+ */
+class ReceiveQueue {
+
+	private final Clock clock;
+	private final PriorityBlockingQueue<PriorityQueueEntry> queue;
+	private long lastMessageTime = 0;
+	private int sequence = 0;
+
+	private volatile Consumer<BufferData> inlineReceiver;
+	private final Object lock = new Object();
+
+	ReceiveQueue(Clock clock, int depth) {
+		this.clock = clock;
+		this.queue = new PriorityBlockingQueue<>(depth);
+	}
+
+	/**
+	 * @return the messages waiting for the consumer, in priority and received order
+	 */
+	PriorityBlockingQueue<PriorityQueueEntry> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * @return true if messages bypass the queue
+	 */
+	boolean isInline() {
+		return inlineReceiver != null;
+	}
+
+	/**
+	 * Passes a message received from the link to the consumer, control frames ahead of data
+	 */
+	void received(BufferData buffer) {
+		if ( StreamBuffers.isControlFrame(buffer) )
+			deliver(StreamBuffers.CONTROL_PRIORITY, true, buffer);
+		else
+			deliver((byte) buffer.get(0), false, buffer);
+	}
+
+	/**
+	 * Passes a link event to the consumer, ahead of any received message still queued
+	 */
+	void linkEvent(BufferData event) {
+		deliver((byte) 0, false, event);
+	}
+
+	/**
+	 * Whatever arrived before the switch is passed to the receiver first, in the order a reader
+	 * would take it
+	 *
+	 * @param receiver of messages as they arrive, or null to queue them again
+	 */
+	void setInlineReceiver(Consumer<BufferData> receiver) {
+		synchronized(lock) {
+			if ( receiver != null ) {
+				PriorityQueueEntry entry;
+				while( (entry = queue.poll()) != null )
+					receiver.accept(entry.message());
+			}
+
+			this.inlineReceiver = receiver;
+		}
+	}
+
+	private void deliver(byte priority, boolean control, BufferData buffer) {
+		var receiver = inlineReceiver;
+		if ( receiver == null )
+			receiver = enqueue(priority, control, buffer);
+
+		if ( receiver != null )
+			receiver.accept(buffer);
+	}
+
+	/**
+	 * Queues a received message, unless an inline receiver has been set meanwhile. Checked under
+	 * the lock the switch to inline dispatch drains the queue with, so nothing is stranded there.
+	 *
+	 * @return the inline receiver to pass the message to instead, or null if it was queued
+	 */
+	private Consumer<BufferData> enqueue(byte priority, boolean control, BufferData buffer) {
+		synchronized(lock) {
+			var receiver = inlineReceiver;
+			if ( receiver == null ) {
+				var now = clock.millis();
+				queue.add(new PriorityQueueEntry(priority,now,nextSequence(now),buffer,control));
+			}
+
+			return receiver;
+		}
+	}
+
+	// only called holding the lock
+	private int nextSequence(long now) {
+		if ( now == lastMessageTime )
+			++sequence;
+		else {
+			lastMessageTime = now;
+			sequence = 0;
+		}
+
+		return sequence;
+	}
+}
@@ -0,0 +1,90 @@
+package xyz.arwhite.net.mux;
+
+/**
+ * Holds data sent on a Stream until the peer acknowledges it, so it can be sent again if the
+ * link carrying the Stream drops and is resumed.
+ *
+ * The peer acknowledges data by crediting it back with a buffer increment, so the flow control
+ * window bounds how much is ever held. The buffer grows to suit if the window is enlarged.
+ *
+ * Callers are responsible for synchronization.
+ *
+ * @author Alan R. White
+ *
+ */
+public class ReplayBuffer {
+
+	private byte[] ring;
+	private int start = 0;
+	private int length = 0;
+
+	/**
+	 * @param capacity initial capacity, normally the flow control window
+	 */
+	public ReplayBuffer(int capacity) {
+		ring = new byte[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Retains data just sent
+	 */
+	public void append(byte[] data, int offset, int size) {
+		if ( length + size > ring.length )
+			grow(length + size);
+
+		var end = (start + length) % ring.length;
+		var firstPart = Math.min(size, ring.length - end);
+
+		System.arraycopy(data, offset, ring, end, firstPart);
+		System.arraycopy(data, offset + firstPart, ring, 0, size - firstPart);
+
+		length += size;
+	}
+
+	/**
+	 * Discards data the peer has acknowledged, oldest first
+	 * @param size number of bytes acknowledged
+	 */
+	public void release(int size) {
+		size = Math.min(size, length);
+
+		start = (start + size) % ring.length;
+		length -= size;
+	}
+
+	/**
+	 * Copies retained data, skipping any the peer already holds
+	 *
+	 * @param skip number of the oldest bytes not to copy
+	 * @return the remaining data, oldest first
+	 */
+	public byte[] copy(int skip) {
+		skip = Math.min(Math.max(skip, 0), length);
+
+		var copy = new byte[length - skip];
+		var from = (start + skip) % ring.length;
+		var firstPart = Math.min(copy.length, ring.length - from);
+
+		System.arraycopy(ring, from, copy, 0, firstPart);
+		System.arraycopy(ring, 0, copy, firstPart, copy.length - firstPart);
+
+		return copy;
+	}
+
+	/**
+	 * @return number of bytes retained
+	 */
+	public int size() {
+		return length;
+	}
+
+	private void grow(int needed) {
+		var larger = new byte[Math.max(needed, ring.length * 2)];
+		var contents = copy(0);
+
+		System.arraycopy(contents, 0, larger, 0, contents.length);
+
+		ring = larger;
+		start = 0;
+	}
+}
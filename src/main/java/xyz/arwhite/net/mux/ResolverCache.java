@@ -0,0 +1,273 @@
+package xyz.arwhite.net.mux;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the addresses host names resolve to, for the side of a {@link SplitProxy} dialling the
+ * destinations Streams name, so a Stream to a host already seen doesn't wait on a lookup.
+ *
+ * Lookups that fail are cached too, for the negative TTL. Concurrent requests for a host not yet
+ * cached share a single lookup, and a host requested when most of its TTL has passed is looked up
+ * again in the background, the cached addresses being used meanwhile. Once the cache holds the
+ * maximum number of hosts the ones expiring soonest are dropped.
+ *
+ * The JDK doesn't make the TTL of DNS records available, so entries are kept for a fixed TTL,
+ * by default that of the JDK's own address cache.
+ *
+ * @author Alan R. White
+ *
+ */
+public class ResolverCache {
+
+	static private final Logger logger = Logger.getLogger(ResolverCache.class.getName());
+
+	/**
+	 * Looks up the addresses of a host
+	 */
+	@FunctionalInterface
+	public interface Resolver {
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+
+	private Resolver resolver;
+	private long ttl;
+	private long negativeTtl;
+	private double refreshAhead;
+	private int maxEntries;
+
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * A lookup, completed or in progress, and when it was completed
+	 */
+	private static class Entry {
+		final CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+		volatile long resolved;
+		volatile long expires = Long.MAX_VALUE;
+	}
+
+	private ResolverCache(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.resolver = builder.resolver;
+		this.ttl = builder.ttl;
+		this.negativeTtl = builder.negativeTtl;
+		this.refreshAhead = builder.refreshAhead;
+		this.maxEntries = builder.maxEntries;
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * @param host name or literal address
+	 * @return the addresses of the host, from the cache if still valid
+	 * @throws UnknownHostException if the host can't be resolved, or couldn't be within the negative TTL
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		logger.entering(this.getClass().getName(), "resolve", host);
+
+		var now = System.currentTimeMillis();
+		var entry = entries.get(host);
+
+		if ( entry == null || now >= entry.expires ) {
+			var fresh = new Entry();
+			entry = entries.compute(host, (k, current) ->
+				current == null || System.currentTimeMillis() >= current.expires ? fresh : current);
+
+			if ( entry == fresh ) {
+				trim();
+				lookup(host, fresh);
+			}
+
+		} else if ( entry.lookup.isDone() && !entry.lookup.isCompletedExceptionally()
+				&& now - entry.resolved >= ttl * refreshAhead
+				&& entry.refreshing.compareAndSet(false, true) ) {
+			refresh(host, entry);
+		}
+
+		try {
+			var addresses = entry.lookup.get();
+
+			logger.exiting(this.getClass().getName(), "resolve", addresses);
+			return addresses;
+
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof UnknownHostException u )
+				throw(u);
+
+			throw(new UnknownHostException(host+": "+e.getCause()));
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw(new UnknownHostException(host+": interrupted"));
+		}
+	}
+
+	/**
+	 * @param address host and port, resolved or not
+	 * @return the address resolved to the first address of its host
+	 * @throws UnknownHostException
+	 */
+	public InetSocketAddress resolve(InetSocketAddress address) throws UnknownHostException {
+		if ( !address.isUnresolved() )
+			return address;
+
+		return new InetSocketAddress(resolve(address.getHostString())[0], address.getPort());
+	}
+
+	/**
+	 * @return number of hosts cached, including lookups in progress
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops every cached host
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	private void lookup(String host, Entry entry) {
+		try {
+			var addresses = resolver.resolve(host);
+			entry.resolved = System.currentTimeMillis();
+			entry.expires = entry.resolved + ttl;
+			entry.lookup.complete(addresses);
+
+		} catch (UnknownHostException | RuntimeException e) {
+			logger.log(Level.FINE, "unable to resolve "+host, e);
+			entry.resolved = System.currentTimeMillis();
+			entry.expires = entry.resolved + negativeTtl;
+			entry.lookup.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Looks the host up again in the background, replacing the entry only if the lookup succeeds
+	 */
+	private void refresh(String host, Entry current) {
+		Thread.ofVirtual().name("ResolverRefresh").start(() -> {
+			var fresh = new Entry();
+			lookup(host, fresh);
+
+			if ( fresh.lookup.isCompletedExceptionally() ) {
+				// keep what we had until it expires
+				current.refreshing.set(false);
+				return;
+			}
+
+			entries.replace(host, current, fresh);
+		});
+	}
+
+	/**
+	 * Makes room for a new host by dropping the expired ones, then those expiring soonest
+	 */
+	private void trim() {
+		if ( entries.size() <= maxEntries )
+			return;
+
+		var now = System.currentTimeMillis();
+		entries.entrySet().removeIf(e -> now >= e.getValue().expires);
+
+		while( entries.size() > maxEntries ) {
+			var soonest = entries.entrySet().stream()
+					.min(Comparator.comparingLong(e -> e.getValue().expires));
+
+			if ( soonest.isEmpty() )
+				break;
+
+			entries.remove(soonest.get().getKey(), soonest.get().getValue());
+		}
+	}
+
+	/**
+	 * @param property JDK security property holding seconds
+	 * @param defaultTtl millis if the property isn't set or is forever
+	 */
+	private static long jdkTtl(String property, long defaultTtl) {
+		try {
+			var seconds = Long.parseLong(Security.getProperty(property));
+			return seconds > 0 ? seconds * 1000 : defaultTtl;
+
+		} catch (NumberFormatException e) {
+			return defaultTtl;
+		}
+	}
+
+	public static class Builder {
+
+		Resolver resolver = InetAddress::getAllByName;
+		long ttl = jdkTtl("networkaddress.cache.ttl", 30000);
+		long negativeTtl = jdkTtl("networkaddress.cache.negative.ttl", 10000);
+		double refreshAhead = 0.75;
+		int maxEntries = 1024;
+
+		/**
+		 * @param resolver looks up hosts not cached, by default the JDK's
+		 * @return
+		 */
+		public Builder withResolver(Resolver resolver) {
+			this.resolver = resolver;
+			return this;
+		}
+
+		/**
+		 * @param ttl millis the addresses of a host are used for
+		 * @return
+		 */
+		public Builder withTtl(long ttl) {
+			this.ttl = ttl;
+			return this;
+		}
+
+		/**
+		 * @param negativeTtl millis a failed lookup is remembered for
+		 * @return
+		 */
+		public Builder withNegativeTtl(long negativeTtl) {
+			this.negativeTtl = negativeTtl;
+			return this;
+		}
+
+		/**
+		 * @param refreshAhead fraction of the TTL after which a host being used is looked up again
+		 * in the background, 1 to only look up once expired
+		 * @return
+		 */
+		public Builder withRefreshAhead(double refreshAhead) {
+			this.refreshAhead = refreshAhead;
+			return this;
+		}
+
+		/**
+		 * @param maxEntries most hosts cached
+		 * @return
+		 */
+		public Builder withMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		public ResolverCache build() {
+
+			if ( ttl <= 0 || negativeTtl < 0 || maxEntries < 1 || refreshAhead <= 0 || refreshAhead > 1 )
+				throw(new IllegalArgumentException("TTLs, max entries or refresh ahead out of range"));
+
+			return new ResolverCache(this);
+		}
+	}
+}
@@ -0,0 +1,555 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.helidon.common.buffers.BufferData;
+
+/**
+ * A MessageBroker between two processes on the same host, exchanging messages through a memory
+ * mapped file rather than a socket, so no system call is made per message.
+ *
+ * The file holds two single producer, single consumer rings, one for each direction. Each message
+ * is written to the ring as an Int32 length followed by the message. The writer publishes its
+ * index with release semantics once a batch of messages is written, the reader acquires it, and
+ * returns space by publishing its own index the same way. There's no way to signal a thread in
+ * another process, so a side with nothing to do spins briefly then parks for short periods.
+ *
+ * One side creates the file, the other opens it once created.
+ *
+ * <pre>
+ * file header    Int32 ring size, written last by the creator
+ * ring header    Int64 write index, Int64 closed flag, Int64 read index on its own cache line
+ * ring data      ring size bytes
+ * </pre>
+ *
+ * The creator transmits on the first ring and receives on the second.
+ *
+ * @author Alan R. White
+ *
+ */
+public class SharedMemoryMessageHandler implements MessageBroker {
+
+	static private final Logger logger = Logger.getLogger(SharedMemoryMessageHandler.class.getName());
+
+	private static final int FILE_HEADER = 64;
+	private static final int RING_HEADER = 128;
+	private static final int WRITE_INDEX = 0;
+	private static final int CLOSED_FLAG = 8;
+	private static final int READ_INDEX = 64;
+
+	private static final int DEFAULT_RING_SIZE = 1024 * 1024;
+
+	/**
+	 * Most messages written to the ring before they are published to the reader
+	 */
+	private static final int MAX_GATHERED_MESSAGES = 32;
+
+	/**
+	 * Waiting for the other side spins this many times before parking
+	 */
+	private static final int SPIN_LIMIT = 2000;
+	private static final long PARK_NANOS = 50_000;
+
+	private static final VarHandle LONGS =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS =
+			MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private Clock clock;
+	private Path path;
+	private boolean creator;
+	private FileChannel file;
+	private MappedByteBuffer memory;
+	private int ringSize;
+	private long mask;
+
+	private int txRing;
+	private int rxRing;
+	private long txWrite = 0;
+	private long rxRead = 0;
+
+	private CompletableFuture<Void> txStopped = new CompletableFuture<>();
+	private ReceiveQueue rxQueue;
+
+	private Thread txQueueSender;
+	private Thread rxRingReader;
+	private TransmitScheduler scheduler;
+	private volatile boolean draining = false;
+	private volatile boolean closed = false;
+
+	private SharedMemoryMessageHandler(Builder builder, FileChannel file, MappedByteBuffer memory,
+			int ringSize, boolean creator) {
+
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.clock = Clock.systemDefaultZone();
+		this.path = builder.path;
+		this.file = file;
+		this.memory = memory;
+		this.ringSize = ringSize;
+		this.mask = ringSize - 1;
+		this.creator = creator;
+
+		var firstRing = FILE_HEADER;
+		var secondRing = FILE_HEADER + RING_HEADER + ringSize;
+
+		this.txRing = creator ? firstRing : secondRing;
+		this.rxRing = creator ? secondRing : firstRing;
+
+		rxQueue = builder.queues.newReceiveQueue(clock);
+		scheduler = builder.queues.newScheduler(clock);
+
+		txQueueSender = Thread.ofVirtual().name("RingSender").start(this::sendFromQueue);
+		rxRingReader = Thread.ofVirtual().name("RingReader").start(this::receiveFromRing);
+
+		logger.info("Shared memory link" + (creator ? " created at " : " opened at ") + path);
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	public static class Builder {
+
+		Path path;
+		int ringSize = DEFAULT_RING_SIZE;
+		QueueSettings queues = new QueueSettings();
+
+		/**
+		 * @param path of the file shared by both sides
+		 */
+		public Builder withPath(Path path) {
+			this.path = path;
+			return this;
+		}
+
+		public Builder withPath(String path) {
+			return withPath(Path.of(path));
+		}
+
+		/**
+		 * Size of each ring, used by the side creating the file
+		 *
+		 * @param ringSize bytes, a power of 2
+		 */
+		public Builder withRingSize(int ringSize) {
+			if ( ringSize < 4096 || Integer.bitCount(ringSize) != 1 )
+				throw(new IllegalArgumentException("ring size must be a power of 2, at least 4096"));
+
+			this.ringSize = ringSize;
+			return this;
+		}
+
+		public Builder withReceiveQueueDepth(int receiveQueueDepth) {
+			queues.receiveQueueDepth = receiveQueueDepth;
+			return this;
+		}
+
+		public Builder withTransmitQueueDepth(int transmitQueueDepth) {
+			queues.transmitQueueDepth = transmitQueueDepth;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withDeadlineShare}
+		 */
+		public Builder withDeadlineShare(double deadlineShare) {
+			queues.deadlineShare = deadlineShare;
+			return this;
+		}
+
+		/**
+		 * See {@link WsPriorityMessageHandler.Builder#withBandwidthGroup}
+		 */
+		public Builder withBandwidthGroup(int group, int weight, long rateCap) {
+			queues.bandwidthGroups.add(new TransmitScheduler.GroupSettings(group, weight, rateCap));
+			return this;
+		}
+
+		/**
+		 * Creates the shared file, replacing any left behind by an earlier run, and starts
+		 * exchanging messages with whichever side opens it
+		 * @return
+		 */
+		public SharedMemoryMessageHandler create() {
+			logger.entering(this.getClass().getName(), "create");
+
+			if ( path == null )
+				throw(new IllegalStateException("no file path specified"));
+
+			try {
+				Files.deleteIfExists(path);
+
+				var file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+				var memory = file.map(MapMode.READ_WRITE, 0, FILE_HEADER + 2L * (RING_HEADER + ringSize));
+
+				// the other side may open the file once the ring size is visible
+				INTS.setRelease(memory, 0, ringSize);
+
+				var handler = new SharedMemoryMessageHandler(this, file, memory, ringSize, true);
+
+				logger.exiting(this.getClass().getName(), "create", handler);
+				return handler;
+
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to create "+path, e));
+			}
+		}
+
+		/**
+		 * Opens a shared file created by the other side
+		 * @return
+		 */
+		public SharedMemoryMessageHandler open() {
+			logger.entering(this.getClass().getName(), "open");
+
+			if ( path == null )
+				throw(new IllegalStateException("no file path specified"));
+
+			try {
+				var file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+				// created but not yet sized by the other side, there's no header to read
+				var size = file.size();
+				if ( size < FILE_HEADER ) {
+					file.close();
+					throw(new IllegalStateException(path+" is not a ready shared memory link"));
+				}
+
+				var memory = file.map(MapMode.READ_WRITE, 0, size);
+
+				var ringSize = (int) INTS.getAcquire(memory, 0);
+				if ( ringSize == 0 || size != FILE_HEADER + 2L * (RING_HEADER + ringSize) ) {
+					file.close();
+					throw(new IllegalStateException(path+" is not a ready shared memory link"));
+				}
+
+				var handler = new SharedMemoryMessageHandler(this, file, memory, ringSize, false);
+
+				logger.exiting(this.getClass().getName(), "open", handler);
+				return handler;
+
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to open "+path, e));
+			}
+		}
+	}
+
+	/*
+	 * Writing messages to the transmit ring
+	 */
+
+	private void sendFromQueue() {
+		try {
+			while(true) {
+				var qe = scheduler.take();
+
+				if ( qe.priority() == 0 ) {
+					drain();
+					continue;
+				}
+
+				// write whatever else may be sent straight away, then publish the lot
+				int bytes = put(qe.message());
+				int count = 1;
+
+				PriorityQueueEntry next = null;
+				while( count < MAX_GATHERED_MESSAGES && (next = scheduler.tryTake()) != null ) {
+
+					if ( next.priority() == 0 )
+						break;
+
+					bytes += put(next.message());
+					++count;
+					next = null;
+				}
+
+				publish();
+				scheduler.sent(bytes);
+
+				if ( next != null )
+					drain();
+			}
+
+		} catch(InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Sends everything left on all lanes, then tells anyone stopping that we're done
+	 */
+	private void drain() throws InterruptedException {
+		PriorityQueueEntry de;
+		while( (de = scheduler.poll()) != null )
+			put(de.message());
+
+		publish();
+		txStopped.complete(null);
+	}
+
+	/**
+	 * Writes a message to the ring, waiting for the reader to make space if need be. The
+	 * message is not visible to the reader until published.
+	 *
+	 * @return bytes written
+	 */
+	private int put(BufferData message) throws InterruptedException {
+		var bytes = new byte[message.available()];
+		message.read(bytes);
+
+		var frameSize = 4 + bytes.length;
+
+		int attempts = 0;
+		while( ringSize - (txWrite - (long) LONGS.getAcquire(memory, txRing + READ_INDEX)) < frameSize ) {
+			// the reader may be waiting for what's already written
+			publish();
+			attempts = idle(attempts);
+		}
+
+		var length = new byte[] {
+				(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+				(byte) (bytes.length >>> 8), (byte) bytes.length };
+
+		copyIn(txWrite, length);
+		copyIn(txWrite + 4, bytes);
+		txWrite += frameSize;
+
+		return frameSize;
+	}
+
+	private void publish() {
+		LONGS.setRelease(memory, txRing + WRITE_INDEX, txWrite);
+	}
+
+	private void copyIn(long position, byte[] source) {
+		var data = txRing + RING_HEADER;
+		var index = (int) (position & mask);
+		var firstPart = Math.min(source.length, ringSize - index);
+
+		memory.put(data + index, source, 0, firstPart);
+		memory.put(data, source, firstPart, source.length - firstPart);
+	}
+
+	/*
+	 * Reading messages from the receive ring
+	 */
+
+	private void receiveFromRing() {
+		int attempts = 0;
+
+		try {
+			while(true) {
+				var write = (long) LONGS.getAcquire(memory, rxRing + WRITE_INDEX);
+
+				if ( write == rxRead ) {
+					// the other side publishes everything before it closes
+					if ( (long) LONGS.getAcquire(memory, rxRing + CLOSED_FLAG) != 0
+							&& (long) LONGS.getAcquire(memory, rxRing + WRITE_INDEX) == rxRead )
+						break;
+
+					attempts = idle(attempts);
+					continue;
+				}
+
+				attempts = 0;
+
+				while( rxRead < write ) {
+					var length = new byte[4];
+					copyOut(rxRead, length);
+
+					var size = ((length[0] & 0xff) << 24) | ((length[1] & 0xff) << 16)
+							| ((length[2] & 0xff) << 8) | (length[3] & 0xff);
+
+					if ( size < 1 || size > ringSize - 4 )
+						throw(new IllegalStateException("invalid message length "+size+" in "+path));
+
+					var message = new byte[size];
+					copyOut(rxRead + 4, message);
+					rxRead += 4 + size;
+
+					received(BufferData.create(message));
+				}
+
+				// return the space to the writer
+				LONGS.setRelease(memory, rxRing + READ_INDEX, rxRead);
+			}
+
+		} catch(InterruptedException e) {
+		} catch(IllegalStateException e) {
+			logger.log(Level.SEVERE, "shared memory link corrupt", e);
+		}
+
+		closeLink();
+	}
+
+	private void copyOut(long position, byte[] destination) {
+		var data = rxRing + RING_HEADER;
+		var index = (int) (position & mask);
+		var firstPart = Math.min(destination.length, ringSize - index);
+
+		memory.get(data + index, destination, 0, firstPart);
+		memory.get(data, destination, firstPart, destination.length - firstPart);
+	}
+
+	private void received(BufferData buffer) {
+		logger.entering(this.getClass().getName(), "received", buffer);
+
+		rxQueue.received(buffer);
+
+		logger.exiting(this.getClass().getName(), "received");
+	}
+
+	/**
+	 * Waits for the other side, spinning at first then parking
+	 *
+	 * @param attempts number of times already waited
+	 * @return attempts including this one
+	 */
+	private int idle(int attempts) throws InterruptedException {
+		if ( Thread.interrupted() )
+			throw(new InterruptedException());
+
+		if ( attempts < SPIN_LIMIT )
+			Thread.onSpinWait();
+		else
+			LockSupport.parkNanos(PARK_NANOS);
+
+		return attempts + 1;
+	}
+
+	/**
+	 * The link is finished, tell the other side and our consumer
+	 */
+	private synchronized void closeLink() {
+		if ( closed )
+			return;
+
+		closed = true;
+
+		txQueueSender.interrupt();
+		rxRingReader.interrupt();
+		txStopped.complete(null);
+
+		LONGS.setRelease(memory, txRing + CLOSED_FLAG, 1L);
+
+		try {
+			file.close();
+
+			if ( creator )
+				Files.deleteIfExists(path);
+
+		} catch (IOException e) {
+			logger.log(Level.FINE, "shared memory file close failed", e);
+		}
+
+		var shutdown = StreamBuffers.createLinkEvent(StreamBuffers.LINK_SHUTDOWN);
+
+		rxQueue.linkEvent(shutdown);
+	}
+
+	@Override
+	public Queue<PriorityQueueEntry> getRxQueue() {
+		return rxQueue.getQueue();
+	}
+
+	@Override
+	public Queue<PriorityQueueEntry> getTxQueue() {
+		return scheduler.getDataQueue();
+	}
+
+	/**
+	 * Received messages are passed to the receiver as they arrive, in arrival order, on the
+	 * ring reader thread.
+	 */
+	@Override
+	public boolean setInlineReceiver(Consumer<BufferData> receiver) {
+		rxQueue.setInlineReceiver(receiver);
+		
+		return true;
+	}
+
+	/**
+	 * Queues a message to be transmitted. Priority is specified in the first byte of the BufferData.
+	 * Priority 0 is reserved for system use, this method will reject messages with priority 0, and
+	 * messages too large for the ring.
+	 */
+	@Override
+	public boolean sendMessage(BufferData buffer) {
+		return sendMessage(buffer, TransmitScheduler.DEFAULT_GROUP, 0);
+	}
+
+	@Override
+	public boolean sendMessage(BufferData buffer, long deadline) {
+		return sendMessage(buffer, TransmitScheduler.DEFAULT_GROUP, deadline);
+	}
+
+	@Override
+	public boolean sendMessage(BufferData buffer, int group, long deadline) {
+		if ( draining || closed )
+			return false;
+
+		if ( buffer.get(0) == 0 || buffer.available() > ringSize - 4 )
+			return false;
+
+		return scheduler.offer(buffer, group, deadline);
+	}
+
+	/**
+	 * Abandons the link, the other side is told it has closed
+	 */
+	@Override
+	public void abort() {
+		closeLink();
+	}
+
+	/**
+	 * @return the scheduler ordering frames for transmission
+	 */
+	public TransmitScheduler getTransmitScheduler() {
+		return scheduler;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Writes whatever messages are queued, ensuring new ones can't be added, then closes the link
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+
+		draining = true;
+
+		if ( !closed ) {
+			scheduler.offerShutdown();
+
+			try {
+				txStopped.get();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		closeLink();
+
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+}
@@ -1,66 +1,1177 @@
 package xyz.arwhite.net.mux;
 
-public class SplitProxy {
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-	public static void main(String[] args) {
+/**
+ * Forwards TCP connections across a StreamController. On the proxy side TCP connections are
+ * accepted and each is carried by a new Stream to a stream port on the peer. On the target side
+ * Streams are accepted on that stream port and each is relayed to a TCP connection dialled to
+ * the target. Both sides may be run by the same SplitProxy.
+ * 
+ * Each direction of a relayed connection is pumped by its own virtual thread, reusing a single
+ * buffer for the life of the connection. Whatever a client has sent by the time its Stream is
+ * opened goes with the connect request, so a request can be answered a round trip sooner.
+ * 
+ * Clients needing to reach arbitrary hosts can use the SOCKS5 listener instead. SOCKS negotiation
+ * is completed locally, the destination is carried in the connect request of the Stream and the
+ * peer dials it before confirming, so the whole connection is set up in one round trip over the
+ * link. The peer only dials destinations if it allows dynamic targets. An HTTP CONNECT listener
+ * does the same for clients configured with an HTTP proxy.
+ * 
+ * The target side can take its TCP connections from a {@link BackendPool}, which dials ahead
+ * and, for protocols such as HTTP/1.1 keep-alive, hands a connection on to the next Stream once
+ * the Stream it served has ended.
+ * 
+ * @author Alan R. White
+ *
+ */
+public class SplitProxy {
 
-		// parse parameters
+	static private final Logger logger = Logger.getLogger(SplitProxy.class.getName());
 
-		// ip - default 127.0.0.1 - WebSocket ip to listen on / connect to 
-		// port - default 8258 - WebSocket port to listen on / connect to
-		// listen - one of list/connect must be supplied - starts the WebSocket server
-		// connect - connects to remote WebSocket server
+	public static final int DEFAULT_STREAM_PORT = 258;
+	
+	/**
+	 * Seconds the reply to a client that has finished sending to a Stream may go quiet, once it
+	 * has started, before the relay ends
+	 */
+	public static final int DEFAULT_REPLY_LINGER = 1;
+	
+	/**
+	 * Size of the buffer each pump reads into and writes from
+	 */
+	private static final int RELAY_BUFFER_SIZE = 16384;
+	
+	/**
+	 * Time allowed to reach a destination requested by the peer, well inside the peer's connect timeout
+	 */
+	private static final int DIAL_TIMEOUT = 10000;
+	
+	/**
+	 * Time an optimistically answered HTTP CONNECT client has to send its first bytes, which then
+	 * go with the connect request
+	 */
+	private static final int EARLY_DATA_WAIT = 10;
+	
+	/**
+	 * SOCKS5, RFC 1928. Only CONNECT without authentication is supported.
+	 */
+	private static final int SOCKS_VERSION = 5;
+	private static final int SOCKS_NO_AUTH = 0;
+	private static final int SOCKS_NO_ACCEPTABLE_METHODS = 0xFF;
+	private static final int SOCKS_CONNECT = 1;
+	private static final int SOCKS_IPV4 = 1;
+	private static final int SOCKS_DOMAIN = 3;
+	private static final int SOCKS_IPV6 = 4;
+	private static final int SOCKS_SUCCEEDED = 0;
+	private static final int SOCKS_NOT_ALLOWED = 2;
+	private static final int SOCKS_HOST_UNREACHABLE = 4;
+	private static final int SOCKS_COMMAND_NOT_SUPPORTED = 7;
+	private static final int SOCKS_ADDRESS_TYPE_NOT_SUPPORTED = 8;
+	
+	/**
+	 * Longest HTTP CONNECT request header accepted
+	 */
+	private static final int HTTP_MAX_HEADER = 8192;
+	
+	/**
+	 * Time allowed for a SOCKS or HTTP CONNECT client to say where it's going
+	 */
+	private static final int NEGOTIATION_TIMEOUT = 10000;
+	
+	/**
+	 * How often a relay to a reusable backend connection checks whether its Stream has ended, so
+	 * the connection can be given back without being closed
+	 */
+	private static final int REUSE_POLL = 100;
+	
+	/**
+	 * How often a relay waiting on the reply to a client that has finished sending checks
+	 * whether more has arrived
+	 */
+	private static final int REPLY_POLL = 100;
 
-		// proxy-ip - default 127.0.0.1 - the IP to listen for proxy requests on
-		// proxy-port - default 8255 - the port to listen for proxy requests on
+	private StreamController controller;
+	private int streamPort;
+	private InetSocketAddress proxyAddress;
+	private InetSocketAddress target;
+	private InetSocketAddress socksAddress;
+	private InetSocketAddress httpAddress;
+	private boolean optimisticConnect;
+	private int replyLinger;
+	private boolean dynamicTargets;
+	private BackendPool backendPool;
+	private ResolverCache resolverCache;
+	
+	private MuxSocketFactory muxSocketFactory;
+	private ServerSocket proxyServer;
+	private ServerSocket socksServer;
+	private ServerSocket httpServer;
+	private ServerSocket streamServer;
+	
+	private AtomicInteger activeRelays = new AtomicInteger(0);
+	private volatile boolean stopped = false;
 
-		/*
-		 * need a StreamController instance that wraps the WsPriHandler on the WS
-		 * it tracks all Streams
-		 * A stream can be created because a call came across the ws 
-		 * Or because we initiate a call across the ws
+	private SplitProxy(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor");
+		
+		this.controller = builder.controller;
+		this.streamPort = builder.streamPort;
+		this.proxyAddress = builder.proxyAddress;
+		this.target = builder.target;
+		this.socksAddress = builder.socksAddress;
+		this.httpAddress = builder.httpAddress;
+		this.optimisticConnect = builder.optimisticConnect;
+		this.replyLinger = builder.replyLinger * 1000;
+		this.dynamicTargets = builder.dynamicTargets;
+		this.backendPool = builder.backendPool;
+		this.resolverCache = builder.resolverCache;
+		
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
 
-		 * If we initiate the stream we say to the other end here is where I want to connect to
-		 * If the other end initiated we get a message saying hey connect to here
+	public static class Builder {
+		
+		StreamController controller;
+		int streamPort = DEFAULT_STREAM_PORT;
+		InetSocketAddress proxyAddress;
+		InetSocketAddress target;
+		InetSocketAddress socksAddress;
+		InetSocketAddress httpAddress;
+		boolean optimisticConnect = false;
+		int replyLinger = DEFAULT_REPLY_LINGER;
+		boolean dynamicTargets = false;
+		BackendPool backendPool;
+		ResolverCache resolverCache;
+		
+		public Builder withMux(StreamController controller) {
+			this.controller = controller;
+			return this;
+		}
+		
+		/**
+		 * @param streamPort the Streams are connected to on the target side
+		 * @return
+		 */
+		public Builder withStreamPort(int streamPort) {
+			this.streamPort = streamPort;
+			return this;
+		}
+		
+		/**
+		 * Accept TCP connections, forwarding them to the peer
 		 * 
-		 * Proxy Connect -> Create Stream -> Forward Target -> Await Confirm -> relay all IO
-		 * Stream Created -> Receive Target -> Connect Target -> Confirm -> relay all IO
-		 *  
-		 * The StreamController receives all IO from the ws, checks if it's for a known Stream
-		 * invokes the callback registered on that Stream. If it's a Create Stream call, it needs
-		 * to know how to create a Stream instance for it, i.e. what is the default callback
-
-		 * Maybe we are saying hey StreamController, when you get a new stream request then
-		 * let me know, and I'll accept it, passing in the callback to use. IE we call a listen 
-		 * method in the StreamController, and it hangs until there's a new stream request received
-		 * So there's a new stream request queue, listen is taking from it. StreamController code
-		 * that's reading from the WS spots the new stream request and queues it.
+		 * @param host to listen on
+		 * @param port to listen on, 0 for any free port
+		 * @return
+		 */
+		public Builder withProxyAddress(String host, int port) {
+			this.proxyAddress = new InetSocketAddress(host, port);
+			return this;
+		}
+		
+		/**
+		 * Accept Streams from the peer, forwarding them to a TCP target
 		 * 
-		 * So I'm creating a table of connections, StreamHandler has a table of Streams
-		 * I need the table of connections to know when I get IO on an external socket (whether
-		 * it was created by a local proxy request, or a remote relay request, which Stream to 
-		 * pass the IO to, or when I receive IO on a stream which connection gets it.
+		 * @param host of the target
+		 * @param port of the target
+		 * @return
+		 */
+		public Builder withTarget(String host, int port) {
+			this.target = InetSocketAddress.createUnresolved(host, port);
+			return this;
+		}
+		
+		/**
+		 * Accept SOCKS5 connections, forwarding each to the destination it requests via the peer
 		 * 
-		 * We really want a virtual thread or two per connection, one for each IO direction
+		 * @param host to listen on
+		 * @param port to listen on, 0 for any free port
+		 * @return
+		 */
+		public Builder withSocksAddress(String host, int port) {
+			this.socksAddress = new InetSocketAddress(host, port);
+			return this;
+		}
+		
+		/**
+		 * Accept HTTP CONNECT requests, forwarding each to the destination it requests via the peer
 		 * 
-		 * And a Stream is really a Socket, but let's get this working functionally and 
-		 * then align with the Socket construct.
+		 * @param host to listen on
+		 * @param port to listen on, 0 for any free port
+		 * @return
 		 */
-
-		/*
-		 * First let's build and test the StreamController and Stream classes.
+		public Builder withHttpProxyAddress(String host, int port) {
+			this.httpAddress = new InetSocketAddress(host, port);
+			return this;
+		}
+		
+		/**
+		 * Answer HTTP CONNECT requests as established straight away rather than once the peer has
+		 * reached the destination. The client's first bytes, e.g. a TLS ClientHello, then go with 
+		 * the connect request instead of after the answer, saving a round trip. If the peer 
+		 * can't reach the destination the client sees the connection close instead of an error.
+		 * 
+		 * @param optimisticConnect
+		 * @return
 		 */
+		public Builder withOptimisticConnect(boolean optimisticConnect) {
+			this.optimisticConnect = optimisticConnect;
+			return this;
+		}
 		
-		// build the websocket
+		/**
+		 * How long the reply to a client that has finished sending may go quiet before the relay
+		 * ends, as a Stream can't be half closed so the backend is never told the client has 
+		 * finished. Quiet only counts once the backend has sent something, however long it
+		 * takes to start.
+		 * 
+		 * @param seconds
+		 * @return
+		 */
+		public Builder withReplyLinger(int seconds) {
+			if ( seconds <= 0 )
+				throw(new IllegalArgumentException("reply linger must be positive"));
+			
+			this.replyLinger = seconds;
+			return this;
+		}
 		
-		// create a stream controller for the websocket
+		/**
+		 * Accept Streams from the peer that name their own destination, e.g. from its SOCKS5
+		 * listener, and dial whatever destination they name
+		 * 
+		 * @param dynamicTargets
+		 * @return
+		 */
+		public Builder withDynamicTargets(boolean dynamicTargets) {
+			this.dynamicTargets = dynamicTargets;
+			return this;
+		}
+		
+		/**
+		 * Take connections to the target and requested destinations from a pool rather than
+		 * dialling one for each Stream. The pool is closed when the SplitProxy is stopped.
+		 * 
+		 * @param backendPool
+		 * @return
+		 */
+		public Builder withBackendPool(BackendPool backendPool) {
+			this.backendPool = backendPool;
+			return this;
+		}
+		
+		/**
+		 * Look up the target and requested destinations through a cache rather than the JDK for
+		 * each Stream. A backend pool looks up through its own.
+		 * 
+		 * @param resolverCache
+		 * @return
+		 */
+		public Builder withResolverCache(ResolverCache resolverCache) {
+			this.resolverCache = resolverCache;
+			return this;
+		}
+		
+		/**
+		 * Starts listening on whichever sides are configured
+		 * @return
+		 * @throws IOException
+		 */
+		public SplitProxy start() throws IOException {
+			logger.entering(this.getClass().getName(), "start");
+			
+			if ( controller == null )
+				throw(new IllegalStateException("no StreamController specified"));
+			
+			if ( proxyAddress == null && socksAddress == null && httpAddress == null 
+					&& target == null && !dynamicTargets )
+				throw(new IllegalStateException("nothing to proxy or accept specified"));
+			
+			var proxy = new SplitProxy(this);
+			proxy.start();
+			
+			logger.exiting(this.getClass().getName(), "start", proxy);
+			return proxy;
+		}
+	}
+	
+	private void start() throws IOException {
+		
+		if ( target != null || dynamicTargets ) {
+			streamServer = new MuxServerSocketFactory.Builder()
+					.withMux(controller)
+					.build()
+					.createServerSocket(streamPort, 0);
+			
+			Thread.ofVirtual().name("StreamAcceptor").start(this::acceptStreams);
+			logger.info("Forwarding Streams on port "+streamPort+" to "
+					+(target != null ? target : "")
+					+(target != null && dynamicTargets ? " and " : "")
+					+(dynamicTargets ? "requested destinations" : ""));
+		}
+		
+		if ( proxyAddress != null || socksAddress != null || httpAddress != null )
+			muxSocketFactory = new MuxSocketFactory.Builder()
+					.withMux(controller)
+					.build();
+		
+		if ( proxyAddress != null ) {
+			proxyServer = new ServerSocket();
+			proxyServer.bind(proxyAddress);
+			
+			Thread.ofVirtual().name("ProxyAcceptor").start(this::acceptConnections);
+			logger.info("Forwarding connections on "+proxyServer.getLocalSocketAddress()+" to stream port "+streamPort);
+		}
+		
+		if ( socksAddress != null ) {
+			socksServer = new ServerSocket();
+			socksServer.bind(socksAddress);
+			
+			Thread.ofVirtual().name("SocksAcceptor").start(() -> acceptFrontEnd(socksServer, this::socks));
+			logger.info("SOCKS5 on "+socksServer.getLocalSocketAddress()+" via stream port "+streamPort);
+		}
+		
+		if ( httpAddress != null ) {
+			httpServer = new ServerSocket();
+			httpServer.bind(httpAddress);
+			
+			Thread.ofVirtual().name("HttpConnectAcceptor").start(() -> acceptFrontEnd(httpServer, this::httpConnect));
+			logger.info("HTTP CONNECT on "+httpServer.getLocalSocketAddress()+" via stream port "+streamPort
+					+(optimisticConnect ? ", answered optimistically" : ""));
+		}
+	}
+
+	/**
+	 * Carries each TCP connection accepted over a new Stream
+	 */
+	private void acceptConnections() {
+		try {
+			while( !stopped ) {
+				var connection = proxyServer.accept();
+				
+				Thread.ofVirtual().start(() -> {
+					try {
+						connection.setTcpNoDelay(true);
+						relay(connection, muxSocketFactory.createSocket(streamPort, readEarlyData(connection, 0)));
+					} catch (IOException e) {
+						logger.log(Level.FINE, "unable to open Stream for "+connection.getRemoteSocketAddress(), e);
+						closeQuietly(connection);
+					}
+				});
+			}
+		} catch (IOException e) {
+			if ( !stopped )
+				logger.log(Level.WARNING, "proxy listener failed", e);
+		}
+	}
+
+	/**
+	 * Hands each connection accepted to a front end, which learns the destination from the client
+	 * then carries the connection over a new Stream
+	 */
+	private void acceptFrontEnd(ServerSocket server, Consumer<Socket> frontEnd) {
+		try {
+			while( !stopped ) {
+				var connection = server.accept();
+				Thread.ofVirtual().start(() -> frontEnd.accept(connection));
+			}
+		} catch (IOException e) {
+			if ( !stopped )
+				logger.log(Level.WARNING, "listener on "+server.getLocalSocketAddress()+" failed", e);
+		}
+	}
+
+	/**
+	 * Negotiation is answered locally, only the Stream's connect request and its confirm cross
+	 * the link. The client is told it has connected once the peer has reached the destination.
+	 * 
+	 * @param connection
+	 */
+	private void socks(Socket connection) {
+		try {
+			connection.setTcpNoDelay(true);
+			connection.setSoTimeout(NEGOTIATION_TIMEOUT);
+			
+			var in = new DataInputStream(connection.getInputStream());
+			var out = connection.getOutputStream();
+			
+			// greeting, listing the authentication methods the client supports
+			if ( in.readUnsignedByte() != SOCKS_VERSION )
+				throw(new IOException("not a SOCKS5 client"));
+			
+			var methods = new byte[in.readUnsignedByte()];
+			in.readFully(methods);
+			
+			var noAuth = false;
+			for( var method : methods )
+				noAuth |= method == SOCKS_NO_AUTH;
+			
+			if ( !noAuth ) {
+				out.write(new byte[] { SOCKS_VERSION, (byte) SOCKS_NO_ACCEPTABLE_METHODS });
+				closeQuietly(connection);
+				return;
+			}
+			
+			out.write(new byte[] { SOCKS_VERSION, SOCKS_NO_AUTH });
+			
+			// request
+			if ( in.readUnsignedByte() != SOCKS_VERSION )
+				throw(new IOException("not a SOCKS5 request"));
+			
+			var command = in.readUnsignedByte();
+			in.readUnsignedByte(); // reserved
+			
+			String host = switch( in.readUnsignedByte() ) {
+			case SOCKS_IPV4 -> {
+				var address = new byte[4];
+				in.readFully(address);
+				yield InetAddress.getByAddress(address).getHostAddress();
+			}
+			case SOCKS_IPV6 -> {
+				var address = new byte[16];
+				in.readFully(address);
+				yield InetAddress.getByAddress(address).getHostAddress();
+			}
+			case SOCKS_DOMAIN -> {
+				// resolved by the peer
+				var name = new byte[in.readUnsignedByte()];
+				in.readFully(name);
+				yield new String(name, StandardCharsets.US_ASCII);
+			}
+			default -> null;
+			};
+			
+			if ( host == null ) {
+				socksReply(out, SOCKS_ADDRESS_TYPE_NOT_SUPPORTED);
+				closeQuietly(connection);
+				return;
+			}
+			
+			var port = in.readUnsignedShort();
+			
+			if ( command != SOCKS_CONNECT ) {
+				socksReply(out, SOCKS_COMMAND_NOT_SUPPORTED);
+				closeQuietly(connection);
+				return;
+			}
+			
+			Socket stream;
+			try {
+				stream = muxSocketFactory.createSocket(streamPort, host, port);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "peer unable to reach "+host+":"+port, e);
+				socksReply(out, refused(e) ? SOCKS_NOT_ALLOWED : SOCKS_HOST_UNREACHABLE);
+				closeQuietly(connection);
+				return;
+			}
+			
+			socksReply(out, SOCKS_SUCCEEDED);
+			connection.setSoTimeout(0);
+			
+			relay(connection, stream);
+			
+		} catch (IOException e) {
+			logger.log(Level.FINE, "SOCKS negotiation failed with "+connection.getRemoteSocketAddress(), e);
+			closeQuietly(connection);
+		}
+	}
+	
+	/**
+	 * The bound address means nothing on this side of the link, so is always reported as 0.0.0.0:0
+	 */
+	private static void socksReply(OutputStream out, int reply) throws IOException {
+		out.write(new byte[] { SOCKS_VERSION, (byte) reply, 0, SOCKS_IPV4, 0, 0, 0, 0, 0, 0 });
+	}
+
+	/**
+	 * Only CONNECT is supported, the proxy never sees inside the tunnelled connection. Unless 
+	 * answering optimistically the client is told the connection is established once the peer 
+	 * has reached the destination.
+	 * 
+	 * @param connection
+	 */
+	private void httpConnect(Socket connection) {
+		try {
+			connection.setTcpNoDelay(true);
+			connection.setSoTimeout(NEGOTIATION_TIMEOUT);
+			
+			var out = connection.getOutputStream();
+			
+			var header = readHttpHeader(connection.getInputStream());
+			if ( header == null )
+				throw(new IOException("incomplete or oversized request header"));
+			
+			// CONNECT host:port HTTP/1.1
+			var request = header.substring(0, header.indexOf("\r\n")).split(" ");
+			
+			if ( request.length != 3 || !request[0].equals("CONNECT") ) {
+				httpReply(out, "405 Method Not Allowed");
+				closeQuietly(connection);
+				return;
+			}
+			
+			var separator = request[1].lastIndexOf(':');
+			String host;
+			int port;
+			
+			try {
+				host = request[1].substring(0, separator).replaceAll("^\\[|\\]$", "");
+				port = Integer.parseInt(request[1].substring(separator + 1));
+			} catch (RuntimeException e) {
+				httpReply(out, "400 Bad Request");
+				closeQuietly(connection);
+				return;
+			}
+			
+			byte[] earlyData = null;
+			
+			if ( optimisticConnect ) {
+				httpReply(out, "200 Connection established");
+				earlyData = readEarlyData(connection, EARLY_DATA_WAIT);
+			}
+			
+			Socket stream;
+			try {
+				stream = muxSocketFactory.createSocket(streamPort, host, port, earlyData);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "peer unable to reach "+host+":"+port, e);
+				
+				if ( !optimisticConnect )
+					httpReply(out, refused(e) ? "403 Forbidden" : "502 Bad Gateway");
+				
+				closeQuietly(connection);
+				return;
+			}
+			
+			if ( !optimisticConnect )
+				httpReply(out, "200 Connection established");
+			
+			connection.setSoTimeout(0);
+			relay(connection, stream);
+			
+		} catch (IOException e) {
+			logger.log(Level.FINE, "HTTP CONNECT failed with "+connection.getRemoteSocketAddress(), e);
+			closeQuietly(connection);
+		}
+	}
+	
+	/**
+	 * @return true if the peer refused the Stream because its destination isn't permitted
+	 */
+	private static boolean refused(IOException e) {
+		return e instanceof StreamConnectException sce
+				&& sce.getErrorCode() == StreamConstants.DESTINATION_NOT_PERMITTED;
+	}
+	
+	/**
+	 * Reads a request header a byte at a time, so nothing the client sends after it is consumed
+	 * 
+	 * @return the header, or null if the connection ended first or it is too long
+	 */
+	private static String readHttpHeader(InputStream in) throws IOException {
+		var header = new StringBuilder();
 		
-		// create a listening thread that listens on a stream port (we're going to assume 258 for this example)
-		// it listens by getting a stream listener instance from the stream controller
-		// we could create a stream listener factory (stream server factory) with the stream controller injected
-		// this code would then use the stream listener factory (server stream factory) to create a stream listener (stream server) for a given stream port
+		while( header.length() < HTTP_MAX_HEADER ) {
+			var b = in.read();
+			if ( b == -1 )
+				return null;
+			
+			header.append((char) b);
+			
+			if ( b == '\n' && header.length() >= 4 && header.lastIndexOf("\r\n\r\n") == header.length() - 4 )
+				return header.toString();
+		}
 		
-		// the thread then loops on the accept method of the stream server object which suspends until a stream request comes in
+		return null;
+	}
+	
+	/**
+	 * Reads what the client has already sent, up to what can go with a connect request
+	 * 
+	 * @param wait millis to wait for the client to start sending, 0 to take only what has arrived
+	 * @return the data, or null if there's none
+	 */
+	private static byte[] readEarlyData(Socket connection, int wait) throws IOException {
+		var in = connection.getInputStream();
+		var buffer = new byte[Stream.MAX_EARLY_DATA];
+		var count = 0;
+		
+		if ( in.available() > 0 )
+			count = in.read(buffer, 0, Math.min(in.available(), buffer.length));
+		
+		else if ( wait > 0 ) {
+			connection.setSoTimeout(wait);
+			
+			try {
+				count = in.read(buffer);
+			} catch (SocketTimeoutException e) {
+				// the client is waiting for the destination to speak first
+			}
+			
+			connection.setSoTimeout(0);
+		}
+		
+		return count > 0 ? Arrays.copyOf(buffer, count) : null;
+	}
+	
+	private static void httpReply(OutputStream out, String status) throws IOException {
+		var reply = "HTTP/1.1 " + status + "\r\n"
+				+ (status.startsWith("200") ? "" : "Content-Length: 0\r\nConnection: close\r\n")
+				+ "\r\n";
+		
+		out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Dials the target, or the destination the Stream names, for each Stream accepted
+	 */
+	private void acceptStreams() {
+		try {
+			while( !stopped ) {
+				var socket = (MuxSocket) streamServer.accept();
+				Thread.ofVirtual().start(() -> dial(socket));
+			}
+		} catch (IOException e) {
+			if ( !stopped )
+				logger.log(Level.WARNING, "stream listener failed", e);
+		}
+	}
+	
+	/**
+	 * A Stream naming a destination is only confirmed once the destination has been reached, so
+	 * the peer learns the outcome from the confirm or fail of its connect request
+	 * 
+	 * @param socket
+	 */
+	private void dial(MuxSocket socket) {
+		var stream = socket.getStream();
+		var destination = stream.getDestination();
+		
+		try {
+			if ( destination == null ) {
+				if ( target == null )
+					throw(new IOException("no target for Streams without a destination"));
+				
+				if ( backendPool != null ) {
+					relay(socket, backendPool.acquire(target), target);
+					return;
+				}
+				
+				var connection = new Socket();
+				connection.connect(resolve(target));
+				connection.setTcpNoDelay(true);
+				relay(socket, connection);
+				return;
+			}
+			
+			if ( !dynamicTargets ) {
+				logger.warning("Refused Stream to "+destination+", dynamic targets not allowed");
+				stream.rejectConnect(StreamConstants.DESTINATION_NOT_PERMITTED);
+				return;
+			}
+			
+			var connection = backendPool == null ? new Socket() : null;
+			InetSocketAddress address = null;
+			try {
+				var separator = destination.lastIndexOf(':');
+				address = InetSocketAddress.createUnresolved(destination.substring(0, separator),
+						Integer.parseInt(destination.substring(separator + 1)));
+				
+				if ( backendPool != null )
+					connection = backendPool.acquire(address);
+				else
+					connection.connect(resolve(address), DIAL_TIMEOUT);
+				
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.FINE, "unable to connect to "+destination, e);
+				if ( connection != null )
+					closeQuietly(connection);
+				stream.rejectConnect(StreamConstants.DESTINATION_UNREACHABLE);
+				return;
+			}
+			
+			stream.confirmConnect();
+			
+			if ( backendPool != null ) {
+				relay(socket, connection, address);
+				return;
+			}
+			
+			connection.setTcpNoDelay(true);
+			relay(socket, connection);
+			
+		} catch (IOException e) {
+			logger.log(Level.FINE, "unable to connect to "+(destination != null ? destination : target), e);
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * @param address unresolved
+	 * @return the address resolved, through the cache if there is one
+	 * @throws UnknownHostException
+	 */
+	private InetSocketAddress resolve(InetSocketAddress address) throws UnknownHostException {
+		if ( resolverCache != null )
+			return resolverCache.resolve(address);
+		
+		return new InetSocketAddress(address.getHostString(), address.getPort());
+	}
+	
+	/**
+	 * Pumps data both ways between two sockets until both directions have ended. When one 
+	 * direction ends its destination is half closed, so the other direction can finish. A Stream
+	 * can't be half closed. If the client's side has finished sending to a Stream the reply keeps
+	 * coming until the backend's side ends or the reply goes quiet, but once the backend's side 
+	 * has finished both are closed, so the client sees the end. An error in either direction 
+	 * closes both.
+	 * 
+	 * @param a the client's side
+	 * @param b the backend's side
+	 */
+	protected void relay(Socket a, Socket b) {
+		relay(a, b, () -> {});
+	}
+	
+	/**
+	 * @param a
+	 * @param b
+	 * @param ended run once both sockets are closed
+	 */
+	private void relay(Socket a, Socket b, Runnable ended) {
+		logger.fine("Relaying "+a+" to "+b);
+		
+		activeRelays.incrementAndGet();
+		var directions = new AtomicInteger(2);
+		var replied = new AtomicLong();
+		
+		Runnable finished = () -> {
+			if ( directions.decrementAndGet() == 0 ) {
+				closeQuietly(a);
+				closeQuietly(b);
+				ended.run();
+				activeRelays.decrementAndGet();
+			}
+		};
+		
+		Thread.ofVirtual().name("RelayPump").start(() -> 
+			pump(a, b, new AtomicLong(), () -> awaitReply(a, b, directions, replied), finished));
+		Thread.ofVirtual().name("RelayPump").start(() -> 
+			pump(b, a, replied, () -> { closeQuietly(a); closeQuietly(b); }, finished));
+	}
+	
+	/**
+	 * The client's side has finished sending to a Stream, which can't be half closed, so the
+	 * reply is relayed until the backend's side ends or, once the backend has sent something,
+	 * nothing more of it arrives within the reply linger, then both are closed.
+	 * 
+	 * @param a the client's side
+	 * @param b the backend's side
+	 * @param directions still relaying
+	 * @param replied bytes relayed from the backend's side
+	 */
+	private void awaitReply(Socket a, Socket b, AtomicInteger directions, AtomicLong replied) {
+		logger.fine("Relay to "+b+" can't be half closed, waiting for the reply");
+		
+		try {
+			long seen = replied.get();
+			long quietSince = System.currentTimeMillis();
+			
+			while( directions.get() > 1 ) {
+				Thread.sleep(REPLY_POLL);
+				
+				var now = System.currentTimeMillis();
+				if ( replied.get() != seen ) {
+					seen = replied.get();
+					quietSince = now;
+					
+				} else if ( seen > 0 && now - quietSince >= replyLinger )
+					// a backend slow to start answering is waited for, one gone quiet isn't
+					break;
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		closeQuietly(a);
+		closeQuietly(b);
+	}
+	
+	/**
+	 * Relays a Stream to a connection from the backend pool, giving the connection back once
+	 * the relay ends. If the pool reuses connections the backend connection is never half closed,
+	 * and it's only given back as reusable once the exchange is known to be complete: the Stream
+	 * ended cleanly after the backend answered the last of the request, and the backend then 
+	 * stayed quiet for a whole REUSE_POLL. A Stream that ended before the backend answered, or
+	 * while it was still sending, leaves the connection closed.
+	 * 
+	 * @param socket carrying the Stream
+	 * @param backend from the pool
+	 * @param destination the backend was acquired for
+	 */
+	private void relay(Socket socket, Socket backend, InetSocketAddress destination) {
+		if ( !backendPool.isReuse() ) {
+			relay(socket, backend, () -> backendPool.release(destination, backend, false));
+			return;
+		}
+		
+		logger.fine("Relaying "+socket+" to reusable "+backend);
+		
+		activeRelays.incrementAndGet();
+		var directions = new AtomicInteger(2);
+		var streamEnded = new AtomicBoolean(false);
+		var endedAt = new AtomicLong();
+		var answered = new AtomicBoolean(true);
+		var reusable = new AtomicBoolean(true);
+		
+		Runnable finished = () -> {
+			if ( directions.decrementAndGet() == 0 ) {
+				closeQuietly(socket);
+				backendPool.release(destination, backend, reusable.get());
+				activeRelays.decrementAndGet();
+			}
+		};
+		
+		Thread.ofVirtual().name("RelayPump").start(() -> {
+			var buffer = new byte[RELAY_BUFFER_SIZE];
+			
+			try {
+				InputStream in = socket.getInputStream();
+				OutputStream out = backend.getOutputStream();
+				
+				int count;
+				while( (count = in.read(buffer)) != -1 ) {
+					answered.set(false);
+					out.write(buffer, 0, count);
+					
+					if ( in.available() == 0 )
+						out.flush();
+				}
+				
+				out.flush();
+				
+			} catch (IOException e) {
+				logger.log(Level.FINE, "relay ended", e);
+				reusable.set(false);
+			}
+			
+			endedAt.set(System.nanoTime());
+			streamEnded.set(true);
+			finished.run();
+		});
+		
+		Thread.ofVirtual().name("RelayPump").start(() -> {
+			var buffer = new byte[RELAY_BUFFER_SIZE];
+			
+			try {
+				backend.setSoTimeout(REUSE_POLL);
+				InputStream in = backend.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				
+				while( true ) {
+					int count;
+					var since = System.nanoTime();
+					try {
+						count = in.read(buffer);
+						
+					} catch (SocketTimeoutException e) {
+						// done once quiet for a whole poll since the Stream has gone
+						if ( streamEnded.get() && since - endedAt.get() >= 0 )
+							break;
+						
+						continue;
+					}
+					
+					if ( count == -1 ) {
+						reusable.set(false);
+						break;
+					}
+					
+					answered.set(true);
+					out.write(buffer, 0, count);
+					
+					if ( in.available() == 0 )
+						out.flush();
+				}
+				
+				out.flush();
+				
+			} catch (IOException e) {
+				logger.log(Level.FINE, "relay ended", e);
+				reusable.set(false);
+			}
+			
+			// the client left before the backend answered, its reply may still come
+			if ( !answered.get() )
+				reusable.set(false);
+			
+			// a Stream can't be half closed, let the other direction finish
+			if ( !reusable.get() || !streamEnded.get() )
+				closeQuietly(socket);
+			
+			finished.run();
+		});
+	}
+	
+	/**
+	 * @param from
+	 * @param to
+	 * @param relayed counts the bytes pumped
+	 * @param unclosable run if the end of the data can't be passed on by half closing
+	 * @param finished
+	 */
+	private void pump(Socket from, Socket to, AtomicLong relayed, Runnable unclosable, Runnable finished) {
+		var buffer = new byte[RELAY_BUFFER_SIZE];
+		
+		try {
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			
+			int count;
+			while( (count = in.read(buffer)) != -1 ) {
+				out.write(buffer, 0, count);
+				relayed.addAndGet(count);
+				
+				// don't hold back anything the other side may be waiting on
+				if ( in.available() == 0 )
+					out.flush();
+			}
+			
+			out.flush();
+			
+			if ( !halfClose(to) )
+				unclosable.run();
+			
+		} catch (IOException e) {
+			logger.log(Level.FINE, "relay ended", e);
+			closeQuietly(from);
+			closeQuietly(to);
+		}
+		
+		finished.run();
+	}
+	
+	/**
+	 * @return false if the socket can't be half closed
+	 */
+	private boolean halfClose(Socket socket) {
+		if ( socket instanceof MuxSocket )
+			return false;
+		
+		try {
+			socket.shutdownOutput();
+			return true;
+			
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "close failed", e);
+		}
+	}
+
+	/**
+	 * @return the port TCP connections are accepted on, -1 if not proxying
+	 */
+	public int getProxyPort() {
+		return proxyServer == null ? -1 : proxyServer.getLocalPort();
+	}
+
+	/**
+	 * @return the port SOCKS5 connections are accepted on, -1 if not listening for them
+	 */
+	public int getSocksPort() {
+		return socksServer == null ? -1 : socksServer.getLocalPort();
+	}
+
+	/**
+	 * @return the port HTTP CONNECT requests are accepted on, -1 if not listening for them
+	 */
+	public int getHttpProxyPort() {
+		return httpServer == null ? -1 : httpServer.getLocalPort();
+	}
+
+	/**
+	 * @return number of connections being relayed
+	 */
+	public int getActiveRelays() {
+		return activeRelays.get();
+	}
+
+	/**
+	 * Stops accepting connections and Streams, relays in progress continue until they end
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+		
+		stopped = true;
+		
+		try {
+			if ( proxyServer != null )
+				proxyServer.close();
+			
+			if ( socksServer != null )
+				socksServer.close();
+			
+			if ( httpServer != null )
+				httpServer.close();
+			
+			if ( streamServer != null )
+				streamServer.close();
+			
+			if ( backendPool != null )
+				backendPool.close();
+			
+		} catch (IOException e) {
+			logger.log(Level.FINE, "close failed", e);
+		}
+		
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+
+	/**
+	 * Runs one end of a split proxy. Parameters, each followed by its value except listen, connect,
+	 * optimistic, dynamic-targets and reuse-backends:
+	 * 
+	 * <pre>
+	 * ip          default 127.0.0.1 - WebSocket ip to listen on / connect to
+	 * port        default 8258 - WebSocket port to listen on / connect to
+	 * listen      one of listen/connect must be supplied - starts the WebSocket server
+	 * connect     connects to remote WebSocket server
+	 * proxy-ip    default 127.0.0.1 - the IP to listen for proxy requests on
+	 * proxy-port  the port to listen for proxy requests on, 8255 if nothing else is configured
+	 * socks-port  the port to listen for SOCKS5 requests on, also on proxy-ip
+	 * http-port   the port to listen for HTTP CONNECT requests on, also on proxy-ip
+	 * optimistic  answer HTTP CONNECT requests before the peer has reached the destination
+	 * target      host:port to forward Streams from the peer to
+	 * dynamic-targets  dial the destinations named by Streams from the peer's SOCKS5 listener
+	 * stream-port default 258 - the stream port Streams are connected to
+	 * backend-warm   connections kept dialled ahead to each target or destination in use
+	 * reuse-backends hand a target connection on to the next Stream, for HTTP/1.1 keep-alive
+	 * </pre>
+	 * 
+	 * @param args
+	 * @throws Exception 
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String ip = "127.0.0.1";
+		int port = 8258;
+		Boolean listen = null;
+		String proxyIp = "127.0.0.1";
+		Integer proxyPort = null;
+		Integer socksPort = null;
+		Integer httpPort = null;
+		boolean optimistic = false;
+		String target = null;
+		boolean dynamicTargets = false;
+		int streamPort = DEFAULT_STREAM_PORT;
+		Integer backendWarm = null;
+		boolean reuseBackends = false;
+
+		for( int i = 0; i < args.length; i++ ) {
+			switch( args[i].replaceFirst("^--?", "") ) {
+			case "ip" -> ip = args[++i];
+			case "port" -> port = Integer.parseInt(args[++i]);
+			case "listen" -> listen = true;
+			case "connect" -> listen = false;
+			case "proxy-ip" -> proxyIp = args[++i];
+			case "proxy-port" -> proxyPort = Integer.parseInt(args[++i]);
+			case "socks-port" -> socksPort = Integer.parseInt(args[++i]);
+			case "http-port" -> httpPort = Integer.parseInt(args[++i]);
+			case "optimistic" -> optimistic = true;
+			case "target" -> target = args[++i];
+			case "dynamic-targets" -> dynamicTargets = true;
+			case "stream-port" -> streamPort = Integer.parseInt(args[++i]);
+			case "backend-warm" -> backendWarm = Integer.parseInt(args[++i]);
+			case "reuse-backends" -> reuseBackends = true;
+			default -> throw(new IllegalArgumentException("unknown parameter "+args[i]));
+			}
+		}
+
+		if ( listen == null )
+			throw(new IllegalArgumentException("one of listen or connect must be supplied"));
+
+		// build the websocket
+		var linkBuilder = new WsMessageLink.Builder()
+				.withMessageBroker(new WsPriorityMessageHandler())
+				.withEndpoint("mux")
+				.withHost(ip)
+				.withPort(port);
+
+		var link = listen ? linkBuilder.listen() : linkBuilder.connect();
+
+		// create a stream controller for the websocket
+		var controller = new StreamController.Builder()
+				.withMessageLink(link)
+				.build();
+
+		// destinations are looked up once per TTL rather than for each Stream
+		var resolverCache = new ResolverCache.Builder().build();
+
+		var proxyBuilder = new SplitProxy.Builder()
+				.withMux(controller)
+				.withResolverCache(resolverCache)
+				.withStreamPort(streamPort)
+				.withOptimisticConnect(optimistic)
+				.withDynamicTargets(dynamicTargets);
+
+		if ( target != null ) {
+			var separator = target.lastIndexOf(':');
+			proxyBuilder.withTarget(target.substring(0, separator), Integer.parseInt(target.substring(separator + 1)));
+		}
+
+		if ( backendWarm != null || reuseBackends )
+			proxyBuilder.withBackendPool(new BackendPool.Builder()
+					.withWarmConnections(backendWarm != null ? backendWarm : 0)
+					.withReuse(reuseBackends)
+					.withResolverCache(resolverCache)
+					.build());
+
+		if ( socksPort != null )
+			proxyBuilder.withSocksAddress(proxyIp, socksPort);
+
+		if ( httpPort != null )
+			proxyBuilder.withHttpProxyAddress(proxyIp, httpPort);
+
+		if ( proxyPort != null || (target == null && socksPort == null && httpPort == null && !dynamicTargets) )
+			proxyBuilder.withProxyAddress(proxyIp, proxyPort != null ? proxyPort : 8255);
+
+		var proxy = proxyBuilder.start();
+
+		var done = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			proxy.stop();
+			link.stop();
+			done.countDown();
+		}));
+
+		done.await();
 	}
 
 	/*
@@ -7,9 +7,11 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
@@ -18,6 +20,7 @@ import java.util.logging.Level;
 import javax.naming.LimitExceededException;
 
 import io.helidon.common.buffers.BufferData;
+import xyz.arwhite.net.mux.StreamController.TransmitData;
 
 public class Stream {
 	
@@ -28,6 +31,39 @@ public class Stream {
 	 */
 	private static final long DEFAULT_TIMEOUT = 1000 * 60; 
 	
+	/**
+	 * Flow control window the peer starts with, which bounds the data awaiting acknowledgement
+	 */
+	private static final int INITIAL_WINDOW = 4096;
+
+	/**
+	 * Most data that can be sent with the connect request, it must fit the peer's initial window
+	 */
+	public static final int MAX_EARLY_DATA = INITIAL_WINDOW;
+	
+	/**
+	 * Largest receive window, its growth is sent to the peer as an Int16
+	 */
+	public static final int MAX_WINDOW = 65535;
+	
+	/**
+	 * Frames from the peer a Stream can queue. Each DATA frame takes at least a byte of the
+	 * window, so a peer keeping to the largest window can't fill it, the rest is room for the
+	 * few other frames a Stream receives.
+	 */
+	private static final int PEER_INCOMING_DEPTH = MAX_WINDOW + 16;
+	
+	/**
+	 * Bounds on the transit buffer holding data written but not yet sent
+	 */
+	public static final int MIN_SEND_BUFFER = 1024;
+	public static final int MAX_SEND_BUFFER = 1024 * 1024;
+	
+	/**
+	 * Largest DATA frame created when replaying, the size must fit an Int16
+	 */
+	private static final int MAX_REPLAY_FRAME = 4096;
+	
 	/**
 	 * A Stream object can only be used once. It must be removed from the StreamController
 	 * as soon as it's known to be of no further use.
@@ -70,7 +106,7 @@ public class Stream {
 	/**
 	 * The queue on which all incoming messages destined for this Stream are placed.
 	 */
-	private ArrayBlockingQueue<BufferData> peerIncoming = new ArrayBlockingQueue<>(16);
+	private BlockingQueue<BufferData> peerIncoming = new LinkedBlockingQueue<>(PEER_INCOMING_DEPTH);
 
 	/**
 	 * The relative priority on the WebSocket of messages for this Stream.
@@ -82,12 +118,68 @@ public class Stream {
 	 */
 	private int streamPort = -1;
 
+	/**
+	 * Where the peer is asked to relay this Stream onwards, host:port, or null if it isn't
+	 */
+	private String destination;
+
 	/**
 	 * Completion signals by the receiver thread 
 	 */
 	private CompletableFuture<Integer> connectCompleted = new CompletableFuture<>();
 	private CompletableFuture<Integer> disconnectCompleted = new CompletableFuture<>();
 
+	/**
+	 * Latency budget in millis for data written to this Stream, 0 if the Stream has none.
+	 * Data with a budget is scheduled earliest deadline first on the underlying transport.
+	 */
+	private long latencyBudget = 0;
+
+	/**
+	 * The bandwidth group on the underlying transport charged for data sent by this Stream.
+	 * Assigned by the StreamController from the StreamPort when the Stream connects.
+	 */
+	private int group = TransmitScheduler.DEFAULT_GROUP;
+
+	/**
+	 * The link, of those bonded to the StreamController, carrying this Stream's messages
+	 */
+	private MessageBroker link;
+
+	/**
+	 * State allowing the Stream to resume if its link drops and returns. Offsets count bytes
+	 * of DATA since the Stream connected. All guarded by resumeLock.
+	 * 
+	 * - txOffset, bytes sent
+	 * - ackedOffset, bytes the peer has credited back, older bytes are dropped from replay
+	 * - receivedOffset, bytes received from the peer
+	 * - creditedOffset, bytes credited back to the peer
+	 * - grantedWindow, growth of our receive window sent to the peer in window updates
+	 * - enlargedWindow, growth of the peer's receive window it has told us of
+	 */
+	private final Object resumeLock = new Object();
+	private ReplayBuffer replay;
+	private long txOffset = 0;
+	private long ackedOffset = 0;
+	private volatile long receivedOffset = 0;
+	private long creditedOffset = 0;
+	private long grantedWindow = 0;
+	private long enlargedWindow = 0;
+	private boolean suspended = false;
+	
+	/**
+	 * Growth of the receive window not yet sent to the peer, as the Stream isn't connected or
+	 * its link is suspended. Guarded by resumeLock.
+	 */
+	private int pendingWindowGrowth = 0;
+	private BufferData pendingDisconnect;
+	
+	/**
+	 * Early data read before the Stream is confirmed, credited to the peer once it is, as until
+	 * then the peer's Stream can't take a buffer increment. Guarded by resumeLock.
+	 */
+	private int pendingCredit = 0;
+
 	/**
 	 * Terminate stream if no activity for the streamTimeout value 
 	 */
@@ -147,8 +239,23 @@ public class Stream {
 				try {
 					var freedBytes = q.take();
 					
-					streamController.send(
-							StreamBuffers.createBufferIncrement(priority, remoteId, freedBytes));
+					// a resume must report credit in step with the increments sent
+					synchronized(resumeLock) {
+						// early data read before the Stream is confirmed
+						if ( state == StreamState.UNCONNECTED || state == StreamState.CONNECTING ) {
+							pendingCredit += freedBytes;
+							continue;
+						}
+						
+						// once a disconnect is under way the peer's id may be reused
+						if ( state != StreamState.CONNECTED )
+							continue;
+						
+						creditedOffset += freedBytes;
+						
+						streamController.send(this,
+								StreamBuffers.createBufferIncrement(priority, remoteId, freedBytes));
+					}
 					
 				} catch (InterruptedException e) {
 					e.printStackTrace();
@@ -161,7 +268,7 @@ public class Stream {
 
 	}
 
-	private void startReceiver(ArrayBlockingQueue<BufferData> peerIncoming) {
+	private void startReceiver(BlockingQueue<BufferData> peerIncoming) {
 		logger.entering(this.getClass().getName(), "startReceiver", peerIncoming);
 		
 		this.peerIncomingListener = Thread.ofVirtual().start(
@@ -172,9 +279,9 @@ public class Stream {
 
 	class Incoming implements Runnable {
 
-		private ArrayBlockingQueue<BufferData> peerIncoming;
+		private BlockingQueue<BufferData> peerIncoming;
 
-		public Incoming(ArrayBlockingQueue<BufferData> peerIncoming) {
+		public Incoming(BlockingQueue<BufferData> peerIncoming) {
 			this.peerIncoming = peerIncoming;
 		}
 
@@ -191,119 +298,61 @@ public class Stream {
 					
 					switch( command ) {
 					// what about connect requests .....
-					case StreamBuffers.CONNECT_CONFIRM -> {
-						logger.finer("CONNECT_CONFIRM");
-						/*
-						 * If we receive a Connect Confirm while not in a state
-						 * where we're waiting for one this is a sequence error
-						 * of some form. Only viable action is to terminate the 
-						 * Stream. 
-						 */
-						if ( state != StreamState.CONNECTING ) {
-							streamController.deregisterStream(localId);
-							state = StreamState.ERROR;
-							connectCompleted.complete(StreamConstants.UNEXPECTED_CONNECT_CONFIRM);
-							throw(new IllegalStateException("Invalid state change UC to CC"));
-						}
-
-						/*
-						 * We have received a Connect Confirm in response
-						 * to a Connect Request we sent. When we sent it
-						 * we told the peer what our localID is, and in 
-						 * response the peer tells it's localID, which to 
-						 * us, is it's remoteID we must provide whenever we 
-						 * send data to it.
-						 */
-
-						var cc = StreamBuffers.parseConnectConfirm(buffer);
-						Stream.this.setRemoteId(cc.remoteId());
-						state = StreamState.CONNECTED;
-						connectCompleted.complete(0);
-
-					}
-					case StreamBuffers.CONNECT_FAIL -> {
-						logger.finer("CONNECT_FAIL");
-						/*
-						 * We have received a Connect Fail in response
-						 * to a Connect Request we sent. The connection
-						 * has not been established and the state of 
-						 * this Stream is it is now unusable. We must 
-						 * terminate and inform the StreamController that
-						 * our slot and local id must be freed up.
-						 *
-						 * When we've been freed up we must exit the run loop
-						 */
-
-						streamController.deregisterStream(localId);
-						state = StreamState.CLOSED;
-						connectCompleted.complete(0);
-					}
+					case StreamBuffers.CONNECT_CONFIRM -> connectConfirmed(buffer);
+					
+					case StreamBuffers.CONNECT_FAIL -> connectFailed(buffer);
 
 					case StreamBuffers.DISCONNECT_REQUEST -> {
 						logger.finer("DISCONNECT_REQUEST");
-						/*
-						 * Need to shut down and send confirm
-						 */
-						state = StreamState.CLOSED;
-						
-						streamController.send(
-								StreamBuffers.createDisconnectConfirm(priority, remoteId));
 						
-						streamController.deregisterStream(localId);
+						synchronized(resumeLock) {
+							if ( state == StreamState.CLOSING ) {
+								/*
+								 * Both ends closed at once, each request stands as the
+								 * confirm of the other so neither is sent a confirm that
+								 * could arrive after the local id has been reused
+								 */
+								state = StreamState.CLOSED;
+								streamController.deregisterStream(localId);
+								disconnectCompleted.complete(0);
+								
+							} else {
+								/*
+								 * Need to shut down and send confirm
+								 */
+								state = StreamState.CLOSED;
+								
+								streamController.send(Stream.this,
+										StreamBuffers.createDisconnectConfirm(priority, remoteId));
+								
+								streamController.deregisterStream(localId);
+							}
+						}
 						
+						// readers see end of stream once they've read what arrived
+						inputStream.peerClosed();
 						halt_receiver = true;
 						
 					}
 
 					case StreamBuffers.DISCONNECT_CONFIRM -> {
-						logger.finer("DISCONNECT_CONFIRM");
-						/*
-						 * If we receive a Disconnect Confirm while not in a state
-						 * where we're waiting for one this is a sequence error
-						 * of some form. Only viable action is to terminate the 
-						 * Stream. 
-						 */
-						if ( state != StreamState.CLOSING ) {
-							streamController.deregisterStream(localId);
-							state = StreamState.ERROR;
-							disconnectCompleted.complete(StreamConstants.UNEXPECTED_DISCONNECT_CONFIRM);
-							throw(new IllegalStateException("Invalid state change DC and not Closing"));
-						}
-						
-						/*
-						 * We have received a Disconnect Confirmation so we can tidily
-						 * close down.
-						 */
-						streamController.deregisterStream(localId);
-						state = StreamState.CLOSED;	
-						disconnectCompleted.complete(0);
-						
+						disconnectConfirmed(buffer);
 						halt_receiver = true;
 					}
 					
-					case StreamBuffers.BUFFER_INCREMENT -> {
-						logger.finer("BUFFER_INCREMENT");
-						/* 
-						 * Should only receive these if the stream is established
-						 */
-						if ( state != StreamState.CONNECTED ) {
-							streamController.deregisterStream(localId);
-							state = StreamState.ERROR;
-							// disconnectCompleted.complete(StreamConstants.UNEXPECTED_BUFFER_INCREMENT);
-							throw(new IllegalStateException("Invalid state change DC and not Closing"));
-						}
-						
-						/*
-						 * We can increment the amount of data the remote is prepared to receive
-						 */
-						
-						// TODO: inform the outputstream, ie how much more it can now send
-						outputStream.increaseRemoteAvailable(StreamBuffers.parseBufferIncrement(buffer).size());
-						
-					}
+					case StreamBuffers.BUFFER_INCREMENT -> bufferIncremented(buffer);
 					
 					case StreamBuffers.DATA -> {
 						logger.finer("DATA");
+						/*
+						 * The peer may have sent more before our disconnect request
+						 * reached it, nobody is left to read it
+						 */
+						if ( state == StreamState.CLOSING ) {
+							logger.finer("DATA discarded while closing");
+							continue;
+						}
+						
 						/* 
 						 * Should only receive these if the stream is established
 						 */
@@ -333,7 +382,8 @@ public class Stream {
 				logger.finer("peerIncoming receiver tidily closed");
 				
 			} catch(InterruptedException ie) {
-				state = StreamState.CLOSED;
+				if ( state != StreamState.ERROR )
+					state = StreamState.CLOSED;
 				
 			} catch(IllegalStateException e) {
 				logger.log(Level.SEVERE,"stream terminated by exception");
@@ -351,6 +401,297 @@ public class Stream {
 
 	}
 
+	/**
+	 * Handles a control frame received on the control lane. These bypass the peerIncoming
+	 * queue so a window update or connect response is never stuck behind DATA waiting for
+	 * the consumer. Called on the dispatching thread, so must not block.
+	 * 
+	 * @param buffer the control frame
+	 */
+	protected void controlFromPeer(BufferData buffer) {
+		logger.entering(this.getClass().getName(), "controlFromPeer", buffer);
+		
+		try {
+			switch( StreamBuffers.getBufferType(buffer) ) {
+			case StreamBuffers.CONNECT_CONFIRM -> connectConfirmed(buffer);
+			case StreamBuffers.CONNECT_FAIL -> connectFailed(buffer);
+			case StreamBuffers.BUFFER_INCREMENT -> bufferIncremented(buffer);
+			case StreamBuffers.RESUME -> resumeFromPeer(buffer);
+			case StreamBuffers.WINDOW_UPDATE -> windowEnlarged(buffer);
+			case StreamBuffers.DISCONNECT_CONFIRM -> {
+				disconnectConfirmed(buffer);
+				
+				// nothing further to receive
+				if ( peerIncomingListener != null )
+					peerIncomingListener.interrupt();
+			}
+			default -> logger.severe("not a control frame, discarded");
+			}
+			
+		} catch(IllegalStateException e) {
+			logger.log(Level.SEVERE,"stream terminated by exception",e);
+			streamController.deregisterStream(localId);
+			state = StreamState.ERROR;
+			
+			if ( peerIncomingListener != null )
+				peerIncomingListener.interrupt();
+		}
+		
+		logger.exiting(this.getClass().getName(), "controlFromPeer");
+	}
+	
+	private void connectConfirmed(BufferData buffer) {
+		logger.finer("CONNECT_CONFIRM");
+		/*
+		 * If we receive a Connect Confirm while not in a state
+		 * where we're waiting for one this is a sequence error
+		 * of some form. Only viable action is to terminate the 
+		 * Stream. 
+		 */
+		if ( state != StreamState.CONNECTING ) {
+			streamController.deregisterStream(localId);
+			state = StreamState.ERROR;
+			connectCompleted.complete(StreamConstants.UNEXPECTED_CONNECT_CONFIRM);
+			throw(new IllegalStateException("Invalid state change UC to CC"));
+		}
+
+		/*
+		 * We have received a Connect Confirm in response
+		 * to a Connect Request we sent. When we sent it
+		 * we told the peer what our localID is, and in 
+		 * response the peer tells it's localID, which to 
+		 * us, is it's remoteID we must provide whenever we 
+		 * send data to it.
+		 */
+
+		var cc = StreamBuffers.parseConnectConfirm(buffer);
+		setRemoteId(cc.remoteId());
+		state = StreamState.CONNECTED;
+		sendWindowGrowth();
+		connectCompleted.complete(0);
+	}
+	
+	private void connectFailed(BufferData buffer) {
+		logger.finer("CONNECT_FAIL");
+		/*
+		 * We have received a Connect Fail in response
+		 * to a Connect Request we sent. The connection
+		 * has not been established and the state of 
+		 * this Stream is it is now unusable. We must 
+		 * terminate and inform the StreamController that
+		 * our slot and local id must be freed up.
+		 *
+		 * When we've been freed up we must exit the run loop
+		 */
+
+		var connectFail = StreamBuffers.parseConnectFail(buffer);
+		
+		streamController.deregisterStream(localId);
+		state = StreamState.CLOSED;
+		connectCompleted.complete(connectFail.errorCode());
+	}
+	
+	private void disconnectConfirmed(BufferData buffer) {
+		logger.finer("DISCONNECT_CONFIRM");
+		/*
+		 * If we receive a Disconnect Confirm while not in a state
+		 * where we're waiting for one this is a sequence error
+		 * of some form. Only viable action is to terminate the 
+		 * Stream. 
+		 */
+		if ( state != StreamState.CLOSING ) {
+			streamController.deregisterStream(localId);
+			state = StreamState.ERROR;
+			disconnectCompleted.complete(StreamConstants.UNEXPECTED_DISCONNECT_CONFIRM);
+			throw(new IllegalStateException("Invalid state change DC and not Closing"));
+		}
+		
+		/*
+		 * We have received a Disconnect Confirmation so we can tidily
+		 * close down.
+		 */
+		streamController.deregisterStream(localId);
+		state = StreamState.CLOSED;	
+		disconnectCompleted.complete(0);
+	}
+	
+	private void bufferIncremented(BufferData buffer) {
+		logger.finer("BUFFER_INCREMENT");
+		/*
+		 * The peer may still be freeing space it read before our disconnect
+		 * request reached it, which is of no further use to us
+		 */
+		if ( state == StreamState.CLOSING || state == StreamState.CLOSED )
+			return;
+		
+		/* 
+		 * Should only receive these if the stream is established
+		 */
+		if ( state != StreamState.CONNECTED ) {
+			streamController.deregisterStream(localId);
+			state = StreamState.ERROR;
+			// disconnectCompleted.complete(StreamConstants.UNEXPECTED_BUFFER_INCREMENT);
+			throw(new IllegalStateException("Invalid state change DC and not Closing"));
+		}
+		
+		/*
+		 * We can increment the amount of data the remote is prepared to receive
+		 */
+		var size = StreamBuffers.parseBufferIncrement(buffer).size();
+		
+		synchronized(resumeLock) {
+			ackedOffset += size;
+			
+			if ( replay != null )
+				replay.release(size);
+		}
+		
+		outputStream.increaseRemoteAvailable(size);
+	}
+
+	private void windowEnlarged(BufferData buffer) {
+		logger.finer("WINDOW_UPDATE");
+		
+		if ( state == StreamState.CLOSING || state == StreamState.CLOSED )
+			return;
+		
+		if ( state != StreamState.CONNECTED ) {
+			streamController.deregisterStream(localId);
+			state = StreamState.ERROR;
+			throw(new IllegalStateException("Invalid state to receive a window update"));
+		}
+		
+		// unlike a buffer increment nothing is acknowledged, so nothing is released from replay
+		var size = StreamBuffers.parseWindowUpdate(buffer).size();
+		
+		synchronized(resumeLock) {
+			enlargedWindow += size;
+		}
+		
+		outputStream.enlargeRemoteWindow(size);
+	}
+
+	/**
+	 * Called by the StreamController with the data that came with the connect request
+	 * @param earlyData
+	 */
+	protected void receivedEarlyData(byte[] earlyData) {
+		var buffer = BufferData.create(earlyData.length);
+		buffer.write(earlyData);
+		
+		receivedFromPeer(earlyData.length);
+		inputStream.writeFromPeer(new TransmitData(priority, localId, earlyData.length, buffer));
+	}
+
+	/**
+	 * Called by the StreamController for each DATA buffer received for this Stream
+	 * @param size bytes of data received
+	 */
+	protected void receivedFromPeer(int size) {
+		receivedOffset += size;
+	}
+
+	/**
+	 * The link carrying this Stream has dropped. DATA written from now on is retained for
+	 * replay but not sent until the peer tells us where to resume from.
+	 */
+	protected void suspend() {
+		logger.fine("Stream "+localId+" suspended");
+		
+		synchronized(resumeLock) {
+			suspended = true;
+		}
+	}
+
+	public boolean isSuspended() {
+		synchronized(resumeLock) {
+			return suspended;
+		}
+	}
+
+	/**
+	 * The link carrying this Stream has returned. Tells the peer how much of its DATA we
+	 * received, how much we've credited it and how far our window has grown, so it can replay 
+	 * what was lost.
+	 */
+	protected void sendResume() {
+		logger.fine("Stream "+localId+" sending resume");
+		
+		synchronized(resumeLock) {
+			streamController.send(this,
+					StreamBuffers.createResume(priority, remoteId, receivedOffset, creditedOffset, grantedWindow));
+		}
+	}
+
+	/**
+	 * The peer has told us where to resume from. Restores any credit or window growth lost 
+	 * with the link, replays any DATA lost with it, then resumes sending.
+	 * 
+	 * @param buffer RESUME frame
+	 */
+	private void resumeFromPeer(BufferData buffer) {
+		logger.finer("RESUME");
+		
+		var resume = StreamBuffers.parseResume(buffer);
+		int lostCredit;
+		int lostGrowth;
+		
+		synchronized(resumeLock) {
+			if ( replay == null ) 
+				throw(new IllegalStateException("RESUME on a Stream that can't resume"));
+			
+			// offsets are sent modulo 2^32, never more than a window apart from ours
+			var credited = ackedOffset + (resume.creditedOffset() - (int) ackedOffset);
+			var received = txOffset + (resume.receivedOffset() - (int) txOffset);
+			
+			if ( credited < ackedOffset || received < credited || received > txOffset )
+				throw(new IllegalStateException("RESUME offsets out of range"));
+			
+			lostCredit = (int) (credited - ackedOffset);
+			if ( lostCredit > 0 ) {
+				ackedOffset = credited;
+				replay.release(lostCredit);
+			}
+			
+			// window updates lost with the link
+			var enlarged = enlargedWindow + (resume.windowGrowth() - (int) enlargedWindow);
+			if ( enlarged < enlargedWindow || enlarged - enlargedWindow > MAX_WINDOW )
+				throw(new IllegalStateException("RESUME window out of range"));
+			
+			lostGrowth = (int) (enlarged - enlargedWindow);
+			if ( lostGrowth > 0 )
+				enlargedWindow = enlarged;
+			
+			var lost = replay.copy((int) (received - ackedOffset));
+			logger.fine("Stream "+localId+" replaying "+lost.length+" bytes");
+			
+			var lostBuffer = ByteBuffer.wrap(lost);
+			while( lostBuffer.hasRemaining() ) {
+				var size = Math.min(lostBuffer.remaining(), MAX_REPLAY_FRAME);
+				streamController.send(this, 
+						StreamBuffers.createTransmitData(priority, remoteId, lostBuffer, size));
+			}
+			
+			suspended = false;
+			sendWindowGrowth();
+			
+			if ( pendingDisconnect != null ) {
+				streamController.send(this, pendingDisconnect);
+				pendingDisconnect = null;
+			}
+		}
+		
+		/*
+		 * Outside the resumeLock, as the sender takes the output stream's lock and then the
+		 * resumeLock to send, the same order would deadlock a writer racing the RESUME
+		 */
+		if ( lostCredit > 0 )
+			outputStream.increaseRemoteAvailable(lostCredit);
+		
+		if ( lostGrowth > 0 )
+			outputStream.enlargeRemoteWindow(lostGrowth);
+	}
+
 	/**
 	 * Connects this stream to the provided endpoint. Blocks calling thread until
 	 * connection completes or times out.
@@ -362,15 +703,67 @@ public class Stream {
 	 */
 	public void connect(SocketAddress endpoint, int timeout) 
 			throws IOException, LimitExceededException {
+		connect(endpoint, timeout, null);
+	}
+
+	/**
+	 * Connects, sending the first data for the peer with the connect request rather than after
+	 * the confirm, so a request can be answered a round trip sooner. The early data counts against
+	 * the peer's initial window and is discarded by the peer if the connect fails.
+	 * 
+	 * @param endpoint
+	 * @param timeout overrides the default stream timeout during connection
+	 * @param earlyData up to {@link #MAX_EARLY_DATA} bytes, or null
+	 * @throws IOException
+	 * @throws LimitExceededException
+	 */
+	public void connect(SocketAddress endpoint, int timeout, byte[] earlyData) 
+			throws IOException, LimitExceededException {
+
+		var connected = connectAsync(endpoint, timeout, earlyData);
+		
+		try {
+			connected.get();
+
+		} catch (InterruptedException e) {
+			state = StreamState.ERROR;
+			streamController.deregisterStream(localId);
+			throw(new IOException("error connecting stream",e));
+
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof IOException ioe )
+				throw(ioe);
+			
+			throw(new IOException("error connecting stream",e.getCause()));
+		}
+	}
+
+	/**
+	 * Sends the connect request without waiting for the peer to answer, for callers that mustn't
+	 * block, see {@link MuxAsynchronousSocketChannel}. 
+	 * 
+	 * @param endpoint
+	 * @param timeout overrides the default stream timeout during connection
+	 * @param earlyData up to {@link #MAX_EARLY_DATA} bytes, or null
+	 * @return completed once connected, or exceptionally with an IOException, a 
+	 * SocketTimeoutException if the peer doesn't answer in time
+	 * @throws IOException if the connect request can't be sent
+	 */
+	public CompletableFuture<Void> connectAsync(SocketAddress endpoint, int timeout, byte[] earlyData) 
+			throws IOException {
 
 		logger.fine("connect");
 		
 		if ( state != StreamState.UNCONNECTED )
 			throw(new IOException("Invalid state transition - Stream must be in an unconnected state"));
 
+		if ( earlyData != null && earlyData.length > MAX_EARLY_DATA )
+			throw(new IllegalArgumentException("early data exceeds "+MAX_EARLY_DATA+" bytes"));
+
 		if ( endpoint instanceof InetSocketAddress ) {
 			var ep = (InetSocketAddress) endpoint;
 			setStreamPort(ep.getPort());
+			setGroup(streamController.groupFor(streamPort));
 		} else
 			throw(new IOException("Unsupported endpoint type - only InetSocketAddress possible"));
 		
@@ -382,28 +775,49 @@ public class Stream {
 			// become able to receive any responses
 			startReceiver(peerIncoming);
 
-			streamController.send(StreamBuffers.createConnectRequest(priority, this.getLocalId(), streamPort));
-
-			int result = connectCompleted.get(
-					timeout > 0 ? timeout : getStreamTimeout(), TimeUnit.MILLISECONDS);
-			
-			if ( result != 0 || state != StreamState.CONNECTED )
-				throw(new IOException("error connecting Stream"));
+			if ( earlyData != null && earlyData.length > 0 ) {
+				// sent as though written once connected
+				synchronized(resumeLock) {
+					if ( replay != null ) {
+						replay.append(earlyData, 0, earlyData.length);
+						txOffset += earlyData.length;
+					}
+				}
+				
+				outputStream.reduceRemoteAvailable(earlyData.length);
+			}
 
-		} catch (InterruptedException | ExecutionException | TimeoutException e) {
-			state = StreamState.ERROR;
-			streamController.deregisterStream(localId);
-			
-			if ( e instanceof TimeoutException)
-				throw(new SocketTimeoutException());
-			
-			throw(new IOException("error connecting stream",e));
+			streamController.send(this, 
+					StreamBuffers.createConnectRequest(priority, this.getLocalId(), streamPort, destination, earlyData));
 
 		} catch (LimitExceededException e) {
 			state = StreamState.ERROR;
 			streamController.deregisterStream(localId);
 			throw(new IOException("stream limit reached",e));
 		}
+
+		// a copy, so timing out leaves the outcome the peer sends undisturbed
+		return connectCompleted.copy()
+				.orTimeout(timeout > 0 ? timeout : getStreamTimeout(), TimeUnit.MILLISECONDS)
+				.handle((result, e) -> {
+					if ( e != null ) {
+						state = StreamState.ERROR;
+						streamController.deregisterStream(localId);
+						
+						var cause = e instanceof CompletionException ? e.getCause() : e;
+						throw(new CompletionException(cause instanceof TimeoutException
+								? new SocketTimeoutException()
+								: new IOException("error connecting stream",cause)));
+					}
+					
+					if ( result != 0 )
+						throw(new CompletionException(new StreamConnectException(result)));
+					
+					if ( state != StreamState.CONNECTED )
+						throw(new CompletionException(new IOException("error connecting Stream")));
+					
+					return null;
+				});
 	}
 
 	public void connect(SocketAddress endpoint) throws IOException, LimitExceededException {
@@ -419,27 +833,89 @@ public class Stream {
 	public void close() throws IOException {
 		logger.fine("close");
 		
+		try {
+			closeAsync().get();
+			
+		} catch (InterruptedException e) {
+			state = StreamState.ERROR;
+			streamController.deregisterStream(localId);
+			throw(new IOException("error disconnecting stream",e));
+			
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof IOException ioe )
+				throw(ioe);
+			
+			throw(new IOException("error disconnecting stream",e.getCause()));
+		}
+	}
+	
+	/**
+	 * Sends the disconnect request without waiting for the peer to confirm, for callers that
+	 * mustn't block, see {@link MuxSocketChannel}. The Stream is tidied up once the peer confirms
+	 * or the stream timeout passes, whether or not anyone waits.
+	 * 
+	 * @return completes once the peer has confirmed, or exceptionally with a SocketTimeoutException
+	 * if it doesn't in time
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		logger.fine("closeAsync");
+		
 		// send a disconnect request message
 		// await a disconnect confirm or timeout
-		state = StreamState.CLOSING;
 		
-		streamController.send(
-				StreamBuffers.createDisconnectRequest(priority, remoteId));
+		// sent in band with our data, so it can't overtake any still queued
+		var request = StreamBuffers.createDisconnectRequest(priority, remoteId);
 		
-		try {
-			int result = disconnectCompleted.get(getStreamTimeout(), TimeUnit.MILLISECONDS);
-			
-			if ( result != 0 || state != StreamState.CLOSED )
-				throw(new IOException("error disconnecting Stream "+state.toString()));
+		synchronized(resumeLock) {
+			// the peer closed first, or we've already closed
+			if ( state == StreamState.CLOSED || state == StreamState.ERROR ) {
+				closeInput();
+				return CompletableFuture.completedFuture(null);
+			}
 			
-		} catch (InterruptedException | ExecutionException | TimeoutException e) {
-			state = StreamState.ERROR;
-			streamController.deregisterStream(localId);
+			// never connected, e.g. the Stream of a listening socket, there's no peer to tell
+			if ( state == StreamState.UNCONNECTED ) {
+				stop();
+				return CompletableFuture.completedFuture(null);
+			}
 			
-			if ( e instanceof TimeoutException) 
-				throw(new SocketTimeoutException());
+			state = StreamState.CLOSING;
 			
-			throw(new IOException("error disconnecting stream",e));
+			// held back until any DATA lost with the link has been replayed
+			if ( suspended )
+				pendingDisconnect = request;
+			else
+				streamController.send(this, request, latencyBudget > 0 ? System.currentTimeMillis() + latencyBudget : 0);
+		}
+		
+		return disconnectCompleted.copy()
+				.orTimeout(getStreamTimeout(), TimeUnit.MILLISECONDS)
+				.handle((result, e) -> {
+					// wake anyone still reading
+					closeInput();
+					
+					if ( e != null ) {
+						state = StreamState.ERROR;
+						streamController.deregisterStream(localId);
+						
+						var cause = e instanceof CompletionException ? e.getCause() : e;
+						throw(new CompletionException(cause instanceof TimeoutException
+								? new SocketTimeoutException()
+								: new IOException("error disconnecting stream",cause)));
+					}
+					
+					if ( result != 0 || state != StreamState.CLOSED )
+						throw(new CompletionException(new IOException("error disconnecting Stream "+state.toString())));
+					
+					return null;
+				});
+	}
+	
+	private void closeInput() {
+		try {
+			inputStream.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "input close failed", e);
 		}
 	}
 	
@@ -449,7 +925,10 @@ public class Stream {
 	protected void stop() {
 		state = StreamState.CLOSED;
 		this.freedBytesListener.interrupt();
-		this.peerIncomingListener.interrupt();
+		
+		// not started until the Stream begins connecting
+		if ( this.peerIncomingListener != null )
+			this.peerIncomingListener.interrupt();
 		
 		try {
 			this.inputStream.close();
@@ -459,6 +938,18 @@ public class Stream {
 		}
 	}
 	
+	/**
+	 * The peer has sent more than the Stream can queue, so it isn't keeping to the window.
+	 * Dropping a frame would silently lose data from the Stream, so it ends in error instead.
+	 */
+	protected void overrunByPeer() {
+		logger.severe("Stream "+localId+" overrun by the peer");
+		
+		streamController.deregisterStream(localId);
+		stop();
+		state = StreamState.ERROR;
+	}
+	
 	/**
 	 * Returns the closed state of the Stream
 	 * 
@@ -469,11 +960,76 @@ public class Stream {
 	}
 	
 	protected void sendData(ByteBuffer buffer, int size) {
-		streamController.send(StreamBuffers.createTransmitData(priority, remoteId, buffer, size));
+		synchronized(resumeLock) {
+			// the peer has disconnected, its id may already belong to another Stream
+			if ( state == StreamState.CLOSED || state == StreamState.ERROR ) {
+				logger.fine("Stream closed, "+size+" bytes discarded");
+				buffer.position(buffer.position() + size);
+				return;
+			}
+			
+			if ( replay != null ) {
+				replay.append(buffer.array(), buffer.position(), size);
+				txOffset += size;
+				
+				// retained, sent when the peer says where to resume from
+				if ( suspended ) {
+					buffer.position(buffer.position() + size);
+					return;
+				}
+			}
+			
+			var data = StreamBuffers.createTransmitData(priority, remoteId, buffer, size);
+			
+			streamController.send(this, data, latencyBudget > 0 ? outputStream.getPendingSince() + latencyBudget : 0);
+		}
 	}
 	
-	protected void setConnected() {
-		this.state = StreamState.CONNECTED;
+	/**
+	 * Connects a Stream accepted from the peer, telling the peer it's connected, then crediting
+	 * any early data already read and growing the window if that's been asked for
+	 */
+	protected void sendConnectConfirm() {
+		synchronized(resumeLock) {
+			state = StreamState.CONNECTED;
+			streamController.send(this, StreamBuffers.createConnectConfirm(priority, remoteId, localId));
+			
+			if ( pendingCredit > 0 ) {
+				creditedOffset += pendingCredit;
+				streamController.send(this, StreamBuffers.createBufferIncrement(priority, remoteId, pendingCredit));
+				pendingCredit = 0;
+			}
+		}
+		
+		sendWindowGrowth();
+	}
+
+	/**
+	 * Confirms a Stream accepted with a destination, once the destination has been reached. The
+	 * peer remains blocked in connect until then.
+	 * 
+	 * @throws IOException if the Stream is not awaiting confirmation
+	 */
+	public void confirmConnect() throws IOException {
+		if ( state != StreamState.CONNECTING )
+			throw(new IOException("Stream is not awaiting confirmation"));
+		
+		sendConnectConfirm();
+	}
+
+	/**
+	 * Refuses a Stream accepted with a destination, the peer's connect fails
+	 * 
+	 * @param errorCode sent to the peer, see {@link StreamConstants}
+	 * @throws IOException if the Stream is not awaiting confirmation
+	 */
+	public void rejectConnect(int errorCode) throws IOException {
+		if ( state != StreamState.CONNECTING )
+			throw(new IOException("Stream is not awaiting confirmation"));
+		
+		streamController.send(this, StreamBuffers.createConnectFail(priority, remoteId, errorCode));
+		streamController.deregisterStream(localId);
+		stop();
 	}
 
 	public int getLocalId() {
@@ -500,11 +1056,11 @@ public class Stream {
 		this.priority = priority;
 	}
 
-	public ArrayBlockingQueue<BufferData> getPeerIncoming() {
+	public BlockingQueue<BufferData> getPeerIncoming() {
 		return peerIncoming;
 	}
 
-	public void setPeerIncoming(ArrayBlockingQueue<BufferData> peerIncoming) {
+	public void setPeerIncoming(BlockingQueue<BufferData> peerIncoming) {
 		this.peerIncoming = peerIncoming;
 	}
 
@@ -516,6 +1072,18 @@ public class Stream {
 		this.streamPort = streamPort;
 	}
 
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @param destination host:port the peer is asked to relay this Stream to when it connects,
+	 * null for the Stream to end at the peer's StreamServer
+	 */
+	public void setDestination(String destination) {
+		this.destination = destination;
+	}
+
 	public StreamController getStreamController() {
 		return streamController;
 	}
@@ -529,6 +1097,55 @@ public class Stream {
 		outputStream = new StreamOutputStream(4096, this);
 	}
 
+	public long getLatencyBudget() {
+		return latencyBudget;
+	}
+
+	/**
+	 * Sets a latency budget for data written to this Stream. Each write should be on the
+	 * wire within the budget of being written, the transport schedules such data earliest 
+	 * deadline first within a reserved share of the link.
+	 * 
+	 * @param latencyBudget in millis, 0 to schedule by priority alone
+	 */
+	public void setLatencyBudget(long latencyBudget) {
+		if ( latencyBudget < 0 )
+			throw(new IllegalArgumentException("latency budget must not be negative"));
+		
+		this.latencyBudget = latencyBudget;
+	}
+
+	public MessageBroker getLink() {
+		return link;
+	}
+
+	/**
+	 * Set by the StreamController when placing this Stream on a link
+	 * @param link
+	 */
+	protected void setLink(MessageBroker link) {
+		this.link = link;
+		
+		// retain unacknowledged data if the link can resume
+		synchronized(resumeLock) {
+			replay = link != null && link.getResumeTimeout() > 0 ? new ReplayBuffer(INITIAL_WINDOW) : null;
+		}
+	}
+
+	public int getGroup() {
+		return group;
+	}
+
+	/**
+	 * Places this Stream in a bandwidth group on the underlying transport. Priority then
+	 * orders this Stream against others in the same group.
+	 * 
+	 * @param group
+	 */
+	public void setGroup(int group) {
+		this.group = group;
+	}
+
 	public long getStreamTimeout() {
 		return streamTimeout;
 	}
@@ -541,8 +1158,98 @@ public class Stream {
 		return inputStream;
 	}
 
+	/**
+	 * @param readinessListener run whenever the Stream may have become readable or writable,
+	 * or has closed, e.g. to wake a selector. Must not block.
+	 */
+	public void setReadinessListener(Runnable readinessListener) {
+		inputStream.setReadinessListener(readinessListener);
+		outputStream.setReadinessListener(readinessListener);
+	}
+
 	public OutputStream getOutputStream() {
 		return outputStream;
 	}
 
+	/**
+	 * Enlarges the receive window, the most the peer can send before what's been sent is read.
+	 * The window only grows, as the peer may already be sending into it, and the peer is told 
+	 * once the Stream is connected.
+	 * 
+	 * @param size bytes, up to {@link #MAX_WINDOW}
+	 * @return the window in effect
+	 */
+	public int setReceiveWindow(int size) {
+		var current = inputStream.getCapacity();
+		var window = inputStream.growCapacity(Math.min(size, MAX_WINDOW));
+		
+		if ( window > current ) {
+			synchronized(resumeLock) {
+				pendingWindowGrowth += window - current;
+				sendWindowGrowth();
+			}
+		}
+		
+		return window;
+	}
+
+	public int getReceiveWindow() {
+		return inputStream.getCapacity();
+	}
+
+	/**
+	 * Resizes the transit buffer data is written into while it waits to be sent, which bounds
+	 * how much can be written without blocking. Set after the StreamController.
+	 * 
+	 * @param size bytes, between {@link #MIN_SEND_BUFFER} and {@link #MAX_SEND_BUFFER}
+	 * @return the size in effect
+	 */
+	public int setSendBuffer(int size) {
+		return outputStream.setCapacity(Math.max(MIN_SEND_BUFFER, Math.min(size, MAX_SEND_BUFFER)));
+	}
+
+	public int getSendBuffer() {
+		return outputStream.getCapacity();
+	}
+
+	/**
+	 * @param noDelay true to send writes as soon as the peer's window allows, false to coalesce
+	 * small writes while earlier data is unacknowledged. Set after the StreamController.
+	 */
+	public void setNoDelay(boolean noDelay) {
+		outputStream.setNoDelay(noDelay);
+	}
+
+	public boolean isNoDelay() {
+		return outputStream.isNoDelay();
+	}
+
+	/**
+	 * @param readTimeout millis a read waits for data before throwing a SocketTimeoutException,
+	 * 0 to wait indefinitely
+	 */
+	public void setReadTimeout(int readTimeout) {
+		inputStream.setReadTimeout(readTimeout);
+	}
+
+	public int getReadTimeout() {
+		return inputStream.getReadTimeout();
+	}
+
+	/**
+	 * Tells the peer how much the receive window has grown, once it can be told
+	 */
+	private void sendWindowGrowth() {
+		synchronized(resumeLock) {
+			if ( pendingWindowGrowth == 0 || state != StreamState.CONNECTED || suspended )
+				return;
+			
+			// counted as granted once queued, a RESUME makes good the growth if the link drops first
+			streamController.send(this, 
+					StreamBuffers.createWindowUpdate(priority, remoteId, pendingWindowGrowth));
+			grantedWindow += pendingWindowGrowth;
+			pendingWindowGrowth = 0;
+		}
+	}
+
 }
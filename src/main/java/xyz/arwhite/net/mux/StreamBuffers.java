@@ -1,12 +1,14 @@
 package xyz.arwhite.net.mux;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import io.helidon.common.buffers.BufferData;
 import xyz.arwhite.net.mux.StreamController.BufferIncrement;
 import xyz.arwhite.net.mux.StreamController.ConnectConfirm;
 import xyz.arwhite.net.mux.StreamController.ConnectFail;
 import xyz.arwhite.net.mux.StreamController.ConnectRequest;
+import xyz.arwhite.net.mux.StreamController.Resume;
 import xyz.arwhite.net.mux.StreamController.TransmitData;
 
 public class StreamBuffers {
@@ -22,6 +24,11 @@ public class StreamBuffers {
 	 * ===============
 	 * Header - buffer type set to CONNECT_REQUEST
 	 * Int - stream port being connected to
+	 * optionally, asking the peer to relay the Stream onwards
+	 * Int16 - length of the destination, 0 if there's none but there is early data
+	 * Bytes - destination, host:port UTF-8
+	 * optionally, following the destination
+	 * Bytes - early data, the first bytes written to the Stream, up to Stream.MAX_EARLY_DATA
 	 * 
 	 * Connect Confirm
 	 * ===============
@@ -33,6 +40,38 @@ public class StreamBuffers {
 	 * Header - buffer type set to CONNECT_FAIL
 	 * Int - error reason code
 	 * 
+	 * Resume
+	 * ======
+	 * Header - buffer type set to RESUME
+	 * Int32 - bytes of DATA received on the Stream, modulo 2^32
+	 * Int32 - bytes credited to the peer by buffer increments, modulo 2^32
+	 * Int32 - bytes the receive window has grown by in window updates, modulo 2^32
+	 * 
+	 * Window Update
+	 * =============
+	 * Header - buffer type set to WINDOW_UPDATE
+	 * Int16 - bytes the receive window has grown by, unlike a buffer increment this credits no
+	 * DATA, so nothing held for replay is released
+	 * 
+	 * Ping / Pong
+	 * ===========
+	 * Header - priority CONTROL_PRIORITY, stream ID 0, buffer type set to PING or PONG
+	 * Int32 - identifies the ping, echoed in the pong
+	 * 
+	 * Hello
+	 * =====
+	 * Header - priority CONTROL_PRIORITY, stream ID 0, buffer type set to HELLO
+	 * Int16 - length of the identity
+	 * Bytes - identity of the peer, UTF-8
+	 * 
+	 * Link Event
+	 * ==========
+	 * Never sent to the peer, passed from a MessageBroker to the StreamController
+	 * Byte - priority 0
+	 * Byte - 0
+	 * Byte - event, LINK_SUSPENDED or LINK_RESUMED
+	 * A single byte of priority 0 is a shutdown, the link will not return
+	 * 
 	 */
 
 	public static final byte CONNECT_REQUEST = 1;
@@ -42,8 +81,28 @@ public class StreamBuffers {
 	public static final byte DISCONNECT_CONFIRM = 5;
 	public static final byte DATA = 6;
 	public static final byte BUFFER_INCREMENT = 7;
+	public static final byte RESUME = 8;
+	public static final byte PING = 9;
+	public static final byte PONG = 10;
+	public static final byte HELLO = 11;
+	public static final byte WINDOW_UPDATE = 12;
 	public static final byte PRIORITY_SHUTDOWN = 0;
 
+	/**
+	 * Link events, carried by priority 0 buffers
+	 */
+	public static final byte LINK_SHUTDOWN = 0;
+	public static final byte LINK_SUSPENDED = 1;
+	public static final byte LINK_RESUMED = 2;
+
+	/**
+	 * Priority used to queue control frames, regardless of the priority of the Stream they belong
+	 * to. Control frames travel on their own lane so window updates and connection state changes
+	 * are never held behind bulk DATA. Streams may use this priority too, so queued control frames
+	 * are marked as control in their {@link PriorityQueueEntry} to keep them ahead of DATA.
+	 */
+	public static final byte CONTROL_PRIORITY = 1;
+
 	/**
 	 * Inspects the the first byte to see if the priority is 0. As no stream can have a priority 
 	 * of 0 this indicates that the underlying transport is closing down. No more data can be
@@ -60,17 +119,112 @@ public class StreamBuffers {
 		return buffer.get(2);
 	}
 
+	/**
+	 * Identifies frames that belong on the control lane. DISCONNECT_REQUEST is deliberately
+	 * excluded, it must stay ordered behind any DATA already queued for the Stream otherwise
+	 * the peer would close the Stream before receiving the tail of the data. DISCONNECT_CONFIRM
+	 * is excluded for the same reason in the other direction, once it arrives the Stream's
+	 * local id can be reused, so no DATA for the old Stream may follow it. A CONNECT_REQUEST
+	 * carrying early data is data as much as control, so it waits its turn on the data lane
+	 * rather than holding up other Streams' control frames. Nothing else is sent on the Stream
+	 * until the peer confirms it, so nothing can overtake it.
+	 * 
+	 * @param buffer
+	 * @return true if the buffer is a control frame
+	 */
+	public static boolean isControlFrame(BufferData buffer) {
+		if ( buffer.available() < 3 || buffer.get(0) == PRIORITY_SHUTDOWN )
+			return false;
+		
+		return switch( buffer.get(2) ) {
+		case CONNECT_REQUEST -> !hasEarlyData(buffer);
+		case CONNECT_CONFIRM, CONNECT_FAIL, BUFFER_INCREMENT, RESUME, PING, PONG, HELLO, WINDOW_UPDATE -> true;
+		default -> false;
+		};
+	}
+	
+	/**
+	 * @param buffer a CONNECT_REQUEST
+	 * @return true if early data follows the destination
+	 */
+	private static boolean hasEarlyData(BufferData buffer) {
+		if ( buffer.available() < 7 )
+			return false;
+		
+		var destination = ((buffer.get(5) & 0xff) << 8) | (buffer.get(6) & 0xff);
+		return buffer.available() > 7 + destination;
+	}
+
+	/**
+	 * Creates the priority 0 buffer a MessageBroker uses to tell the StreamController about
+	 * a change in the state of the link
+	 * 
+	 * @param event LINK_SUSPENDED or LINK_RESUMED, LINK_SHUTDOWN creates the single byte shutdown
+	 * @return
+	 */
+	public static BufferData createLinkEvent(byte event) {
+		
+		if ( event == LINK_SHUTDOWN ) {
+			var shutdown = BufferData.create(1);
+			shutdown.writeInt8(PRIORITY_SHUTDOWN);
+			return shutdown;
+		}
+		
+		var linkEvent = BufferData.create(3);
+		linkEvent.writeInt8(PRIORITY_SHUTDOWN);
+		linkEvent.writeInt8(0);
+		linkEvent.writeInt8(event);
+		return linkEvent;
+	}
+
+	/**
+	 * @param buffer a buffer of priority 0
+	 * @return the link event it carries
+	 */
+	public static int getLinkEvent(BufferData buffer) {
+		if ( buffer.available() < 3 )
+			return LINK_SHUTDOWN;
+		
+		return buffer.get(2);
+	}
+
 	public static int getStreamId(BufferData buffer) {
 		return buffer.get(1);
 	}
 
 	public static BufferData createConnectRequest(int priority, int localStreamId, int port) {
+		return createConnectRequest(priority, localStreamId, port, null, null);
+	}
+
+	/**
+	 * @param destination host:port the peer is asked to relay the Stream to, or null
+	 * @param earlyData delivered to the Stream as soon as the peer accepts it, or null
+	 * @return
+	 */
+	public static BufferData createConnectRequest(int priority, int localStreamId, int port, 
+			String destination, byte[] earlyData) {
+
+		var dest = destination == null ? new byte[0] : destination.getBytes(StandardCharsets.UTF_8);
+		if ( dest.length > Short.MAX_VALUE )
+			throw(new IllegalArgumentException("destination too long"));
 
-		var connectRequest = BufferData.create(5);
+		var early = earlyData == null ? 0 : earlyData.length;
+		var extended = destination != null || early > 0;
+
+		var connectRequest = BufferData.create(5 + (extended ? 2 + dest.length : 0) + early);
 		connectRequest.writeInt8(priority);
 		connectRequest.writeInt8(localStreamId);
 		connectRequest.writeInt8(CONNECT_REQUEST);
 		connectRequest.writeInt16(port);
+
+		if ( extended ) {
+			connectRequest.writeInt16(dest.length);
+			connectRequest.write(dest);
+		}
+
+		if ( early > 0 )
+			connectRequest.write(earlyData);
+
 		return connectRequest;
 	}
 
@@ -80,9 +234,26 @@ public class StreamBuffers {
 		var remoteStreamId = buffer.read();
 		var command = buffer.read();
 		var port = buffer.readInt16();
+
+		String destination = null;
+		byte[] earlyData = null;
+
+		if ( buffer.available() >= 2 ) {
+			var dest = new byte[buffer.readInt16()];
+			buffer.read(dest);
+
+			if ( dest.length > 0 )
+				destination = new String(dest, StandardCharsets.UTF_8);
+
+			if ( buffer.available() > 0 ) {
+				earlyData = new byte[buffer.available()];
+				buffer.read(earlyData);
+			}
+		}
+
 		buffer.rewind();
 
-		return new ConnectRequest(priority, remoteStreamId, port, buffer);
+		return new ConnectRequest(priority, remoteStreamId, port, destination, earlyData, buffer);
 	}
 
 	public static BufferData createConnectConfirm(int priority, int remoteStreamId, int localStreamId) {
@@ -169,6 +340,128 @@ public class StreamBuffers {
 	
 	}
 
+	public static BufferData createWindowUpdate(int priority, int remoteStreamId, int size) {
+
+		var windowUpdate = BufferData.create(5);
+		windowUpdate.writeInt8(priority);
+		windowUpdate.writeInt8(remoteStreamId);
+		windowUpdate.writeInt8(WINDOW_UPDATE);
+		windowUpdate.writeInt16(size);
+		return windowUpdate;
+	}
+	
+	/**
+	 * @param buffer WINDOW_UPDATE frame, laid out as a buffer increment
+	 * @return
+	 */
+	public static BufferIncrement parseWindowUpdate(BufferData buffer) {
+		return parseBufferIncrement(buffer);
+	}
+
+	public static BufferData createResume(int priority, int remoteStreamId, long receivedOffset, long creditedOffset, 
+			long windowGrowth) {
+
+		var resume = BufferData.create(15);
+		resume.writeInt8(priority);
+		resume.writeInt8(remoteStreamId);
+		resume.writeInt8(RESUME);
+		resume.writeInt32((int) receivedOffset);
+		resume.writeInt32((int) creditedOffset);
+		resume.writeInt32((int) windowGrowth);
+		return resume;
+	}
+	
+	public static Resume parseResume(BufferData buffer) {
+
+		var priority = buffer.read();
+		var localStreamId = buffer.read();
+		var command = buffer.read();
+		var receivedOffset = buffer.readInt32();
+		var creditedOffset = buffer.readInt32();
+		var windowGrowth = buffer.readInt32();
+		buffer.rewind();
+
+		return new Resume(priority, localStreamId, receivedOffset, creditedOffset, windowGrowth);
+	}
+
+	public static BufferData createPing(int id) {
+		return createPingOrPong(PING, id);
+	}
+	
+	public static BufferData createPong(int id) {
+		return createPingOrPong(PONG, id);
+	}
+	
+	private static BufferData createPingOrPong(byte type, int id) {
+
+		var ping = BufferData.create(7);
+		ping.writeInt8(CONTROL_PRIORITY);
+		ping.writeInt8(0);
+		ping.writeInt8(type);
+		ping.writeInt32(id);
+		return ping;
+	}
+	
+	/**
+	 * @param buffer a PING or PONG
+	 * @return the id of the ping
+	 */
+	public static int parsePingId(BufferData buffer) {
+
+		var priority = buffer.read();
+		var streamId = buffer.read();
+		var command = buffer.read();
+		var id = buffer.readInt32();
+		buffer.rewind();
+
+		return id;
+	}
+
+	/**
+	 * Creates the first message a peer sends to a hub, identifying itself
+	 * 
+	 * @param peerId identity of the peer
+	 * @return
+	 */
+	public static BufferData createHello(String peerId) {
+
+		var id = peerId.getBytes(StandardCharsets.UTF_8);
+		if ( id.length > Short.MAX_VALUE )
+			throw(new IllegalArgumentException("peer identity too long"));
+
+		var hello = BufferData.create(5 + id.length);
+		hello.writeInt8(CONTROL_PRIORITY);
+		hello.writeInt8(0);
+		hello.writeInt8(HELLO);
+		hello.writeInt16(id.length);
+		hello.write(id);
+		return hello;
+	}
+
+	/**
+	 * @param buffer a HELLO
+	 * @return identity of the peer
+	 */
+	public static String parseHelloId(BufferData buffer) {
+
+		var priority = buffer.read();
+		var streamId = buffer.read();
+		var command = buffer.read();
+		var id = new byte[buffer.readInt16()];
+		buffer.read(id);
+		buffer.rewind();
+
+		return new String(id, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param buffer an unread DATA buffer
+	 * @return the number of bytes of data it carries
+	 */
+	public static int getTransmitDataSize(BufferData buffer) {
+		return buffer.available() - 5;
+	}
+
 	/**
 	 * ByteBuffer provided must be in READ mode and positioned where to copy from.
 	 * 
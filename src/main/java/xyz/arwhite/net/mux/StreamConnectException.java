@@ -0,0 +1,31 @@
+package xyz.arwhite.net.mux;
+
+import java.net.ConnectException;
+
+/**
+ * Thrown when the peer refuses to connect a Stream, carrying the reason it gave
+ * 
+ * @author Alan R. White
+ *
+ */
+public class StreamConnectException extends ConnectException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private final int errorCode;
+	
+	/**
+	 * @param errorCode sent by the peer, see {@link StreamConstants}
+	 */
+	public StreamConnectException(int errorCode) {
+		super("Stream refused by peer, reason "+errorCode);
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * @return the reason the peer gave, see {@link StreamConstants}
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+}
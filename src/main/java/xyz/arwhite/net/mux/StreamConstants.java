@@ -7,8 +7,11 @@ public class StreamConstants {
 	public static final int NO_LISTENER_ON_STREAM_PORT = 1001;
 	public static final int MAX_STREAMS_EXCEEDED = 1002;
 	public static final int UNABLE_TO_START_STREAM = 1003;
+	public static final int CONNECT_REQUESTS_EXCEEDED = 1004;
 	
 	public static final int PENDING_STREAM_PORT_CONNECTIONS_EXCEEDED = 2001;
+	public static final int DESTINATION_NOT_PERMITTED = 2002;
+	public static final int DESTINATION_UNREACHABLE = 2003;
 	
 	// Error reason raised in a Stream
 	public static final int UNEXPECTED_CONNECT_CONFIRM = 3001;
@@ -1,9 +1,18 @@
 package xyz.arwhite.net.mux;
 
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,41 +34,108 @@ public class StreamController {
 	static private final Logger logger = Logger.getLogger(StreamController.class.getName());
 			
 	/**
-	 * The number of queued connect requests that have not been passed to a StreamServer
+	 * The number of connect requests, across all stream ports, that may be waiting to be passed
+	 * to a StreamServer. Beyond this connect requests are failed.
 	 */
 	private static final int NEW_STREAM_QUEUE_DEPTH = 64;
 
-	private MessageBroker broker;
-	private Thread messageReaderThread;
-	private Thread connectDispatcherThread;
+	/**
+	 * How a new Stream is placed on one of several bonded links
+	 */
+	public enum LinkPlacement {
+		/**
+		 * The link carrying the fewest Streams
+		 */
+		LEAST_LOADED,
+		
+		/**
+		 * A link chosen by hashing the local Stream ID. IDs are allocated in turn, so the hash
+		 * mixes their bits, otherwise placement would simply rotate through the links.
+		 */
+		HASH
+	}
+
+	/**
+	 * The first link, used for messages not sent on behalf of a Stream
+	 */
+	private volatile MessageBroker broker;
+	
+	/**
+	 * Links new Streams may be placed on, and the number of Streams carried by each link
+	 */
+	private CopyOnWriteArrayList<MessageBroker> links = new CopyOnWriteArrayList<>();
+	private ConcurrentHashMap<MessageBroker, AtomicInteger> linkLoad = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<MessageBroker, Thread> messageReaderThreads = new ConcurrentHashMap<>();
+	
+	private LinkPlacement linkPlacement = LinkPlacement.LEAST_LOADED;
+	
+	/**
+	 * Keepalive and RTT measurement, if enabled, for each link
+	 */
+	private ConcurrentHashMap<MessageBroker, LinkMonitor> linkMonitors = new ConcurrentHashMap<>();
+	private Set<MessageBroker> suspendedLinks = ConcurrentHashMap.newKeySet();
+	private long keepaliveInterval = 0;
+	private int keepaliveMissedPings = 3;
+	private boolean inlineDispatch = false;
 
-	public record ConnectRequest(int priority, int remoteId, int streamPort, BufferData buffer ) {};
+	public record ConnectRequest(int priority, int remoteId, int streamPort, String destination, byte[] earlyData, BufferData buffer ) {};
 	public record ConnectConfirm(int priority, int localId, int remoteId) {};
 	public record ConnectFail(int priority, int localId, int errorCode) {};
 	public record DisconnectRequest(int priority, int localId) {};
 	public record DisconnectConfirm(int priority, int localId, int errorCode) {};
 	public record BufferIncrement(int priority, int localId, int size) {};
 	public record TransmitData(int priority, int localId, int size, BufferData buffer) {};
+	public record Resume(int priority, int localId, int receivedOffset, int creditedOffset, int windowGrowth) {};
+
 
+	/**
+	 * A connect request, and the link it arrived on which will carry the new Stream
+	 */
+	private record PendingConnect(ConnectRequest request, MessageBroker link) {};
 
-	private ArrayBlockingQueue<ConnectRequest> connectRequests = new ArrayBlockingQueue<>(NEW_STREAM_QUEUE_DEPTH);
+	/**
+	 * Connect requests are dispatched in parallel, except on stream ports asking for them to be
+	 * dispatched in order of arrival, which each have a dispatcher while they have a listener
+	 */
+	private ConcurrentHashMap<Integer, ConnectDispatcher> connectDispatchers = new ConcurrentHashMap<>();
+	private Set<Integer> orderedStreamPorts = ConcurrentHashMap.newKeySet();
+	private AtomicInteger pendingConnects = new AtomicInteger(0);
 	private StreamMap streams;
 
-	private ConcurrentHashMap<Integer, StreamServer> streamPorts = new ConcurrentHashMap<>();
+	/**
+	 * The StreamServers listening on each stream port, more than one if they reuse the port
+	 */
+	private ConcurrentHashMap<Integer, List<StreamServer>> streamPorts = new ConcurrentHashMap<>();
+	
+	/**
+	 * Rotates the choice between StreamServers sharing a stream port that are equally loaded
+	 */
+	private AtomicInteger streamServerRotation = new AtomicInteger(0);
+
+	/**
+	 * Bandwidth group for Streams connected on a StreamPort, unlisted StreamPorts use the default group
+	 */
+	private ConcurrentHashMap<Integer, Integer> streamPortGroups = new ConcurrentHashMap<>();
 
 	/**
-	 * Sets up receiver on provided message broker
+	 * Sets up receivers on the message brokers provided to the builder
 	 * 
-	 * @param broker
+	 * @param builder
 	 */
-	private StreamController(MessageBroker broker) {
-		logger.entering(this.getClass().getName(), "Constructor", broker);
+	private StreamController(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor", builder.messageBrokers);
 		
-		this.broker = broker;
+		this.inlineDispatch = builder.inlineDispatch;
+		this.linkPlacement = builder.linkPlacement;
+		this.keepaliveInterval = builder.keepaliveInterval;
+		this.keepaliveMissedPings = builder.keepaliveMissedPings;
+		this.streamPortGroups.putAll(builder.streamPortGroups);
+		this.orderedStreamPorts.addAll(builder.orderedStreamPorts);
 
 		this.streams = new StreamMap();
-		setupConnectDispatcher(this.connectRequests);
-		setupBroker(this.broker);
+		
+		for( var link : builder.messageBrokers )
+			addLink(link);
 		
 		logger.fine("StreamController initialized");
 		
@@ -72,6 +148,162 @@ public class StreamController {
 		logger.exiting(this.getClass().getName(), "Constructor");
 	}
 
+	/**
+	 * Bonds another link to this controller. New Streams may be placed on it straight away,
+	 * the peer must add the matching link to its own controller.
+	 * 
+	 * @param link
+	 */
+	public void addLink(MessageBroker link) {
+		logger.entering(this.getClass().getName(), "addLink", link);
+		
+		if ( linkLoad.putIfAbsent(link, new AtomicInteger(0)) == null ) {
+			setupBroker(link, inlineDispatch);
+			links.add(link);
+			
+			if ( keepaliveInterval > 0 )
+				startLinkMonitor(link);
+			
+			if ( broker == null )
+				broker = link;
+		}
+		
+		logger.exiting(this.getClass().getName(), "addLink");
+	}
+
+	/**
+	 * Stops placing new Streams on a link. Streams already on the link continue to use it
+	 * until they close or the link shuts down.
+	 * 
+	 * @param link
+	 * @return true if the link was in use
+	 */
+	public boolean removeLink(MessageBroker link) {
+		logger.entering(this.getClass().getName(), "removeLink", link);
+		
+		var outcome = links.remove(link);
+		
+		if ( outcome && broker == link && !links.isEmpty() )
+			broker = links.get(0);
+		
+		logger.exiting(this.getClass().getName(), "removeLink", outcome);
+		return outcome;
+	}
+
+	/**
+	 * @return the links new Streams may be placed on
+	 */
+	public List<MessageBroker> getLinks() {
+		return List.copyOf(links);
+	}
+
+	/**
+	 * @return number of Streams registered, across all links
+	 */
+	public int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * @param link
+	 * @return number of Streams carried by the link
+	 */
+	public int getLinkLoad(MessageBroker link) {
+		var load = linkLoad.get(link);
+		return load == null ? 0 : load.get();
+	}
+
+	/**
+	 * @param link
+	 * @return the RTT measurements for the link, or null if keepalive is not enabled
+	 */
+	public LinkMonitor getLinkMonitor(MessageBroker link) {
+		return linkMonitors.get(link);
+	}
+
+	/**
+	 * Pings the peer over the link every keepalive interval. A link that stops answering is
+	 * aborted, which suspends or shuts it down.
+	 * 
+	 * @param link
+	 */
+	private void startLinkMonitor(MessageBroker link) {
+		var monitor = new LinkMonitor(link, keepaliveInterval, keepaliveMissedPings);
+		linkMonitors.put(link, monitor);
+		
+		Thread.ofVirtual().name("LinkMonitor").start(() -> {
+			try {
+				while( linkMonitors.get(link) == monitor ) {
+					Thread.sleep(keepaliveInterval);
+					
+					if ( suspendedLinks.contains(link) )
+						continue;
+					
+					if ( monitor.isDead() ) {
+						logger.warning("Link not answering pings, aborting");
+						monitor.reset();
+						link.abort();
+						continue;
+					}
+					
+					monitor.ping();
+				}
+			} catch (InterruptedException e) {}
+		});
+	}
+
+	/**
+	 * Chooses the link for a new Stream
+	 * 
+	 * @param localStreamId
+	 * @return the link, or null if there are none
+	 */
+	private MessageBroker placeStream(int localStreamId) {
+		var candidates = links.toArray(new MessageBroker[0]);
+		
+		if ( candidates.length == 0 )
+			return null;
+		
+		MessageBroker chosen = candidates[0];
+		
+		if ( linkPlacement == LinkPlacement.HASH ) 
+			chosen = candidates[Math.floorMod(mix(localStreamId), candidates.length)];
+		else
+			for( var link : candidates )
+				if ( getLinkLoad(link) < getLinkLoad(chosen) )
+					chosen = link;
+		
+		return chosen;
+	}
+
+	/**
+	 * Finalising step of MurmurHash3, every bit of the ID affects every bit of the hash
+	 */
+	private static int mix(int id) {
+		var h = id;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private void attachStream(Stream stream, MessageBroker link) {
+		detachStream(stream);
+		stream.setLink(link);
+		
+		if ( link != null )
+			linkLoad.computeIfAbsent(link, l -> new AtomicInteger(0)).incrementAndGet();
+	}
+
+	private void detachStream(Stream stream) {
+		var load = stream.getLink() == null ? null : linkLoad.get(stream.getLink());
+		
+		if ( load != null )
+			load.decrementAndGet();
+	}
+
 	/**
 	 * Registers a StreamServer on a StreamPort
 	 * @param port to listen on
@@ -82,13 +314,27 @@ public class StreamController {
 		logger.entering(this.getClass().getName(), "registerStreamServer", 
 				new Object[] { Integer.valueOf(port), server });
 		
-		var outcome = streamPorts.putIfAbsent(port, server) == null;
+		var outcome = new AtomicBoolean(false);
 		
-		if ( outcome )
+		streamPorts.compute(port, (p, servers) -> {
+			if ( servers == null ) {
+				outcome.set(true);
+				return new CopyOnWriteArrayList<>(List.of(server));
+			}
+			
+			// only shared if everyone on it agrees
+			if ( server.isReusePort() && servers.stream().allMatch(StreamServer::isReusePort) ) {
+				outcome.set(servers.add(server));
+			}
+			
+			return servers;
+		});
+		
+		if ( outcome.get() )
 			logger.fine("StreamServer now listening on StreamPort "+port);
 		
-		logger.exiting(this.getClass().getName(), "registerStreamServer", outcome);
-		return outcome;
+		logger.exiting(this.getClass().getName(), "registerStreamServer", outcome.get());
+		return outcome.get();
 	}
 
 	/**
@@ -104,10 +350,69 @@ public class StreamController {
 		if ( outcome )
 			logger.fine("StreamPort "+port+" now unused");
 		
+		retireDispatcher(port);
+		
 		logger.exiting(this.getClass().getName(), "deregisterStreamServer", outcome);		
 		return outcome;
 	}
 
+	/**
+	 * Deregisters one of the StreamServers sharing a StreamPort, the StreamPort is unused once
+	 * the last is deregistered
+	 * @param port the port the StreamServer is listening on
+	 * @param server
+	 * @return true if the StreamServer was removed, false if it wasn't listening on the port
+	 */
+	public boolean deregisterStreamServer(int port, StreamServer server) {
+		logger.entering(this.getClass().getName(), "deregisterStreamServer", 
+				new Object[] { Integer.valueOf(port), server });
+		
+		var outcome = new AtomicBoolean(false);
+		
+		streamPorts.computeIfPresent(port, (p, servers) -> {
+			outcome.set(servers.remove(server));
+			return servers.isEmpty() ? null : servers;
+		});
+		
+		if ( outcome.get() )
+			logger.fine("StreamServer on StreamPort "+port+" removed");
+		
+		retireDispatcher(port);
+		
+		logger.exiting(this.getClass().getName(), "deregisterStreamServer", outcome.get());		
+		return outcome.get();
+	}
+	
+	/**
+	 * @param port
+	 * @return the StreamServer listening on the port with the fewest connections waiting to be
+	 * accepted, or null if none is
+	 */
+	private StreamServer selectStreamServer(int port) {
+		var servers = streamPorts.get(port);
+		if ( servers == null )
+			return null;
+		
+		// the last sharer may deregister while we look
+		var snapshot = List.copyOf(servers);
+		if ( snapshot.isEmpty() )
+			return null;
+		
+		if ( snapshot.size() == 1 )
+			return snapshot.get(0);
+		
+		var start = Math.floorMod(streamServerRotation.getAndIncrement(), snapshot.size());
+		
+		StreamServer selected = null;
+		for (int i = 0; i < snapshot.size(); i++ ) {
+			var candidate = snapshot.get((start + i) % snapshot.size());
+			if ( selected == null || candidate.getPendingCount() < selected.getPendingCount() )
+				selected = candidate;
+		}
+		
+		return selected;
+	}
+
 	/**
 	 * Registers a new Stream
 	 *  
@@ -121,6 +426,7 @@ public class StreamController {
 		int localStreamId = streams.allocNewStreamId();
 
 		streams.put(Integer.valueOf(localStreamId), stream); 
+		attachStream(stream, placeStream(localStreamId));
 
 		logger.fine("New Stream with local ID "+localStreamId);
 		
@@ -131,8 +437,10 @@ public class StreamController {
 	protected boolean deregisterStream(int stream) {
 		logger.entering(this.getClass().getName(), "deregisterStream", stream);
 		
-		var outcome = streams.remove(stream) != null;
+		var removed = streams.remove(stream);
+		var outcome = removed != null;
 		if ( outcome ) {
+			detachStream(removed);
 			streams.freeStreamId(stream);
 			logger.fine("Stream "+stream+" now unused");
 		}
@@ -141,108 +449,199 @@ public class StreamController {
 		return outcome;
 	}
 
-	private void setupConnectDispatcher(ArrayBlockingQueue<ConnectRequest> connectRequests) {
-		logger.entering(this.getClass().getName(), "setupConnectDispatcher", connectRequests);
+	/**
+	 * Dispatches a connect request on a virtual thread of its own, or queues it for the 
+	 * dispatcher of its stream port if the port asked for ordered connects. Fails it straight
+	 * away if too many are already waiting.
+	 * 
+	 * @param pending
+	 */
+	private void queueConnect(PendingConnect pending) {
+		var request = pending.request();
 		
-		connectDispatcherThread = Thread.ofVirtual().name("Connect Dispatcher").start(
-				new ConnectDispatcher(connectRequests));
+		if ( pendingConnects.incrementAndGet() > NEW_STREAM_QUEUE_DEPTH ) {
+			pendingConnects.decrementAndGet();
+			logger.warning("Failing Connect Request on Stream Port "+request.streamPort()+", too many waiting");
+			pending.link().sendMessage(StreamBuffers.createConnectFail(request.priority(), request.remoteId(), 
+					StreamConstants.CONNECT_REQUESTS_EXCEEDED));
+			return;
+		}
+		
+		if ( !orderedStreamPorts.contains(request.streamPort()) ) {
+			// counted until dispatched, as these all dispatch at once
+			Thread.ofVirtual().name("Connect Dispatcher-"+request.streamPort()).start(() -> {
+				try {
+					dispatchConnect(pending);
+				} finally {
+					pendingConnects.decrementAndGet();
+				}
+			});
+			return;
+		}
+		
+		connectDispatchers.computeIfAbsent(request.streamPort(), ConnectDispatcher::new).queue(pending);
+	}
 	
-		logger.exiting(this.getClass().getName(), "registerStream", connectDispatcherThread);
+	/**
+	 * Drops the dispatcher of a stream port no longer listened on, unless it's still dispatching,
+	 * in which case it drops itself once it's done
+	 * 
+	 * @param port
+	 */
+	private void retireDispatcher(int port) {
+		if ( !streamPorts.containsKey(port) )
+			connectDispatchers.computeIfPresent(port, (p, dispatcher) -> dispatcher.running.get() ? dispatcher : null);
+	}
 	
+	/**
+	 * @return the number of stream ports with a dispatcher keeping their connects in order
+	 */
+	public int getConnectDispatcherCount() {
+		return connectDispatchers.size();
 	}
 
 	/**
-	 * Dispatches any connect requests to the registered listener for the stream port
-	 * specified in the connect request
+	 * Dispatches the connect requests for one stream port to the registered listener for the
+	 * stream port, in the order they arrived. The dispatcher runs on a virtual thread only while
+	 * it has connect requests waiting, so a burst of connects to one stream port doesn't hold up
+	 * those to another. Once nothing listens on the stream port it's dropped.
+	 * 
 	 * @author Alan R. White
 	 *
 	 */
 	private class ConnectDispatcher implements Runnable {
 
-		private BlockingQueue<ConnectRequest> connectRequests;
+		private int streamPort;
+		private ConcurrentLinkedQueue<PendingConnect> connectRequests = new ConcurrentLinkedQueue<>();
+		private AtomicBoolean running = new AtomicBoolean(false);
 
-		public ConnectDispatcher(BlockingQueue<ConnectRequest> connectRequests) {
-			logger.entering(this.getClass().getName(), "Constructor", connectRequests);
+		public ConnectDispatcher(int streamPort) {
+			logger.entering(this.getClass().getName(), "Constructor", streamPort);
 			
-			this.connectRequests = connectRequests;
+			this.streamPort = streamPort;
 
 			logger.exiting(this.getClass().getName(), "Constructor");
 		}
+		
+		void queue(PendingConnect pending) {
+			connectRequests.add(pending);
+			
+			if ( running.compareAndSet(false, true) )
+				Thread.ofVirtual().name("Connect Dispatcher-"+streamPort).start(this);
+		}
 
 		@Override
 		public void run() {
-			try {
-				while(true) {
-					var connectRequest = connectRequests.take();
-					logger.fine("Processing Connect Request on Stream Port "+connectRequest.streamPort);
-					
-					int errorCode = 0; 
-					try { 
-						var listener = streamPorts.get(connectRequest.streamPort);
-
-						if ( listener == null ) {
-							// respond to connect request with connect fail as no listener on port
-							errorCode = StreamConstants.NO_LISTENER_ON_STREAM_PORT;
-						} else {
-							/*
-							 * We are processing a Connect Request received from a remote
-							 * peer. The Connect Request informs us of the peers localID
-							 * which to us is the remoteID for the Stream created.
-							 * 
-							 * //TODO: refactor so we reuse registerStream above
-							 */
-							logger.finest("ConnectRequest: Priority="+connectRequest.priority+" RemoteId="+connectRequest.remoteId);
-							
-							int localStreamId = streams.allocNewStreamId();
-							logger.finest("Allocated localStreamId "+localStreamId);
-
-							// create Stream object for this connection, containing the local and remote streamIds
-							var stream = new Stream(StreamController.this, localStreamId, connectRequest.remoteId, connectRequest.priority);
-
-							// add entry to Streams map 
-							streams.put(Integer.valueOf(localStreamId), stream); 
-
-							// pass the stream object to the listener
-							if ( listener.connectStream(stream) ) {
-								logger.fine("New Stream with local ID "+localStreamId);
-							} else {
-								streams.remove(Integer.valueOf(localStreamId));
-								logger.log(Level.WARNING,"server stream not able to handle incoming Connect Request");
-							}
-						}
-					} catch (LimitExceededException lee) {
-						errorCode = StreamConstants.MAX_STREAMS_EXCEEDED;
-					} catch (IOException e) {
-						errorCode = StreamConstants.UNABLE_TO_START_STREAM;
-					}
-
-					if ( errorCode != 0 ) 
-						broker.sendMessage(StreamBuffers.createConnectFail(connectRequest.priority, connectRequest.remoteId, errorCode));
+			do {
+				PendingConnect pending;
+				while( (pending = connectRequests.poll()) != null ) {
+					pendingConnects.decrementAndGet();
+					dispatchConnect(pending);
 				}
+				
+				running.set(false);
+				
+				// unless a request arrived after the queue was found empty
+			} while( !connectRequests.isEmpty() && running.compareAndSet(false, true) );
+			
+			retireDispatcher(streamPort);
+		}
+	}
+	
+	/**
+	 * Creates the Stream for a connect request and passes it to a StreamServer listening on its
+	 * stream port, or fails the request
+	 * 
+	 * @param pending
+	 */
+	private void dispatchConnect(PendingConnect pending) {
+		var connectRequest = pending.request();
+		logger.fine("Processing Connect Request on Stream Port "+connectRequest.streamPort);
+		
+		int errorCode = 0; 
+		try { 
+			var listener = selectStreamServer(connectRequest.streamPort);
 
-			} catch (InterruptedException e) {
-				// TODO: maybe interruption is OK, means terminate 
-				throw new RuntimeException(e);
-			}
+			if ( listener == null ) {
+				// respond to connect request with connect fail as no listener on port
+				errorCode = StreamConstants.NO_LISTENER_ON_STREAM_PORT;
+			} else {
+				/*
+				 * We are processing a Connect Request received from a remote
+				 * peer. The Connect Request informs us of the peers localID
+				 * which to us is the remoteID for the Stream created.
+				 * 
+				 * //TODO: refactor so we reuse registerStream above
+				 */
+				logger.finest("ConnectRequest: Priority="+connectRequest.priority+" RemoteId="+connectRequest.remoteId);
+				
+				int localStreamId = streams.allocNewStreamId();
+				logger.finest("Allocated localStreamId "+localStreamId);
+
+				// create Stream object for this connection, containing the local and remote streamIds
+				var stream = new Stream(StreamController.this, localStreamId, connectRequest.remoteId, connectRequest.priority);
+				stream.setStreamPort(connectRequest.streamPort);
+				stream.setDestination(connectRequest.destination);
+				
+				// readable as soon as the Stream is accepted, discarded with it if not
+				if ( connectRequest.earlyData != null )
+					stream.receivedEarlyData(connectRequest.earlyData);
+				stream.setGroup(groupFor(connectRequest.streamPort));
+				
+				// responses go back on the link the request arrived on
+
+				// add entry to Streams map 
+				streams.put(Integer.valueOf(localStreamId), stream); 
+				attachStream(stream, pending.link());
 
+				// pass the stream object to the listener
+				if ( listener.connectStream(stream) ) {
+					logger.fine("New Stream with local ID "+localStreamId);
+				} else {
+					// refused, e.g. a full backlog, which is routine under load so free everything
+					stream.stop();
+					deregisterStream(localStreamId);
+					logger.log(Level.FINE,"server stream not able to handle incoming Connect Request");
+				}
+			}
+		} catch (LimitExceededException lee) {
+			errorCode = StreamConstants.MAX_STREAMS_EXCEEDED;
+		} catch (IOException e) {
+			errorCode = StreamConstants.UNABLE_TO_START_STREAM;
 		}
+
+		if ( errorCode != 0 ) 
+			pending.link().sendMessage(StreamBuffers.createConnectFail(connectRequest.priority, connectRequest.remoteId, errorCode));
 	}
 
 	@SuppressWarnings("unchecked")
 	/**
+	 * If inline dispatch is requested, and the broker supports it, incoming messages are routed
+	 * directly from the broker's I/O thread. Otherwise a MessageReader is started on the broker
+	 * receive queue.
+	 * 
 	 * Note: assumes that the Queue in the MessageBroker is a BlockingQueue
 	 * TODO: refactor for when underlying transport provides other queue type
 	 * @param broker
+	 * @param inlineDispatch
 	 */
-	private void setupBroker(MessageBroker broker) {
+	private void setupBroker(MessageBroker broker, boolean inlineDispatch) {
 		logger.entering(this.getClass().getName(), "setupBroker", broker);
 		
-		messageReaderThread = Thread.ofVirtual()
-				.name("MessageReader")
-				.start(
-				new MessageReader(
-						(BlockingQueue<PriorityQueueEntry>) broker.getRxQueue(), 
-						connectRequests));
+		Thread messageReaderThread = null;
+		
+		if ( inlineDispatch && broker.setInlineReceiver(buffer -> dispatch(buffer, broker)) ) {
+			logger.fine("Incoming messages dispatched inline");
+			
+		} else {
+			messageReaderThread = Thread.ofVirtual()
+					.name("MessageReader")
+					.start(
+					new MessageReader(
+							(BlockingQueue<PriorityQueueEntry>) broker.getRxQueue(), broker));
+			
+			messageReaderThreads.put(broker, messageReaderThread);
+		}
 
 		logger.exiting(this.getClass().getName(), "setupBroker", messageReaderThread);
 	}
@@ -258,17 +657,13 @@ public class StreamController {
 	private class MessageReader implements Runnable {
 
 		private BlockingQueue<PriorityQueueEntry> rxQueue;
-		private BlockingQueue<ConnectRequest> connectRequests;
+		private MessageBroker link;
 
-		public MessageReader(
-				BlockingQueue<PriorityQueueEntry> rxQueue, 
-				BlockingQueue<ConnectRequest> connectRequests) {
-
-			logger.entering(this.getClass().getName(), "Constructor",
-					new Object[] { rxQueue, connectRequests });
+		public MessageReader(BlockingQueue<PriorityQueueEntry> rxQueue, MessageBroker link) {
+			logger.entering(this.getClass().getName(), "Constructor", rxQueue);
 			
 			this.rxQueue = rxQueue;
-			this.connectRequests = connectRequests;
+			this.link = link;
 			
 			logger.exiting(this.getClass().getName(), "Constructor");
 		}
@@ -278,71 +673,8 @@ public class StreamController {
 			logger.entering(this.getClass().getName(), "run");
 			
 			try {
-				while(true) {
-					var pqe = rxQueue.take();
-					var buffer = pqe.message();
-					
-					var command = StreamBuffers.getBufferType(buffer);
-
-					logger.finest("Incoming buffer of type "+command);
-					
-					// must dispatch without blocking
-					
-					switch( command ) {
-					case StreamBuffers.PRIORITY_SHUTDOWN -> {
-						streamPorts.forEach((port, streamServer) -> streamServer.close());
-						streams.forEach((streamId, stream) -> stream.stop());
-					}
-					
-					case StreamBuffers.CONNECT_REQUEST -> {
-						var outcome = connectRequests.offer(StreamBuffers.parseConnectRequest(buffer));
-						
-						if ( !outcome )
-							logger.warning("Could not queue Connect Request due to overrun");
-					}
-					
-					default -> {
-						var localStreamId = StreamBuffers.getStreamId(buffer);
-						var stream = streams.get(localStreamId);
-						
-						if ( stream != null ) {
-							if ( !stream.getPeerIncoming().offer(buffer) ) {
-								logger.warning("Dropping buffer due to Stream " + localStreamId + " being backed up");
-								
-							} else {
-								logger.finest("Data buffer passed to Stream " + localStreamId);
-								logger.finest("Peer incoming used = "+stream.getPeerIncoming().size());
-							}
-						} else {
-							logger.warning("Buffer for unknown Stream " + localStreamId + " discarded");
-						}
-					}
-					}
-					
-//					if ( command == StreamBuffers.CONNECT_REQUEST ) {
-//						var outcome = connectRequests.offer(StreamBuffers.parseConnectRequest(buffer));
-//						
-//						if ( !outcome )
-//							logger.warning("Could not queue Connect Request due to overrun");
-//						
-//					} else {
-//						var localStreamId = StreamBuffers.getStreamId(buffer);
-//						var stream = streams.get(localStreamId);
-//						
-//						if ( stream != null ) {
-//							if ( !stream.getPeerIncoming().offer(buffer) ) {
-//								logger.warning("Dropping buffer due to Stream " + localStreamId + " being backed up");
-//								
-//							} else {
-//								logger.finest("Data buffer passed to Stream " + localStreamId);
-//								logger.finest("Peer incoming used = "+stream.getPeerIncoming().size());
-//							}
-//						} else {
-//							logger.warning("Buffer for unknown Stream " + localStreamId + " discarded");
-//						}
-//					}
-
-				}
+				while(true) 
+					dispatch(rxQueue.take().message(), link);
 				
 				// TODO: tidy exit .... logger.exiting(this.getClass().getName(), "run");
 
@@ -354,6 +686,203 @@ public class StreamController {
 
 	}
 
+	/**
+	 * Routes a single incoming message. Called either by the MessageReader or inline by the
+	 * broker, so must dispatch without blocking.
+	 * 
+	 * @param buffer the message received from the peer
+	 */
+	protected void dispatch(BufferData buffer) {
+		dispatch(buffer, broker);
+	}
+
+	/**
+	 * Routes a single incoming message received on a link
+	 * 
+	 * @param buffer the message received from the peer
+	 * @param link the link the message arrived on
+	 */
+	protected void dispatch(BufferData buffer, MessageBroker link) {
+		var command = StreamBuffers.getBufferType(buffer);
+
+		logger.finest("Incoming buffer of type "+command);
+		
+		switch( command ) {
+		case StreamBuffers.PRIORITY_SHUTDOWN -> {
+			switch( StreamBuffers.getLinkEvent(buffer) ) {
+			case StreamBuffers.LINK_SUSPENDED -> linkSuspended(link);
+			case StreamBuffers.LINK_RESUMED -> linkResumed(link);
+			default -> linkShutdown(link);
+			}
+		}
+		
+		case StreamBuffers.PING -> link.sendMessage(StreamBuffers.createPong(StreamBuffers.parsePingId(buffer)));
+		
+		case StreamBuffers.PONG -> {
+			var id = StreamBuffers.parsePingId(buffer);
+			var monitor = linkMonitors.get(link);
+			
+			if ( monitor != null )
+				monitor.pongReceived(id);
+			
+			link.pongReceived(id);
+		}
+		
+		case StreamBuffers.HELLO -> logger.fine("Peer identified as "+StreamBuffers.parseHelloId(buffer));
+		
+		case StreamBuffers.CONNECT_REQUEST -> {
+			queueConnect(new PendingConnect(StreamBuffers.parseConnectRequest(buffer), link));
+		}
+		
+		default -> {
+			var localStreamId = StreamBuffers.getStreamId(buffer);
+			var stream = streams.get(localStreamId);
+			
+			if ( stream != null ) {
+				if ( StreamBuffers.isControlFrame(buffer) ) {
+					// control lane, never queued behind DATA
+					stream.controlFromPeer(buffer);
+					
+				} else if ( !stream.getPeerIncoming().offer(buffer) ) {
+					stream.overrunByPeer();
+					
+				} else {
+					if ( command == StreamBuffers.DATA )
+						stream.receivedFromPeer(StreamBuffers.getTransmitDataSize(buffer));
+					
+					logger.finest("Data buffer passed to Stream " + localStreamId);
+					logger.finest("Peer incoming used = "+stream.getPeerIncoming().size());
+				}
+			} else {
+				logger.warning("Buffer for unknown Stream " + localStreamId + " discarded");
+			}
+		}
+		}
+	}
+
+	/**
+	 * A link has shut down, the Streams it carried are stopped. When the last link goes
+	 * the StreamServers are closed and any remaining Streams are stopped.
+	 * 
+	 * @param link
+	 */
+	private void linkShutdown(MessageBroker link) {
+		logger.entering(this.getClass().getName(), "linkShutdown", link);
+		
+		removeLink(link);
+		linkLoad.remove(link);
+		linkMonitors.remove(link);
+		suspendedLinks.remove(link);
+		
+		var lastLink = links.isEmpty();
+		if ( lastLink )
+			streamPorts.forEach((port, servers) -> servers.forEach(StreamServer::close));
+		
+		// a stopped Stream is already closed, closing it won't deregister it
+		streams.forEach((streamId, stream) -> {
+			if ( lastLink || stream.getLink() == link ) {
+				stream.stop();
+				deregisterStream(streamId);
+			}
+		});
+		
+		logger.exiting(this.getClass().getName(), "linkShutdown");
+	}
+
+	/**
+	 * A resumable link has lost its connection. Its Streams stop sending DATA, which they
+	 * retain for replay, so anything still queued on the link can be discarded.
+	 * 
+	 * @param link
+	 */
+	private void linkSuspended(MessageBroker link) {
+		logger.entering(this.getClass().getName(), "linkSuspended", link);
+		
+		suspendedLinks.add(link);
+		
+		streams.forEach((streamId, stream) -> {
+			if ( stream.getLink() == link )
+				stream.suspend();
+		});
+		
+		link.discardQueuedData();
+		
+		logger.exiting(this.getClass().getName(), "linkSuspended");
+	}
+
+	/**
+	 * A suspended link has a new connection. Each of its Streams tells the peer where to 
+	 * resume from, and resumes sending once the peer does the same. Streams the peer doesn't
+	 * resume within the link's resume timeout are stopped.
+	 * 
+	 * @param link
+	 */
+	private void linkResumed(MessageBroker link) {
+		logger.entering(this.getClass().getName(), "linkResumed", link);
+		
+		suspendedLinks.remove(link);
+		
+		var monitor = linkMonitors.get(link);
+		if ( monitor != null )
+			monitor.reset();
+		
+		streams.forEach((streamId, stream) -> {
+			if ( stream.getLink() == link )
+				stream.sendResume();
+		});
+		
+		Thread.ofVirtual().start(() -> {
+			try {
+				Thread.sleep(link.getResumeTimeout());
+				
+				streams.forEach((streamId, stream) -> {
+					if ( stream.getLink() == link && stream.isSuspended() ) {
+						logger.warning("Stream "+streamId+" not resumed by peer");
+						stream.stop();
+						deregisterStream(streamId);
+					}
+				});
+			} catch (InterruptedException e) {}
+		});
+		
+		logger.exiting(this.getClass().getName(), "linkResumed");
+	}
+
+	/**
+	 * Sends a message on behalf of a Stream, on the link carrying the Stream
+	 * 
+	 * @param stream
+	 * @param buffer
+	 * @return
+	 */
+	public boolean send(Stream stream, BufferData buffer) {
+		return send(stream, buffer, 0);
+	}
+
+	/**
+	 * Sends a message on behalf of a Stream, on the link carrying the Stream, charged to the
+	 * Stream's bandwidth group, that should be on the wire by the deadline
+	 * 
+	 * @param stream
+	 * @param buffer
+	 * @param deadline epoch millis, 0 if there's no deadline
+	 * @return
+	 */
+	public boolean send(Stream stream, BufferData buffer, long deadline) {
+		var link = stream.getLink();
+		
+		if ( link == null )
+			return send(buffer, stream.getGroup(), deadline);
+		
+		logger.entering(this.getClass().getName(), "send", 
+				new Object[] { stream, buffer, Long.valueOf(deadline) });
+		
+		var outcome = link.sendMessage(buffer, stream.getGroup(), deadline);
+		
+		logger.exiting(this.getClass().getName(), "send", outcome);
+		return outcome ;
+	}
+
 	public boolean send(BufferData buffer) {
 		logger.entering(this.getClass().getName(), "send", buffer);
 		
@@ -363,6 +892,57 @@ public class StreamController {
 		return outcome ;
 	}
 
+	/**
+	 * Sends a message that should be on the wire by the deadline
+	 * 
+	 * @param buffer
+	 * @param deadline epoch millis, 0 if there's no deadline
+	 * @return
+	 */
+	public boolean send(BufferData buffer, long deadline) {
+		return send(buffer, TransmitScheduler.DEFAULT_GROUP, deadline);
+	}
+
+	/**
+	 * Sends a message charged to a bandwidth group, that should be on the wire by the deadline
+	 * 
+	 * @param buffer
+	 * @param group bandwidth group of the sending Stream
+	 * @param deadline epoch millis, 0 if there's no deadline
+	 * @return
+	 */
+	public boolean send(BufferData buffer, int group, long deadline) {
+		if ( deadline <= 0 && group == TransmitScheduler.DEFAULT_GROUP )
+			return send(buffer);
+		
+		logger.entering(this.getClass().getName(), "send", 
+				new Object[] { buffer, Integer.valueOf(group), Long.valueOf(deadline) });
+		
+		var outcome = broker.sendMessage(buffer, group, deadline);
+		
+		logger.exiting(this.getClass().getName(), "send", outcome);
+		return outcome ;
+	}
+
+	/**
+	 * Places Streams connected on a StreamPort, in either direction, in a bandwidth group.
+	 * Applies to Streams connected after the call.
+	 * 
+	 * @param streamPort
+	 * @param group as defined on the MessageBroker, e.g. WsPriorityMessageHandler.Builder#withBandwidthGroup
+	 */
+	public void setStreamPortGroup(int streamPort, int group) {
+		streamPortGroups.put(streamPort, group);
+	}
+
+	/**
+	 * @param streamPort
+	 * @return the bandwidth group for Streams connected on the StreamPort
+	 */
+	public int groupFor(int streamPort) {
+		return streamPortGroups.getOrDefault(streamPort, TransmitScheduler.DEFAULT_GROUP);
+	}
+
 	/*
 	 * We want the experience to be you create a MuxSocketFactory / MuxServerSocketFactory
 	 * specifying the StreamController to use.
@@ -394,22 +974,95 @@ public class StreamController {
 	 * 
 	 */
 	public static class Builder {
-		MessageBroker messageBroker;
-		WsMessageLink messageLink;
+		List<MessageBroker> messageBrokers = new ArrayList<>();
+		boolean inlineDispatch = false;
+		LinkPlacement linkPlacement = LinkPlacement.LEAST_LOADED;
+		long keepaliveInterval = 0;
+		int keepaliveMissedPings = 3;
+		Map<Integer, Integer> streamPortGroups = new HashMap<>();
+		Set<Integer> orderedStreamPorts = new HashSet<>();
 
+		/**
+		 * Adds a link for Streams to be placed on. May be called more than once to bond
+		 * several links, the peer must bond the same number of links.
+		 * 
+		 * @param messageBroker
+		 * @return
+		 */
 		public Builder withMessageBroker(MessageBroker messageBroker) {
-			this.messageBroker = messageBroker;
+			this.messageBrokers.add(messageBroker);
 			return this;
 		}
 
 		public Builder withMessageLink(WsMessageLink wsml) {
-			this.messageLink = wsml;
-			messageBroker = wsml.getMessageBroker();
+			return withMessageBroker(wsml.getMessageBroker());
+		}
+
+		/**
+		 * Sets how new Streams are placed when several links are bonded
+		 * 
+		 * @param linkPlacement
+		 * @return
+		 */
+		public Builder withLinkPlacement(LinkPlacement linkPlacement) {
+			this.linkPlacement = linkPlacement;
+			return this;
+		}
+
+		/**
+		 * Incoming messages are routed to Streams directly on the transport's I/O thread,
+		 * removing the receive queue hop. Messages are then handled in arrival order rather
+		 * than priority order.
+		 * 
+		 * @param inlineDispatch
+		 * @return
+		 */
+		public Builder withInlineDispatch(boolean inlineDispatch) {
+			this.inlineDispatch = inlineDispatch;
+			return this;
+		}
+
+		/**
+		 * Places Streams connected on the StreamPort in a bandwidth group
+		 * 
+		 * @param streamPort
+		 * @param group
+		 * @return
+		 */
+		public Builder withStreamPortGroup(int streamPort, int group) {
+			this.streamPortGroups.put(streamPort, group);
+			return this;
+		}
+
+		/**
+		 * Passes connects on the StreamPort to its StreamServer one at a time, in the order 
+		 * they arrived, rather than in parallel
+		 * 
+		 * @param streamPort
+		 * @return
+		 */
+		public Builder withOrderedConnects(int streamPort) {
+			this.orderedStreamPorts.add(streamPort);
+			return this;
+		}
+
+		/**
+		 * Pings the peer over each link, measuring round trip time, see 
+		 * {@link StreamController#getLinkMonitor}. A link that misses the given number of pings
+		 * in a row is aborted.
+		 * 
+		 * @param interval millis between pings, 0 to disable
+		 * @param missedPings
+		 * @return
+		 */
+		public Builder withKeepalive(long interval, int missedPings) {
+			this.keepaliveInterval = interval;
+			this.keepaliveMissedPings = missedPings;
 			return this;
 		}
 
 		public StreamController build() {
-			return new StreamController(messageBroker);
+			return new StreamController(this);
 		}
 	}
 
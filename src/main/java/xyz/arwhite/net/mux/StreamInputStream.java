@@ -2,8 +2,10 @@ package xyz.arwhite.net.mux;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -25,6 +27,17 @@ public class StreamInputStream extends InputStream {
 	private final ReentrantLock bufferLock = new ReentrantLock();
 	private Condition dataAvailableToRead = bufferLock.newCondition();
 	private volatile boolean closed = false;
+	private volatile boolean peerClosed = false;
+	
+	/**
+	 * Millis a read waits for data before timing out, 0 to wait indefinitely
+	 */
+	private volatile int readTimeout = 0;
+	
+	/**
+	 * Told whenever there may be something new to read, e.g. by a selector
+	 */
+	private volatile Runnable readinessListener;
 
 	private final LinkedTransferQueue<Integer> freeNotificationQueue = new LinkedTransferQueue<>();
 
@@ -63,6 +76,7 @@ public class StreamInputStream extends InputStream {
 			bufferLock.unlock();
 		}
 
+		notifyReadiness();
 	}
 
 	/**
@@ -84,8 +98,12 @@ public class StreamInputStream extends InputStream {
 			if ( closed )
 				throw( new IOException("stream is closed") );
 
+			var deadline = readDeadline();
 			while ( available.get() < 1 ) {
-				dataAvailableToRead.await();
+				if ( peerClosed )
+					return -1;
+				
+				awaitData(deadline);
 
 				if ( closed )
 					throw( new IOException("stream is closed") );
@@ -124,6 +142,10 @@ public class StreamInputStream extends InputStream {
 		if ( closed )
 			throw( new IOException("stream is closed") );
 
+		// as InputStream requires, e.g. readNBytes() ends with one
+		if ( len == 0 )
+			return 0;
+
 		int bytesRead = len;
 
 		try {
@@ -132,8 +154,12 @@ public class StreamInputStream extends InputStream {
 			if ( closed )
 				throw( new IOException("stream is closed") );
 
+			var deadline = readDeadline();
 			while ( available.get() < 1 ) {
-				dataAvailableToRead.await();
+				if ( peerClosed )
+					return -1;
+				
+				awaitData(deadline);
 
 				if ( closed )
 					throw( new IOException("stream is closed") );
@@ -164,6 +190,58 @@ public class StreamInputStream extends InputStream {
 		return bytesRead;
 	}
 
+	/**
+	 * Reads into the space remaining in the buffer, as {@link #read(byte[], int, int)} does, for
+	 * the channels over a Stream
+	 * 
+	 * @param dst
+	 * @return bytes read, 0 if the buffer has no space, or -1 at end of stream
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if ( !dst.hasRemaining() )
+			return 0;
+
+		if ( dst.hasArray() ) {
+			var read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if ( read > 0 )
+				dst.position(dst.position() + read);
+
+			return read;
+		}
+
+		var bytes = new byte[dst.remaining()];
+		var read = read(bytes);
+		if ( read > 0 )
+			dst.put(bytes, 0, read);
+
+		return read;
+	}
+
+	/**
+	 * @return nanoTime by which a read must have data, 0 if reads wait indefinitely
+	 */
+	private long readDeadline() {
+		var timeout = readTimeout;
+		return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+	}
+
+	/**
+	 * Waits, holding the buffer lock, for data to arrive or the read timeout to pass
+	 */
+	private void awaitData(long deadline) throws InterruptedException, SocketTimeoutException {
+		if ( deadline == 0 ) {
+			dataAvailableToRead.await();
+			return;
+		}
+		
+		var remaining = deadline - System.nanoTime();
+		if ( remaining <= 0 )
+			throw(new SocketTimeoutException("Read timed out"));
+		
+		dataAvailableToRead.awaitNanos(remaining);
+	}
+
 	@Override
 	public int available() throws IOException {
 
@@ -184,6 +262,111 @@ public class StreamInputStream extends InputStream {
 		} finally {
 			bufferLock.unlock();
 		}
+		
+		notifyReadiness();
+	}
+
+	/**
+	 * The peer has closed the Stream, once the data already received has been read, reads
+	 * return end of stream rather than blocking
+	 */
+	public void peerClosed() {
+		peerClosed = true;
+
+		try {
+			bufferLock.lock();
+			dataAvailableToRead.signalAll();
+			
+		} finally {
+			bufferLock.unlock();
+		}
+		
+		notifyReadiness();
+	}
+
+	/**
+	 * @param readTimeout millis a read waits for data before throwing a SocketTimeoutException,
+	 * 0 to wait indefinitely. The stream remains usable after a timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if ( readTimeout < 0 )
+			throw(new IllegalArgumentException("timeout can't be negative"));
+		
+		this.readTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @return bytes the buffer can hold, the receive window the peer is given
+	 */
+	public int getCapacity() {
+		try {
+			bufferLock.lock();
+			return transitBuffer.capacity();
+			
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Enlarges the buffer, keeping any data waiting to be read. The caller must tell the peer
+	 * the window has grown. The buffer never shrinks, as the peer may already be sending into
+	 * the space.
+	 * 
+	 * @param capacity
+	 * @return the capacity in effect
+	 */
+	public int growCapacity(int capacity) {
+		try {
+			bufferLock.lock();
+			
+			if ( capacity <= transitBuffer.capacity() )
+				return transitBuffer.capacity();
+			
+			if ( mode != BufferMode.READ )
+				transitBuffer.flip();
+			
+			var larger = ByteBuffer.allocate(capacity);
+			larger.put(transitBuffer);
+			
+			transitBuffer = larger;
+			mode = BufferMode.WRITE;
+			
+			return capacity;
+			
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the peer has closed the Stream, reads return end of stream once the data
+	 * already received has been read
+	 */
+	public boolean isPeerClosed() {
+		return peerClosed;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @param readinessListener run, on the thread delivering it, when data arrives or the
+	 * stream is closed
+	 */
+	public void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+
+	private void notifyReadiness() {
+		var listener = readinessListener;
+		if ( listener != null )
+			listener.run();
 	}
 
 	@Override
@@ -3,6 +3,7 @@ package xyz.arwhite.net.mux;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,6 +44,40 @@ public class StreamOutputStream extends OutputStream {
 
 	private Stream stream;
 
+	/**
+	 * Longest a small write is held back waiting to be coalesced, the delay TCP's delayed
+	 * acknowledgements put on Nagle's algorithm
+	 */
+	private static final long MAX_COALESCE_DELAY = TimeUnit.MILLISECONDS.toNanos(40);
+
+	/**
+	 * Sends whatever has been written as soon as the peer's window allows, as TCP_NODELAY.
+	 * Otherwise a small write is held back while data already sent is yet to be credited back,
+	 * so following writes go with it in the same DATA, as Nagle's algorithm does.
+	 */
+	private volatile boolean noDelay = true;
+
+	/**
+	 * Bytes sent the peer is yet to credit back
+	 */
+	private final AtomicInteger unacknowledged = new AtomicInteger(0);
+
+	/**
+	 * Set by flush so anything held back for coalescing is sent now. Guarded by bufferLock.
+	 */
+	private boolean flushRequested = false;
+
+	/**
+	 * Told whenever space may have opened up to write into, e.g. by a selector
+	 */
+	private volatile Runnable readinessListener;
+
+	/**
+	 * Epoch millis at which the oldest data still in the transit buffer was written, used to
+	 * derive deadlines for Streams with a latency budget
+	 */
+	private volatile long pendingSince = 0;
+
 
 	public StreamOutputStream(int capacity, Stream stream) {
 		logger.entering(this.getClass().getName(), "Constructor", 
@@ -73,16 +108,38 @@ public class StreamOutputStream extends OutputStream {
 	public void increaseRemoteAvailable(int size) {
 		logger.entering(this.getClass().getName(), "increaseRemoteAvailable", size);
 
+		unacknowledged.updateAndGet(outstanding -> Math.max(0, outstanding - size));
+		enlargeRemoteWindow(size);
+
+		logger.exiting(this.getClass().getName(), "increaseRemoteAvailable");
+	}
+
+	/**
+	 * Used by Stream when the peer has grown its receive window, rather than credited back
+	 * data it has read
+	 * @param size
+	 */
+	public void enlargeRemoteWindow(int size) {
 		remoteFreeCapacity.addAndGet(size);
 
 		try {
 			bufferLock.lock();
 			remoteBufferHasFreeCapacity.signalAll();
+			
+			// may be holding back a write until now
+			dataAvailableToRead.signalAll();
 		} finally {
 			bufferLock.unlock();
 		}
+	}
 
-		logger.exiting(this.getClass().getName(), "increaseRemoteAvailable");
+	/**
+	 * Used by Stream when data has been sent to the peer other than from the transit buffer
+	 * @param size
+	 */
+	public void reduceRemoteAvailable(int size) {
+		remoteFreeCapacity.addAndGet(-size);
+		unacknowledged.addAndGet(size);
 	}
 
 	/*
@@ -118,6 +175,9 @@ public class StreamOutputStream extends OutputStream {
 					while ( transitAvailableToRead.get() < 1 )
 						dataAvailableToRead.await();
 
+					if ( !noDelay )
+						coalesce();
+
 					if ( mode != BufferMode.READ ) {
 						mode = BufferMode.READ;
 						transitBuffer.flip();
@@ -137,7 +197,9 @@ public class StreamOutputStream extends OutputStream {
 					stream.sendData(transitBuffer, bytesRead);
 
 					remoteFreeCapacity.addAndGet(-bytesRead);
+					unacknowledged.addAndGet(bytesRead);
 					transitAvailableToRead.addAndGet(-bytesRead);
+					flushRequested = false;
 
 					transitAvailableToWrite.addAndGet(bytesRead);
 					spaceAvailableToWrite.signalAll();
@@ -145,6 +207,8 @@ public class StreamOutputStream extends OutputStream {
 				} finally {
 					bufferLock.unlock();
 				}
+				
+				notifyReadiness();
 			}
 
 		} catch (InterruptedException e) {
@@ -156,6 +220,25 @@ public class StreamOutputStream extends OutputStream {
 
 	}
 
+	/**
+	 * Holds back a small write while earlier data is unacknowledged, until there's as much as
+	 * the peer can take or fits the transit buffer, the peer credits back what was sent, the
+	 * stream is flushed or closed, or the coalescing delay has passed. Called holding bufferLock.
+	 */
+	private void coalesce() throws InterruptedException {
+		var deadline = System.nanoTime() + MAX_COALESCE_DELAY;
+
+		while ( !closed && !flushRequested && unacknowledged.get() > 0
+				&& transitAvailableToRead.get() < Math.min(remoteFreeCapacity.get(), transitBuffer.capacity()) ) {
+
+			var remaining = deadline - System.nanoTime();
+			if ( remaining <= 0 )
+				break;
+
+			dataAvailableToRead.awaitNanos(remaining);
+		}
+	}
+
 	//	private void logTransitProps(String who) {
 	//		System.out.println(who);
 	//		System.out.println("Position "+transitBuffer.position());
@@ -261,10 +344,13 @@ public class StreamOutputStream extends OutputStream {
 					transitBuffer.compact();
 				}	
 
+				if ( transitAvailableToRead.get() == 0 )
+					pendingSince = System.currentTimeMillis();
+
 				int bytesToTransfer = len - bytesTransferred;
 
 				// limit what we send to space available
-				if ( len > transitAvailableToWrite.get() ) 
+				if ( bytesToTransfer > transitAvailableToWrite.get() ) 
 					bytesToTransfer = transitAvailableToWrite.get();
 
 				transitBuffer.put(b, off + bytesTransferred, bytesToTransfer);
@@ -285,6 +371,127 @@ public class StreamOutputStream extends OutputStream {
 		logger.exiting(this.getClass().getName(), "write");
 	}
 
+	/**
+	 * Writes the next bytes of the buffer, as {@link #write(byte[], int, int)} does, for the
+	 * channels over a Stream
+	 * 
+	 * @param src
+	 * @param size bytes to write, no more than remain in the buffer
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src, int size) throws IOException {
+		if ( src.hasArray() ) {
+			write(src.array(), src.arrayOffset() + src.position(), size);
+			src.position(src.position() + size);
+			return;
+		}
+
+		var bytes = new byte[size];
+		src.get(bytes);
+		write(bytes);
+	}
+
+	/**
+	 * @return bytes that can be written without blocking
+	 */
+	public int getWritable() {
+		return closed ? 0 : transitAvailableToWrite.get();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return bytes the transit buffer can hold
+	 */
+	public int getCapacity() {
+		try {
+			bufferLock.lock();
+			return transitBuffer.capacity();
+
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Resizes the transit buffer, keeping any data waiting to be sent, so it never shrinks
+	 * below what's waiting
+	 * 
+	 * @param capacity
+	 * @return the capacity in effect
+	 */
+	public int setCapacity(int capacity) {
+		int resized;
+
+		try {
+			bufferLock.lock();
+
+			resized = Math.max(capacity, transitAvailableToRead.get());
+			if ( resized == transitBuffer.capacity() )
+				return resized;
+
+			if ( mode != BufferMode.READ )
+				transitBuffer.flip();
+
+			var buffer = ByteBuffer.allocate(resized);
+			buffer.put(transitBuffer);
+
+			transitBuffer = buffer;
+			mode = BufferMode.WRITE;
+
+			transitAvailableToWrite.set(resized - transitAvailableToRead.get());
+			spaceAvailableToWrite.signalAll();
+
+		} finally {
+			bufferLock.unlock();
+		}
+
+		notifyReadiness();
+		return resized;
+	}
+
+	/**
+	 * @param noDelay true to send writes as soon as possible, false to coalesce small writes
+	 */
+	public void setNoDelay(boolean noDelay) {
+		this.noDelay = noDelay;
+
+		try {
+			bufferLock.lock();
+			dataAvailableToRead.signalAll();
+
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	public boolean isNoDelay() {
+		return noDelay;
+	}
+
+	/**
+	 * @param readinessListener run when space opens up to write into, as the peer's window lets 
+	 * data go, or the stream is closed
+	 */
+	public void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+
+	private void notifyReadiness() {
+		var listener = readinessListener;
+		if ( listener != null )
+			listener.run();
+	}
+
+	/**
+	 * @return epoch millis at which the oldest unsent data was written
+	 */
+	public long getPendingSince() {
+		return pendingSince;
+	}
+
 	@Override
 	public void close() throws IOException {
 		logger.entering(this.getClass().getName(), "close");
@@ -299,6 +506,8 @@ public class StreamOutputStream extends OutputStream {
 		} finally {
 			bufferLock.unlock();
 		}
+		
+		notifyReadiness();
 
 		logger.exiting(this.getClass().getName(), "close");
 	}
@@ -309,6 +518,19 @@ public class StreamOutputStream extends OutputStream {
 
 		// TODO: wait until all transit buffer contents emptied
 		
+		// anything held back for coalescing goes now, with nothing held back there's nothing 
+		// to release, and left set it would stop the next small write coalescing
+		try {
+			bufferLock.lock();
+			if ( transitAvailableToRead.get() > 0 ) {
+				flushRequested = true;
+				dataAvailableToRead.signalAll();
+			}
+
+		} finally {
+			bufferLock.unlock();
+		}
+		
 		logger.exiting(this.getClass().getName(), "flush");
 	}
 
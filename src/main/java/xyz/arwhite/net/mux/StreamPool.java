@@ -0,0 +1,285 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps Streams already connected to stream ports on the peer, so a request/response client
+ * doesn't pay the connect round trip, Stream registration and thread start up on each request.
+ *
+ * Each stream port in use has its own pool, topped up in the background by a virtual thread as
+ * Streams are handed out. A pool not used for the idle timeout is closed, and is started again
+ * the next time its stream port is asked for.
+ *
+ * Pooled Streams are handed out once and never returned, closing one closes the Stream. Note the
+ * peer accepts each pooled Stream as it connects, so whatever serves the stream port sees idle
+ * connections, and each takes a Stream ID on the link.
+ *
+ * @author Alan R. White
+ *
+ */
+public class StreamPool {
+
+	static private final Logger logger = Logger.getLogger(StreamPool.class.getName());
+
+	private MuxSocketFactory socketFactory;
+	private int poolSize;
+	private long idleTimeout;
+
+	private ConcurrentHashMap<Integer, PortPool> pools = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * The Streams connected to one stream port, waiting to be handed out
+	 */
+	private class PortPool {
+
+		private final int streamPort;
+		private final LinkedBlockingDeque<Socket> idle = new LinkedBlockingDeque<>();
+
+		/**
+		 * Released each time a Stream is handed out, waking the filler
+		 */
+		private final Semaphore taken = new Semaphore(0);
+		private long lastUsed = System.currentTimeMillis();
+		private boolean retired = false;
+
+		PortPool(int streamPort) {
+			this.streamPort = streamPort;
+			Thread.ofVirtual().name("StreamPoolFiller-"+streamPort).start(this::fill);
+		}
+
+		/**
+		 * Notes the pool is in use, holding off it closing through being idle
+		 * @return false if the pool has already closed through being idle
+		 */
+		synchronized boolean use() {
+			if ( retired )
+				return false;
+
+			lastUsed = System.currentTimeMillis();
+			return true;
+		}
+
+		/**
+		 * Takes a pooled Stream and wakes the filler to replace it
+		 * @return a pooled Stream still open, or null if there's none
+		 */
+		Socket take() {
+			try {
+				Socket socket;
+				while( (socket = idle.pollFirst()) != null ) {
+					// the peer may have closed it while it waited
+					if ( !((MuxSocket) socket).getStream().isClosed() )
+						return socket;
+
+					closeQuietly(socket);
+				}
+
+				return null;
+
+			} finally {
+				taken.release();
+			}
+		}
+
+		private void fill() {
+			try {
+				while( !closed ) {
+					while( !closed && idle.size() < poolSize ) {
+						try {
+							idle.offerLast(socketFactory.createSocket("127.0.0.1", streamPort));
+						} catch (IOException e) {
+							// try again when next asked for
+							logger.log(Level.FINE, "unable to pre-connect to stream port "+streamPort, e);
+							break;
+						}
+					}
+
+					var woken = idleTimeout > 0
+							? taken.tryAcquire(idleTimeout, TimeUnit.MILLISECONDS)
+							: acquire();
+
+					if ( !woken && retireIfIdle() ) {
+						logger.fine("Stream pool for stream port "+streamPort+" idle, closing");
+						break;
+					}
+
+					taken.drainPermits();
+				}
+
+			} catch (InterruptedException e) {
+				// closing
+			}
+
+			pools.remove(streamPort, this);
+			drain();
+		}
+
+		private synchronized boolean retireIfIdle() {
+			retired = System.currentTimeMillis() - lastUsed >= idleTimeout;
+			return retired;
+		}
+
+		private boolean acquire() throws InterruptedException {
+			taken.acquire();
+			return true;
+		}
+
+		private void drain() {
+			Socket socket;
+			while( (socket = idle.pollFirst()) != null )
+				closeQuietly(socket);
+		}
+	}
+
+	private StreamPool(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.socketFactory = builder.socketFactory;
+		this.poolSize = builder.poolSize;
+		this.idleTimeout = builder.idleTimeout;
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Returns a Stream connected to the stream port, straight from the pool if one is ready
+	 * otherwise connected now. Either way the pool for the stream port is topped up.
+	 *
+	 * @param streamPort on the peer
+	 * @return
+	 * @throws IOException if a Stream has to be connected and can't be
+	 */
+	public Socket acquire(int streamPort) throws IOException {
+		logger.entering(this.getClass().getName(), "acquire", streamPort);
+
+		if ( closed )
+			throw(new IOException("StreamPool is closed"));
+
+		PortPool pool;
+		while( !(pool = pools.computeIfAbsent(streamPort, PortPool::new)).use() )
+			pools.remove(streamPort, pool);
+
+		var socket = pool.take();
+
+		if ( socket == null ) {
+			logger.fine("Stream pool for stream port "+streamPort+" empty, connecting");
+			socket = socketFactory.createSocket("127.0.0.1", streamPort);
+		}
+
+		logger.exiting(this.getClass().getName(), "acquire", socket);
+		return socket;
+	}
+
+	/**
+	 * Starts filling the pool for a stream port ahead of it being used
+	 * @param streamPort
+	 */
+	public void prewarm(int streamPort) {
+		if ( !closed )
+			pools.computeIfAbsent(streamPort, PortPool::new);
+	}
+
+	/**
+	 * @param streamPort
+	 * @return number of Streams ready to be handed out for the stream port
+	 */
+	public int getIdleCount(int streamPort) {
+		var pool = pools.get(streamPort);
+		return pool == null ? 0 : pool.idle.size();
+	}
+
+	/**
+	 * Stops filling the pools and closes the Streams waiting in them. Streams already handed
+	 * out are unaffected.
+	 */
+	public void close() {
+		logger.entering(this.getClass().getName(), "close");
+
+		closed = true;
+
+		pools.values().forEach(pool -> {
+			pool.taken.release();
+			pool.drain();
+		});
+
+		logger.exiting(this.getClass().getName(), "close");
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "close failed", e);
+		}
+	}
+
+	public static class Builder {
+
+		MuxSocketFactory socketFactory;
+		int poolSize = 4;
+		long idleTimeout = 60000;
+		int[] streamPorts = new int[0];
+
+		public Builder withMux(StreamController controller) {
+			this.socketFactory = new MuxSocketFactory.Builder().withMux(controller).build();
+			return this;
+		}
+
+		public Builder withSocketFactory(MuxSocketFactory socketFactory) {
+			this.socketFactory = socketFactory;
+			return this;
+		}
+
+		/**
+		 * @param poolSize Streams kept ready for each stream port in use
+		 * @return
+		 */
+		public Builder withPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+			return this;
+		}
+
+		/**
+		 * @param idleTimeout millis a stream port's pool is kept without being used, 0 to keep it
+		 * until the StreamPool is closed
+		 * @return
+		 */
+		public Builder withIdleTimeout(long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+
+		/**
+		 * @param streamPorts filled as soon as the StreamPool is built
+		 * @return
+		 */
+		public Builder withStreamPorts(int... streamPorts) {
+			this.streamPorts = streamPorts;
+			return this;
+		}
+
+		public StreamPool build() {
+
+			if ( socketFactory == null )
+				throw(new IllegalStateException("no StreamController specified"));
+
+			if ( poolSize < 1 || idleTimeout < 0 )
+				throw(new IllegalArgumentException("pool size must be positive and idle timeout not negative"));
+
+			var pool = new StreamPool(this);
+
+			for( var streamPort : streamPorts )
+				pool.prewarm(streamPort);
+
+			return pool;
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package xyz.arwhite.net.mux;
 
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,6 +11,11 @@ public class StreamServer {
 
 	static private final Logger logger = Logger.getLogger(StreamServer.class.getName());
 	
+	/**
+	 * Connections waiting to be accepted, unless a backlog is set
+	 */
+	public static final int DEFAULT_BACKLOG = 16;
+	
 	/**
 	 * The controller of all IO on the underlying connection supporting the multiplexed streams.
 	 */
@@ -33,7 +39,23 @@ public class StreamServer {
 	 * Any caller of the {@link #accept Accept} method of the StreamServer is suspended waiting 
 	 * for an entry in this queue.
 	 */
-	private ArrayBlockingQueue<ConnectionEntry> connections = new ArrayBlockingQueue<>(16);
+	private LinkedBlockingQueue<ConnectionEntry> connections = new LinkedBlockingQueue<>();
+	
+	/**
+	 * Most connections waiting to be accepted, beyond which connect requests are failed
+	 */
+	private volatile int backlog = DEFAULT_BACKLOG;
+	
+	/**
+	 * Shares the stream port with other StreamServers also reusing it, each connect request to
+	 * the stream port going to one of them
+	 */
+	private boolean reusePort;
+	
+	/**
+	 * Told whenever a connection is waiting to be accepted, e.g. by a selector
+	 */
+	private volatile Runnable readinessListener;
 
 	/**
 	 * Defines an entry in the connections queue. The {@link java.util.concurrent.CompletableFuture 
@@ -55,11 +77,27 @@ public class StreamServer {
 	 * @param port the logical stream port that this StreamServer listens on
 	 */
 	public StreamServer(StreamController controller, int port) {
+		this(controller, port, false);
+	}
+
+	/**
+	 * Direct constructor, optionally sharing the stream port. Connect requests to a shared stream
+	 * port are spread across its StreamServers, each going to the one with the fewest connections
+	 * waiting to be accepted, so accepting can be spread across threads or components each with
+	 * their own StreamServer. A stream port can only be shared if every StreamServer on it reuses
+	 * the port.
+	 * 
+	 * @param controller the controller of the underlying connection over which Streams are multiplexed
+	 * @param port the logical stream port that this StreamServer listens on
+	 * @param reusePort true to share the stream port with other StreamServers reusing it
+	 */
+	public StreamServer(StreamController controller, int port, boolean reusePort) {
 		logger.entering(this.getClass().getName(), "Constructor", 
-				new Object[] { controller, Integer.valueOf(port) });
+				new Object[] { controller, Integer.valueOf(port), reusePort });
 		
 		this.controller = controller;
 		this.port = port;
+		this.reusePort = reusePort;
 
 		if ( port == 0 ) {
 			// find a free port in a brute force fashion
@@ -83,31 +121,36 @@ public class StreamServer {
 	 * @param stream
 	 * @return
 	 */
-	public boolean connectStream(Stream stream) {
+	public synchronized boolean connectStream(Stream stream) {
 		logger.entering(this.getClass().getName(), "connectStream", stream);
 		
 		var conn = new ConnectionEntry(new CompletableFuture<Void>(), stream);
 
 		var outcome = false; 
 		
-		if ( connections.offer(conn) ) {
+		// connects may be dispatched in parallel, synchronized so the check holds until the offer
+		if ( connections.size() < backlog && connections.offer(conn) ) {
 
-			controller.send(
-					StreamBuffers.createConnectConfirm(
-							stream.getPriority(), 
-							stream.getRemoteId(), 
-							stream.getLocalId()));
-
-			// tell stream it is now connected
-			stream.setConnected();
+			/*
+			 * A Stream to be relayed onwards is confirmed by whoever accepts it, once it
+			 * has reached its destination, see Stream.confirmConnect()
+			 */
+			if ( stream.getDestination() == null ) {
+				// tell stream it is now connected, before the peer can send on it
+				stream.sendConnectConfirm();
+			}
 			
 			conn.connected().complete(null);
 
 			outcome = true;
+			
+			var listener = readinessListener;
+			if ( listener != null )
+				listener.run();
 
 		} else {	
 
-			controller.send(
+			controller.send(stream,
 					StreamBuffers.createConnectFail(
 							stream.getPriority(), 
 							stream.getRemoteId(), 
@@ -141,18 +184,99 @@ public class StreamServer {
 		return outcome;
 	}
 
+	/**
+	 * Waits a limited time for a new {@link xyz.arwhite.net.mux.Stream Stream}
+	 * @param timeout millis
+	 * @return the Stream, or null if none arrived in time
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public Stream accept(long timeout) throws InterruptedException, ExecutionException {
+		logger.entering(this.getClass().getName(), "accept", timeout);
+		
+		var conn = connections.poll(timeout, TimeUnit.MILLISECONDS);
+		if ( conn == null )
+			return null;
+		
+		// wait for the connect confirm to be sent
+		if ( !conn.connected.isDone() ) 
+			conn.connected.get();
+		
+		logger.exiting(this.getClass().getName(), "accept", conn.stream());
+		return conn.stream();
+	}
+
+	/**
+	 * Takes a connection waiting to be accepted without blocking
+	 * @return the Stream, or null if none is waiting
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public Stream poll() throws InterruptedException, ExecutionException {
+		logger.entering(this.getClass().getName(), "poll");
+		
+		var conn = connections.poll();
+		if ( conn == null )
+			return null;
+		
+		// wait for the connect confirm to be sent, moments at most
+		if ( !conn.connected.isDone() ) 
+			conn.connected.get();
+		
+		logger.exiting(this.getClass().getName(), "poll", conn.stream());
+		return conn.stream();
+	}
+
+	/**
+	 * @param readinessListener run, on the dispatching thread, when a connection is waiting to
+	 * be accepted. Must not block.
+	 */
+	public void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+
 	/**
 	 * Stop new Streams being received on this StreamServers stream port
 	 */
 	public void close() {
 		logger.entering(this.getClass().getName(), "close");
 		
-		if ( !controller.deregisterStreamServer(port) ) 
+		var outcome = reusePort
+				? controller.deregisterStreamServer(port, this)
+				: controller.deregisterStreamServer(port);
+		
+		if ( !outcome ) 
 			throw (new IllegalArgumentException("port not in use"));
 		
 		logger.exiting(this.getClass().getName(), "close");
 	}
 
+	/**
+	 * @param backlog most connections waiting to be accepted, beyond which connect requests are
+	 * failed. Connections already waiting are kept if there are more than a reduced backlog.
+	 */
+	public void setBacklog(int backlog) {
+		if ( backlog < 1 )
+			throw(new IllegalArgumentException("backlog must be positive"));
+		
+		this.backlog = backlog;
+	}
+	
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * @return number of connections waiting to be accepted
+	 */
+	public int getPendingCount() {
+		return connections.size();
+	}
+	
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
 	public int getPort() {
 		logger.entering(this.getClass().getName(), "getPort");
 		
@@ -0,0 +1,126 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * A link over a plain TCP connection, the counterpart of {@link WsMessageLink} for use where
+ * there's no HTTP infrastructure to traverse. Messages are exchanged by a
+ * {@link ChannelMessageHandler}, which a StreamController uses like any other MessageBroker.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TcpMessageLink extends ChannelMessageLink {
+
+	static private final Logger logger = Logger.getLogger(TcpMessageLink.class.getName());
+
+	private String host;
+	private int localPort;
+
+	private TcpMessageLink(Builder builder) {
+		super(builder.messageBroker, builder.server);
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.host = builder.host;
+		this.localPort = builder.port;
+
+		logger.info("TCP link" + (isServer ? " listening on " : " connected to ") + this.host + ":" + localPort);
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	public static class Builder {
+
+		ChannelMessageHandler messageBroker;
+		String host = "127.0.0.1";
+		int port = 0;
+		ServerSocketChannel server;
+
+		public Builder withMessageBroker(ChannelMessageHandler messageBroker) {
+			this.messageBroker = messageBroker;
+			return this;
+		}
+
+		public Builder withHost(String host) {
+			this.host = host;
+			return this;
+		}
+
+		public Builder withPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Returns a TcpMessageLink that initiated and connected to a remote peer
+		 * @return
+		 */
+		public TcpMessageLink connect() {
+			logger.entering(this.getClass().getName(), "connect");
+
+			if ( messageBroker == null )
+				messageBroker = new ChannelMessageHandler();
+
+			try {
+				var channel = SocketChannel.open(new InetSocketAddress(host, port));
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				messageBroker.open(channel);
+
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to connect to "+host+":"+port, e));
+			}
+
+			var link = new TcpMessageLink(this);
+
+			logger.exiting(this.getClass().getName(), "connect", link);
+			return link;
+		}
+
+		/**
+		 * Returns a TcpMessageLink listening for the peer to connect. The link carries the
+		 * first connection accepted, later connections are refused.
+		 * @return
+		 */
+		public TcpMessageLink listen() {
+			logger.entering(this.getClass().getName(), "listen");
+
+			if ( messageBroker == null )
+				messageBroker = new ChannelMessageHandler();
+
+			try {
+				server = ServerSocketChannel.open();
+				server.bind(new InetSocketAddress(host, port));
+				port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to listen on "+host+":"+port, e));
+			}
+
+			var link = new TcpMessageLink(this);
+			link.startAccepting("TcpAcceptor");
+
+			logger.exiting(this.getClass().getName(), "listen", link);
+			return link;
+		}
+	}
+
+	@Override
+	protected void configure(SocketChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+
+	@Override
+	protected String describe() {
+		return "TCP link";
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+}
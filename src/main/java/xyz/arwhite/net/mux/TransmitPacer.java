@@ -0,0 +1,292 @@
+package xyz.arwhite.net.mux;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Paces writes to the underlying transport so that queueing happens in our priority scheduler
+ * rather than in the kernel socket buffer. Once a frame has been handed to the transport it
+ * can't be overtaken, so the fewer bytes sitting below us the sooner an urgent frame goes out.
+ *
+ * Bytes handed to the transport are tracked as an estimate of bytes in flight, which drains
+ * at the pacing rate. The sender waits until the estimate is below the in flight limit before
+ * choosing the next frame to send.
+ *
+ * The pacing rate is either configured, or estimated from the rate the peer acknowledges data.
+ * The rate data is handed to the transport says nothing about the link, it's whatever we paced
+ * at, so the estimate is taken from the keepalive PINGs, see {@link LinkMonitor}. Frames on a
+ * link arrive in order, so the PONG answering a PING acknowledges every byte written before it,
+ * and each PONG gives a delivery rate sample of the bytes acknowledged since the last over the
+ * time between them. Without keepalives there's nothing to estimate from and writes aren't paced.
+ *
+ * Estimation follows the shape of BBR, a windowed max filter of delivery rate samples, a startup
+ * phase that grows the rate quickly, then a gain cycle that periodically probes for more bandwidth
+ * and drains any queue the probe built up. A probe only raises the estimate if the acknowledgements
+ * keep up with it, and samples taken while the link is slower age out of the filter.
+ *
+ * The transmit sender thread paces itself, PONGs are acknowledged on the receiving thread.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TransmitPacer {
+
+	static private final Logger logger = Logger.getLogger(TransmitPacer.class.getName());
+
+	/**
+	 * Number of samples retained by the max filter
+	 */
+	private static final int RATE_WINDOW = 10;
+
+	/**
+	 * PINGs awaiting a PONG, older ones are assumed lost
+	 */
+	private static final int MAX_OUTSTANDING_PINGS = 16;
+
+	private static final double STARTUP_GAIN = 2.0;
+	private static final double[] PROBE_GAIN_CYCLE = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+
+	/**
+	 * Startup ends when the estimate grows less than this over this many samples
+	 */
+	private static final double STARTUP_GROWTH = 1.25;
+	private static final int STARTUP_ROUNDS = 3;
+
+	private final LongSupplier nanoClock;
+	private final long configuredRate;
+	private final int maxBytesInFlight;
+
+	private double bytesInFlight = 0;
+	private long lastDrain;
+
+	/**
+	 * Position of a PING in the bytes written to the transport
+	 *
+	 * @param id of the PING
+	 * @param bytesSent total bytes written up to and including the PING
+	 * @param sentAt when the PING was written
+	 * @param appLimited true if the sender ran out of frames since the previous PING
+	 */
+	private record PingMark(int id, long bytesSent, long sentAt, boolean appLimited) {}
+
+	// delivery rate estimation
+	private final long[] rateSamples = new long[RATE_WINDOW];
+	private int sampleIndex = 0;
+	private long bytesSent = 0;
+	private boolean appLimited = false;
+	private final ArrayDeque<Integer> pingsTaken = new ArrayDeque<>();
+	private final ArrayDeque<PingMark> pingsSent = new ArrayDeque<>();
+	private PingMark lastAcknowledged;
+	private long lastAcknowledgedAt;
+
+	private boolean startup = true;
+	private long startupBaseline = 0;
+	private int startupRoundsWithoutGrowth = 0;
+	private int gainIndex = 0;
+
+	/**
+	 * @param pacingRate bytes per second to pace at, or 0 to estimate the rate
+	 * @param maxBytesInFlight limit on the estimate of bytes queued below us
+	 */
+	public TransmitPacer(long pacingRate, int maxBytesInFlight) {
+		this(pacingRate, maxBytesInFlight, System::nanoTime);
+	}
+
+	protected TransmitPacer(long pacingRate, int maxBytesInFlight, LongSupplier nanoClock) {
+		logger.entering(this.getClass().getName(), "Constructor",
+				new Object[] { Long.valueOf(pacingRate), Integer.valueOf(maxBytesInFlight) });
+
+		if ( pacingRate < 0 || maxBytesInFlight < 1 )
+			throw(new IllegalArgumentException("pacing rate must not be negative and bytes in flight must be positive"));
+
+		this.configuredRate = pacingRate;
+		this.maxBytesInFlight = maxBytesInFlight;
+		this.nanoClock = nanoClock;
+		this.lastDrain = nanoClock.getAsLong();
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Blocks the calling thread until the bytes in flight estimate is below the limit
+	 * @throws InterruptedException
+	 */
+	public void awaitReady() throws InterruptedException {
+		long wait;
+		while( (wait = nanosUntilReady()) > 0 ) {
+			LockSupport.parkNanos(wait);
+
+			if ( Thread.interrupted() )
+				throw(new InterruptedException());
+		}
+	}
+
+	/**
+	 * @return nanoseconds until another frame may be sent, 0 if one may be sent now
+	 */
+	public synchronized long nanosUntilReady() {
+		drain();
+
+		if ( bytesInFlight < maxBytesInFlight )
+			return 0;
+
+		var rate = getPacingRate();
+
+		// no estimate yet, nothing to pace against
+		if ( rate == 0 )
+			return 0;
+
+		var excess = bytesInFlight - maxBytesInFlight + 1;
+		return Math.max(1, (long) (excess * TimeUnit.SECONDS.toNanos(1) / rate));
+	}
+
+	/**
+	 * Records a frame handed to the transport
+	 *
+	 * @param bytes size of the frame
+	 * @param backlogged true if more frames were waiting to be sent, false if the sender is
+	 * limited by the application rather than the link
+	 */
+	public synchronized void sent(int bytes, boolean backlogged) {
+		drain();
+		bytesInFlight += bytes;
+		bytesSent += bytes;
+
+		if ( !backlogged )
+			appLimited = true;
+
+		// the PINGs taken went out in this write
+		Integer id;
+		while( (id = pingsTaken.poll()) != null ) {
+			if ( pingsSent.size() == MAX_OUTSTANDING_PINGS )
+				pingsSent.poll();
+
+			pingsSent.add(new PingMark(id, bytesSent, nanoClock.getAsLong(), appLimited));
+			appLimited = false;
+		}
+	}
+
+	/**
+	 * Records a PING taken by the sender, it's placed in the byte stream by the next call to
+	 * {@link #sent}
+	 *
+	 * @param id of the PING
+	 */
+	public synchronized void pingTaken(int id) {
+		pingsTaken.add(id);
+	}
+
+	/**
+	 * Records the PONG answering a PING, acknowledging every byte written before the PING
+	 *
+	 * @param id of the PING answered
+	 */
+	public synchronized void pongReceived(int id) {
+		var now = nanoClock.getAsLong();
+
+		// PONGs come back in order, earlier PINGs not yet answered were lost
+		var limited = false;
+		PingMark mark;
+		while( (mark = pingsSent.poll()) != null && mark.id() != id )
+			limited |= mark.appLimited();
+
+		if ( mark == null ) {
+			logger.fine("PONG "+id+" doesn't answer a PING written on this link");
+			return;
+		}
+
+		var previous = lastAcknowledged;
+		var previousAt = lastAcknowledgedAt;
+		limited |= mark.appLimited();
+
+		lastAcknowledged = mark;
+		lastAcknowledgedAt = now;
+
+		if ( previous == null )
+			return;
+
+		// the longer of the two, so a burst of PONGs can't overstate the rate
+		var elapsed = Math.max(now - previousAt, mark.sentAt() - previous.sentAt());
+		if ( elapsed > 0 )
+			sample((mark.bytesSent() - previous.bytesSent()) * TimeUnit.SECONDS.toNanos(1) / elapsed, limited);
+	}
+
+	/**
+	 * @return bytes per second currently being paced at, 0 if not yet known
+	 */
+	public synchronized long getPacingRate() {
+		if ( configuredRate > 0 )
+			return configuredRate;
+
+		var estimate = getEstimatedRate();
+		var gain = startup ? STARTUP_GAIN : PROBE_GAIN_CYCLE[gainIndex];
+
+		return (long) (estimate * gain);
+	}
+
+	/**
+	 * @return the max filtered delivery rate in bytes per second, 0 if not yet known
+	 */
+	public synchronized long getEstimatedRate() {
+		long max = 0;
+		for( var sample : rateSamples )
+			max = Math.max(max, sample);
+
+		return max;
+	}
+
+	/**
+	 * @return estimate of the bytes handed to the transport not yet delivered to the link
+	 */
+	public synchronized int getBytesInFlight() {
+		drain();
+		return (int) Math.ceil(bytesInFlight);
+	}
+
+	public int getMaxBytesInFlight() {
+		return maxBytesInFlight;
+	}
+
+	private void drain() {
+		var now = nanoClock.getAsLong();
+		var rate = getPacingRate();
+
+		if ( rate == 0 )
+			// unknown rate, assume the transport absorbed everything
+			bytesInFlight = 0;
+		else
+			bytesInFlight = Math.max(0, bytesInFlight - (double) rate * (now - lastDrain) / TimeUnit.SECONDS.toNanos(1));
+
+		lastDrain = now;
+	}
+
+	/**
+	 * App limited samples understate the link, so they only count if they raise the estimate
+	 */
+	private void sample(long rate, boolean appLimited) {
+		var estimate = getEstimatedRate();
+
+		if ( !appLimited || rate > estimate ) {
+			rateSamples[sampleIndex] = rate;
+			sampleIndex = (sampleIndex + 1) % RATE_WINDOW;
+		}
+
+		if ( startup ) {
+			var newEstimate = getEstimatedRate();
+
+			if ( newEstimate >= startupBaseline * STARTUP_GROWTH ) {
+				startupBaseline = newEstimate;
+				startupRoundsWithoutGrowth = 0;
+
+			} else if ( !appLimited && ++startupRoundsWithoutGrowth >= STARTUP_ROUNDS ) {
+				logger.fine("pacing startup complete, estimated rate "+newEstimate+" bytes/s");
+				startup = false;
+			}
+
+		} else
+			gainIndex = (gainIndex + 1) % PROBE_GAIN_CYCLE.length;
+	}
+}
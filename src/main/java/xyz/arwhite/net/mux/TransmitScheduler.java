@@ -0,0 +1,657 @@
+package xyz.arwhite.net.mux;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import io.helidon.common.buffers.BufferData;
+
+/**
+ * Decides the order frames are written to the underlying transport.
+ *
+ * Frames are held on one of three lanes:
+ * - control, frames identified by {@link StreamBuffers#isControlFrame}, always sent first
+ * - deadline, frames carrying a deadline, sent earliest deadline first within a reserved share
+ * of the bytes sent
+ * - data, everything else, held per bandwidth group and sent in priority order within a group,
+ * see {@link PriorityQueueEntry}
+ *
+ * The deadline lane earns credit as data frames are sent, in proportion to its share, and spends
+ * it as deadline frames are sent. This stops latency sensitive Streams from starving bulk ones.
+ * When there's no data waiting the deadline lane may use the whole link.
+ *
+ * Bandwidth groups share the data lane by weight, using deficit round robin over bytes sent, and
+ * may be capped to a rate. A group's deadline frames are charged to its cap too, so a deadline
+ * can't be used to exceed it. Group 0 always exists, frames for an unknown group are placed in it.
+ *
+ * Any number of threads may offer frames, only a single sender thread may take them.
+ *
+ * @author Alan R. White
+ *
+ */
+public class TransmitScheduler {
+
+	static private final Logger logger = Logger.getLogger(TransmitScheduler.class.getName());
+
+	/**
+	 * Limit on the credit the deadline lane can accumulate while it is idle
+	 */
+	private static final long MAX_DEADLINE_CREDIT = 65536;
+
+	/**
+	 * Bytes a group of weight 1 may send each deficit round robin round
+	 */
+	private static final int GROUP_QUANTUM = 8192;
+
+	/**
+	 * Millis the sender waits when nothing may be sent but no group is waiting out its cap, e.g.
+	 * a deadline frame held back by the deadline share
+	 */
+	private static final long MIN_WAIT = 1;
+
+	/**
+	 * The group that always exists, and receives frames for unknown groups
+	 */
+	public static final int DEFAULT_GROUP = 0;
+
+	private final Clock clock;
+	private final int queueDepth;
+
+	private final LinkedBlockingQueue<PriorityQueueEntry> controlQueue = new LinkedBlockingQueue<>();
+
+	private final ConcurrentHashMap<Integer, BandwidthGroup> groups = new ConcurrentHashMap<>();
+	private final List<BandwidthGroup> groupRotation = new ArrayList<>();
+	private int currentGroup = 0;
+
+	/**
+	 * Counts entries across all lanes so the sender can block on any of them
+	 */
+	private final Semaphore pending = new Semaphore(0);
+
+	/**
+	 * The sender while it's in take, woken by offers when waiting for a group to refill
+	 */
+	private volatile Thread sender;
+
+	private final double deadlineShare;
+	private long deadlineCredit = MAX_DEADLINE_CREDIT;
+
+	private final AtomicLong deadlinesMet = new AtomicLong(0);
+	private final AtomicLong deadlinesMissed = new AtomicLong(0);
+	private final AtomicLong maxLateness = new AtomicLong(0);
+
+	private TransmitPacer pacer;
+
+	/**
+	 * Orders frames offered with the same timestamp, or in the deadline lane the same deadline,
+	 * so never resets while deadlines span many millis of offers
+	 */
+	private long txSequence = 0;
+
+	/**
+	 * Settings of a bandwidth group, as collected by the message handler builders
+	 */
+	record GroupSettings(int group, int weight, long rateCap) {}
+
+	/**
+	 * In the deadline lane the entry timestamp holds the deadline
+	 */
+	private static final Comparator<PriorityQueueEntry> EARLIEST_DEADLINE =
+			Comparator.comparingLong(PriorityQueueEntry::timestamp)
+			.thenComparingLong(PriorityQueueEntry::sequence);
+
+	/**
+	 * A share of the data lane. Frames within a group are sent in priority order, its deadline
+	 * frames wait in the deadline lane.
+	 */
+	private class BandwidthGroup {
+		final PriorityBlockingQueue<PriorityQueueEntry> queue;
+		final PriorityBlockingQueue<PriorityQueueEntry> deadlines;
+		volatile int weight;
+		volatile long rateCap;
+
+		long deficit = 0;
+		boolean quantumDue = true;
+
+		double tokens = 0;
+		long lastRefill;
+
+		BandwidthGroup(int weight, long rateCap) {
+			this.queue = new PriorityBlockingQueue<>(queueDepth);
+			this.deadlines = new PriorityBlockingQueue<>(queueDepth, EARLIEST_DEADLINE);
+			this.weight = weight;
+			this.rateCap = rateCap;
+			this.lastRefill = clock.millis();
+			this.tokens = depth();
+		}
+
+		/**
+		 * Burst a capped group may send after being idle
+		 */
+		long depth() {
+			return Math.max(rateCap / 10, GROUP_QUANTUM);
+		}
+
+		/**
+		 * A capped group may send while it has tokens, which refill at the capped rate
+		 */
+		boolean eligible(long now) {
+			if ( rateCap <= 0 )
+				return true;
+
+			tokens = Math.min(depth(), tokens + (double) rateCap * (now - lastRefill) / 1000);
+			lastRefill = now;
+
+			return tokens > 0;
+		}
+
+		long millisUntilEligible() {
+			if ( rateCap <= 0 || tokens > 0 )
+				return 0;
+
+			return Math.max(1, (long) Math.ceil(-tokens * 1000 / rateCap));
+		}
+
+		void charge(int size) {
+			if ( rateCap > 0 )
+				tokens -= size;
+		}
+	}
+
+	/**
+	 * @param clock source of timestamps and deadlines
+	 * @param queueDepth initial capacity of the data and deadline lanes
+	 * @param deadlineShare fraction of bytes sent reserved for the deadline lane, 0 to 1 exclusive
+	 */
+	public TransmitScheduler(Clock clock, int queueDepth, double deadlineShare) {
+		logger.entering(this.getClass().getName(), "Constructor",
+				new Object[] { clock, Integer.valueOf(queueDepth), Double.valueOf(deadlineShare) });
+
+		if ( deadlineShare < 0 || deadlineShare >= 1 )
+			throw(new IllegalArgumentException("deadline share must be at least 0 and less than 1"));
+
+		this.clock = clock;
+		this.queueDepth = queueDepth;
+		this.deadlineShare = deadlineShare;
+
+		setBandwidthGroup(DEFAULT_GROUP, 1, 0);
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Defines, or redefines, a bandwidth group
+	 *
+	 * @param group identity of the group
+	 * @param weight share of the data lane relative to the weights of other groups
+	 * @param rateCap maximum bytes per second the group may send, 0 for no cap
+	 */
+	public void setBandwidthGroup(int group, int weight, long rateCap) {
+		logger.entering(this.getClass().getName(), "setBandwidthGroup",
+				new Object[] { Integer.valueOf(group), Integer.valueOf(weight), Long.valueOf(rateCap) });
+
+		if ( weight < 1 || rateCap < 0 )
+			throw(new IllegalArgumentException("weight must be positive and rate cap must not be negative"));
+
+		synchronized(groupRotation) {
+			var existing = groups.get(group);
+
+			if ( existing != null ) {
+				existing.weight = weight;
+				existing.rateCap = rateCap;
+			} else {
+				var bg = new BandwidthGroup(weight, rateCap);
+				groups.put(group, bg);
+				groupRotation.add(bg);
+			}
+		}
+
+		logger.exiting(this.getClass().getName(), "setBandwidthGroup");
+	}
+
+	void setBandwidthGroup(GroupSettings settings) {
+		setBandwidthGroup(settings.group(), settings.weight(), settings.rateCap());
+	}
+
+	/**
+	 * Paces the frames taken by the sender, see {@link TransmitPacer}
+	 * @param pacer
+	 */
+	public void setPacer(TransmitPacer pacer) {
+		this.pacer = pacer;
+	}
+
+	public TransmitPacer getPacer() {
+		return pacer;
+	}
+
+	/**
+	 * Queues a frame. Priority is specified in the first byte of the BufferData.
+	 *
+	 * @param buffer the frame
+	 * @param deadline clock millis by which the frame should be sent, 0 if it has no deadline
+	 * @return true if queued
+	 */
+	public boolean offer(BufferData buffer, long deadline) {
+		return offer(buffer, DEFAULT_GROUP, deadline);
+	}
+
+	/**
+	 * Queues a frame. Priority is specified in the first byte of the BufferData.
+	 *
+	 * @param buffer the frame
+	 * @param group bandwidth group the frame is charged to
+	 * @param deadline clock millis by which the frame should be sent, 0 if it has no deadline
+	 * @return true if queued
+	 */
+	public boolean offer(BufferData buffer, int group, long deadline) {
+		PriorityQueueEntry entry;
+		boolean outcome;
+
+		synchronized(this) {
+			var now = clock.millis();
+			++txSequence;
+
+			if ( StreamBuffers.isControlFrame(buffer) ) {
+				entry = new PriorityQueueEntry(StreamBuffers.CONTROL_PRIORITY,now,txSequence,buffer,true);
+				outcome = controlQueue.add(entry);
+
+			} else {
+				var bg = groups.getOrDefault(group, groups.get(DEFAULT_GROUP));
+
+				if ( deadline > 0 ) {
+					entry = new PriorityQueueEntry((byte) buffer.get(0),deadline,txSequence,buffer);
+					outcome = bg.deadlines.add(entry);
+				} else {
+					entry = new PriorityQueueEntry((byte) buffer.get(0),now,txSequence,buffer);
+					outcome = bg.queue.add(entry);
+				}
+			}
+		}
+
+		if ( outcome )
+			released();
+
+		return outcome;
+	}
+
+	/**
+	 * Counts a frame queued, waking the sender if it's waiting out a rate cap as the frame may
+	 * be one that can go now
+	 */
+	private void released() {
+		pending.release();
+
+		var waiting = sender;
+		if ( waiting != null )
+			LockSupport.unpark(waiting);
+	}
+
+	/**
+	 * Queues the priority 0 marker that tells the sender to drain all lanes and stop
+	 */
+	public void offerShutdown() {
+		var command = BufferData.create(1);
+		command.writeInt8(0);
+		groups.get(DEFAULT_GROUP).queue.add(new PriorityQueueEntry((byte) 0,clock.millis(),0,command));
+		released();
+	}
+
+	/**
+	 * Blocks the sender until a frame may be sent, respecting any pacer and group rate caps.
+	 *
+	 * @return the next frame to send
+	 * @throws InterruptedException
+	 */
+	public PriorityQueueEntry take() throws InterruptedException {
+		sender = Thread.currentThread();
+
+		try {
+			while( true ) {
+				pending.acquire();
+
+				// wait before choosing, so anything more urgent queued meanwhile goes first
+				if ( pacer != null )
+					pacer.awaitReady();
+
+				var qe = next();
+				if ( qe != null )
+					return taken(qe);
+
+				// frames held back by rate caps or the deadline share, put the permit back and wait 
+				// for a group to refill, or for an offer that might be sent straight away
+				pending.release();
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_WAIT, millisUntilEligible())));
+
+				if ( Thread.interrupted() )
+					throw(new InterruptedException());
+			}
+
+		} finally {
+			sender = null;
+		}
+	}
+
+	/**
+	 * Takes a further frame only if one may be sent straight away, letting a sender batch
+	 * frames into a single write to the transport.
+	 *
+	 * @return the next frame to send, or null if the sender would have to wait
+	 */
+	public PriorityQueueEntry tryTake() {
+		if ( pacer != null && pacer.nanosUntilReady() > 0 )
+			return null;
+
+		if ( !pending.tryAcquire() )
+			return null;
+
+		var qe = next();
+		if ( qe == null )
+			pending.release();
+
+		return qe == null ? null : taken(qe);
+	}
+
+	/**
+	 * Informs the scheduler a PONG answered one of the PINGs it sent
+	 * @param id of the PING
+	 */
+	public void pongReceived(int id) {
+		if ( pacer != null )
+			pacer.pongReceived(id);
+	}
+
+	/**
+	 * Informs the scheduler a frame taken has been written to the transport
+	 * @param bytes size of the frame
+	 */
+	public void sent(int bytes) {
+		if ( pacer != null )
+			pacer.sent(bytes, hasPending());
+	}
+
+	/**
+	 * Lets the pacer place PINGs in the bytes written, their PONGs acknowledge delivery
+	 */
+	private PriorityQueueEntry taken(PriorityQueueEntry qe) {
+		if ( pacer != null && StreamBuffers.getBufferType(qe.message()) == StreamBuffers.PING )
+			pacer.pingTaken(StreamBuffers.parsePingId(qe.message()));
+
+		return qe;
+	}
+
+	/**
+	 * @return true if further frames are waiting to be sent
+	 */
+	public boolean hasPending() {
+		return pending.availablePermits() > 0;
+	}
+
+	/**
+	 * Chooses the next frame to send. Only called by the sender thread.
+	 *
+	 * @return the frame, or null if no lane has a frame that may be sent now
+	 */
+	public PriorityQueueEntry next() {
+		var qe = controlQueue.poll();
+		if ( qe != null )
+			return qe;
+
+		if ( deadlineCredit > 0 || !hasData() ) {
+			qe = nextDeadline();
+
+			if ( qe != null ) {
+				deadlineCredit -= qe.message().available();
+				recordDeadline(qe.timestamp());
+				return qe;
+			}
+		}
+
+		qe = nextData();
+		if ( qe != null && deadlineShare > 0 )
+			deadlineCredit = Math.min(MAX_DEADLINE_CREDIT,
+					deadlineCredit + (long) (qe.message().available() * deadlineShare / (1 - deadlineShare)));
+
+		return qe;
+	}
+
+	/**
+	 * Removes the next frame regardless of shares and caps, used when draining
+	 * @return the frame, or null if all lanes are empty
+	 */
+	public PriorityQueueEntry poll() {
+		var qe = controlQueue.poll();
+
+		if ( qe == null )
+			for( var bg : groups.values() )
+				if ( (qe = bg.deadlines.poll()) != null )
+					break;
+
+		if ( qe == null )
+			for( var bg : groups.values() )
+				if ( (qe = bg.queue.poll()) != null )
+					break;
+
+		return qe;
+	}
+
+	/**
+	 * Removes all queued DATA frames, other frames remain queued in order
+	 * @return the number of frames removed
+	 */
+	public int discardData() {
+		int removed = 0;
+		
+		for( var bg : groups.values() ) {
+			removed += removeData(bg.deadlines);
+			removed += removeData(bg.queue);
+		}
+
+		for( int i = 0; i < removed; i++ )
+			pending.tryAcquire();
+
+		return removed;
+	}
+
+	private int removeData(Queue<PriorityQueueEntry> queue) {
+		int removed = 0;
+		
+		for( var entry : queue )
+			if ( entry.message().available() > 2 && entry.message().get(2) == StreamBuffers.DATA 
+					&& entry.priority() != 0 && queue.remove(entry) )
+				removed++;
+
+		return removed;
+	}
+
+	/**
+	 * Earliest deadline first across the groups that are within their caps
+	 */
+	private PriorityQueueEntry nextDeadline() {
+		var now = clock.millis();
+
+		synchronized(groupRotation) {
+			BandwidthGroup earliest = null;
+			PriorityQueueEntry earliestHead = null;
+
+			for( var bg : groupRotation ) {
+				var head = bg.deadlines.peek();
+
+				if ( head != null && (earliestHead == null || EARLIEST_DEADLINE.compare(head, earliestHead) < 0)
+						&& bg.eligible(now) ) {
+					earliest = bg;
+					earliestHead = head;
+				}
+			}
+
+			if ( earliest == null )
+				return null;
+
+			var qe = earliest.deadlines.poll();
+			earliest.charge(qe.message().available());
+			return qe;
+		}
+	}
+
+	/**
+	 * Deficit round robin across groups. A group's deficit grows by its quantum each time its
+	 * turn comes round, and it sends while its deficit covers the frame at the head of its queue.
+	 */
+	private PriorityQueueEntry nextData() {
+		var now = clock.millis();
+
+		synchronized(groupRotation) {
+			var n = groupRotation.size();
+
+			while( true ) {
+				var eligibleWaiting = false;
+
+				for( int i = 0; i < n; i++ ) {
+					var bg = groupRotation.get(currentGroup);
+					var head = bg.queue.peek();
+
+					if ( head == null ) {
+						// idle groups don't bank credit
+						bg.deficit = 0;
+						bg.quantumDue = true;
+						currentGroup = (currentGroup + 1) % n;
+						continue;
+					}
+
+					if ( !bg.eligible(now) ) {
+						currentGroup = (currentGroup + 1) % n;
+						continue;
+					}
+
+					eligibleWaiting = true;
+
+					if ( bg.quantumDue ) {
+						bg.deficit += (long) bg.weight * GROUP_QUANTUM;
+						bg.quantumDue = false;
+					}
+
+					var size = head.message().available();
+					if ( size <= bg.deficit ) {
+						var qe = bg.queue.poll();
+						bg.deficit -= size;
+						bg.charge(size);
+
+						return qe;
+					}
+
+					// turn over, carry the deficit into the next round
+					bg.quantumDue = true;
+					currentGroup = (currentGroup + 1) % n;
+				}
+
+				if ( !eligibleWaiting )
+					return null;
+			}
+		}
+	}
+
+	private boolean hasData() {
+		for( var bg : groups.values() )
+			if ( !bg.queue.isEmpty() )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * @return millis until the first capped group with frames waiting may send again, 0 if none
+	 * is waiting out its cap
+	 */
+	private long millisUntilEligible() {
+		long wait = 0;
+
+		for( var bg : groups.values() )
+			if ( !bg.queue.isEmpty() || !bg.deadlines.isEmpty() ) {
+				// a group that is within its cap but still held back has no wait to offer
+				var groupWait = bg.millisUntilEligible();
+				if ( groupWait > 0 && (wait == 0 || groupWait < wait) )
+					wait = groupWait;
+			}
+
+		return wait;
+	}
+
+	private void recordDeadline(long deadline) {
+		var lateness = clock.millis() - deadline;
+
+		if ( lateness <= 0 )
+			deadlinesMet.incrementAndGet();
+		else {
+			deadlinesMissed.incrementAndGet();
+			maxLateness.accumulateAndGet(lateness, Math::max);
+			logger.finer("deadline missed by "+lateness+"ms");
+		}
+	}
+
+	/**
+	 * @return number of deadline frames sent on or before their deadline
+	 */
+	public long getDeadlinesMet() {
+		return deadlinesMet.get();
+	}
+
+	/**
+	 * @return number of deadline frames sent after their deadline
+	 */
+	public long getDeadlinesMissed() {
+		return deadlinesMissed.get();
+	}
+
+	/**
+	 * @return the most any deadline frame has been sent after its deadline, in millis
+	 */
+	public long getMaxLateness() {
+		return maxLateness.get();
+	}
+
+	public Queue<PriorityQueueEntry> getControlQueue() {
+		return controlQueue;
+	}
+
+	/**
+	 * @return the deadline lane of the default group
+	 */
+	public Queue<PriorityQueueEntry> getDeadlineQueue() {
+		return groups.get(DEFAULT_GROUP).deadlines;
+	}
+
+	/**
+	 * @param group
+	 * @return the deadline lane of the group, or null if the group is not defined
+	 */
+	public Queue<PriorityQueueEntry> getDeadlineQueue(int group) {
+		var bg = groups.get(group);
+		return bg == null ? null : bg.deadlines;
+	}
+
+	/**
+	 * @return the data lane of the default group
+	 */
+	public Queue<PriorityQueueEntry> getDataQueue() {
+		return groups.get(DEFAULT_GROUP).queue;
+	}
+
+	/**
+	 * @param group
+	 * @return the data lane of the group, or null if the group is not defined
+	 */
+	public Queue<PriorityQueueEntry> getDataQueue(int group) {
+		var bg = groups.get(group);
+		return bg == null ? null : bg.queue;
+	}
+}
@@ -0,0 +1,132 @@
+package xyz.arwhite.net.mux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * A link over a Unix domain socket, for peers on the same host, e.g. either side of a container
+ * boundary sharing a volume. Avoids the TCP stack entirely. Messages are framed and exchanged by a
+ * {@link ChannelMessageHandler}, exactly as for a {@link TcpMessageLink}.
+ *
+ * @author Alan R. White
+ *
+ */
+public class UdsMessageLink extends ChannelMessageLink {
+
+	static private final Logger logger = Logger.getLogger(UdsMessageLink.class.getName());
+
+	private Path path;
+
+	private UdsMessageLink(Builder builder) {
+		super(builder.messageBroker, builder.server);
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.path = builder.path;
+
+		logger.info("Unix domain socket link" + (isServer ? " listening on " : " connected to ") + path);
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * A listening link removes its socket file
+	 */
+	@Override
+	protected void serverClosed() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	public static class Builder {
+
+		ChannelMessageHandler messageBroker;
+		Path path;
+		ServerSocketChannel server;
+
+		public Builder withMessageBroker(ChannelMessageHandler messageBroker) {
+			this.messageBroker = messageBroker;
+			return this;
+		}
+
+		/**
+		 * @param path of the socket file
+		 */
+		public Builder withPath(Path path) {
+			this.path = path;
+			return this;
+		}
+
+		public Builder withPath(String path) {
+			return withPath(Path.of(path));
+		}
+
+		/**
+		 * Returns a UdsMessageLink connected to the peer listening on the socket file
+		 * @return
+		 */
+		public UdsMessageLink connect() {
+			logger.entering(this.getClass().getName(), "connect");
+
+			if ( path == null )
+				throw(new IllegalStateException("no socket path specified"));
+
+			if ( messageBroker == null )
+				messageBroker = new ChannelMessageHandler();
+
+			try {
+				messageBroker.open(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to connect to "+path, e));
+			}
+
+			var link = new UdsMessageLink(this);
+
+			logger.exiting(this.getClass().getName(), "connect", link);
+			return link;
+		}
+
+		/**
+		 * Returns a UdsMessageLink listening for the peer to connect on the socket file, which
+		 * must not already exist. The link carries the first connection accepted, later
+		 * connections are refused.
+		 * @return
+		 */
+		public UdsMessageLink listen() {
+			logger.entering(this.getClass().getName(), "listen");
+
+			if ( path == null )
+				throw(new IllegalStateException("no socket path specified"));
+
+			if ( messageBroker == null )
+				messageBroker = new ChannelMessageHandler();
+
+			try {
+				server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+				server.bind(UnixDomainSocketAddress.of(path));
+			} catch (IOException e) {
+				throw(new UncheckedIOException("unable to listen on "+path, e));
+			}
+
+			var link = new UdsMessageLink(this);
+			link.startAccepting("UdsAcceptor");
+
+			logger.exiting(this.getClass().getName(), "listen", link);
+			return link;
+		}
+	}
+
+	@Override
+	protected String describe() {
+		return "Unix domain socket link on "+path;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+}
@@ -0,0 +1,252 @@
+package xyz.arwhite.net.mux;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import io.helidon.common.buffers.BufferData;
+import io.helidon.nima.webserver.WebServer;
+import io.helidon.nima.websocket.WsListener;
+import io.helidon.nima.websocket.WsSession;
+import io.helidon.nima.websocket.webserver.WsRouting;
+
+/**
+ * Accepts links from many peers on a single WebSocket endpoint, where a {@link WsMessageLink}
+ * serves a single peer. Each WebSocket gets its own message handler and StreamController, so
+ * the Streams of one peer are independent of the others.
+ *
+ * A peer identifies itself with a HELLO as its first message, see
+ * {@link WsMessageLink.Builder#withPeerId}, after which its StreamController can be looked up by
+ * that identity. An identity can only be held by one live link, a second WebSocket claiming it
+ * is closed, so one peer can't take over another's Streams by guessing its identity. Once the
+ * earlier WebSocket has closed the identity is free again.
+ *
+ * @author Alan R. White
+ *
+ */
+public class WsHub {
+
+	static private final Logger logger = Logger.getLogger(WsHub.class.getName());
+
+	private WebServer server;
+	private String host;
+	private int localPort;
+	private String endpoint;
+
+	private WsPriorityMessageHandler.Builder handlerBuilder;
+	private Consumer<StreamController.Builder> controllerConfig;
+	private BiConsumer<String, StreamController> peerListener;
+
+	private ConcurrentHashMap<String, HubSession> peers = new ConcurrentHashMap<>();
+	private Set<HubSession> sessions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The message handler for one peer's WebSocket, and the StreamController using it
+	 */
+	class HubSession extends WsPriorityMessageHandler {
+
+		private StreamController controller;
+		private volatile String peerId;
+		private volatile boolean rejected = false;
+
+		HubSession() {
+			super(handlerBuilder);
+		}
+
+		@Override
+		public void onOpen(WsSession session) {
+			super.onOpen(session);
+
+			var builder = new StreamController.Builder().withMessageBroker(this);
+			controllerConfig.accept(builder);
+			controller = builder.build();
+
+			sessions.add(this);
+			logger.fine("Hub session opened, "+sessions.size()+" sessions");
+		}
+
+		@Override
+		public void onMessage(WsSession session, BufferData buffer, boolean last) {
+			if ( rejected )
+				return;
+
+			if ( peerId == null && StreamBuffers.getBufferType(buffer) == StreamBuffers.HELLO ) {
+				identified(this, StreamBuffers.parseHelloId(buffer));
+				return;
+			}
+
+			super.onMessage(session, buffer, last);
+		}
+
+		@Override
+		public void onClose(WsSession session, int status, String reason) {
+			super.onClose(session, status, reason);
+
+			sessions.remove(this);
+
+			if ( peerId != null )
+				peers.remove(peerId, this);
+
+			logger.fine("Hub session closed, "+sessions.size()+" sessions");
+		}
+	}
+
+	WsHub(Builder builder) {
+		logger.entering(this.getClass().getName(), "Constructor");
+
+		this.handlerBuilder = builder.handlerBuilder;
+		this.controllerConfig = builder.controllerConfig;
+		this.peerListener = builder.peerListener;
+		this.host = builder.host;
+		this.endpoint = builder.endpoint;
+
+		logger.exiting(this.getClass().getName(), "Constructor");
+	}
+
+	/**
+	 * Registers the peer on a session, unless another session already holds the identity, in
+	 * which case the new session is closed. Stopping a session sends what it has queued, so
+	 * it's done off the WebSocket's listener thread.
+	 */
+	private void identified(HubSession session, String peerId) {
+		logger.entering(this.getClass().getName(), "identified", peerId);
+
+		var registered = peers.putIfAbsent(peerId, session);
+
+		if ( registered != null && registered != session ) {
+			logger.warning("Peer "+peerId+" already connected, refusing another link claiming it");
+			session.rejected = true;
+			Thread.ofVirtual().start(session::stop);
+
+			logger.exiting(this.getClass().getName(), "identified");
+			return;
+		}
+
+		session.peerId = peerId;
+
+		if ( peerListener != null )
+			peerListener.accept(peerId, session.controller);
+
+		logger.exiting(this.getClass().getName(), "identified");
+	}
+
+	/**
+	 * @param peerId identity the peer sent in its HELLO
+	 * @return the StreamController for the peer, or null if the peer is not connected
+	 */
+	public StreamController getController(String peerId) {
+		var session = peers.get(peerId);
+		return session == null ? null : session.controller;
+	}
+
+	/**
+	 * @return identities of the connected peers
+	 */
+	public Set<String> getPeers() {
+		return Set.copyOf(peers.keySet());
+	}
+
+	/**
+	 * @return number of open WebSockets, including any from peers yet to identify themselves
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	/**
+	 * Stops every session, then the server
+	 */
+	public void stop() {
+		logger.entering(this.getClass().getName(), "stop");
+
+		sessions.forEach(HubSession::stop);
+		server.stop();
+
+		logger.exiting(this.getClass().getName(), "stop");
+	}
+
+	public static class Builder {
+
+		String endpoint;
+		String host = "127.0.0.1";
+		int port = -1;
+		WsPriorityMessageHandler.Builder handlerBuilder = new WsPriorityMessageHandler.Builder();
+		Consumer<StreamController.Builder> controllerConfig = builder -> {};
+		BiConsumer<String, StreamController> peerListener;
+
+		public Builder withEndpoint(String endpoint) {
+			this.endpoint = endpoint;
+			return this;
+		}
+
+		public Builder withHost(String host) {
+			this.host = host;
+			return this;
+		}
+
+		public Builder withPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param handlerBuilder configures the message handler created for each WebSocket
+		 * @return
+		 */
+		public Builder withMessageHandler(WsPriorityMessageHandler.Builder handlerBuilder) {
+			this.handlerBuilder = handlerBuilder;
+			return this;
+		}
+
+		/**
+		 * @param controllerConfig applied to the builder of the StreamController created for
+		 * each WebSocket, after its message broker is set
+		 * @return
+		 */
+		public Builder withStreamController(Consumer<StreamController.Builder> controllerConfig) {
+			this.controllerConfig = controllerConfig;
+			return this;
+		}
+
+		/**
+		 * @param peerListener called with the identity and StreamController of each peer as it
+		 * identifies itself, e.g. to open StreamServers for the peer
+		 * @return
+		 */
+		public Builder withPeerListener(BiConsumer<String, StreamController> peerListener) {
+			this.peerListener = peerListener;
+			return this;
+		}
+
+		/**
+		 * Returns a WsHub listening for peers
+		 * @return
+		 */
+		public WsHub listen() {
+			logger.entering(this.getClass().getName(), "listen");
+
+			var hub = new WsHub(this);
+
+			var serverBuilder = WebServer.builder()
+					.host(host)
+					.addRouting(WsRouting.builder().endpoint(endpoint, () -> (WsListener) hub.new HubSession()));
+
+			if ( port != -1 )
+				serverBuilder.port(port);
+
+			hub.server = serverBuilder.start();
+			hub.localPort = hub.server.port();
+
+			logger.info("Hub serving WebSockets on " + host + ":" + hub.localPort + "/" + endpoint);
+
+			logger.exiting(this.getClass().getName(), "listen", hub);
+			return hub;
+		}
+	}
+}
@@ -18,6 +18,14 @@ public class WsMessageLink {
 	private String host;
 	private int localPort;
 	private String endpoint;
+	private WsClient client;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Bounds on the wait between attempts to reconnect a client link
+	 */
+	private static final long MIN_RECONNECT_DELAY = 50;
+	private static final long MAX_RECONNECT_DELAY = 2000;
 
 	private WsMessageLink(Builder builder) {
 		logger.entering(this.getClass().getName(), "Constructor");
@@ -27,6 +35,12 @@ public class WsMessageLink {
 		this.isServer = this.server != null;
 		this.localPort = builder.port;
 		this.host = builder.host;
+		this.endpoint = builder.endpoint;
+		this.client = builder.client;
+		
+		// a resumable client link reconnects itself when the WebSocket drops
+		if ( !isServer )
+			messageBroker.setReconnectHandler(this::reconnect);
 
 		logger.fine("WebSocket established: server="+this.server);
 		
@@ -42,6 +56,8 @@ public class WsMessageLink {
 	public void stop() {
 		logger.entering(this.getClass().getName(), "stop");
 
+		stopped = true;
+
 		messageBroker.stop();
 
 		if ( isServer )
@@ -50,6 +66,41 @@ public class WsMessageLink {
 		logger.exiting(this.getClass().getName(), "stop");
 	}
 
+	/**
+	 * Attempts to replace the dropped WebSocket of a client link until it connects, or the
+	 * message broker gives up waiting
+	 */
+	private void reconnect() {
+		logger.entering(this.getClass().getName(), "reconnect");
+
+		var delay = MIN_RECONNECT_DELAY;
+
+		while( !stopped && messageBroker.isSuspended() ) {
+			try {
+				client.connect(url(host, localPort, endpoint), messageBroker);
+				logger.info("Websocket reconnected to " + host + ":" + localPort + "/" + endpoint);
+				break;
+
+			} catch (RuntimeException e) {
+				logger.fine("reconnect failed, retrying in "+delay+"ms: "+e.getMessage());
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					break;
+				}
+
+				delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+			}
+		}
+
+		logger.exiting(this.getClass().getName(), "reconnect");
+	}
+
+	private static String url(String host, int port, String endpoint) {
+		return "http://"+host+":"+port+"/"+endpoint;
+	}
+
 	public static class Builder {
 
 		MessageLinkAdapter messageBroker;
@@ -58,6 +109,7 @@ public class WsMessageLink {
 		int port = -1;
 		WebServer server = null;
 		WsClient client;
+		String peerId;
 
 		public Builder withMessageBroker(MessageLinkAdapter messageBroker) {
 			this.messageBroker = messageBroker;
@@ -79,6 +131,17 @@ public class WsMessageLink {
 			return this;
 		}
 
+		/**
+		 * Identifies this end of the link to a {@link WsHub} when connecting
+		 * 
+		 * @param peerId
+		 * @return
+		 */
+		public Builder withPeerId(String peerId) {
+			this.peerId = peerId;
+			return this;
+		}
+
 		/**
 		 * Returns a WsMessageLink that initiated and connected to a remote peer
 		 * @return
@@ -87,7 +150,10 @@ public class WsMessageLink {
 			logger.entering(this.getClass().getName(), "connect");
 
 			client = WsClient.builder().build();
-			client.connect("http://"+host+":"+port+"/"+endpoint, messageBroker);
+			client.connect(url(host, port, endpoint), messageBroker);
+
+			if ( peerId != null )
+				messageBroker.sendMessage(StreamBuffers.createHello(peerId));
 
 			var wsml = new WsMessageLink(this);
 			
@@ -4,7 +4,10 @@ import java.net.http.WebSocket;
 import java.time.Clock;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,47 +18,147 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 
 	static private final Logger logger = Logger.getLogger(WsPriorityMessageHandler.class.getName());
 			
+	/**
+	 * Bytes in flight allowed below the WebSocket when only a pacing rate is configured
+	 */
+	private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 16384;
+	
+	/**
+	 * Shuts down suspended links whose WebSocket isn't replaced in time, shared by all handlers
+	 */
+	private static final ScheduledThreadPoolExecutor RESUME_TIMERS = new ScheduledThreadPoolExecutor(1, runnable -> {
+		var thread = new Thread(runnable, "WsResumeTimer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	static {
+		RESUME_TIMERS.setRemoveOnCancelPolicy(true);
+	}
+	
 	private Clock clock;
 	private WsSession session;
 
 	private CompletableFuture<Void> txStopped;
-	private PriorityBlockingQueue<PriorityQueueEntry> rxQueue;
-	private long lastRxMessageTime = 0;
-	private int rxSequence = 0;
+	private ReceiveQueue rxQueue;
 	
 	private Thread txQueueSender;
-	private PriorityBlockingQueue<PriorityQueueEntry> txQueue = new PriorityBlockingQueue<PriorityQueueEntry>(64);
-	private long lastTxMessageTime = 0;
-	private int txSequence = 0;
+	private TransmitScheduler scheduler;
 	private boolean draining = false;
 	
+	/**
+	 * Millis a dropped WebSocket may take to be replaced before the link shuts down,
+	 * 0 if the link shuts down as soon as the WebSocket closes
+	 */
+	private long resumeTimeout = 0;
+	private volatile boolean suspended = false;
+	private volatile boolean stopping = false;
+	private ScheduledFuture<?> resumeTimer;
+	private Runnable reconnectHandler;
+	private WsSession closedSession;
+	
 	public WsPriorityMessageHandler() {
 		this(Clock.systemDefaultZone());
 	}
 	
 	protected WsPriorityMessageHandler(Clock clock) {
-		rxQueue = new PriorityBlockingQueue<PriorityQueueEntry>(64);
-		txQueue = new PriorityBlockingQueue<PriorityQueueEntry>(64);
+		var queues = new QueueSettings();
+		rxQueue = queues.newReceiveQueue(clock);
+		scheduler = queues.newScheduler(clock);
 		this.clock = clock;
 	}
 	
-	private WsPriorityMessageHandler(Builder builder) {
-		rxQueue = new PriorityBlockingQueue<PriorityQueueEntry>(builder.receiveQueueDepth);
-		txQueue = new PriorityBlockingQueue<PriorityQueueEntry>(builder.transmitQueueDepth);
+	protected WsPriorityMessageHandler(Builder builder) {
+		this.clock = Clock.systemDefaultZone();
+		rxQueue = builder.queues.newReceiveQueue(clock);
+		scheduler = builder.queues.newScheduler(clock);
+		
+		if ( builder.pacingRate > 0 || builder.maxBytesInFlight > 0 )
+			scheduler.setPacer(new TransmitPacer(builder.pacingRate, 
+					builder.maxBytesInFlight > 0 ? builder.maxBytesInFlight : DEFAULT_MAX_BYTES_IN_FLIGHT));
+		
+		this.resumeTimeout = builder.resumeTimeout;
 	}
 	
-	public class Builder {
+	public static class Builder {
 		
-		int receiveQueueDepth = 64;
-		int transmitQueueDepth = 64;
+		QueueSettings queues = new QueueSettings();
+		long pacingRate = 0;
+		int maxBytesInFlight = 0;
+		long resumeTimeout = 0;
 		
 		public Builder withReceiveQueueDepth(int receiveQueueDepth) {
-			this.receiveQueueDepth = receiveQueueDepth;
+			queues.receiveQueueDepth = receiveQueueDepth;
 			return this;
 		}
 		
 		public Builder withTransmitQueueDepth(int transmitQueueDepth) {
-			this.transmitQueueDepth = transmitQueueDepth;
+			queues.transmitQueueDepth = transmitQueueDepth;
+			return this;
+		}
+		
+		/**
+		 * Paces writes to the WebSocket at a fixed rate, typically a little below the link rate,
+		 * so frames queue in priority order here rather than in the socket buffer.
+		 * 
+		 * @param bytesPerSecond
+		 * @return
+		 */
+		public Builder withPacingRate(long bytesPerSecond) {
+			this.pacingRate = bytesPerSecond;
+			return this;
+		}
+		
+		/**
+		 * Caps the bytes allowed to sit below the WebSocket, not yet delivered to the link.
+		 * Without a pacing rate the delivery rate of the link is estimated from the PONGs answering
+		 * keepalive PINGs, see {@link StreamController.Builder#withKeepalive}.
+		 * 
+		 * @param maxBytesInFlight
+		 * @return
+		 */
+		public Builder withMaxBytesInFlight(int maxBytesInFlight) {
+			this.maxBytesInFlight = maxBytesInFlight;
+			return this;
+		}
+		
+		/**
+		 * Sets the fraction of bytes sent reserved for frames from Streams with a latency budget,
+		 * which are sent earliest deadline first. Outside the reservation they only go when there
+		 * is no other data waiting.
+		 * 
+		 * @param deadlineShare at least 0 and less than 1
+		 * @return
+		 */
+		public Builder withDeadlineShare(double deadlineShare) {
+			queues.deadlineShare = deadlineShare;
+			return this;
+		}
+		
+		/**
+		 * Defines a bandwidth group sharing the data lane with other groups. Streams are placed in
+		 * groups by their StreamController, priority applies between Streams within a group.
+		 * 
+		 * @param group identity of the group, group 0 is the default group
+		 * @param weight share of the data lane relative to the weights of other groups
+		 * @param rateCap maximum bytes per second the group may send, 0 for no cap
+		 * @return
+		 */
+		public Builder withBandwidthGroup(int group, int weight, long rateCap) {
+			queues.bandwidthGroups.add(new TransmitScheduler.GroupSettings(group, weight, rateCap));
+			return this;
+		}
+		
+		/**
+		 * Keeps the link, and the Streams on it, alive when the WebSocket drops. The link
+		 * resumes if a new WebSocket connects within the timeout, a client link reconnects
+		 * itself. Streams replay any data lost with the old WebSocket.
+		 * 
+		 * @param resumeTimeout millis to wait for a new WebSocket, 0 to shut down at once
+		 * @return
+		 */
+		public Builder withResume(long resumeTimeout) {
+			this.resumeTimeout = resumeTimeout;
 			return this;
 		}
 		
@@ -68,6 +171,17 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	public void onOpen(WsSession session) {
 		logger.entering(this.getClass().getName(), "onOpen", session);
 		
+		// a new WebSocket replacing the one a resumable link had, or still thinks it has
+		var resuming = resumeTimeout > 0 && this.session != null;
+		if ( resuming ) {
+			if ( !suspended )
+				suspend();
+			
+			cancelResumeTimer();
+			suspended = false;
+			logger.info("WebSocket replaced, resuming link");
+		}
+		
 		this.session = session;
 		
 		CompletableFuture<Void> started = new CompletableFuture<>();
@@ -77,23 +191,26 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 			try {
 				started.complete(null);
 				while(true) {
-					var qe = txQueue.take();
+					var qe = scheduler.take();
+					
 					logger.fine("Transmit message on WebSocket p="+qe.priority()+", t="+qe.timestamp()+", s="+qe.sequence());
 					logger.log(Level.FINEST,"Tx:\n"+qe.message().debugDataHex());
 					
 					if ( qe.priority() == 0 ) {
 						
-						// drain the queue
-						while( !txQueue.isEmpty() ) {
-							var de = txQueue.poll();
+						// drain all lanes
+						PriorityQueueEntry de;
+						while( (de = scheduler.poll()) != null ) 
 							WsPriorityMessageHandler.this.session.send(de.message(), true);
-						}
 						
 						// inform the world
 						txStopped.complete(null);
 						
-					} else
+					} else {
+						var size = qe.message().available();
 						WsPriorityMessageHandler.this.session.send(qe.message(), true);
+						scheduler.sent(size);
+					}
 				} 
 			} catch(InterruptedException e) {}
 		});
@@ -104,6 +221,13 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
             throw new RuntimeException(e);
         }
         
+        if ( resuming ) {
+        	// Streams tell the peer what they've received, which must include DATA from the old
+        	// WebSocket still waiting to be dispatched, or the peer replays it a second time
+        	awaitRxQueueDrained();
+        	rxQueue.linkEvent(StreamBuffers.createLinkEvent(StreamBuffers.LINK_RESUMED));
+        }
+        
         logger.exiting(this.getClass().getName(), "onOpen");
 	}
 	
@@ -115,6 +239,27 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	public void onClose(WsSession session, int status, String reason) {
 		logger.entering(this.getClass().getName(), "onClose", status);
 		
+		// a WebSocket we've already replaced, or already handled closing
+		if ( session != this.session || session == closedSession ) {
+			logger.exiting(this.getClass().getName(), "onClose");
+			return;
+		}
+		
+		closedSession = session;
+		
+		if ( resumeTimeout > 0 && !stopping ) {
+			// hold on to the link and queued messages for a while
+			suspend();
+			startResumeTimer();
+			
+			var reconnect = reconnectHandler;
+			if ( reconnect != null )
+				Thread.ofVirtual().start(reconnect);
+			
+			logger.exiting(this.getClass().getName(), "onClose");
+			return;
+		}
+		
 		// close the sender thread
 		if ( txQueueSender != null )
 			txQueueSender.interrupt();
@@ -122,15 +267,66 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 		txQueueSender = null;
 		
 		// tell listening StreamController we're done
-		var command = BufferData.create(1);
-		command.writeInt8(0);
-		rxQueue.add(new PriorityQueueEntry((byte) 0,clock.millis(),0,command));
+		rxQueue.linkEvent(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SHUTDOWN));
 		
 		// should wait so things can get closed down .....
 		
 		logger.exiting(this.getClass().getName(), "onClose");
 	}
 
+	/**
+	 * Stops sending on the dropped WebSocket and tells the StreamController the link is suspended
+	 */
+	private void suspend() {
+		logger.info("WebSocket lost, link suspended");
+		
+		if ( txQueueSender != null )
+			txQueueSender.interrupt();
+		
+		txQueueSender = null;
+		suspended = true;
+		
+		rxQueue.linkEvent(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SUSPENDED));
+	}
+
+	/**
+	 * Shuts the link down if no new WebSocket arrives in time
+	 */
+	private synchronized void startResumeTimer() {
+		cancelResumeTimer();
+		
+		resumeTimer = RESUME_TIMERS.schedule(() -> {
+			if ( suspended ) {
+				logger.warning("WebSocket not replaced within "+resumeTimeout+"ms, link shut down");
+				suspended = false;
+				rxQueue.linkEvent(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SHUTDOWN));
+			}
+		}, resumeTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void cancelResumeTimer() {
+		if ( resumeTimer != null )
+			resumeTimer.cancel(false);
+		
+		resumeTimer = null;
+	}
+	
+	/**
+	 * Waits, for at most the resume timeout, until every message received on the old WebSocket
+	 * has been taken from the receive queue. Nothing arrives on the new one until we return.
+	 */
+	private void awaitRxQueueDrained() {
+		var giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(resumeTimeout);
+		
+		try {
+			while( !rxQueue.isInline() && !rxQueue.getQueue().isEmpty() && System.nanoTime() < giveUp )
+				Thread.sleep(1);
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	/*
 	 * Receiving messages from the WebSocket
 	 */
@@ -143,18 +339,7 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	public void onMessage(WsSession session, BufferData buffer, boolean last) {
 		logger.entering(this.getClass().getName(), "onMessage", buffer);
 		
-		var now = clock.millis();
-		
-		if ( now == lastRxMessageTime ) 
-			++rxSequence;
-		else {
-			lastRxMessageTime = now;
-			rxSequence = 0;
-		}
-		
-		logger.fine("adding received message to receive queue");
-		rxQueue.add(new PriorityQueueEntry((byte) buffer.get(0),now,rxSequence,buffer));
-		
+		rxQueue.received(buffer);
 
 		logger.exiting(this.getClass().getName(), "onMessage");
 	}
@@ -165,7 +350,21 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	 * @return the prioritized receive message queue
 	 */
 	public Queue<PriorityQueueEntry> getRxQueue() {
-		return rxQueue;
+		return rxQueue.getQueue();
+	}
+
+	/**
+	 * Received messages are passed to the receiver as they arrive, in arrival order, on the 
+	 * WebSocket thread. They are not prioritized as the rxQueue is bypassed.
+	 */
+	@Override
+	public boolean setInlineReceiver(Consumer<BufferData> receiver) {
+		logger.entering(this.getClass().getName(), "setInlineReceiver", receiver);
+		
+		rxQueue.setInlineReceiver(receiver);
+		
+		logger.exiting(this.getClass().getName(), "setInlineReceiver", true);
+		return true;
 	}
 
 	/*
@@ -176,9 +375,28 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	/**
 	 * Used to queue a message to be transmitted. Priority is specified in the first byte of the BufferData.
 	 * Priority 0 is reserved for system use, this method will reject messages with priority 0.
+	 * Control frames are placed on the control lane and sent ahead of any queued data.
 	 */
 	@Override
 	public boolean sendMessage(BufferData buffer) {
+		return sendMessage(buffer, 0);
+	}
+	
+	/**
+	 * As {@link #sendMessage(BufferData)}, frames with a deadline are sent earliest deadline
+	 * first within the deadline share of the link.
+	 */
+	@Override
+	public boolean sendMessage(BufferData buffer, long deadline) {
+		return sendMessage(buffer, TransmitScheduler.DEFAULT_GROUP, deadline);
+	}
+	
+	/**
+	 * As {@link #sendMessage(BufferData, long)}, data frames without a deadline are charged to
+	 * the bandwidth group, see {@link Builder#withBandwidthGroup}
+	 */
+	@Override
+	public boolean sendMessage(BufferData buffer, int group, long deadline) {
 		logger.log(Level.FINE,"sendMessage:\n"+buffer.debugDataHex());
 		
 		logger.fine("Queueing message for WebSocket");
@@ -188,21 +406,60 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 		if ( buffer.get(0) == 0 )
 			return false;
 		
-		var now = clock.millis();
-		
-		if ( now == lastTxMessageTime ) 
-			++txSequence;
-		else {
-			lastTxMessageTime = now;
-			txSequence = 0;
-		}
-		
-		var outcome =  txQueue.add(new PriorityQueueEntry((byte) buffer.get(0),now,txSequence,buffer));
+		var outcome = scheduler.offer(buffer, group, deadline);
 		
 		logger.exiting(this.getClass().getName(), "sendMessage", outcome);
 		return outcome;
 	}
 	
+	@Override
+	public long getResumeTimeout() {
+		return resumeTimeout;
+	}
+
+	@Override
+	public void discardQueuedData() {
+		var discarded = scheduler.discardData();
+		logger.fine("discarded "+discarded+" queued DATA messages");
+	}
+
+	@Override
+	public void pongReceived(int id) {
+		scheduler.pongReceived(id);
+	}
+
+	/**
+	 * Closes a WebSocket that has stopped responding, the link is suspended or shut down
+	 * straight away rather than waiting for the close to be noticed
+	 */
+	@Override
+	public void abort() {
+		logger.entering(this.getClass().getName(), "abort");
+		
+		var lost = session;
+		if ( lost != null ) {
+			onClose(lost, WebSocket.NORMAL_CLOSURE, "unresponsive");
+			
+			try {
+				lost.close(WebSocket.NORMAL_CLOSURE, "unresponsive");
+			} catch (RuntimeException e) {
+				logger.fine("close of unresponsive WebSocket failed: "+e.getMessage());
+			}
+		}
+		
+		logger.exiting(this.getClass().getName(), "abort");
+	}
+
+	@Override
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	@Override
+	public void setReconnectHandler(Runnable reconnectHandler) {
+		this.reconnectHandler = reconnectHandler;
+	}
+
 	/**
 	 * Prevents submission of new messages to the transmit queue, and waits for the queue to be drained
 	 */
@@ -212,10 +469,9 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 		
 		draining = true;
 
-		if ( txStopped != null ) {
-			var command = BufferData.create(1);
-			command.writeInt8(0);
-			txQueue.add(new PriorityQueueEntry((byte) 0,clock.millis(),0,command));
+		// nothing can be sent while suspended
+		if ( txStopped != null && txQueueSender != null ) {
+			scheduler.offerShutdown();
 
 			try {
 				txStopped.get();
@@ -233,7 +489,29 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 	 * @return the prioritized receive message queue
 	 */
 	public Queue<PriorityQueueEntry> getTxQueue() {
-		return txQueue;
+		return scheduler.getDataQueue();
+	}
+
+	/**
+	 * @return the pacer applied to writes to the WebSocket, or null if writes are not paced
+	 */
+	public TransmitPacer getTransmitPacer() {
+		return scheduler.getPacer();
+	}
+
+	/**
+	 * Exposes the control lane transmit queue. Entries are in the order they were submitted.
+	 * @return the control lane transmit queue
+	 */
+	public Queue<PriorityQueueEntry> getTxControlQueue() {
+		return scheduler.getControlQueue();
+	}
+	
+	/**
+	 * @return the scheduler ordering frames for transmission, including deadline statistics
+	 */
+	public TransmitScheduler getTransmitScheduler() {
+		return scheduler;
 	}
 
 	/**
@@ -246,6 +524,8 @@ public class WsPriorityMessageHandler extends MessageLinkAdapter {
 		logger.entering(this.getClass().getName(), "stop");
 		logger.log(Level.FINE,"stop");
 		
+		stopping = true;
+		cancelResumeTimer();
 		drainTxQueue();
 		session.close(WebSocket.NORMAL_CLOSURE, "Request");
 
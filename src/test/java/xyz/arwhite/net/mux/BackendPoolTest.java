@@ -0,0 +1,119 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class BackendPoolTest {
+
+	@Test
+	@DisplayName("Connections reused while healthy, discarded once closed by the backend")
+	void testReuse() throws Exception {
+
+		var server = new ServerSocket(0);
+		var accepted = new LinkedBlockingQueue<Socket>();
+
+		Thread.ofVirtual().start(() -> {
+			try {
+				while( true )
+					accepted.add(server.accept());
+			} catch (IOException e) {
+				// closed
+			}
+		});
+
+		var destination = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+
+		var pool = new BackendPool.Builder()
+				.withReuse(true)
+				.build();
+
+		var first = pool.acquire(destination);
+		var backend = accepted.poll(5, TimeUnit.SECONDS);
+		assertNotNull(backend);
+
+		pool.release(destination, first, true);
+		assertEquals(1, pool.getIdleCount(destination));
+
+		// same connection handed out again, and still works
+		var second = pool.acquire(destination);
+		assertSame(first, second);
+		second.getOutputStream().write(42);
+		assertEquals(42, backend.getInputStream().read());
+
+		// not kept if it may hold something from its last use
+		pool.release(destination, second, false);
+		assertEquals(0, pool.getIdleCount(destination));
+		assertTrue(second.isClosed());
+
+		// closed by the backend while idle
+		var third = pool.acquire(destination);
+		backend = accepted.poll(5, TimeUnit.SECONDS);
+		pool.release(destination, third, true);
+		backend.close();
+		Thread.sleep(50);
+
+		var fourth = pool.acquire(destination);
+		assertNotSame(third, fourth);
+		assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+
+		pool.release(destination, fourth, true);
+		pool.close();
+		assertTrue(fourth.isClosed());
+		server.close();
+	}
+
+	@Test
+	@DisplayName("Destinations no longer used are forgotten, not dialled ahead forever")
+	void testUnusedDestinationsForgotten() throws Exception {
+
+		var server = new ServerSocket(0);
+		var accepted = new LinkedBlockingQueue<Socket>();
+
+		Thread.ofVirtual().start(() -> {
+			try {
+				while( true )
+					accepted.add(server.accept());
+			} catch (IOException e) {
+				// closed
+			}
+		});
+
+		var destination = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+
+		var pool = new BackendPool.Builder()
+				.withWarmConnections(2)
+				.withIdleTimeout(200)
+				.build();
+
+		// kept while the connection is in use, however long
+		var socket = pool.acquire(destination);
+		Thread.sleep(600);
+		assertEquals(1, pool.getDestinationCount());
+
+		pool.release(destination, socket, false);
+		assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+
+		// then forgotten once unused for the idle timeout, with nothing more dialled
+		for( int i = 0; i < 50 && pool.getDestinationCount() > 0; i++ )
+			Thread.sleep(50);
+
+		assertEquals(0, pool.getDestinationCount());
+		assertEquals(0, pool.getIdleCount(destination));
+
+		accepted.clear();
+		Thread.sleep(600);
+		assertTrue(accepted.isEmpty());
+
+		pool.close();
+		server.close();
+	}
+}
@@ -0,0 +1,78 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.helidon.common.buffers.BufferData;
+
+class ChannelMessageHandlerTest {
+
+	@Test
+	@DisplayName("Messages exchanged over TCP")
+	void testLoopback() throws Exception {
+
+		var server = new TcpMessageLink.Builder().listen();
+		var client = new TcpMessageLink.Builder().withPort(server.getLocalPort()).connect();
+
+		for (int i = 1; i <= 3; i++ ) {
+			var buffer = BufferData.create(8);
+			buffer.writeInt8(2); // priority
+			buffer.writeInt8(i);
+			assertTrue(client.getMessageBroker().sendMessage(buffer));
+		}
+
+		var rxQueue = (PriorityBlockingQueue<PriorityQueueEntry>) server.getMessageBroker().getRxQueue();
+
+		for (int i = 1; i <= 3; i++ ) {
+			var qe = rxQueue.poll(5, TimeUnit.SECONDS);
+			assertNotNull(qe);
+			assertEquals(2,qe.priority());
+			assertEquals(2,qe.message().available());
+			assertEquals(i,qe.message().get(1));
+		}
+
+		client.stop();
+
+		// peer learns the link has gone
+		var qe = rxQueue.poll(5, TimeUnit.SECONDS);
+		assertNotNull(qe);
+		assertEquals(0,qe.priority());
+		assertEquals(StreamBuffers.LINK_SHUTDOWN,StreamBuffers.getLinkEvent(qe.message()));
+
+		assertFalse(client.getMessageBroker().sendMessage(StreamBuffers.createPing(1)));
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Messages exchanged over a Unix domain socket")
+	void testUnixDomainSocket() throws Exception {
+
+		var path = Files.createTempDirectory("mux").resolve("link.sock");
+
+		var server = new UdsMessageLink.Builder().withPath(path).listen();
+		var client = new UdsMessageLink.Builder().withPath(path).connect();
+
+		var buffer = BufferData.create(8);
+		buffer.writeInt8(3); // priority
+		buffer.writeInt8(42);
+		assertTrue(client.getMessageBroker().sendMessage(buffer));
+
+		var rxQueue = (PriorityBlockingQueue<PriorityQueueEntry>) server.getMessageBroker().getRxQueue();
+
+		var qe = rxQueue.poll(5, TimeUnit.SECONDS);
+		assertNotNull(qe);
+		assertEquals(3,qe.priority());
+		assertEquals(42,qe.message().get(1));
+
+		client.stop();
+		server.stop();
+
+		assertFalse(Files.exists(path));
+	}
+}
@@ -2,23 +2,40 @@ package xyz.arwhite.net.mux;
 
 import java.util.logging.*;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import io.helidon.common.buffers.BufferData;
+
 class IntegrationTests {
 
 //	@Test
@@ -75,6 +92,766 @@ class IntegrationTests {
 		testPattern(muxServerSocketFactory,muxSocketFactory,1);
 	}
 
+	@Test
+	@Tag("benchmark")
+	void testInlineDispatchLatency() throws IOException, InterruptedException {
+		
+		var queued = roundTripLatencies(false, 2000);
+		var inline = roundTripLatencies(true, 2000);
+		
+		System.out.println("queued dispatch p50 = "+percentile(queued, 50)+"ns, p99 = "+percentile(queued, 99)+"ns");
+		System.out.println("inline dispatch p50 = "+percentile(inline, 50)+"ns, p99 = "+percentile(inline, 99)+"ns");
+		
+		// every round trip completed
+		assertEquals(2000, queued.length);
+		assertEquals(2000, inline.length);
+		assertTrue(queued[0] > 0 && inline[0] > 0);
+		
+		// skipping the reader thread hop must not make the typical round trip slower, 10% allows for noise
+		assertTrue(percentile(inline, 50) <= percentile(queued, 50) * 11 / 10,
+				"inline p50 "+percentile(inline, 50)+"ns slower than queued p50 "+percentile(queued, 50)+"ns");
+	}
+	
+	@Test
+	@Tag("benchmark")
+	void testLoopbackThroughput() throws Exception {
+		
+		var end = new LoopbackMessageBroker();
+		
+		var serverFactory = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder()
+						.withMessageBroker(end.getPeer())
+						.build())
+				.build();
+		
+		var clientFactory = new MuxSocketFactory.Builder()
+				.withMux(new StreamController.Builder()
+						.withMessageBroker(end)
+						.build())
+				.build();
+		
+		var server = serverFactory.createServerSocket(0, 0);
+		final long total = 64L * 1024 * 1024;
+		
+		var sink = new CompletableFuture<Long>();
+		Thread.ofVirtual().start(() -> {
+			try {
+				var sock = server.accept();
+				var in = sock.getInputStream();
+				var buffer = new byte[16384];
+				
+				long received = 0;
+				int count;
+				while( received < total && (count = in.read(buffer)) != -1 )
+					received += count;
+				
+				sock.close();
+				sink.complete(received);
+				
+			} catch (IOException e) {
+				sink.completeExceptionally(e);
+			}
+		});
+		
+		var client = clientFactory.createSocket("127.0.0.1", server.getLocalPort());
+		var out = client.getOutputStream();
+		var block = new byte[16384];
+		
+		long start = System.nanoTime();
+		for( long sent = 0; sent < total; sent += block.length )
+			out.write(block);
+		
+		out.flush();
+		assertEquals(total, sink.get(60, TimeUnit.SECONDS));
+		long elapsed = System.nanoTime() - start;
+		
+		System.out.println("loopback throughput = "+(total * 1_000_000_000L / elapsed / (1024 * 1024))+" MB/s");
+		
+		client.close();
+		server.close();
+		end.stop();
+	}
+	
+	@Test
+	@Tag("benchmark")
+	void testTransportThroughput() throws IOException, InterruptedException {
+		
+		var dir = Files.createTempDirectory("mux");
+		
+		var wsServer = new WsMessageLink.Builder()
+				.withMessageBroker(new WsPriorityMessageHandler())
+				.withEndpoint("127.0.0.1")
+				.listen();
+		var wsClient = new WsMessageLink.Builder()
+				.withMessageBroker(new WsPriorityMessageHandler())
+				.withEndpoint("127.0.0.1")
+				.withPort(wsServer.getLocalPort())
+				.connect();
+		
+		try {
+			report("websocket", messageThroughput(wsClient.getMessageBroker(), wsServer.getMessageBroker(), 20000));
+		} finally {
+			wsClient.stop();
+			wsServer.stop();
+		}
+		
+		var udsServer = new UdsMessageLink.Builder().withPath(dir.resolve("link.sock")).listen();
+		var udsClient = new UdsMessageLink.Builder().withPath(dir.resolve("link.sock")).connect();
+		
+		try {
+			report("unix domain socket", messageThroughput(udsClient.getMessageBroker(), udsServer.getMessageBroker(), 20000));
+		} finally {
+			udsClient.stop();
+			udsServer.stop();
+		}
+		
+		var shmCreator = new SharedMemoryMessageHandler.Builder().withPath(dir.resolve("link.shm")).create();
+		var shmOpener = new SharedMemoryMessageHandler.Builder().withPath(dir.resolve("link.shm")).open();
+		
+		try {
+			report("shared memory", messageThroughput(shmOpener, shmCreator, 20000));
+		} finally {
+			shmOpener.stop();
+			shmCreator.stop();
+		}
+	}
+	
+	private void report(String transport, long messagesPerSecond) {
+		assertTrue(messagesPerSecond > 0, transport+" delivered nothing");
+		
+		System.out.println(transport+" throughput = "+messagesPerSecond+" messages/s, "
+				+(messagesPerSecond * 1024L / (1024 * 1024))+" MB/s");
+	}
+	
+	/**
+	 * Sends 1KB messages one way, timing until the last arrives. Fails rather than waits if
+	 * the sender's queue stays full or a message doesn't arrive.
+	 * 
+	 * @return messages per second
+	 */
+	@SuppressWarnings("unchecked")
+	private long messageThroughput(MessageBroker sender, MessageBroker receiver, int count) throws InterruptedException {
+		
+		var rxQueue = (BlockingQueue<PriorityQueueEntry>) receiver.getRxQueue();
+		var payload = new byte[1023];
+		
+		long start = System.nanoTime();
+		long giveUp = start + TimeUnit.SECONDS.toNanos(60);
+		
+		for( int i = 0; i < count; i++ ) {
+			var buffer = BufferData.create(1024);
+			buffer.writeInt8(2);
+			buffer.write(payload);
+			
+			while( !sender.sendMessage(buffer) ) {
+				assertTrue(System.nanoTime() < giveUp, "send queue full, "+i+" messages sent");
+				Thread.onSpinWait();
+			}
+		}
+		
+		for( int i = 0; i < count; i++ )
+			assertNotNull(rxQueue.poll(10, TimeUnit.SECONDS), "only "+i+" of "+count+" messages arrived");
+		
+		long elapsed = System.nanoTime() - start;
+		
+		return count * 1_000_000_000L / elapsed;
+	}
+	
+	@Test
+	@Tag("benchmark")
+	void testSplitProxyThroughput() throws Exception {
+		
+		var target = echoServer();
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withTarget("127.0.0.1", target.getLocalPort())
+				.start();
+		
+		var proxySide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build())
+				.withProxyAddress("127.0.0.1", 0)
+				.start();
+		
+		try {
+			reportRelay("direct TCP", echoThroughput(target.getLocalPort(), 32 * 1024 * 1024), 
+					connectionRate(target.getLocalPort(), 500));
+			reportRelay("split proxy", echoThroughput(proxySide.getProxyPort(), 32 * 1024 * 1024), 
+					connectionRate(proxySide.getProxyPort(), 500));
+		} finally {
+			proxySide.stop();
+			targetSide.stop();
+			clientLink.stop();
+			serverLink.stop();
+			target.close();
+		}
+	}
+	
+	private void reportRelay(String route, long bytesPerSecond, long connectionsPerSecond) {
+		assertTrue(bytesPerSecond > 0, route+" relayed nothing");
+		assertTrue(connectionsPerSecond > 0, route+" completed no connections");
+		
+		System.out.println(route+" throughput = "+(bytesPerSecond / (1024 * 1024))+" MB/s"
+				+", connection rate = "+connectionsPerSecond+" connections/s");
+	}
+	
+	@Test
+	void testSplitProxyHalfClose() throws IOException {
+		
+		var target = echoServer();
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withTarget("127.0.0.1", target.getLocalPort())
+				.start();
+		
+		var proxySide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build())
+				.withProxyAddress("127.0.0.1", 0)
+				.start();
+		
+		try (var sock = new Socket("127.0.0.1", proxySide.getProxyPort())) {
+			sock.setSoTimeout(5000);
+			
+			// the client finishing its request doesn't cut off the reply
+			sock.getOutputStream().write("request".getBytes());
+			sock.shutdownOutput();
+			assertEquals("request", new String(sock.getInputStream().readNBytes(7)));
+			
+		} finally {
+			proxySide.stop();
+			targetSide.stop();
+			clientLink.stop();
+			serverLink.stop();
+			target.close();
+		}
+	}
+	
+	@Test
+	void testSplitProxySlowReply() throws Exception {
+		
+		// answers only after longer than the reply linger
+		var target = new ServerSocket(0);
+		Thread.ofVirtual().start(() -> {
+			try (var conn = target.accept()) {
+				var request = conn.getInputStream().readNBytes(7);
+				Thread.sleep(1500);
+				conn.getOutputStream().write(request);
+				Thread.sleep(1500);
+				conn.getOutputStream().write(request);
+				conn.getInputStream().read();
+			} catch (IOException | InterruptedException e) {
+				// closed by the test
+			}
+		});
+		
+		var end = new LoopbackMessageBroker();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end.getPeer()).build())
+				.withTarget("127.0.0.1", target.getLocalPort())
+				.start();
+		
+		var proxySide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end).build())
+				.withProxyAddress("127.0.0.1", 0)
+				.withReplyLinger(1)
+				.start();
+		
+		try (var sock = new Socket("127.0.0.1", proxySide.getProxyPort())) {
+			sock.setSoTimeout(5000);
+			
+			// a slow start isn't cut off, a pause once replying is
+			sock.getOutputStream().write("request".getBytes());
+			sock.shutdownOutput();
+			assertEquals("request", new String(sock.getInputStream().readNBytes(7)));
+			assertEquals(-1, sock.getInputStream().read());
+			
+		} finally {
+			proxySide.stop();
+			targetSide.stop();
+			end.stop();
+			target.close();
+		}
+	}
+	
+	@Test
+	void testEarlyData() throws Exception {
+		
+		var end = new LoopbackMessageBroker();
+		
+		var server = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end.getPeer()).build())
+				.build()
+				.createServerSocket(0, 0);
+		
+		var clientFactory = new MuxSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end).build())
+				.build();
+		
+		// request sent with the connect, answered straight after the confirm
+		var client = clientFactory.createSocket(server.getLocalPort(), "ping".getBytes());
+		var sock = server.accept();
+		
+		assertEquals("ping", new String(sock.getInputStream().readNBytes(4)));
+		sock.getOutputStream().write("pong".getBytes());
+		sock.getOutputStream().flush();
+		assertEquals("pong", new String(client.getInputStream().readNBytes(4)));
+		
+		// and the window the early data used is returned to the client
+		var block = new byte[16384];
+		Thread.ofVirtual().start(() -> {
+			try {
+				client.getOutputStream().write(block);
+				client.getOutputStream().flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		
+		assertEquals(block.length, sock.getInputStream().readNBytes(block.length).length);
+		
+		client.close();
+		sock.close();
+		
+		// a full window of early data read before the Stream is confirmed is still credited
+		var request = new byte[Stream.MAX_EARLY_DATA];
+		var relayed = CompletableFuture.supplyAsync(() -> {
+			try {
+				return clientFactory.createSocket(server.getLocalPort(), "example.com", 80, request);
+			} catch (IOException e) {
+				throw(new CompletionException(e));
+			}
+		});
+		
+		var accepted = (MuxSocket) server.accept();
+		assertEquals(request.length, accepted.getInputStream().readNBytes(request.length).length);
+		
+		// the read is noted while still unconfirmed
+		Thread.sleep(100);
+		accepted.getStream().confirmConnect();
+		
+		var relayClient = relayed.get(5, TimeUnit.SECONDS);
+		Thread.ofVirtual().start(() -> {
+			try {
+				relayClient.getOutputStream().write(block);
+				relayClient.getOutputStream().flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		
+		assertEquals(block.length, accepted.getInputStream().readNBytes(block.length).length);
+		
+		relayClient.close();
+		accepted.close();
+		server.close();
+		end.stop();
+	}
+	
+	@Test
+	void testBackendReuse() throws IOException, InterruptedException {
+		
+		var accepted = new AtomicInteger(0);
+		var target = new ServerSocket(0);
+		
+		// keep-alive style backend, answers each line until the connection is closed
+		Thread.ofVirtual().start(() -> {
+			try {
+				while(true) {
+					var sock = target.accept();
+					accepted.incrementAndGet();
+					
+					Thread.ofVirtual().start(() -> {
+						try (sock) {
+							String line;
+							while( !(line = readLine(sock)).isEmpty() ) {
+								if ( line.startsWith("slow") )
+									Thread.sleep(1000);
+								
+								sock.getOutputStream().write((line+"\n").getBytes());
+							}
+						} catch (IOException | InterruptedException e) {
+							// pool has closed it
+						}
+					});
+				}
+			} catch (IOException e) {
+				// server closed
+			}
+		});
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withTarget("127.0.0.1", target.getLocalPort())
+				.withBackendPool(new BackendPool.Builder().withReuse(true).build())
+				.start();
+		
+		var proxySide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build())
+				.withProxyAddress("127.0.0.1", 0)
+				.start();
+		
+		for (int i = 0; i < 3; i++ ) {
+			try (var client = new Socket("127.0.0.1", proxySide.getProxyPort())) {
+				client.getOutputStream().write(("request "+i+"\n").getBytes());
+				assertEquals("request "+i, readLine(client));
+			}
+			
+			// backend connection given back once the Stream has ended
+			for (int wait = 0; wait < 100 && targetSide.getActiveRelays() > 0; wait++ )
+				Thread.sleep(50);
+		}
+		
+		assertEquals(1, accepted.get());
+		
+		// a client leaving before its answer mustn't leave the answer for the next
+		try (var client = new Socket("127.0.0.1", proxySide.getProxyPort())) {
+			client.getOutputStream().write("slow request\n".getBytes());
+		}
+		
+		// and next asks once its Stream has gone, before the answer comes
+		for (int wait = 0; wait < 100 && targetSide.getActiveRelays() == 0; wait++ )
+			Thread.sleep(10);
+		
+		for (int wait = 0; wait < 100 && targetSide.getActiveRelays() > 0; wait++ )
+			Thread.sleep(10);
+		
+		try (var client = new Socket("127.0.0.1", proxySide.getProxyPort())) {
+			client.getOutputStream().write("request 3\n".getBytes());
+			assertEquals("request 3", readLine(client));
+		}
+		
+		assertEquals(2, accepted.get());
+		
+		proxySide.stop();
+		targetSide.stop();
+		clientLink.stop();
+		serverLink.stop();
+		target.close();
+	}
+	
+	@Test
+	void testSocksProxy() throws IOException {
+		
+		var target = echoServer();
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withDynamicTargets(true)
+				.start();
+		
+		var socksSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build())
+				.withSocksAddress("127.0.0.1", 0)
+				.start();
+		
+		var socks = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", socksSide.getSocksPort()));
+		
+		// destination named by the client, dialled by the peer
+		try (var sock = new Socket(socks)) {
+			sock.connect(InetSocketAddress.createUnresolved("localhost", target.getLocalPort()));
+			sock.getOutputStream().write("hello".getBytes());
+			assertEquals("hello", new String(sock.getInputStream().readNBytes(5)));
+		}
+		
+		// the peer can't reach the destination, so the client's connect fails
+		var unused = new ServerSocket(0);
+		unused.close();
+		
+		try (var sock = new Socket(socks)) {
+			assertThrows(IOException.class, 
+					() -> sock.connect(new InetSocketAddress("127.0.0.1", unused.getLocalPort())));
+		}
+		
+		socksSide.stop();
+		targetSide.stop();
+		clientLink.stop();
+		serverLink.stop();
+		target.close();
+	}
+	
+	@Test
+	void testSocksRefused() throws IOException {
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		
+		// without dynamic targets the peer refuses destinations named by clients
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withTarget("127.0.0.1", 1)
+				.start();
+		
+		var socksSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build())
+				.withSocksAddress("127.0.0.1", 0)
+				.start();
+		
+		try (var sock = new Socket("127.0.0.1", socksSide.getSocksPort())) {
+			var in = sock.getInputStream();
+			var out = sock.getOutputStream();
+			
+			out.write(new byte[] { 5, 1, 0 });
+			assertArrayEquals(new byte[] { 5, 0 }, in.readNBytes(2));
+			
+			out.write(new byte[] { 5, 1, 0, 1, 127, 0, 0, 1, 0, 80 });
+			var reply = in.readNBytes(10);
+			
+			// connection not allowed by ruleset, not host unreachable
+			assertEquals(5, reply[0]);
+			assertEquals(2, reply[1]);
+			
+		} finally {
+			socksSide.stop();
+			targetSide.stop();
+			clientLink.stop();
+			serverLink.stop();
+		}
+	}
+	
+	@Test
+	void testHttpConnectProxy() throws IOException {
+		
+		var target = echoServer();
+		
+		var serverLink = new TcpMessageLink.Builder().listen();
+		var clientLink = new TcpMessageLink.Builder().withPort(serverLink.getLocalPort()).connect();
+		var controller = new StreamController.Builder().withMessageBroker(clientLink.getMessageBroker()).build();
+		
+		var targetSide = new SplitProxy.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(serverLink.getMessageBroker()).build())
+				.withDynamicTargets(true)
+				.start();
+		
+		var httpSide = new SplitProxy.Builder()
+				.withMux(controller)
+				.withHttpProxyAddress("127.0.0.1", 0)
+				.start();
+		
+		var optimisticSide = new SplitProxy.Builder()
+				.withMux(controller)
+				.withHttpProxyAddress("127.0.0.1", 0)
+				.withOptimisticConnect(true)
+				.start();
+		
+		var connect = ("CONNECT localhost:"+target.getLocalPort()+" HTTP/1.1\r\n"
+				+ "Host: localhost:"+target.getLocalPort()+"\r\n\r\n").getBytes();
+		
+		// answered once the peer has reached the echo server
+		try (var sock = new Socket("127.0.0.1", httpSide.getHttpProxyPort())) {
+			sock.getOutputStream().write(connect);
+			assertEquals("HTTP/1.1 200 Connection established", readLine(sock));
+			assertEquals("", readLine(sock));
+			
+			sock.getOutputStream().write("hello".getBytes());
+			assertEquals("hello", new String(sock.getInputStream().readNBytes(5)));
+		}
+		
+		// first bytes sent without waiting for the answer
+		try (var sock = new Socket("127.0.0.1", optimisticSide.getHttpProxyPort())) {
+			sock.getOutputStream().write(connect);
+			sock.getOutputStream().write("hello".getBytes());
+			assertEquals("HTTP/1.1 200 Connection established", readLine(sock));
+			assertEquals("", readLine(sock));
+			assertEquals("hello", new String(sock.getInputStream().readNBytes(5)));
+		}
+		
+		// anything but CONNECT is refused
+		try (var sock = new Socket("127.0.0.1", httpSide.getHttpProxyPort())) {
+			sock.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+			assertEquals("HTTP/1.1 405 Method Not Allowed", readLine(sock));
+		}
+		
+		optimisticSide.stop();
+		httpSide.stop();
+		targetSide.stop();
+		clientLink.stop();
+		serverLink.stop();
+		target.close();
+	}
+	
+	private String readLine(Socket sock) throws IOException {
+		var line = new StringBuilder();
+		
+		int b;
+		while( (b = sock.getInputStream().read()) != '\n' && b != -1 )
+			if ( b != '\r' )
+				line.append((char) b);
+		
+		return line.toString();
+	}
+	
+	/**
+	 * A TCP server echoing whatever each connection sends
+	 */
+	private ServerSocket echoServer() throws IOException {
+		var server = new ServerSocket(0);
+		
+		Thread.ofVirtual().start(() -> {
+			try {
+				while(true) {
+					var sock = server.accept();
+					
+					Thread.ofVirtual().start(() -> {
+						try (sock) {
+							sock.getInputStream().transferTo(sock.getOutputStream());
+						} catch (IOException e) {
+							// client has gone
+						}
+					});
+				}
+			} catch (IOException e) {
+				// server closed
+			}
+		});
+		
+		return server;
+	}
+	
+	/**
+	 * Sends data through the echo server, reading it back concurrently
+	 * @return bytes per second
+	 */
+	private long echoThroughput(int port, int total) throws Exception {
+		
+		try (var sock = new Socket("127.0.0.1", port)) {
+			var in = sock.getInputStream();
+			var out = sock.getOutputStream();
+			
+			long start = System.nanoTime();
+			
+			var written = new CompletableFuture<Void>();
+			Thread.ofVirtual().start(() -> {
+				try {
+					var block = new byte[16384];
+					for( int sent = 0; sent < total; sent += block.length )
+						out.write(block);
+					written.complete(null);
+				} catch (IOException e) {
+					written.completeExceptionally(e);
+				}
+			});
+			
+			var buffer = new byte[16384];
+			int received = 0, count;
+			while( received < total && (count = in.read(buffer)) != -1 )
+				received += count;
+			
+			written.get(60, TimeUnit.SECONDS);
+			long elapsed = System.nanoTime() - start;
+			
+			assertEquals(total, received);
+			return total * 1_000_000_000L / elapsed;
+		}
+	}
+	
+	/**
+	 * Opens connections one after another, each exchanging a single byte
+	 * @return connections per second
+	 */
+	private long connectionRate(int port, int connections) throws IOException {
+		
+		long start = System.nanoTime();
+		
+		for( int i = 0; i < connections; i++ ) {
+			try (var sock = new Socket("127.0.0.1", port)) {
+				sock.getOutputStream().write(i & 0x7f);
+				assertEquals(i & 0x7f, sock.getInputStream().read());
+			}
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		return connections * 1_000_000_000L / elapsed;
+	}
+	
+	/**
+	 * Times single byte request/response round trips over one Stream, discarding an initial warm up
+	 */
+	private long[] roundTripLatencies(boolean inlineDispatch, int iterations) throws IOException {
+		
+		var serverLink = new WsMessageLink.Builder()
+				.withMessageBroker(new WsPriorityMessageHandler())
+				.withEndpoint("127.0.0.1")
+				.listen();
+		
+		var serverFactory = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder()
+						.withMessageLink(serverLink)
+						.withInlineDispatch(inlineDispatch)
+						.build())
+				.build();
+		
+		var clientLink = new WsMessageLink.Builder()
+				.withMessageBroker(new WsPriorityMessageHandler())
+				.withEndpoint("127.0.0.1")
+				.withPort(serverLink.getLocalPort())
+				.connect();
+		
+		var clientFactory = new MuxSocketFactory.Builder()
+				.withMux(new StreamController.Builder()
+						.withMessageLink(clientLink)
+						.withInlineDispatch(inlineDispatch)
+						.build())
+				.build();
+		
+		var server = serverFactory.createServerSocket(0, 0);
+		
+		Thread.ofVirtual().start(() -> {
+			try {
+				var sock = server.accept();
+				var in = sock.getInputStream();
+				var out = sock.getOutputStream();
+				
+				int b;
+				while( (b = in.read()) != -1 )
+					out.write(b);
+				
+			} catch (IOException e) {
+				// client has gone
+			}
+		});
+		
+		var client = clientFactory.createSocket("127.0.0.1", server.getLocalPort());
+		var in = client.getInputStream();
+		var out = client.getOutputStream();
+		
+		int warmup = iterations / 10;
+		var timings = new long[iterations];
+		
+		for( int i = 0; i < warmup + iterations; i++ ) {
+			long start = System.nanoTime();
+			out.write(i & 0x7f);
+			assertEquals(i & 0x7f, in.read());
+			
+			if ( i >= warmup )
+				timings[i - warmup] = System.nanoTime() - start;
+		}
+		
+		server.close();
+		clientLink.stop();
+		serverLink.stop();
+		
+		Arrays.sort(timings);
+		return timings;
+	}
+	
+	private long percentile(long[] sorted, int percentile) {
+		return sorted[Math.min(sorted.length - 1, (sorted.length * percentile) / 100)];
+	}
+
 	private void testPattern(ServerSocketFactory serverFactory, SocketFactory clientFactory, int iterations) 
 			throws IOException, InterruptedException {
 
@@ -0,0 +1,92 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.helidon.common.buffers.BufferData;
+
+class LinkMonitorTest {
+
+	private LinkedBlockingQueue<BufferData> sent = new LinkedBlockingQueue<>();
+
+	private MessageBroker link = new MessageBroker() {
+
+		@Override
+		public Queue<?> getRxQueue() {
+			return null;
+		}
+
+		@Override
+		public Queue<?> getTxQueue() {
+			return sent;
+		}
+
+		@Override
+		public boolean sendMessage(BufferData buffer) {
+			return sent.add(buffer);
+		}
+	};
+
+	private int lastPingId() throws InterruptedException {
+		var ping = sent.take();
+		assertEquals(StreamBuffers.PING,StreamBuffers.getBufferType(ping));
+		return StreamBuffers.parsePingId(ping);
+	}
+
+	@Test
+	@DisplayName("Smoothed RTT and variance from pings")
+	void testRttEstimate() throws Exception {
+
+		var now = new AtomicLong(0);
+		var monitor = new LinkMonitor(link, 1000, 3, now::get);
+
+		monitor.ping();
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+		monitor.pongReceived(lastPingId());
+
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10),monitor.getSmoothedRtt());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5),monitor.getRttVariance());
+
+		monitor.ping();
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+		monitor.pongReceived(lastPingId());
+
+		assertEquals(2,monitor.getSamples());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(11250),monitor.getSmoothedRtt());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(6250),monitor.getRttVariance());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10),monitor.getMinRtt());
+	}
+
+	@Test
+	@DisplayName("Unanswered pings detect a dead link")
+	void testDeadLink() throws Exception {
+
+		var now = new AtomicLong(0);
+		var monitor = new LinkMonitor(link, 1000, 3, now::get);
+
+		// quiet but not pinged isn't dead
+		now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		assertFalse(monitor.isDead());
+
+		monitor.reset();
+		for( int i = 0; i < 3; i++ ) {
+			monitor.ping();
+			now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		}
+		assertFalse(monitor.isDead());
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+		assertTrue(monitor.isDead());
+
+		// any answer revives it
+		monitor.pongReceived(lastPingId());
+		assertFalse(monitor.isDead());
+	}
+}
@@ -0,0 +1,181 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class MuxAsynchronousSocketChannelTest {
+
+	/**
+	 * Echoes whatever each accepted channel reads, entirely through completion handlers
+	 */
+	private static void serve(MuxAsynchronousChannelProvider provider, int streamPort) throws IOException {
+		var server = provider.openAsynchronousServerSocketChannel(null);
+		server.bind(new InetSocketAddress(streamPort));
+
+		server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+			@Override
+			public void completed(AsynchronousSocketChannel channel, Void attachment) {
+				server.accept(null, this);
+				echo(channel, ByteBuffer.allocate(1024));
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				// closed
+			}
+		});
+	}
+
+	private static void echo(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+		buffer.clear();
+		channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if ( read < 0 ) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// already gone
+					}
+					return;
+				}
+
+				buffer.flip();
+				writeAll(channel, buffer, () -> echo(channel, buffer));
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				// closed
+			}
+		});
+	}
+
+	private static void writeAll(AsynchronousSocketChannel channel, ByteBuffer buffer, Runnable then) {
+		channel.write(buffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer written, Void attachment) {
+				if ( buffer.hasRemaining() )
+					channel.write(buffer, null, this);
+				else
+					then.run();
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				// closed
+			}
+		});
+	}
+
+	@Test
+	@DisplayName("Completion handlers accept, read and echo Streams")
+	void testEcho() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxAsynchronousChannelProvider(
+				new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7080);
+
+		var provider = new MuxAsynchronousChannelProvider(new StreamController.Builder().withMessageBroker(end).build());
+
+		for( int i = 0; i < 3; i++ ) {
+			var channel = provider.openAsynchronousSocketChannel(null);
+			channel.connect(new InetSocketAddress(7080)).get(5, TimeUnit.SECONDS);
+
+			// more than the transit buffer, so writes wait for the window
+			var request = new byte[20000];
+			for( int b = 0; b < request.length; b++ )
+				request[b] = (byte) (b + i);
+
+			var done = new CompletableFuture<Void>();
+			writeAll(channel, ByteBuffer.wrap(request), () -> done.complete(null));
+
+			var reply = ByteBuffer.allocate(request.length);
+			while( reply.hasRemaining() )
+				assertTrue(channel.read(reply).get(5, TimeUnit.SECONDS) > 0);
+
+			done.get(5, TimeUnit.SECONDS);
+			assertArrayEquals(request, reply.array());
+			channel.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Pending read times out, and fails a connect to no listener")
+	void testTimeoutAndFailure() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxAsynchronousChannelProvider(
+				new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7081);
+
+		var provider = new MuxAsynchronousChannelProvider(new StreamController.Builder().withMessageBroker(end).build());
+
+		var channel = provider.openAsynchronousSocketChannel(null);
+		channel.connect(new InetSocketAddress(7081)).get(5, TimeUnit.SECONDS);
+
+		var outcome = new CompletableFuture<Integer>();
+		channel.read(ByteBuffer.allocate(16), 200, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				outcome.complete(read);
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				outcome.completeExceptionally(e);
+			}
+		});
+
+		var timedOut = assertThrows(ExecutionException.class, () -> outcome.get(5, TimeUnit.SECONDS));
+		assertTrue(timedOut.getCause() instanceof InterruptedByTimeoutException);
+		channel.close();
+
+		var refused = provider.openAsynchronousSocketChannel(null);
+		var failed = assertThrows(ExecutionException.class,
+				() -> refused.connect(new InetSocketAddress(7089)).get(5, TimeUnit.SECONDS));
+		assertTrue(failed.getCause() instanceof IOException);
+		assertFalse(refused.isOpen());
+	}
+
+	@Test
+	@DisplayName("Close fails a pending read at once, without waiting for the peer")
+	void testCloseDoesNotWait() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxAsynchronousChannelProvider(
+				new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7082);
+
+		var provider = new MuxAsynchronousChannelProvider(new StreamController.Builder().withMessageBroker(end).build());
+
+		var channel = provider.openAsynchronousSocketChannel(null);
+		channel.connect(new InetSocketAddress(7082)).get(5, TimeUnit.SECONDS);
+
+		var pending = channel.read(ByteBuffer.allocate(16));
+
+		// the peer no longer answers, so a disconnect is never confirmed
+		end.getPeer().setInlineReceiver(buffer -> {});
+
+		var started = System.currentTimeMillis();
+		channel.close();
+		assertTrue(System.currentTimeMillis() - started < 1000);
+
+		var failed = assertThrows(ExecutionException.class, () -> pending.get(1, TimeUnit.SECONDS));
+		assertTrue(failed.getCause() instanceof AsynchronousCloseException);
+	}
+}
@@ -0,0 +1,209 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class MuxSelectorTest {
+
+	/**
+	 * Accepts and echoes on a single thread until the selector is closed
+	 */
+	private static void serve(MuxSelectorProvider provider, int streamPort) throws IOException {
+		var selector = provider.openSelector();
+		var server = provider.openServerSocketChannel();
+		server.bind(new InetSocketAddress(streamPort));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		Thread.ofVirtual().start(() -> {
+			var buffer = ByteBuffer.allocate(1024);
+
+			try {
+				while( selector.isOpen() ) {
+					selector.select();
+
+					var keys = selector.selectedKeys().iterator();
+					while( keys.hasNext() ) {
+						var key = keys.next();
+						keys.remove();
+
+						if ( key.isAcceptable() ) {
+							var channel = server.accept();
+							if ( channel != null ) {
+								channel.configureBlocking(false);
+								channel.register(selector, SelectionKey.OP_READ);
+							}
+
+						} else if ( key.isReadable() ) {
+							var channel = (MuxSocketChannel) key.channel();
+							buffer.clear();
+
+							if ( channel.read(buffer) < 0 ) {
+								key.cancel();
+								channel.close();
+								continue;
+							}
+
+							buffer.flip();
+							while( buffer.hasRemaining() )
+								channel.write(buffer);
+						}
+					}
+				}
+
+			} catch (Exception e) {
+				// closed
+			}
+		});
+	}
+
+	@Test
+	@DisplayName("Selector loop accepts and echoes Streams on a single thread")
+	void testEcho() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7070);
+
+		var provider = new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end).build());
+
+		for( int i = 0; i < 3; i++ ) {
+			var channel = provider.openSocketChannel();
+			assertTrue(channel.connect(new InetSocketAddress(7070)));
+
+			var request = ByteBuffer.wrap(("ping "+i).getBytes());
+			channel.write(request);
+
+			var reply = ByteBuffer.allocate(request.capacity());
+			while( reply.hasRemaining() )
+				assertTrue(channel.read(reply) > 0);
+
+			assertEquals("ping "+i, new String(reply.array()));
+			channel.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Non-blocking connect completes through the selector")
+	void testNonBlockingConnect() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7071);
+
+		var provider = new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end).build());
+		var selector = provider.openSelector();
+
+		var channel = provider.openSocketChannel();
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_CONNECT);
+
+		assertFalse(channel.connect(new InetSocketAddress(7071)));
+		assertEquals(1, selector.select(5000));
+
+		var key = selector.selectedKeys().iterator().next();
+		assertTrue(key.isConnectable());
+		assertTrue(channel.finishConnect());
+
+		// nothing to read until the echo arrives
+		key.interestOps(SelectionKey.OP_READ);
+		selector.selectedKeys().clear();
+		assertEquals(0, selector.selectNow());
+
+		channel.write(ByteBuffer.wrap("pong".getBytes()));
+		assertEquals(1, selector.select(5000));
+
+		var reply = ByteBuffer.allocate(4);
+		while( reply.hasRemaining() )
+			assertTrue(channel.read(reply) >= 0);
+
+		assertEquals("pong", new String(reply.array()));
+
+		channel.close();
+		selector.close();
+	}
+
+	@Test
+	@DisplayName("Options apply to the Stream, the Socket adaptor delegates, a non-blocking close doesn't wait")
+	void testOptionsAndClose() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7072);
+
+		var provider = new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end).build());
+
+		var channel = provider.openSocketChannel();
+		assertTrue(channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY));
+
+		// as set before connecting, applied once connected
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, false);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, 32768);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		assertThrows(UnsupportedOperationException.class, () -> channel.setOption(StandardSocketOptions.IP_TOS, 0));
+
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(7072));
+		for( int i = 0; i < 500 && !channel.finishConnect(); i++ )
+			Thread.sleep(10);
+
+		assertTrue(channel.isConnected());
+		assertEquals(32768, channel.getOption(StandardSocketOptions.SO_RCVBUF));
+		assertFalse(channel.getStream().isNoDelay());
+
+		var socket = channel.socket();
+		assertSame(socket, channel.socket());
+		assertSame(channel, socket.getChannel());
+		assertTrue(socket.isConnected());
+		assertFalse(socket.getTcpNoDelay());
+		assertTrue(socket.getKeepAlive());
+		assertEquals(7072, socket.getPort());
+
+		socket.setTcpNoDelay(true);
+		assertTrue(channel.getStream().isNoDelay());
+
+		channel.shutdownOutput();
+		assertTrue(socket.isOutputShutdown());
+		assertThrows(ClosedChannelException.class, () -> channel.write(ByteBuffer.wrap("late".getBytes())));
+
+		// the peer no longer answers, so a disconnect is never confirmed
+		end.getPeer().setInlineReceiver(buffer -> {});
+
+		var started = System.currentTimeMillis();
+		channel.close();
+		assertTrue(System.currentTimeMillis() - started < 1000);
+		assertFalse(channel.isOpen());
+		assertTrue(socket.isClosed());
+	}
+
+	@Test
+	@DisplayName("Closing during a non-blocking connect disconnects the Stream once it connects")
+	void testCloseWhileConnecting() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		serve(new MuxSelectorProvider(new StreamController.Builder().withMessageBroker(end.getPeer()).build()), 7073);
+
+		var controller = new StreamController.Builder().withMessageBroker(end).build();
+		var provider = new MuxSelectorProvider(controller);
+
+		var channel = provider.openSocketChannel();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(7073));
+		channel.close();
+
+		for( int i = 0; i < 200 && controller.getStreamCount() > 0; i++ )
+			Thread.sleep(10);
+
+		assertEquals(0, controller.getStreamCount());
+	}
+}
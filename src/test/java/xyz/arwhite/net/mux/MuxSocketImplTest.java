@@ -0,0 +1,134 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class MuxSocketImplTest {
+
+	private static CompletableFuture<Socket> acceptLater(ServerSocket server) {
+		var accepted = new CompletableFuture<Socket>();
+
+		Thread.ofVirtual().start(() -> {
+			try {
+				accepted.complete(server.accept());
+			} catch (IOException e) {
+				accepted.completeExceptionally(e);
+			}
+		});
+
+		return accepted;
+	}
+
+	@Test
+	@DisplayName("Socket options map to the Stream and report what's in effect")
+	void testSocketOptions() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		var server = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end.getPeer()).build())
+				.build()
+				.createServerSocket(0, 0);
+
+		var accepted = acceptLater(server);
+
+		var client = new MuxSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end).build())
+				.build()
+				.createSocket();
+
+		// set before connecting, the window grows once connected
+		client.setReceiveBufferSize(32768);
+		client.setSendBufferSize(100);
+		client.setTcpNoDelay(false);
+		client.setSoTimeout(200);
+		client.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+
+		assertEquals(32768, client.getReceiveBufferSize());
+		assertEquals(Stream.MIN_SEND_BUFFER, client.getSendBufferSize());
+		assertFalse(client.getTcpNoDelay());
+		assertEquals(200, client.getSoTimeout());
+
+		// the window never shrinks
+		client.setReceiveBufferSize(1024);
+		assertEquals(32768, client.getReceiveBufferSize());
+
+		var peer = accepted.get(5, TimeUnit.SECONDS);
+		assertTrue(peer.getTcpNoDelay());
+
+		// nothing sent, the read times out and the socket stays usable
+		assertThrows(SocketTimeoutException.class, () -> client.getInputStream().read());
+
+		// the peer can send beyond the initial window before anything is read
+		var data = new byte[20000];
+		Thread.ofVirtual().start(() -> {
+			try {
+				peer.getOutputStream().write(data);
+			} catch (IOException e) {
+				// closed
+			}
+		});
+
+		for (int i = 0; i < 500 && client.getInputStream().available() < data.length; i++ )
+			Thread.sleep(10);
+
+		assertEquals(data.length, client.getInputStream().available());
+		assertEquals(data.length, client.getInputStream().readNBytes(data.length).length);
+
+		// small writes are coalesced, not held back indefinitely
+		client.getOutputStream().write('a');
+		client.getOutputStream().write('b');
+		client.getOutputStream().write('c');
+		assertEquals("abc", new String(peer.getInputStream().readNBytes(3)));
+
+		client.close();
+		peer.close();
+
+		// and accepts time out on a listening socket
+		server.setSoTimeout(100);
+		assertThrows(SocketTimeoutException.class, () -> server.accept());
+		server.close();
+	}
+
+	@Test
+	@DisplayName("An unset backlog is the StreamServer default, not ServerSocket's 50")
+	void testDefaultBacklog() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		var server = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end.getPeer()).build())
+				.build()
+				.createServerSocket(0, 0);
+
+		var clientFactory = new MuxSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end).build())
+				.build();
+
+		// none accepted, so the backlog fills
+		var clients = new ArrayList<Socket>();
+		for (int i = 0; i < StreamServer.DEFAULT_BACKLOG; i++ )
+			clients.add(clientFactory.createSocket(server.getLocalPort(), null));
+
+		var refused = assertThrows(StreamConnectException.class, 
+				() -> clientFactory.createSocket(server.getLocalPort(), null));
+		assertEquals(StreamConstants.PENDING_STREAM_PORT_CONNECTIONS_EXCEEDED, refused.getErrorCode());
+
+		for (var client : clients)
+			client.close();
+
+		server.close();
+		end.stop();
+	}
+}
@@ -58,4 +58,36 @@ class PriorityQueueEntryTest {
 		
 		assertThat(pbqList).containsExactly(v1, v2, v3);
 	}
+
+	@Test
+	@DisplayName("Test Priority Is Unsigned")
+	void testUnsignedPriorityOrder() {
+
+		var v1 = new PriorityQueueEntry((byte) 1,1l,0,null);
+		var v2 = new PriorityQueueEntry((byte) 127,1l,0,null);
+		var v3 = new PriorityQueueEntry((byte) 200,1l,0,null);
+		
+		var pbq = new PriorityBlockingQueue<PriorityQueueEntry>();
+		pbq.addAll(Arrays.asList(v3,v1,v2));
+		ArrayList<PriorityQueueEntry> pbqList = new ArrayList<PriorityQueueEntry>();
+		pbq.drainTo(pbqList);
+		
+		assertThat(pbqList).containsExactly(v1, v2, v3);
+	}
+
+	@Test
+	@DisplayName("Test Control Ahead Of Same Priority Data")
+	void testControlOrder() {
+
+		var v1 = new PriorityQueueEntry((byte) 0,3l,0,null);
+		var v2 = new PriorityQueueEntry(StreamBuffers.CONTROL_PRIORITY,2l,0,null,true);
+		var v3 = new PriorityQueueEntry((byte) 1,1l,0,null);
+		
+		var pbq = new PriorityBlockingQueue<PriorityQueueEntry>();
+		pbq.addAll(Arrays.asList(v3,v1,v2));
+		ArrayList<PriorityQueueEntry> pbqList = new ArrayList<PriorityQueueEntry>();
+		pbq.drainTo(pbqList);
+		
+		assertThat(pbqList).containsExactly(v1, v2, v3);
+	}
 }
@@ -0,0 +1,82 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class ResolverCacheTest {
+
+	@Test
+	@DisplayName("Lookups cached, shared, refreshed ahead of expiry and failures remembered")
+	void testCache() throws Exception {
+
+		var lookups = new AtomicInteger(0);
+		var address = InetAddress.getByAddress("backend", new byte[] { 10, 0, 0, 1 });
+
+		var cache = new ResolverCache.Builder()
+				.withResolver(host -> {
+					lookups.incrementAndGet();
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						throw(new UnknownHostException(host));
+					}
+
+					if ( host.equals("missing") )
+						throw(new UnknownHostException(host));
+
+					return new InetAddress[] { address };
+				})
+				.withTtl(1000)
+				.withNegativeTtl(300)
+				.withRefreshAhead(0.5)
+				.withMaxEntries(2)
+				.build();
+
+		// concurrent requests share one lookup
+		var resolved = new AtomicInteger(0);
+		var threads = new ArrayList<Thread>();
+		for (int i = 0; i < 10; i++ )
+			threads.add(Thread.ofVirtual().start(() -> {
+				try {
+					if ( cache.resolve("backend")[0] == address )
+						resolved.incrementAndGet();
+				} catch (UnknownHostException e) {
+					// counted as not resolved
+				}
+			}));
+
+		for( var thread : threads )
+			thread.join();
+
+		assertEquals(10, resolved.get());
+		assertEquals(1, lookups.get());
+
+		// past the refresh point the cached addresses are used while the host is looked up again
+		Thread.sleep(600);
+		var start = System.currentTimeMillis();
+		assertSame(address, cache.resolve("backend")[0]);
+		assertTrue(System.currentTimeMillis() - start < 100);
+		Thread.sleep(200);
+		assertEquals(2, lookups.get());
+
+		// failures are remembered for the negative TTL
+		assertThrows(UnknownHostException.class, () -> cache.resolve("missing"));
+		assertThrows(UnknownHostException.class, () -> cache.resolve("missing"));
+		assertEquals(3, lookups.get());
+
+		Thread.sleep(400);
+		assertThrows(UnknownHostException.class, () -> cache.resolve("missing"));
+		assertEquals(4, lookups.get());
+
+		// bounded, the entry expiring soonest makes way
+		cache.resolve("other");
+		assertEquals(2, cache.size());
+	}
+}
@@ -0,0 +1,86 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.helidon.common.buffers.BufferData;
+
+class SharedMemoryMessageHandlerTest {
+
+	@Test
+	@DisplayName("Messages exchanged through shared memory rings")
+	void testRingWrap() throws Exception {
+
+		var path = Files.createTempDirectory("mux").resolve("link.shm");
+
+		var creator = new SharedMemoryMessageHandler.Builder()
+				.withPath(path)
+				.withRingSize(4096)
+				.create();
+
+		var opener = new SharedMemoryMessageHandler.Builder()
+				.withPath(path)
+				.open();
+
+		var rxQueue = (PriorityBlockingQueue<PriorityQueueEntry>) opener.getRxQueue();
+
+		// several times round the ring
+		for (int i = 0; i < 200; i++ ) {
+			var buffer = BufferData.create(300);
+			buffer.writeInt8(2); // priority
+			buffer.writeInt32(i);
+			buffer.write(new byte[295]);
+
+			while( !creator.sendMessage(buffer) )
+				Thread.sleep(1);
+
+			var qe = rxQueue.poll(5, TimeUnit.SECONDS);
+			assertNotNull(qe);
+			assertEquals(300,qe.message().available());
+			qe.message().skip(1);
+			assertEquals(i,qe.message().readInt32());
+		}
+
+		// and back the other way
+		var buffer = BufferData.create(2);
+		buffer.writeInt8(3);
+		buffer.writeInt8(7);
+		assertTrue(opener.sendMessage(buffer));
+
+		var qe = ((PriorityBlockingQueue<PriorityQueueEntry>) creator.getRxQueue()).poll(5, TimeUnit.SECONDS);
+		assertNotNull(qe);
+		assertEquals(7,qe.message().get(1));
+
+		creator.stop();
+
+		// other side learns the link has gone
+		qe = rxQueue.poll(5, TimeUnit.SECONDS);
+		assertNotNull(qe);
+		assertEquals(0,qe.priority());
+
+		opener.stop();
+		assertFalse(Files.exists(path));
+	}
+
+	@Test
+	@DisplayName("Opening a file the other side hasn't sized yet fails as not ready")
+	void testOpenBeforeSized() throws Exception {
+
+		var path = Files.createTempDirectory("mux").resolve("link.shm");
+
+		// as it is between the other side creating and mapping it
+		Files.createFile(path);
+
+		var e = assertThrows(IllegalStateException.class, 
+				() -> new SharedMemoryMessageHandler.Builder().withPath(path).open());
+		assertTrue(e.getMessage().contains("not a ready shared memory link"));
+
+		Files.delete(path);
+	}
+}
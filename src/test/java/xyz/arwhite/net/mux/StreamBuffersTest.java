@@ -22,8 +22,27 @@ class StreamBuffersTest {
 		assertEquals(12,cr.priority());
 		assertEquals(17,cr.remoteId());
 		assertEquals(8080,cr.streamPort());
+		assertNull(cr.destination());
 		
-
+		connBuff = StreamBuffers.createConnectRequest(12, 17, 258, "example.com:443", null);
+		cr = StreamBuffers.parseConnectRequest(connBuff);
+		
+		assertEquals(258,cr.streamPort());
+		assertEquals("example.com:443",cr.destination());
+		assertNull(cr.earlyData());
+		
+		// early data, with and without a destination
+		connBuff = StreamBuffers.createConnectRequest(12, 17, 258, "example.com:443", new byte[] { 1, 2, 3 });
+		cr = StreamBuffers.parseConnectRequest(connBuff);
+		
+		assertEquals("example.com:443",cr.destination());
+		assertArrayEquals(new byte[] { 1, 2, 3 },cr.earlyData());
+		
+		connBuff = StreamBuffers.createConnectRequest(12, 17, 258, null, new byte[] { 4 });
+		cr = StreamBuffers.parseConnectRequest(connBuff);
+		
+		assertNull(cr.destination());
+		assertArrayEquals(new byte[] { 4 },cr.earlyData());
 	}
 
 	@Test
@@ -61,4 +80,53 @@ class StreamBuffersTest {
 		assertEquals(10010,cf.errorCode());
 		
 	}
+
+	@Test
+	void testHelloBuffers() {
+		
+		var hello = StreamBuffers.createHello("edge-7");
+		
+		assertEquals(StreamBuffers.HELLO,(byte) StreamBuffers.getBufferType(hello));
+		assertTrue(StreamBuffers.isControlFrame(hello));
+		assertEquals("edge-7",StreamBuffers.parseHelloId(hello));
+	}
+
+	@Test
+	void testDisconnectBuffersStayInBand() {
+		
+		// both must stay ordered behind the DATA of their Stream
+		var request = StreamBuffers.createDisconnectRequest(12, 17);
+		var confirm = StreamBuffers.createDisconnectConfirm(12, 17);
+		
+		assertFalse(StreamBuffers.isControlFrame(request));
+		assertFalse(StreamBuffers.isControlFrame(confirm));
+		assertTrue(StreamBuffers.isControlFrame(StreamBuffers.createConnectConfirm(12, 17, 3)));
+	}
+
+	@Test
+	void testEarlyDataTakesDataLane() {
+		
+		assertTrue(StreamBuffers.isControlFrame(StreamBuffers.createConnectRequest(12, 17, 80, null, null)));
+		assertTrue(StreamBuffers.isControlFrame(StreamBuffers.createConnectRequest(12, 17, 80, "example.com:443", null)));
+		
+		// early data queues with the data, not ahead of every Stream's control frames
+		assertFalse(StreamBuffers.isControlFrame(
+				StreamBuffers.createConnectRequest(12, 17, 80, null, new byte[Stream.MAX_EARLY_DATA])));
+		assertFalse(StreamBuffers.isControlFrame(
+				StreamBuffers.createConnectRequest(12, 17, 80, "example.com:443", "GET".getBytes())));
+	}
+
+	@Test
+	void testWindowUpdateBuffers() {
+		
+		var windowUpdate = StreamBuffers.createWindowUpdate(3, 42, 61439);
+		
+		assertEquals(StreamBuffers.WINDOW_UPDATE,(byte) StreamBuffers.getBufferType(windowUpdate));
+		assertTrue(StreamBuffers.isControlFrame(windowUpdate));
+		
+		var wu = StreamBuffers.parseWindowUpdate(windowUpdate);
+		assertEquals(3,wu.priority());
+		assertEquals(42,wu.localId());
+		assertEquals(61439,wu.size());
+	}
 }
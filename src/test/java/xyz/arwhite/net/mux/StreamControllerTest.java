@@ -0,0 +1,552 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.helidon.common.buffers.BufferData;
+
+class StreamControllerTest {
+
+	/**
+	 * Link that records what is sent and never receives anything
+	 */
+	private class TestLink implements MessageBroker {
+
+		PriorityBlockingQueue<PriorityQueueEntry> rxQueue = new PriorityBlockingQueue<>();
+		LinkedBlockingQueue<BufferData> sent = new LinkedBlockingQueue<>();
+
+		@Override
+		public Queue<?> getRxQueue() {
+			return rxQueue;
+		}
+
+		@Override
+		public Queue<?> getTxQueue() {
+			return sent;
+		}
+
+		@Override
+		public boolean sendMessage(BufferData buffer) {
+			return sent.add(buffer);
+		}
+	}
+
+	/**
+	 * Link that can be suspended and resumed, queued DATA is discarded on suspension
+	 */
+	private class ResumableTestLink extends TestLink {
+
+		@Override
+		public long getResumeTimeout() {
+			return 1000;
+		}
+
+		@Override
+		public void discardQueuedData() {
+			sent.removeIf(b -> StreamBuffers.getBufferType(b) == StreamBuffers.DATA);
+		}
+	}
+
+	@Test
+	@DisplayName("Streams placed on least loaded link")
+	void testLeastLoadedPlacement() throws Exception {
+
+		var link1 = new TestLink();
+		var link2 = new TestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link1)
+				.withMessageBroker(link2)
+				.build();
+
+		var s1 = new Stream(controller);
+		var s2 = new Stream(controller);
+		var s3 = new Stream(controller);
+
+		assertSame(link1,s1.getLink());
+		assertSame(link2,s2.getLink());
+		assertSame(link1,s3.getLink());
+		assertEquals(2,controller.getLinkLoad(link1));
+
+		// freed capacity is used first
+		controller.deregisterStream(s1.getLocalId());
+		assertSame(link1,new Stream(controller).getLink());
+
+		// removed links take no new Streams
+		assertTrue(controller.removeLink(link1));
+		assertSame(link2,new Stream(controller).getLink());
+	}
+
+	@Test
+	@DisplayName("Stream messages sent on its link")
+	void testSendOnLink() throws Exception {
+
+		var link1 = new TestLink();
+		var link2 = new TestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link1)
+				.withMessageBroker(link2)
+				.withLinkPlacement(StreamController.LinkPlacement.HASH)
+				.build();
+
+		var stream = new Stream(controller);
+		var other = stream.getLink() == link1 ? link2 : link1;
+
+		stream.sendData(java.nio.ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 3);
+
+		assertEquals(1,((TestLink) stream.getLink()).sent.size());
+		assertEquals(0,((TestLink) other).sent.size());
+	}
+
+	@Test
+	@DisplayName("Link shutdown stops only its Streams")
+	void testLinkShutdown() throws Exception {
+
+		var link1 = new TestLink();
+		var link2 = new TestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link1)
+				.withMessageBroker(link2)
+				.build();
+
+		var s1 = new Stream(controller);
+		var s2 = new Stream(controller);
+
+		var shutdown = BufferData.create(1);
+		shutdown.writeInt8(0);
+		controller.dispatch(shutdown, link1);
+
+		assertTrue(s1.isClosed());
+		assertFalse(s2.isClosed());
+		assertEquals(1,controller.getLinks().size());
+
+		// the stopped Stream is deregistered, freeing its ID
+		assertEquals(1,controller.getStreamCount());
+
+		controller.dispatch(shutdown, link2);
+		assertTrue(s2.isClosed());
+		assertEquals(0,controller.getStreamCount());
+	}
+
+	@Test
+	@DisplayName("Hash placement isn't a rotation through the links")
+	void testHashPlacement() throws Exception {
+
+		var link1 = new TestLink();
+		var link2 = new TestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link1)
+				.withMessageBroker(link2)
+				.withLinkPlacement(StreamController.LinkPlacement.HASH)
+				.build();
+
+		var alternations = 0;
+		var onLink1 = 0;
+		MessageBroker previous = null;
+
+		for( int i = 0; i < 64; i++ ) {
+			var link = new Stream(controller).getLink();
+
+			if ( link == link1 )
+				onLink1++;
+			if ( previous != null && link != previous )
+				alternations++;
+
+			previous = link;
+		}
+
+		// spread across both, but not strictly in turn
+		assertTrue(onLink1 > 16 && onLink1 < 48);
+		assertTrue(alternations < 63);
+	}
+
+	@Test
+	@DisplayName("Stream replays lost data when link resumes")
+	void testResume() throws Exception {
+
+		var link = new ResumableTestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var stream = new Stream(controller);
+
+		stream.sendData(java.nio.ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 3);
+		assertEquals(1,link.sent.size());
+
+		controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SUSPENDED), link);
+		assertTrue(stream.isSuspended());
+		assertEquals(0,link.sent.size());
+
+		// retained while suspended
+		stream.sendData(java.nio.ByteBuffer.wrap(new byte[] { 4, 5 }), 2);
+		assertEquals(0,link.sent.size());
+
+		controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_RESUMED), link);
+		assertEquals(StreamBuffers.RESUME,StreamBuffers.getBufferType(link.sent.take()));
+
+		// peer received the first byte before the link dropped
+		controller.dispatch(StreamBuffers.createResume(50, stream.getLocalId(), 1, 0, 0), link);
+		assertFalse(stream.isSuspended());
+
+		var replayed = link.sent.take();
+		assertEquals(StreamBuffers.DATA,StreamBuffers.getBufferType(replayed));
+		assertEquals(4,StreamBuffers.getTransmitDataSize(replayed));
+		assertEquals(2,replayed.get(5));
+	}
+
+	@Test
+	@DisplayName("Stream overrun by its peer ends in error rather than losing data")
+	void testPeerOverrun() throws Exception {
+
+		var link = new ResumableTestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var stream = new Stream(controller);
+		assertEquals(1,controller.getStreamCount());
+
+		// a queue nothing takes from, already full
+		var full = new LinkedBlockingQueue<BufferData>(1);
+		full.offer(StreamBuffers.createTransmitData(50, stream.getLocalId(), java.nio.ByteBuffer.wrap(new byte[] { 1 }), 1));
+		stream.setPeerIncoming(full);
+
+		controller.dispatch(StreamBuffers.createTransmitData(50, stream.getLocalId(), 
+				java.nio.ByteBuffer.wrap(new byte[] { 2 }), 1), link);
+
+		assertTrue(stream.isClosed());
+		assertEquals(0,controller.getStreamCount());
+	}
+
+	@Test
+	@DisplayName("Window growth lost with the link is made good on resume")
+	void testResumeWindowGrowth() throws Exception {
+
+		var link = new ResumableTestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var stream = new Stream(controller);
+		stream.sendConnectConfirm();
+		assertEquals(StreamBuffers.CONNECT_CONFIRM,StreamBuffers.getBufferType(link.sent.take()));
+
+		// the update is queued, then lost as the link drops
+		stream.setReceiveWindow(8192);
+		assertEquals(StreamBuffers.WINDOW_UPDATE,StreamBuffers.getBufferType(link.sent.take()));
+		controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SUSPENDED), link);
+
+		controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_RESUMED), link);
+		var resume = link.sent.take();
+		assertEquals(StreamBuffers.RESUME,StreamBuffers.getBufferType(resume));
+		assertEquals(4096,StreamBuffers.parseResume(resume).windowGrowth());
+
+		// and growth the peer never saw lets more go than the initial window
+		controller.dispatch(StreamBuffers.createResume(50, stream.getLocalId(), 0, 0, 4096), link);
+		assertFalse(stream.isSuspended());
+
+		Thread.ofVirtual().start(() -> {
+			try {
+				stream.getOutputStream().write(new byte[8192]);
+			} catch (IOException e) {
+				// closed
+			}
+		});
+
+		int sent = 0;
+		while( sent < 8192 ) {
+			var data = link.sent.poll(5, TimeUnit.SECONDS);
+			assertNotNull(data);
+			sent += StreamBuffers.getTransmitDataSize(data);
+		}
+
+		assertEquals(8192,sent);
+	}
+
+	@Test
+	@DisplayName("A RESUME racing a writer restores credit without deadlocking")
+	void testResumeWhileWriting() throws Exception {
+
+		var link = new ResumableTestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var stream = new Stream(controller);
+		stream.sendConnectConfirm();
+		link.sent.clear();
+
+		// a window large enough that the writer is still sending as each RESUME arrives
+		var growth = Stream.MAX_WINDOW - 4096;
+		controller.dispatch(StreamBuffers.createWindowUpdate(50, stream.getLocalId(), growth), link);
+
+		var writer = Thread.ofVirtual().start(() -> {
+			try {
+				while( true )
+					stream.getOutputStream().write(new byte[512]);
+			} catch (IOException e) {
+				// closed
+			}
+		});
+
+		// everything taken off the link counts as received and credited by the peer
+		long received = 0;
+
+		for( int i = 0; i < 200; i++ ) {
+			BufferData sent;
+			while( (sent = link.sent.poll()) != null )
+				if ( StreamBuffers.getBufferType(sent) == StreamBuffers.DATA )
+					received += StreamBuffers.getTransmitDataSize(sent);
+
+			// DATA still queued is lost with the link
+			controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_SUSPENDED), link);
+			link.sent.clear();
+			controller.dispatch(StreamBuffers.createLinkEvent(StreamBuffers.LINK_RESUMED), link);
+			link.sent.clear();
+
+			var resume = StreamBuffers.createResume(50, stream.getLocalId(), received, received, growth);
+			var resumed = CompletableFuture.runAsync(() -> controller.dispatch(resume, link));
+			resumed.get(5, TimeUnit.SECONDS);
+			assertFalse(stream.isSuspended());
+		}
+
+		// and the writer is still making progress
+		var before = received;
+		for( int i = 0; i < 500 && received == before; i++ ) {
+			var sent = link.sent.poll(10, TimeUnit.MILLISECONDS);
+			if ( sent != null && StreamBuffers.getBufferType(sent) == StreamBuffers.DATA )
+				received += StreamBuffers.getTransmitDataSize(sent);
+		}
+
+		assertTrue(received > before);
+		writer.interrupt();
+	}
+
+	@Test
+	@DisplayName("Ping answered on the link it arrived on")
+	void testPingAnswered() throws Exception {
+
+		var link1 = new TestLink();
+		var link2 = new TestLink();
+
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link1)
+				.withMessageBroker(link2)
+				.build();
+
+		controller.dispatch(StreamBuffers.createPing(42), link2);
+
+		var pong = link2.sent.take();
+		assertEquals(StreamBuffers.PONG,StreamBuffers.getBufferType(pong));
+		assertEquals(42,StreamBuffers.parsePingId(pong));
+		assertTrue(StreamBuffers.isControlFrame(pong));
+		assertEquals(0,link1.sent.size());
+	}
+
+	@Test
+	@DisplayName("Connects to one stream port don't wait on another, and fail once too many wait")
+	void testConnectDispatch() throws Exception {
+
+		var link = new TestLink();
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.withOrderedConnects(1)
+				.build();
+
+		// a listener that holds up its stream port
+		var release = new CountDownLatch(1);
+		new StreamServer(controller, 1) {
+			@Override
+			public boolean connectStream(Stream stream) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+				return super.connectStream(stream);
+			}
+		};
+
+		new StreamServer(controller, 2);
+
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 100, 1), link);
+		Thread.sleep(50);
+
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 101, 2), link);
+
+		var confirm = link.sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(confirm);
+		assertEquals(StreamBuffers.CONNECT_CONFIRM,StreamBuffers.getBufferType(confirm));
+		assertEquals(101,StreamBuffers.parseConnectConfirm(confirm).localId());
+
+		// counted until its dispatch returns, just after the confirm is sent
+		Thread.sleep(50);
+
+		// the first is being dispatched, the rest wait for it until there's no more room
+		for (int i = 0; i < 65; i++ )
+			controller.dispatch(StreamBuffers.createConnectRequest(2, 150 + i, 1), link);
+
+		var fail = link.sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(fail);
+		assertEquals(StreamBuffers.CONNECT_FAIL,StreamBuffers.getBufferType(fail));
+		assertEquals(214,StreamBuffers.parseConnectFail(fail).localId());
+		assertEquals(StreamConstants.CONNECT_REQUESTS_EXCEEDED,StreamBuffers.parseConnectFail(fail).errorCode());
+
+		release.countDown();
+	}
+
+	@Test
+	@DisplayName("Connects dispatching in parallel count against the queue depth until dispatched")
+	void testParallelConnectsBounded() throws Exception {
+
+		var link = new TestLink();
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var release = new CountDownLatch(1);
+		var server = new StreamServer(controller, 6) {
+			@Override
+			public boolean connectStream(Stream stream) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+				return super.connectStream(stream);
+			}
+		};
+		server.setBacklog(100);
+
+		for (int i = 0; i < 65; i++ )
+			controller.dispatch(StreamBuffers.createConnectRequest(2, 180 + i, 6), link);
+
+		var fail = link.sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(fail);
+		assertEquals(StreamBuffers.CONNECT_FAIL,StreamBuffers.getBufferType(fail));
+		assertEquals(244,StreamBuffers.parseConnectFail(fail).localId());
+		assertEquals(StreamConstants.CONNECT_REQUESTS_EXCEEDED,StreamBuffers.parseConnectFail(fail).errorCode());
+
+		release.countDown();
+		server.close();
+	}
+
+	@Test
+	@DisplayName("Connects dispatched in parallel unless ordered, ordered dispatchers dropped with their listener")
+	void testParallelConnects() throws Exception {
+
+		var link = new TestLink();
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.withOrderedConnects(5)
+				.build();
+
+		// the first connect is held up, the next on the same port isn't
+		var release = new CountDownLatch(1);
+		var server = new StreamServer(controller, 4) {
+			@Override
+			public boolean connectStream(Stream stream) {
+				if ( stream.getRemoteId() == 100 ) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				return super.connectStream(stream);
+			}
+		};
+
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 100, 4), link);
+		Thread.sleep(50);
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 101, 4), link);
+
+		var confirm = link.sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(confirm);
+		assertEquals(StreamBuffers.CONNECT_CONFIRM,StreamBuffers.getBufferType(confirm));
+		assertEquals(101,StreamBuffers.parseConnectConfirm(confirm).localId());
+
+		release.countDown();
+		assertNotNull(link.sent.poll(5, TimeUnit.SECONDS));
+		assertEquals(0, controller.getConnectDispatcherCount());
+		server.close();
+
+		// an ordered port's dispatcher lasts as long as its listener
+		var ordered = new StreamServer(controller, 5);
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 102, 5), link);
+		assertNotNull(link.sent.poll(5, TimeUnit.SECONDS));
+		assertEquals(1, controller.getConnectDispatcherCount());
+
+		// dropped by the close, or by the dispatcher if it was still finishing
+		ordered.close();
+		for (int i = 0; i < 100 && controller.getConnectDispatcherCount() > 0; i++ )
+			Thread.sleep(10);
+
+		assertEquals(0, controller.getConnectDispatcherCount());
+
+		// nor is one kept for a port nothing listens on
+		controller.dispatch(StreamBuffers.createConnectRequest(2, 103, 5), link);
+		assertEquals(StreamBuffers.CONNECT_FAIL,StreamBuffers.getBufferType(link.sent.poll(5, TimeUnit.SECONDS)));
+
+		for (int i = 0; i < 100 && controller.getConnectDispatcherCount() > 0; i++ )
+			Thread.sleep(10);
+
+		assertEquals(0, controller.getConnectDispatcherCount());
+	}
+
+	@Test
+	@DisplayName("Connects spread across StreamServers sharing a port, each with its own backlog")
+	void testReusePort() throws Exception {
+
+		var link = new TestLink();
+		var controller = new StreamController.Builder()
+				.withMessageBroker(link)
+				.build();
+
+		var first = new StreamServer(controller, 3, true);
+		var second = new StreamServer(controller, 3, true);
+		assertThrows(IllegalArgumentException.class, () -> new StreamServer(controller, 3));
+
+		first.setBacklog(2);
+		second.setBacklog(2);
+
+		for (int i = 0; i < 5; i++ ) {
+			controller.dispatch(StreamBuffers.createConnectRequest(2, 10 + i, 3), link);
+
+			var reply = link.sent.poll(5, TimeUnit.SECONDS);
+			assertNotNull(reply);
+
+			// both full by the last
+			assertEquals(i < 4 ? StreamBuffers.CONNECT_CONFIRM : StreamBuffers.CONNECT_FAIL,
+					StreamBuffers.getBufferType(reply));
+		}
+
+		assertEquals(2, first.getPendingCount());
+		assertEquals(2, second.getPendingCount());
+		assertNotNull(first.accept());
+
+		// the port stays in use until the last sharer closes
+		first.close();
+		assertThrows(IllegalArgumentException.class, () -> new StreamServer(controller, 3));
+		second.close();
+		assertDoesNotThrow(() -> new StreamServer(controller, 3));
+	}
+}
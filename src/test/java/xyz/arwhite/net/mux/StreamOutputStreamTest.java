@@ -1,12 +1,16 @@
 package xyz.arwhite.net.mux;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.lang.Thread.State;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -14,6 +18,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 class StreamOutputStreamTest {
@@ -226,6 +231,73 @@ class StreamOutputStreamTest {
 		// transitbuffer should be empty now
 	}
 	
+	@Test
+	@DisplayName("A write larger than the transit buffer is sent whole and in order")
+	void testWriteLargerThanTransit() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+		var server = new StreamServer(new StreamController.Builder().withMessageBroker(end.getPeer()).build(), 7092);
+
+		var client = new Stream();
+		client.setStreamController(new StreamController.Builder().withMessageBroker(end).build());
+		client.connect(new InetSocketAddress("127.0.0.1", 7092));
+
+		var peer = server.accept();
+
+		// leaves less than a full transit buffer to copy on the last pass
+		var data = new byte[10000];
+		for( int i = 0; i < data.length; i++ )
+			data[i] = (byte) i;
+
+		var received = new CompletableFuture<byte[]>();
+		Thread.ofVirtual().start(() -> {
+			try {
+				var buffer = new byte[data.length];
+				new DataInputStream(peer.getInputStream()).readFully(buffer);
+				received.complete(buffer);
+			} catch (IOException e) {
+				received.completeExceptionally(e);
+			}
+		});
+
+		client.getOutputStream().write(data);
+		client.getOutputStream().flush();
+
+		assertArrayEquals(data, received.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	@DisplayName("A flush with nothing buffered doesn't stop the next write coalescing")
+	void testEmptyFlushKeepsCoalescing() throws Exception {
+
+		var sq = new ArrayBlockingQueue<Integer>(12);
+
+		Stream s = new Stream() {
+
+			@Override
+			protected void sendData(ByteBuffer buffer, int size) {
+				buffer.position(buffer.position() + size);
+				sq.offer(size);
+			}
+
+		};
+
+		s.setStreamController(new StreamController() {});
+		s.setNoDelay(false);
+		var o = s.getOutputStream();
+
+		// nothing unacknowledged, so sent at once
+		o.write('a');
+		assertEquals(1, sq.poll(1, TimeUnit.SECONDS));
+
+		o.flush();
+
+		// held back while 'a' is unacknowledged, until the coalescing delay passes
+		o.write('b');
+		assertNull(sq.poll(20, TimeUnit.MILLISECONDS));
+		assertEquals(1, sq.poll(1, TimeUnit.SECONDS));
+	}
+
 	/**
 	 * Utility to wait for a Thread to achieve a given State. Useful when a background 
 	 * Thread has been launched and another Thread needs to know when a certain State 
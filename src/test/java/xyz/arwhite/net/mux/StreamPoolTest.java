@@ -0,0 +1,86 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class StreamPoolTest {
+
+	private static void serve(ServerSocket server) {
+		Thread.ofVirtual().start(() -> {
+			try {
+				while( true ) {
+					var sock = server.accept();
+					Thread.ofVirtual().start(() -> {
+						try {
+							sock.getInputStream().transferTo(sock.getOutputStream());
+							sock.close();
+						} catch (IOException e) {
+							// peer gone
+						}
+					});
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		});
+	}
+
+	private static void waitForIdle(StreamPool pool, int streamPort, int count) throws InterruptedException {
+		for (int i = 0; i < 500 && pool.getIdleCount(streamPort) != count; i++ )
+			Thread.sleep(10);
+
+		assertEquals(count, pool.getIdleCount(streamPort));
+	}
+
+	@Test
+	@DisplayName("Pooled Streams handed out, refilled and evicted when idle")
+	void testPool() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+
+		var server = new MuxServerSocketFactory.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end.getPeer()).build())
+				.build()
+				.createServerSocket(0, 0);
+		serve(server);
+
+		var streamPort = server.getLocalPort();
+
+		var pool = new StreamPool.Builder()
+				.withMux(new StreamController.Builder().withMessageBroker(end).build())
+				.withPoolSize(2)
+				.withIdleTimeout(1000)
+				.withStreamPorts(streamPort)
+				.build();
+
+		waitForIdle(pool, streamPort, 2);
+
+		var sock = pool.acquire(streamPort);
+		sock.getOutputStream().write("ping".getBytes());
+		sock.getOutputStream().flush();
+		assertEquals("ping", new String(sock.getInputStream().readNBytes(4)));
+		sock.close();
+
+		// topped back up, then closed once nothing is asked for
+		waitForIdle(pool, streamPort, 2);
+		waitForIdle(pool, streamPort, 0);
+
+		// and started again on demand
+		sock = pool.acquire(streamPort);
+		assertNotNull(sock);
+		sock.close();
+		waitForIdle(pool, streamPort, 2);
+
+		pool.close();
+		assertEquals(0, pool.getIdleCount(streamPort));
+		assertThrows(IOException.class, () -> pool.acquire(streamPort));
+
+		server.close();
+		end.stop();
+	}
+}
@@ -2,6 +2,8 @@ package xyz.arwhite.net.mux;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 
 import org.junit.jupiter.api.AfterAll;
@@ -120,4 +122,78 @@ class StreamServerTest {
 
 				);
 	}
+
+	@Test
+	@DisplayName("Stream is connected before the peer is sent its confirm")
+	void connectedBeforeConfirm() throws Exception {
+
+		var sc = new StreamController() {
+
+			Stream accepted;
+
+			@Override
+			public boolean registerStreamServer(int port, StreamServer server) {
+				return true;
+			}
+
+			@Override
+			public boolean send(BufferData buffer) {
+				if ( StreamBuffers.getBufferType(buffer) != StreamBuffers.CONNECT_CONFIRM )
+					return true;
+
+				// the peer answers the confirm at once, before this send has returned
+				accepted.getPeerIncoming().offer(
+						StreamBuffers.createTransmitData(1, 0, ByteBuffer.wrap(new byte[] { 42 }), 1));
+
+				try {
+					for( int i = 0; i < 100 && accepted.getInputStream().available() < 1; i++ )
+						Thread.sleep(10);
+				} catch (Exception e) {
+					// checked below
+				}
+
+				return true;
+			}
+
+		};
+
+		var ss = new StreamServer(sc, 258);
+
+		sc.accepted = new Stream(sc, 0, 0, 1);
+		ss.connectStream(sc.accepted);
+
+		var stream = ss.accept();
+		assertEquals(1, stream.getInputStream().available());
+		assertEquals(42, stream.getInputStream().read());
+	}
+
+	@Test
+	@DisplayName("Connects refused by a full backlog free their Streams")
+	void refusedConnectsFreed() throws Exception {
+
+		var end = new LoopbackMessageBroker();
+		var serverController = new StreamController.Builder().withMessageBroker(end.getPeer()).build();
+		var server = new StreamServer(serverController, 7095);
+		server.setBacklog(1);
+
+		var clientController = new StreamController.Builder().withMessageBroker(end).build();
+
+		var waiting = new Stream();
+		waiting.setStreamController(clientController);
+		waiting.connect(new InetSocketAddress("127.0.0.1", 7095));
+
+		// more than the Stream IDs there are, if refusals kept theirs
+		for (int i = 0; i < 150; i++ ) {
+			var refused = new Stream();
+			refused.setStreamController(clientController);
+
+			var e = assertThrows(StreamConnectException.class, 
+					() -> refused.connect(new InetSocketAddress("127.0.0.1", 7095)));
+			assertEquals(StreamConstants.PENDING_STREAM_PORT_CONNECTIONS_EXCEEDED, e.getErrorCode());
+		}
+
+		assertEquals(1, serverController.getStreamCount());
+		assertNotNull(server.accept());
+		end.stop();
+	}
 }
@@ -4,17 +4,58 @@ import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.net.SocketTimeoutException;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.LimitExceededException;
 
+import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import io.helidon.common.buffers.BufferData;
 
 class StreamTest {
 
+	private record Connected(Stream client, Stream peer) {};
+
+	/**
+	 * Connects a Stream to a StreamServer across a loopback link
+	 */
+	private static Connected connectLoopback(int streamPort) throws Exception {
+		var end = new LoopbackMessageBroker();
+		var server = new StreamServer(new StreamController.Builder().withMessageBroker(end.getPeer()).build(), streamPort);
+
+		var client = new Stream();
+		client.setStreamController(new StreamController.Builder().withMessageBroker(end).build());
+		client.setStreamTimeout(5000);
+		client.connect(new InetSocketAddress("127.0.0.1", streamPort));
+
+		return new Connected(client, server.accept());
+	}
+
+	/**
+	 * Reads on another thread so a read that never returns fails the test rather than hangs it
+	 */
+	private static CompletableFuture<Integer> readLater(Stream stream) {
+		var outcome = new CompletableFuture<Integer>();
+
+		Thread.ofVirtual().start(() -> {
+			try {
+				outcome.complete(stream.getInputStream().read());
+			} catch (IOException e) {
+				outcome.completeExceptionally(e);
+			}
+		});
+
+		return outcome;
+	}
+
 	@Test
 	void testDirectConnectTimeout() {
 		
@@ -283,4 +324,247 @@ class StreamTest {
 		
 		
 	}
+
+	@Test
+	@DisplayName("Reads return end of stream once the peer has closed and its data is read")
+	void testPeerCloseEndsReads() throws Exception {
+
+		var pair = connectLoopback(7093);
+
+		pair.peer().getOutputStream().write('a');
+		pair.peer().getOutputStream().flush();
+		pair.peer().close();
+
+		assertEquals('a', readLater(pair.client()).get(5, TimeUnit.SECONDS));
+		assertEquals(-1, readLater(pair.client()).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	@DisplayName("Closing a Stream wakes a blocked reader")
+	void testCloseWakesReader() throws Exception {
+
+		var pair = connectLoopback(7094);
+
+		var blocked = readLater(pair.client());
+		Thread.sleep(100);
+		assertEquals(false, blocked.isDone());
+
+		pair.client().close();
+
+		try {
+			blocked.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			// closed under the reader, as a socket does
+			assertEquals(true, e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	@DisplayName("Disconnect requests that cross complete both closes without a confirm")
+	void testCrossingDisconnects() throws Exception {
+
+		var confirmsSent = new AtomicInteger();
+
+		var sc = new StreamController() {
+
+			Stream victim;
+
+			@Override
+			public boolean send(BufferData buffer) {
+				switch( StreamBuffers.getBufferType(buffer) )
+				{
+				case StreamBuffers.CONNECT_REQUEST -> {
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createConnectConfirm(258, 27, 17)
+							);
+				}
+				case StreamBuffers.DISCONNECT_REQUEST -> {
+					// the peer closed at the same moment
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createDisconnectRequest(258, 17)
+							);
+				}
+				case StreamBuffers.DISCONNECT_CONFIRM -> confirmsSent.incrementAndGet();
+				}
+
+				return true;
+			}
+
+			@Override
+			protected int registerStream(Stream stream) throws LimitExceededException, IllegalArgumentException {
+				this.victim = stream;
+				return 17;
+			}
+
+			@Override
+			protected boolean deregisterStream(int stream) {
+				return true;
+			}
+
+		};
+
+		Stream stream = new Stream();
+		stream.setStreamController(sc);
+		stream.setStreamTimeout(2 * 1000);
+
+		stream.connect(new InetSocketAddress("127.0.0.1", 258));
+		assertDoesNotThrow(() -> stream.close());
+		assertEquals(true, stream.isClosed());
+		assertEquals(0, confirmsSent.get());
+	}
+
+	@Test
+	@DisplayName("Closing a Stream the peer has already closed returns at once")
+	void testCloseAfterPeerClosed() throws Exception {
+
+		var pair = connectLoopback(7095);
+
+		pair.peer().close();
+		assertEquals(-1, readLater(pair.client()).get(5, TimeUnit.SECONDS));
+
+		// nothing is sent, nor any confirm awaited
+		pair.client().setStreamTimeout(1000);
+		assertDoesNotThrow(() -> pair.client().close());
+	}
+
+	@Test
+	@DisplayName("Nothing more is sent for a Stream the peer has closed")
+	void testNothingSentAfterPeerClosed() throws Exception {
+
+		var sentAfterClose = new AtomicInteger();
+
+		var sc = new StreamController() {
+
+			Stream victim;
+
+			@Override
+			public boolean send(BufferData buffer) {
+				switch( StreamBuffers.getBufferType(buffer) )
+				{
+				case StreamBuffers.CONNECT_REQUEST -> {
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createConnectConfirm(258, 27, 17)
+							);
+				}
+				case StreamBuffers.DATA, StreamBuffers.BUFFER_INCREMENT -> sentAfterClose.incrementAndGet();
+				}
+
+				return true;
+			}
+
+			@Override
+			protected int registerStream(Stream stream) throws LimitExceededException, IllegalArgumentException {
+				this.victim = stream;
+				return 17;
+			}
+
+			@Override
+			protected boolean deregisterStream(int stream) {
+				return true;
+			}
+
+		};
+
+		Stream stream = new Stream();
+		stream.setStreamController(sc);
+		stream.setStreamTimeout(2 * 1000);
+		stream.connect(new InetSocketAddress("127.0.0.1", 258));
+
+		// the peer sends a byte then closes, its id may be reused from here on
+		stream.getPeerIncoming().offer(StreamBuffers.createTransmitData(258, 17, ByteBuffer.wrap(new byte[] { 42 }), 1));
+		stream.getPeerIncoming().offer(StreamBuffers.createDisconnectRequest(258, 17));
+
+		for( int i = 0; i < 100 && !stream.isClosed(); i++ )
+			Thread.sleep(10);
+
+		// reading frees window the peer no longer needs, writing has nobody to go to
+		assertEquals(42, stream.getInputStream().read());
+		stream.getOutputStream().write(1);
+		stream.getOutputStream().flush();
+
+		Thread.sleep(200);
+		assertEquals(0, sentAfterClose.get());
+	}
+
+	@Test
+	@DisplayName("DATA and increments arriving while closing are discarded")
+	void testLateFramesWhileClosing() throws Exception {
+
+		var sc = new StreamController() {
+
+			Stream victim;
+
+			@Override
+			public boolean send(BufferData buffer) {
+				switch( StreamBuffers.getBufferType(buffer) )
+				{
+				case StreamBuffers.CONNECT_REQUEST -> {
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createConnectConfirm(258, 27, 17)
+							);
+				}
+				case StreamBuffers.DISCONNECT_REQUEST -> {
+					// the peer sent these before our request reached it
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createTransmitData(258, 17, ByteBuffer.wrap(new byte[] { 42 }), 1)
+							);
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createBufferIncrement(258, 17, 1)
+							);
+					victim.getPeerIncoming().offer(
+							StreamBuffers.createDisconnectConfirm(258, 17)
+							);
+				}
+				}
+
+				return true;
+			}
+
+			@Override
+			protected int registerStream(Stream stream) throws LimitExceededException, IllegalArgumentException {
+				this.victim = stream;
+				return 17;
+			}
+
+			@Override
+			protected boolean deregisterStream(int stream) {
+				return true;
+			}
+
+		};
+
+		Stream stream = new Stream();
+		stream.setStreamController(sc);
+		stream.setStreamTimeout(2 * 1000);
+
+		stream.connect(new InetSocketAddress("127.0.0.1", 258));
+		assertDoesNotThrow(() -> stream.close());
+		assertEquals(true, stream.isClosed());
+	}
+
+	@Test
+	@DisplayName("Closing a Stream that never connected sends nothing and returns at once")
+	void testCloseUnconnected() throws Exception {
+
+		var sent = new AtomicInteger();
+
+		var sc = new StreamController() {
+
+			@Override
+			public boolean send(BufferData buffer) {
+				sent.incrementAndGet();
+				return true;
+			}
+
+		};
+
+		// e.g. the Stream of a listening MuxServerSocket
+		Stream stream = new Stream();
+		stream.setStreamController(sc);
+		stream.setStreamTimeout(1000);
+
+		assertDoesNotThrow(() -> stream.close());
+		assertEquals(true, stream.isClosed());
+		assertEquals(0, sent.get());
+	}
 }
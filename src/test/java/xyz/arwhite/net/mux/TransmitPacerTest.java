@@ -0,0 +1,103 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TransmitPacerTest {
+
+	@Test
+	@DisplayName("Fixed rate drains bytes in flight")
+	void testFixedRate() {
+
+		var now = new AtomicLong(0);
+		var pacer = new TransmitPacer(1000, 100, now::get);
+
+		assertEquals(0,pacer.nanosUntilReady());
+
+		// fill the allowance, must now wait
+		pacer.sent(100, true);
+		assertEquals(100,pacer.getBytesInFlight());
+		assertTrue(pacer.nanosUntilReady() > 0);
+
+		// at 1000 bytes/s, 50ms drains 50 bytes
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(50,pacer.getBytesInFlight());
+		assertEquals(0,pacer.nanosUntilReady());
+	}
+
+	/**
+	 * Writes a backlogged 50ms round ending in a PING, answered when the link has delivered it
+	 */
+	private static void round(TransmitPacer pacer, AtomicLong now, int id, int bytes) {
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+		pacer.pingTaken(id);
+		pacer.sent(bytes, true);
+		pacer.pongReceived(id);
+	}
+
+	@Test
+	@DisplayName("Rate estimated from acknowledged bytes")
+	void testEstimatedRate() {
+
+		var now = new AtomicLong(0);
+		var pacer = new TransmitPacer(0, 1000, now::get);
+
+		// unknown rate never delays
+		assertEquals(0,pacer.getPacingRate());
+		assertEquals(0,pacer.nanosUntilReady());
+
+		// nothing acknowledged, however fast the transport takes it
+		for( int i = 0; i < 10; i++ ) {
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+			pacer.sent(10000, true);
+		}
+
+		assertEquals(0,pacer.getEstimatedRate());
+
+		// link acknowledges 10000 bytes per 50ms
+		for( int i = 1; i <= 10; i++ )
+			round(pacer, now, i, 10000);
+
+		assertEquals(200000,pacer.getEstimatedRate());
+		assertTrue(pacer.getPacingRate() >= 150000);
+	}
+
+	@Test
+	@DisplayName("Estimate falls when the link slows, probes don't raise it")
+	void testRateFalls() {
+
+		var now = new AtomicLong(0);
+		var pacer = new TransmitPacer(0, 1000, now::get);
+
+		for( int i = 1; i <= 10; i++ )
+			round(pacer, now, i, 10000);
+
+		assertEquals(200000,pacer.getEstimatedRate());
+
+		// the sender keeps writing at the pacing rate, the PONGs only return at half the rate
+		for( int i = 11; i <= 30; i++ ) {
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+			pacer.pingTaken(i);
+			pacer.sent(10000, true);
+
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+			pacer.pongReceived(i);
+		}
+
+		assertEquals(100000,pacer.getEstimatedRate());
+
+		// a lost PONG spreads its bytes over the next sample
+		round(pacer, now, 31, 5000);
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+		pacer.pingTaken(32);
+		pacer.sent(5000, true);
+		round(pacer, now, 33, 5000);
+
+		assertEquals(100000,pacer.getEstimatedRate());
+	}
+}
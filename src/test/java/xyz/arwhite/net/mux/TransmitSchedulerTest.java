@@ -0,0 +1,247 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.mercateo.test.clock.TestClock;
+
+import io.helidon.common.buffers.BufferData;
+
+class TransmitSchedulerTest {
+
+	private BufferData frame(int priority, int id, int size) {
+		var buffer = BufferData.create(size);
+		buffer.writeInt8(priority);
+		buffer.writeInt8(id);
+		buffer.write(new byte[size - 2]);
+		return buffer;
+	}
+
+	@Test
+	@DisplayName("Deadline frames sent earliest deadline first")
+	void testEarliestDeadlineFirst() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+
+		assertTrue(scheduler.offer(frame(9, 3, 16), 30));
+		assertTrue(scheduler.offer(frame(9, 1, 16), 10));
+		assertTrue(scheduler.offer(frame(9, 2, 16), 20));
+
+		// deadline lane goes ahead of higher priority data while it has credit
+		assertTrue(scheduler.offer(frame(2, 4, 16), 0));
+
+		for (int id = 1; id < 5; id++ )
+			assertEquals(id,scheduler.next().message().get(1));
+
+		assertNull(scheduler.next());
+		assertEquals(3,scheduler.getDeadlinesMet());
+		assertEquals(0,scheduler.getDeadlinesMissed());
+	}
+
+	@Test
+	@DisplayName("Frames with the same deadline stay FIFO across millis")
+	void testSameDeadlineFifo() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+
+		// a Stream's frames all given the same deadline, offered either side of a tick
+		assertTrue(scheduler.offer(frame(9, 1, 16), 50));
+		assertTrue(scheduler.offer(frame(9, 2, 16), 50));
+		assertTrue(scheduler.offer(frame(9, 3, 16), 50));
+
+		clock.fastForward(Duration.ofMillis(1));
+		assertTrue(scheduler.offer(frame(9, 4, 16), 50));
+		assertTrue(scheduler.offer(frame(9, 5, 16), 50));
+
+		for (int id = 1; id < 6; id++ )
+			assertEquals(id,scheduler.next().message().get(1));
+	}
+
+	@Test
+	@DisplayName("Deadline lane limited to its share")
+	void testDeadlineShare() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+
+		for (int id = 1; id < 4; id++ )
+			assertTrue(scheduler.offer(frame(9, id, 40000), 100));
+
+		assertTrue(scheduler.offer(frame(9, 10, 40000), 0));
+
+		// two deadline frames spend the initial credit, then data gets its turn
+		assertEquals(1,scheduler.next().message().get(1));
+		assertEquals(2,scheduler.next().message().get(1));
+		assertEquals(10,scheduler.next().message().get(1));
+
+		// with no data waiting the deadline lane uses the link
+		assertEquals(3,scheduler.next().message().get(1));
+	}
+
+	@Test
+	@DisplayName("Missed deadlines counted")
+	void testMissedDeadlines() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+
+		assertTrue(scheduler.offer(frame(9, 1, 16), 50));
+		assertTrue(scheduler.offer(frame(9, 2, 16), 200));
+
+		clock.fastForward(Duration.ofMillis(100));
+
+		scheduler.next();
+		scheduler.next();
+
+		assertEquals(1,scheduler.getDeadlinesMet());
+		assertEquals(1,scheduler.getDeadlinesMissed());
+		assertEquals(50,scheduler.getMaxLateness());
+	}
+
+	@Test
+	@DisplayName("Bandwidth groups share data lane by weight")
+	void testGroupWeights() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+		scheduler.setBandwidthGroup(5, 3, 0);
+
+		// group priority doesn't let the default group jump ahead of group 5
+		for (int i = 0; i < 12; i++ ) {
+			assertTrue(scheduler.offer(frame(2, 0, 4096), TransmitScheduler.DEFAULT_GROUP, 0));
+			assertTrue(scheduler.offer(frame(9, 5, 4096), 5, 0));
+		}
+
+		int group5 = 0;
+		for (int i = 0; i < 8; i++ )
+			if ( scheduler.next().message().get(1) == 5 )
+				group5++;
+
+		assertEquals(6,group5);
+	}
+
+	@Test
+	@DisplayName("Bandwidth group rate cap holds frames back")
+	void testGroupRateCap() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+		scheduler.setBandwidthGroup(7, 1, 10000);
+
+		for (int i = 0; i < 3; i++ )
+			assertTrue(scheduler.offer(frame(9, 7, 4096), 7, 0));
+
+		// initial burst spent
+		assertNotNull(scheduler.next());
+		assertNotNull(scheduler.next());
+		assertNull(scheduler.next());
+
+		// uncapped groups are unaffected
+		assertTrue(scheduler.offer(frame(9, 0, 4096), 0));
+		assertEquals(0,scheduler.next().message().get(1));
+
+		// 500ms refills 5000 bytes
+		clock.fastForward(Duration.ofMillis(500));
+		assertEquals(7,scheduler.next().message().get(1));
+	}
+
+	@Test
+	@DisplayName("Deadline frames charged to their group's cap")
+	void testCappedDeadlines() {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+		scheduler.setBandwidthGroup(7, 1, 10000);
+
+		assertTrue(scheduler.offer(frame(9, 7, 4096), 7, 100));
+		assertTrue(scheduler.offer(frame(9, 7, 4096), 7, 100));
+		assertTrue(scheduler.offer(frame(9, 8, 4096), 7, 100));
+		assertTrue(scheduler.offer(frame(9, 0, 16), 200));
+
+		// the burst spent, a later deadline in another group goes ahead
+		assertEquals(7,scheduler.next().message().get(1));
+		assertEquals(7,scheduler.next().message().get(1));
+		assertEquals(0,scheduler.next().message().get(1));
+		assertNull(scheduler.next());
+
+		clock.fastForward(Duration.ofMillis(500));
+		assertEquals(8,scheduler.next().message().get(1));
+	}
+
+	@Test
+	@DisplayName("Sender waiting out a cap takes a control frame offered meanwhile")
+	void testTakeWokenByOffer() throws Exception {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+		scheduler.setBandwidthGroup(7, 1, 1000);
+
+		for (int i = 0; i < 3; i++ )
+			assertTrue(scheduler.offer(frame(9, 7, 8000), 7, 0));
+
+		// the third frame waits seconds for the group to refill
+		assertNotNull(scheduler.take());
+		assertNotNull(scheduler.take());
+
+		var taken = new CompletableFuture<PriorityQueueEntry>();
+		Thread.ofVirtual().start(() -> {
+			try {
+				taken.complete(scheduler.take());
+			} catch (InterruptedException e) {
+				taken.completeExceptionally(e);
+			}
+		});
+
+		Thread.sleep(100);
+		assertTrue(scheduler.offer(StreamBuffers.createPing(1), 0));
+
+		var qe = taken.get(2, TimeUnit.SECONDS);
+		assertEquals(StreamBuffers.PING,StreamBuffers.getBufferType(qe.message()));
+	}
+
+	@Test
+	@DisplayName("Sender waits out a cap while a deadline frame is held back by its share")
+	void testTakeWithDeadlineCreditSpent() throws Exception {
+
+		var clock = TestClock.fixed(Instant.EPOCH, ZoneId.systemDefault());
+		var scheduler = new TransmitScheduler(clock, 16, 0.25);
+		scheduler.setBandwidthGroup(7, 1, 10000);
+		scheduler.setBandwidthGroup(9, 1, 0);
+
+		for (int i = 0; i < 3; i++ ) {
+			assertTrue(scheduler.offer(frame(9, 9, 40000), 9, 100));
+			assertTrue(scheduler.offer(frame(9, 7, 4096), 7, 0));
+		}
+
+		// two deadline frames spend the credit, then the cap's burst
+		for (int i = 0; i < 4; i++ )
+			assertNotNull(scheduler.take());
+
+		// the deadline frame waits on data that waits on the cap
+		var taken = new CompletableFuture<PriorityQueueEntry>();
+		Thread.ofVirtual().start(() -> {
+			try {
+				taken.complete(scheduler.take());
+			} catch (InterruptedException e) {
+				taken.completeExceptionally(e);
+			}
+		});
+
+		Thread.sleep(100);
+		assertFalse(taken.isDone());
+
+		clock.fastForward(Duration.ofMillis(500));
+		assertEquals(7,taken.get(2, TimeUnit.SECONDS).message().get(1));
+		assertTrue(scheduler.hasPending());
+	}
+}
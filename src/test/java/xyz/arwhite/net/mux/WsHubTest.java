@@ -0,0 +1,105 @@
+package xyz.arwhite.net.mux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.helidon.common.buffers.BufferData;
+import io.helidon.nima.websocket.WsSession;
+
+class WsHubTest {
+
+	/**
+	 * WebSocket that discards what's sent and records being closed
+	 */
+	private static class TestSession implements WsSession {
+
+		CompletableFuture<Integer> closed = new CompletableFuture<>();
+
+		@Override
+		public WsSession send(String text, boolean last) {
+			return this;
+		}
+
+		@Override
+		public WsSession send(BufferData bufferData, boolean last) {
+			return this;
+		}
+
+		@Override
+		public WsSession ping(BufferData bufferData) {
+			return this;
+		}
+
+		@Override
+		public WsSession pong(BufferData bufferData) {
+			return this;
+		}
+
+		@Override
+		public WsSession close(int code, String reason) {
+			closed.complete(code);
+			return this;
+		}
+
+		@Override
+		public WsSession terminate() {
+			return this;
+		}
+	}
+
+	@Test
+	@DisplayName("Peers registered by HELLO, a duplicate identity refused, closed peers removed")
+	void testPeerRegistration() throws Exception {
+
+		var identified = new ArrayList<String>();
+		var hub = new WsHub(new WsHub.Builder()
+				.withEndpoint("mux")
+				.withPeerListener((peerId, controller) -> identified.add(peerId)));
+
+		var first = hub.new HubSession();
+		var firstSocket = new TestSession();
+		first.onOpen(firstSocket);
+		first.onMessage(firstSocket, StreamBuffers.createHello("edge-1"), true);
+
+		assertEquals(Set.of("edge-1"), hub.getPeers());
+		assertNotNull(hub.getController("edge-1"));
+		var controller = hub.getController("edge-1");
+
+		// another WebSocket claiming the identity is closed, the first keeps it
+		var second = hub.new HubSession();
+		var secondSocket = new TestSession();
+		second.onOpen(secondSocket);
+		second.onMessage(secondSocket, StreamBuffers.createHello("edge-1"), true);
+
+		secondSocket.closed.get(5, TimeUnit.SECONDS);
+		assertFalse(firstSocket.closed.isDone());
+		assertSame(controller, hub.getController("edge-1"));
+		assertEquals(List.of("edge-1"), identified);
+
+		second.onClose(secondSocket, 1000, "refused");
+		assertEquals(Set.of("edge-1"), hub.getPeers());
+		assertEquals(1, hub.getSessionCount());
+
+		// once the first has gone the identity is free
+		first.onClose(firstSocket, 1000, "done");
+		assertTrue(hub.getPeers().isEmpty());
+		assertNull(hub.getController("edge-1"));
+		assertEquals(0, hub.getSessionCount());
+
+		var third = hub.new HubSession();
+		var thirdSocket = new TestSession();
+		third.onOpen(thirdSocket);
+		third.onMessage(thirdSocket, StreamBuffers.createHello("edge-1"), true);
+
+		assertNotSame(controller, hub.getController("edge-1"));
+		assertEquals(List.of("edge-1", "edge-1"), identified);
+	}
+}
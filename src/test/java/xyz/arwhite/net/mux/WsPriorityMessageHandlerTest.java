@@ -9,6 +9,9 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.time.Instant;
 import io.helidon.common.buffers.BufferData;
 import io.helidon.nima.websocket.WsSession;
@@ -271,6 +274,31 @@ class WsPriorityMessageHandlerTest {
 		
 	}
 	
+	@Test
+	@DisplayName("TxQueue Control Lane")
+	void testTxControlLane() {
+
+		var mb = new WsPriorityMessageHandler();
+
+		assertTrue(mb.sendMessage(StreamBuffers.createTransmitData(
+				5, 1, java.nio.ByteBuffer.allocate(8), 8)));
+		assertTrue(mb.sendMessage(StreamBuffers.createBufferIncrement(5, 1, 1024)));
+		assertTrue(mb.sendMessage(StreamBuffers.createDisconnectRequest(5, 1)));
+		
+		// window update is not queued behind the data
+		var cq = mb.getTxControlQueue();
+		assertEquals(1,cq.size());
+		
+		var qe = cq.poll();
+		assertEquals(StreamBuffers.CONTROL_PRIORITY,qe.priority());
+		assertEquals(StreamBuffers.BUFFER_INCREMENT,(byte) StreamBuffers.getBufferType(qe.message()));
+		
+		// disconnect request stays ordered behind the data
+		var pbq = mb.getTxQueue();
+		assertEquals(StreamBuffers.DATA,(byte) StreamBuffers.getBufferType(pbq.poll().message()));
+		assertEquals(StreamBuffers.DISCONNECT_REQUEST,(byte) StreamBuffers.getBufferType(pbq.poll().message()));
+	}
+	
 	// test that when we send messages in they get added to the WebSocket in the right order
 	// we've tested various scenarios already so this is about the plumbing working
 	
@@ -456,5 +484,118 @@ class WsPriorityMessageHandlerTest {
 		
 		// order is unpredictable due to timing between threads
 	}
-	
+
+	@Test
+	@DisplayName("Switch to inline dispatch delivers what was already queued first")
+	void testInlineSwitchDrainsRxQueue() {
+
+		var mb = new WsPriorityMessageHandler();
+
+		for (byte i = 1; i < 3; i++ ) {
+			var buffer = BufferData.create(16);
+			buffer.writeInt8(i); // priority
+			mb.onMessage(null, buffer, true);
+		}
+
+		var received = new ArrayList<BufferData>();
+		assertTrue(mb.setInlineReceiver(received::add));
+
+		assertEquals(2, received.size());
+		assertTrue(mb.getRxQueue().isEmpty());
+
+		var later = BufferData.create(16);
+		later.writeInt8(1);
+		mb.onMessage(null, later, true);
+
+		assertEquals(3, received.size());
+		assertEquals(1, received.get(0).get(0));
+		assertEquals(2, received.get(1).get(0));
+		assertSame(later, received.get(2));
+	}
+
+	/**
+	 * WebSocket that discards whatever is sent on it
+	 */
+	private static WsSession discardingSession() {
+		return new WsSession() {
+
+			@Override
+			public WsSession send(String text, boolean last) {
+				return this;
+			}
+
+			@Override
+			public WsSession send(BufferData bufferData, boolean last) {
+				return this;
+			}
+
+			@Override
+			public WsSession ping(BufferData bufferData) {
+				return this;
+			}
+
+			@Override
+			public WsSession pong(BufferData bufferData) {
+				return this;
+			}
+
+			@Override
+			public WsSession close(int code, String reason) {
+				return this;
+			}
+
+			@Override
+			public WsSession terminate() {
+				return this;
+			}
+		};
+	}
+
+	@Test
+	@DisplayName("Link resumes behind DATA received on the old WebSocket")
+	void testResumedAfterQueuedData() throws Exception {
+
+		var mb = new WsPriorityMessageHandler.Builder().withResume(5000).build();
+
+		var dropped = discardingSession();
+		mb.onOpen(dropped);
+
+		for (int i = 0; i < 2; i++ ) {
+			var buffer = BufferData.create(16);
+			buffer.writeInt8(5);
+			buffer.writeInt8(1);
+			buffer.writeInt8(StreamBuffers.DATA);
+			mb.onMessage(dropped, buffer, true);
+		}
+
+		mb.onClose(dropped, 1006, "dropped");
+
+		var resumed = new CompletableFuture<Void>();
+		Thread.ofVirtual().start(() -> {
+			mb.onOpen(discardingSession());
+			resumed.complete(null);
+		});
+
+		// the new WebSocket waits for the old one's DATA to be taken
+		Thread.sleep(200);
+		assertFalse(resumed.isDone());
+
+		var rxQueue = mb.getRxQueue();
+		var order = new ArrayList<String>();
+
+		for (int i = 0; i < 500 && order.size() < 4; i++ ) {
+			var qe = rxQueue.poll();
+
+			if ( qe == null )
+				Thread.sleep(10);
+			else if ( qe.priority() != 0 )
+				order.add("DATA");
+			else
+				order.add(StreamBuffers.getLinkEvent(qe.message()) == StreamBuffers.LINK_RESUMED ? "RESUMED" : "SUSPENDED");
+		}
+
+		resumed.get(5, TimeUnit.SECONDS);
+		assertEquals(List.of("SUSPENDED", "DATA", "DATA", "RESUMED"), order);
+	}
+
 }